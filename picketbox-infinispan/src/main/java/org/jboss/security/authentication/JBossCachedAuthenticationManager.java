@@ -30,10 +30,13 @@ import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 
 import javax.security.auth.Subject;
 import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.login.AppConfigurationEntry;
 import javax.security.auth.login.LoginContext;
 import javax.security.auth.login.LoginException;
 
@@ -44,9 +47,16 @@ import org.jboss.security.PicketBoxMessages;
 import org.jboss.security.SecurityConstants;
 import org.jboss.security.SecurityContext;
 import org.jboss.security.SecurityContextAssociation;
+import org.jboss.security.Util;
 import org.jboss.security.auth.callback.JBossCallbackHandler;
+import org.jboss.security.auth.callback.SecurityInfoMethods;
 import org.jboss.security.auth.login.BaseAuthenticationInfo;
+import org.jboss.security.auth.login.DirectLoginContext;
 import org.jboss.security.authentication.JBossCachedAuthenticationManager.DomainInfo;
+import org.jboss.security.cache.BoundedConcurrentCache;
+import org.jboss.security.cache.BoundedConcurrentCache.RemovalCause;
+import org.jboss.security.cache.BoundedConcurrentCache.RemovalListener;
+import org.jboss.security.cache.FlushListeners;
 import org.jboss.security.config.ApplicationPolicy;
 import org.jboss.security.config.SecurityConfiguration;
 import org.jboss.security.plugins.ClassLoaderLocator;
@@ -54,6 +64,9 @@ import org.jboss.security.plugins.ClassLoaderLocatorFactory;
 
 /**
  * {@link AuthenticationManager} implementation that uses {@code CacheableManager} as the cache provider.
+ * Any {@link ConcurrentMap} can be used as the cache, for instance an Infinispan cache or a
+ * {@link org.jboss.security.cache.BoundedConcurrentCache} when a local, size bounded and expiring
+ * cache is enough.
  * 
  * @author <a href="mmoyses@redhat.com">Marcus Moyses</a>
  * @author <a href="on@ibis.odessa.ua">Oleg Nitz</a>
@@ -73,6 +86,12 @@ public class JBossCachedAuthenticationManager implements AuthenticationManager,
 
    private boolean deepCopySubjectOption = false;
 
+   private boolean coalesceConcurrentLogins = false;
+
+   private boolean directLoginOption = false;
+
+   private final ConcurrentMap<LoginKey, PendingLogin> pendingLogins = new ConcurrentHashMap<LoginKey, PendingLogin>();
+
    /**
     * Create a new JBossCachedAuthenticationManager using the
     * default security domain and {@link CallbackHandler} implementation.
@@ -94,10 +113,9 @@ public class JBossCachedAuthenticationManager implements AuthenticationManager,
       this.callbackHandler = callbackHandler;
 
       // Get the setSecurityInfo(Principal principal, Object credential) method
-      Class<?>[] sig = {Principal.class, Object.class};
       try
       {
-         setSecurityInfo = callbackHandler.getClass().getMethod("setSecurityInfo", sig);
+         setSecurityInfo = SecurityInfoMethods.get(callbackHandler.getClass());
       }
       catch (Exception e)
       {
@@ -143,7 +161,12 @@ public class JBossCachedAuthenticationManager implements AuthenticationManager,
       }
 
       if (!isValid)
-         isValid = authenticate(principal, credential, activeSubject);
+      {
+         if (coalesceConcurrentLogins)
+            isValid = coalescedAuthenticate(principal, credential, activeSubject);
+         else
+            isValid = authenticate(principal, credential, activeSubject, null);
+      }
 
       PicketBoxLogger.LOGGER.traceEndIsValid(isValid);
       return isValid;
@@ -161,6 +184,8 @@ public class JBossCachedAuthenticationManager implements AuthenticationManager,
       PicketBoxLogger.LOGGER.traceFlushWholeCache();
       if (domainCache != null)
          domainCache.clear();
+      // release the resources the login modules cached for the domain
+      FlushListeners.flush(securityDomain);
    }
 
    @Override
@@ -175,6 +200,9 @@ public class JBossCachedAuthenticationManager implements AuthenticationManager,
    @Override
    public void setCache(ConcurrentMap<Principal, DomainInfo> cache)
    {
+      // the subjects of the entries evicted or expired by a bounded cache are logged out
+      if (cache instanceof BoundedConcurrentCache)
+         ((BoundedConcurrentCache<Principal, DomainInfo>) cache).setRemovalListener(LOGOUT_LISTENER);
       this.domainCache = cache;
    }
 
@@ -205,6 +233,30 @@ public class JBossCachedAuthenticationManager implements AuthenticationManager,
       deepCopySubjectOption = flag.booleanValue();
    }
 
+   /**
+    * Flag to specify if concurrent cache misses for the same principal and credential
+    * should share a single JAAS login instead of each running their own. Only enable it
+    * when the login modules of the domain do not depend on per request state.
+    * 
+    * @param flag
+    */
+   public void setCoalesceConcurrentLogins(Boolean flag)
+   {
+      coalesceConcurrentLogins = flag.booleanValue();
+   }
+
+   /**
+    * Flag to specify if the login module stack of the domain is run by a
+    * {@link DirectLoginContext} instead of the JAAS LoginContext. The login modules
+    * of the domain can also ask for it with {@link DirectLoginContext#DIRECT_LOGIN_OPTION}.
+    * 
+    * @param flag
+    */
+   public void setDirectLoginOption(Boolean flag)
+   {
+      directLoginOption = flag.booleanValue();
+   }
+
    /**
     * Retrieve on entry from the cache.
     * 
@@ -221,64 +273,12 @@ public class JBossCachedAuthenticationManager implements AuthenticationManager,
    /**
     * Validate the cache credential value against the provided credential
     */
-   @SuppressWarnings({"rawtypes", "unchecked"})
    private boolean validateCache(DomainInfo info, Object credential, Subject theSubject)
    {
 
       PicketBoxLogger.LOGGER.traceBeginValidateCache(info.toString(), credential != null ? credential.getClass() : null);
 
-      Object subjectCredential = info.credential;
-      boolean isValid = false;
-      // Check for a null credential as can be the case for an anonymous user
-      if (credential == null || subjectCredential == null)
-      {
-         // Both credentials must be null
-         isValid = (credential == null) && (subjectCredential == null);
-      }
-      // See if the credential is assignable to the cache value
-      else if (subjectCredential.getClass().isAssignableFrom(credential.getClass()))
-      {
-         // Validate the credential by trying Comparable, char[], byte[], Object[], and finally Object.equals()
-         if (subjectCredential instanceof Comparable)
-         {
-            Comparable c = (Comparable) subjectCredential;
-            isValid = c.compareTo(credential) == 0;
-         }
-         else if (subjectCredential instanceof char[])
-         {
-            char[] a1 = (char[]) subjectCredential;
-            char[] a2 = (char[]) credential;
-            isValid = Arrays.equals(a1, a2);
-         }
-         else if (subjectCredential instanceof byte[])
-         {
-            byte[] a1 = (byte[]) subjectCredential;
-            byte[] a2 = (byte[]) credential;
-            isValid = Arrays.equals(a1, a2);
-         }
-         else if (subjectCredential.getClass().isArray())
-         {
-            Object[] a1 = (Object[]) subjectCredential;
-            Object[] a2 = (Object[]) credential;
-            isValid = Arrays.equals(a1, a2);
-         }
-         else
-         {
-            isValid = subjectCredential.equals(credential);
-         }
-      }
-      else if (subjectCredential instanceof char[] && credential instanceof String)
-      {
-         char[] a1 = (char[]) subjectCredential;
-         char[] a2 = ((String) credential).toCharArray();
-         isValid = Arrays.equals(a1, a2);
-      }
-      else if (subjectCredential instanceof String && credential instanceof char[])
-      {
-         char[] a1 = ((String) subjectCredential).toCharArray();
-         char[] a2 = (char[]) credential;
-         isValid = Arrays.equals(a1, a2);
-      }
+      boolean isValid = Util.credentialsMatch(info.credential, credential);
 
       // If the credentials match, set the thread's active Subject
       if (isValid)
@@ -293,15 +293,60 @@ public class JBossCachedAuthenticationManager implements AuthenticationManager,
       return isValid;
    }
 
+   /**
+    * Authenticate the principal, sharing the outcome of a login already in progress for
+    * the same principal and credential instead of starting another one.
+    */
+   private boolean coalescedAuthenticate(Principal principal, Object credential, Subject theSubject)
+   {
+      LoginKey key = new LoginKey(principal, credential);
+      PendingLogin pending = new PendingLogin();
+      PendingLogin inFlight = pendingLogins.putIfAbsent(key, pending);
+      if (inFlight == null)
+      {
+         try
+         {
+            pending.authenticated = authenticate(principal, credential, theSubject, pending);
+            pending.completed = true;
+            return pending.authenticated;
+         }
+         finally
+         {
+            pendingLogins.remove(key, pending);
+            pending.done.countDown();
+         }
+      }
+
+      try
+      {
+         inFlight.done.await();
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         return authenticate(principal, credential, theSubject, null);
+      }
+      // the login we waited for did not finish normally, try on our own
+      if (!inFlight.completed)
+         return authenticate(principal, credential, theSubject, null);
+
+      PicketBoxLogger.LOGGER.traceCoalescedLogin(principal, inFlight.authenticated);
+      if (inFlight.authenticated && theSubject != null && inFlight.subject != null)
+         SubjectActions.copySubject(inFlight.subject, theSubject, false, this.deepCopySubjectOption);
+      SubjectActions.setContextInfo("org.jboss.security.exception", inFlight.exception);
+      return inFlight.authenticated;
+   }
+
    /** 
     * Currently this simply calls defaultLogin() to do a JAAS login using the
     * security domain name as the login module configuration name.
     *
     * @param principal - the user id to authenticate
     * @param credential - an opaque credential.
+    * @param pending - records the outcome for concurrent callers, may be null
     * @return false on failure, true on success.
     */
-   private boolean authenticate(Principal principal, Object credential, Subject theSubject)
+   private boolean authenticate(Principal principal, Object credential, Subject theSubject, PendingLogin pending)
    { 
 	   ApplicationPolicy theAppPolicy = SecurityConfiguration.getApplicationPolicy(securityDomain);
 	   if(theAppPolicy != null)
@@ -320,7 +365,7 @@ public class JBossCachedAuthenticationManager implements AuthenticationManager,
 					   try
 					   {
 						   SubjectActions.setContextClassLoader(newTCCL);
-						   return proceedWithJaasLogin(principal, credential, theSubject);
+						   return proceedWithJaasLogin(principal, credential, theSubject, pending);
 					   }
 					   finally
 					   {
@@ -330,11 +375,11 @@ public class JBossCachedAuthenticationManager implements AuthenticationManager,
 			   }
 		   }
 	   }
-	   return proceedWithJaasLogin(principal, credential, theSubject);
+	   return proceedWithJaasLogin(principal, credential, theSubject, pending);
    }
    
 
-   private boolean proceedWithJaasLogin(Principal principal, Object credential, Subject theSubject)
+   private boolean proceedWithJaasLogin(Principal principal, Object credential, Subject theSubject, PendingLogin pending)
    {
 	   Subject subject = null;
 	   boolean authenticated = false;
@@ -342,12 +387,14 @@ public class JBossCachedAuthenticationManager implements AuthenticationManager,
 	   try 
 	   {
 		   // Validate the principal using the login configuration for this domain
-		   LoginContext lc = defaultLogin(principal, credential);
-		   subject = lc.getSubject();
+		   DomainInfo info = new DomainInfo();
+		   subject = defaultLogin(principal, credential, info);
 
 		   // Set the current subject if login was successful
 		   if (subject != null)
 		   {
+			   if (pending != null)
+				   pending.subject = subject;
 			   // Copy the current subject into theSubject
 			   if (theSubject != null)
 			   {
@@ -360,7 +407,7 @@ public class JBossCachedAuthenticationManager implements AuthenticationManager,
 
 			   authenticated = true;
 			   // Build the Subject based DomainInfo cache value
-			   updateCache(lc, subject, principal, credential);
+			   updateCache(info, subject, principal, credential);
 		   }
 	   }
 	   catch (LoginException e)
@@ -370,6 +417,8 @@ public class JBossCachedAuthenticationManager implements AuthenticationManager,
                PicketBoxLogger.LOGGER.debugFailedLogin(e);
 		   authException = e;
 	   }
+	   if (pending != null)
+		   pending.exception = authException;
 	   // Set the security association thread context info exception
 	   SubjectActions.setContextInfo("org.jboss.security.exception", authException);
 
@@ -380,54 +429,70 @@ public class JBossCachedAuthenticationManager implements AuthenticationManager,
     * Pass the security info to the login modules configured for
     * this security domain using our SecurityAssociationHandler.
     *
+    * The login context is kept in the given {@link DomainInfo} for the logout.
+    *
     * @return The authenticated Subject if successful.
     * @exception LoginException throw if login fails for any reason.
     */
-   private LoginContext defaultLogin(Principal principal, Object credential) throws LoginException
+   private Subject defaultLogin(Principal principal, Object credential, DomainInfo info) throws LoginException
    {
       // We use our internal CallbackHandler to provide the security info. A
       // copy must be made to ensure there is a unique handler per active
       // login since there can be multiple active logins.
-      Object[] securityInfo = {principal, credential};
       CallbackHandler theHandler = null;
-      try
+      if (callbackHandler.getClass() == JBossCallbackHandler.class)
       {
-         theHandler = (CallbackHandler) callbackHandler.getClass().newInstance();
-         setSecurityInfo.invoke(theHandler, securityInfo);
+         theHandler = new JBossCallbackHandler(principal, credential);
       }
-      catch (Throwable e)
+      else
       {
-         LoginException le = new LoginException(PicketBoxMessages.MESSAGES.unableToFindSetSecurityInfoMessage());
-         le.initCause(e);
-         throw le;
+         Object[] securityInfo = {principal, credential};
+         try
+         {
+            theHandler = (CallbackHandler) callbackHandler.getClass().newInstance();
+            setSecurityInfo.invoke(theHandler, securityInfo);
+         }
+         catch (Throwable e)
+         {
+            LoginException le = new LoginException(PicketBoxMessages.MESSAGES.unableToFindSetSecurityInfoMessage());
+            le.initCause(e);
+            throw le;
+         }
       }
       Subject subject = new Subject();
-      LoginContext lc = null;
       PicketBoxLogger.LOGGER.traceDefaultLoginPrincipal(principal);
-      lc = SubjectActions.createLoginContext(securityDomain, subject, theHandler);
+      AppConfigurationEntry[] entries = DirectLoginContext.getEntries(securityDomain);
+      if (directLoginOption || DirectLoginContext.isEnabled(entries))
+      {
+         DirectLoginContext dlc = new DirectLoginContext(securityDomain, subject, theHandler, entries);
+         dlc.login();
+         info.directLoginContext = dlc;
+         PicketBoxLogger.LOGGER.traceDefaultLoginSubject(dlc.toString(), SubjectActions.toString(subject));
+         return dlc.getSubject();
+      }
+      LoginContext lc = SubjectActions.createLoginContext(securityDomain, subject, theHandler);
       lc.login();
+      info.loginContext = lc;
       PicketBoxLogger.LOGGER.traceDefaultLoginSubject(lc.toString(), SubjectActions.toString(subject));
-      return lc;
+      return lc.getSubject();
    }
 
    /**
     * Updates the cache either by inserting a new entry or by replacing
     * an invalid (expired) entry.
     * 
-    * @param loginContext {@link LoginContext} of the authentication
+    * @param info {@link DomainInfo} holding the login context of the authentication
     * @param subject {@link Subject} resulted from JAAS login
     * @param principal {@link Principal} representing the user's identity
     * @param credential user's proof of identity
     * @return authenticated {@link Subject}
     */
-   private Subject updateCache(LoginContext loginContext, Subject subject, Principal principal, Object credential)
+   private Subject updateCache(DomainInfo info, Subject subject, Principal principal, Object credential)
    {
       // If we don't have a cache there is nothing to update
       if (domainCache == null || principal == null)
          return subject;
 
-      DomainInfo info = new DomainInfo();
-      info.loginContext = loginContext;
       info.subject = new Subject();
       SubjectActions.copySubject(subject, info.subject, true, this.deepCopySubjectOption);
       info.credential = credential;
@@ -475,6 +540,17 @@ public class JBossCachedAuthenticationManager implements AuthenticationManager,
       return info.subject;
    }
 
+   /**
+    * Logs out the {@link DomainInfo} values removed from the cache.
+    */
+   private static final RemovalListener<Principal, DomainInfo> LOGOUT_LISTENER = new RemovalListener<Principal, DomainInfo>()
+   {
+      public void entryRemoved(Principal key, DomainInfo value, RemovalCause cause)
+      {
+         value.logout();
+      }
+   };
+
    /**
     * A cache value. Holds information about the authentication process.
     * 
@@ -486,6 +562,8 @@ public class JBossCachedAuthenticationManager implements AuthenticationManager,
 
       protected LoginContext loginContext;
 
+      protected DirectLoginContext directLoginContext;
+
       protected Subject subject;
 
       protected Object credential;
@@ -505,6 +583,97 @@ public class JBossCachedAuthenticationManager implements AuthenticationManager,
                PicketBoxLogger.LOGGER.traceCacheEntryLogoutFailure(e);
             }
          }
+         else if (directLoginContext != null)
+         {
+            try
+            {
+               directLoginContext.logout();
+            }
+            catch (Exception e)
+            {
+               PicketBoxLogger.LOGGER.traceCacheEntryLogoutFailure(e);
+            }
+         }
       }
    }
-}
\ No newline at end of file
+
+   /**
+    * Key of a login in progress: the principal plus a fingerprint of the credential.
+    * Two keys are only equal if their credentials match as they would on a cache hit.
+    */
+   private static final class LoginKey
+   {
+      private final Principal principal;
+
+      private final Object credential;
+
+      private final int hash;
+
+      LoginKey(Principal principal, Object credential)
+      {
+         this.principal = principal;
+         this.credential = credential;
+         this.hash = 31 * (principal != null ? principal.hashCode() : 0) + fingerprint(credential);
+      }
+
+      /**
+       * Content hash of the credential, a char[] hashes like the equivalent String.
+       */
+      private static int fingerprint(Object credential)
+      {
+         if (credential == null)
+            return 0;
+         if (credential instanceof char[])
+         {
+            int h = 0;
+            for (char c : (char[]) credential)
+               h = 31 * h + c;
+            return h;
+         }
+         if (credential instanceof byte[])
+            return Arrays.hashCode((byte[]) credential);
+         if (credential instanceof Object[])
+            return Arrays.hashCode((Object[]) credential);
+         if (!credential.getClass().isArray())
+            return credential.hashCode();
+         return 0;
+      }
+
+      @Override
+      public int hashCode()
+      {
+         return hash;
+      }
+
+      @Override
+      public boolean equals(Object obj)
+      {
+         if (this == obj)
+            return true;
+         if (!(obj instanceof LoginKey))
+            return false;
+         LoginKey other = (LoginKey) obj;
+         if (hash != other.hash)
+            return false;
+         if (principal == null ? other.principal != null : !principal.equals(other.principal))
+            return false;
+         return Util.credentialsMatch(credential, other.credential) || Util.credentialsMatch(other.credential, credential);
+      }
+   }
+
+   /**
+    * Outcome of a login in progress, shared with the callers waiting for it.
+    */
+   private static final class PendingLogin
+   {
+      private final CountDownLatch done = new CountDownLatch(1);
+
+      private volatile boolean completed;
+
+      private volatile boolean authenticated;
+
+      private volatile Subject subject;
+
+      private volatile LoginException exception;
+   }
+}
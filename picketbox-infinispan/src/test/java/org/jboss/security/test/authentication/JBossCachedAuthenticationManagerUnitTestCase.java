@@ -30,14 +30,23 @@ import org.jboss.security.AuthenticationManager;
 import org.jboss.security.CacheableManager;
 import org.jboss.security.SimplePrincipal;
 import org.jboss.security.auth.callback.AppCallbackHandler;
+import org.jboss.security.auth.spi.UsersRolesLoginModule;
+import org.jboss.security.cache.BoundedConcurrentCache;
+import org.jboss.security.cache.BoundedConcurrentCache.TimeSource;
 import org.jboss.security.authentication.JBossCachedAuthenticationManager;
 import org.jboss.security.authentication.JBossCachedAuthenticationManager.DomainInfo;
 
+import javax.security.auth.Subject;
 import javax.security.auth.login.AppConfigurationEntry;
 import javax.security.auth.login.AppConfigurationEntry.LoginModuleControlFlag;
 import javax.security.auth.login.Configuration;
+import javax.security.auth.login.LoginException;
 import java.security.Principal;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *  Unit tests for the JBossCachedAuthenticationManager.
@@ -113,7 +122,7 @@ public class JBossCachedAuthenticationManagerUnitTestCase extends TestCase
       
       assertTrue(am.isValid(p, "theduke"));
       assertTrue(cm.containsKey(p));
-      Thread.sleep(2000);
+      Thread.sleep(2000);
       assertFalse(cm.containsKey(p));
    }
    
@@ -203,6 +212,82 @@ public class JBossCachedAuthenticationManagerUnitTestCase extends TestCase
       */
    }
    
+   public void testBoundedCache() throws Exception
+   {
+      Principal p = new SimplePrincipal("jduke");
+      AppCallbackHandler acbh = new AppCallbackHandler("jduke", "theduke".toCharArray());
+      AuthenticationManager am = new JBossCachedAuthenticationManager("test", acbh);
+
+      final long[] now = new long[1];
+      BoundedConcurrentCache<Principal, DomainInfo> cache = new BoundedConcurrentCache<Principal, DomainInfo>(1, 0,
+            1000, TimeUnit.MILLISECONDS, new TimeSource()
+            {
+               public long nanoTime()
+               {
+                  return now[0];
+               }
+            });
+      @SuppressWarnings("unchecked")
+      CacheableManager<ConcurrentMap<Principal, DomainInfo>, Principal> cm = (CacheableManager<ConcurrentMap<Principal, DomainInfo>, Principal>) am;
+      cm.setCache(cache);
+
+      assertTrue(am.isValid(p, "theduke"));
+      assertTrue(cm.containsKey(p));
+      assertTrue(am.isValid(p, "theduke"));
+      assertEquals(1, cache.getHitCount());
+      Principal p2 = new SimplePrincipal("scott");
+      assertTrue(am.isValid(p2, "echoman"));
+      // jduke has been used more often, so the new entry is the one evicted
+      assertTrue(cm.containsKey(p));
+      assertFalse(cm.containsKey(p2));
+      assertEquals(1, cache.getEvictionCount());
+      now[0] += TimeUnit.MILLISECONDS.toNanos(1000);
+      assertFalse(cm.containsKey(p));
+   }
+
+   public void testCoalescedConcurrentLogins() throws Exception
+   {
+      final Principal p = new SimplePrincipal("jduke");
+      AppCallbackHandler acbh = new AppCallbackHandler("jduke", "theduke".toCharArray());
+      final JBossCachedAuthenticationManager am = new JBossCachedAuthenticationManager("coalesce", acbh);
+      am.setCoalesceConcurrentLogins(true);
+      CountingLoginModule.logins.set(0);
+
+      int threads = 10;
+      final CountDownLatch start = new CountDownLatch(1);
+      final AtomicInteger valid = new AtomicInteger();
+      Thread[] callers = new Thread[threads];
+      for (int i = 0; i < threads; i++)
+      {
+         callers[i] = new Thread()
+         {
+            @Override
+            public void run()
+            {
+               try
+               {
+                  start.await();
+                  Subject subject = new Subject();
+                  if (am.isValid(p, "theduke", subject) && subject.getPrincipals().contains(p))
+                     valid.incrementAndGet();
+               }
+               catch (InterruptedException e)
+               {
+               }
+            }
+         };
+         callers[i].start();
+      }
+      start.countDown();
+      for (Thread caller : callers)
+         caller.join();
+      assertEquals(threads, valid.get());
+      assertTrue(CountingLoginModule.logins.get() < threads);
+
+      // a different credential must not share the result
+      assertFalse(am.isValid(p, "bad"));
+   }
+
    private void establishSecurityConfiguration()
    {
       SecurityActions.setJAASConfiguration((Configuration) new TestConfig());
@@ -217,6 +302,8 @@ public class JBossCachedAuthenticationManagerUnitTestCase extends TestCase
          map.put("usersProperties", "users.properties");
          map.put("rolesProperties", "roles.properties");
          String moduleName = "org.jboss.security.auth.spi.UsersRolesLoginModule";
+         if ("coalesce".equals(name))
+            moduleName = CountingLoginModule.class.getName();
          AppConfigurationEntry ace = new AppConfigurationEntry(moduleName, LoginModuleControlFlag.REQUIRED, map);
 
          return new AppConfigurationEntry[]
@@ -228,4 +315,27 @@ public class JBossCachedAuthenticationManagerUnitTestCase extends TestCase
       {
       }
    }
+
+   /**
+    * Slow login module counting the logins it performs.
+    */
+   public static class CountingLoginModule extends UsersRolesLoginModule
+   {
+      static final AtomicInteger logins = new AtomicInteger();
+
+      @Override
+      public boolean login() throws LoginException
+      {
+         logins.incrementAndGet();
+         try
+         {
+            Thread.sleep(500);
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+         }
+         return super.login();
+      }
+   }
 }
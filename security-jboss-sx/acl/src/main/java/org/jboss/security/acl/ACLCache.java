@@ -0,0 +1,126 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.security.acl;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.security.authorization.Resource;
+
+/**
+ * <p>
+ * A thread-safe, size bounded cache of {@code ACL}s. The cache also remembers the resources that have no
+ * {@code ACL}, so that the checks on unprotected resources do not hit the store again. Reads are lock free.
+ * When the cache grows past its maximum size the oldest entries are evicted first.
+ * </p>
+ */
+class ACLCache
+{
+   /**
+    * <p>
+    * Value cached for the resources that are known to have no {@code ACL}.
+    * </p>
+    */
+   static final ACL NO_ACL = new ACLImpl((String) null, null);
+
+   private final ConcurrentMap<Resource, ACL> entries = new ConcurrentHashMap<Resource, ACL>();
+
+   // insertion order of the cached resources, used to select the entries to evict.
+   private final Queue<Resource> order = new ConcurrentLinkedQueue<Resource>();
+
+   private final AtomicInteger size = new AtomicInteger();
+
+   private final int maxSize;
+
+   /**
+    * <p>
+    * Creates a cache that holds at most {@code maxSize} resources.
+    * </p>
+    * 
+    * @param maxSize    the maximum number of cached resources.
+    */
+   ACLCache(int maxSize)
+   {
+      this.maxSize = Math.max(maxSize, 1);
+   }
+
+   /**
+    * <p>
+    * Obtains the cached {@code ACL} of the resource.
+    * </p>
+    * 
+    * @param resource   the {@code Resource} being looked up.
+    * @return   the cached {@code ACL}, {@link #NO_ACL} if the resource is known to have no ACL, or {@code null}
+    * if the resource is not cached.
+    */
+   ACL get(Resource resource)
+   {
+      return this.entries.get(resource);
+   }
+
+   /**
+    * <p>
+    * Caches the {@code ACL} of a resource, replacing the current entry. A {@code null} ACL records that the
+    * resource has no ACL.
+    * </p>
+    * 
+    * @param resource   the {@code Resource}.
+    * @param acl    the {@code ACL} of the resource, or {@code null}.
+    */
+   void put(Resource resource, ACL acl)
+   {
+      if (this.entries.put(resource, acl != null ? acl : NO_ACL) == null)
+         this.added(resource);
+   }
+
+   /**
+    * <p>
+    * Caches the {@code ACL} loaded from the store for a resource, unless a concurrent update has already
+    * cached the resource. A {@code null} ACL records that the resource has no ACL.
+    * </p>
+    * 
+    * @param resource   the {@code Resource}.
+    * @param acl    the {@code ACL} of the resource, or {@code null}.
+    */
+   void putIfAbsent(Resource resource, ACL acl)
+   {
+      if (this.entries.putIfAbsent(resource, acl != null ? acl : NO_ACL) == null)
+         this.added(resource);
+   }
+
+   private void added(Resource resource)
+   {
+      this.order.offer(resource);
+      if (this.size.incrementAndGet() > this.maxSize)
+      {
+         Resource eldest = this.order.poll();
+         if (eldest != null)
+         {
+            this.size.decrementAndGet();
+            this.entries.remove(eldest);
+         }
+      }
+   }
+}
@@ -39,6 +39,7 @@ import javax.persistence.Table;
 import javax.persistence.Transient;
 
 import org.hibernate.annotations.Cascade;
+import org.hibernate.annotations.Index;
 import org.jboss.security.PicketBoxMessages;
 import org.jboss.security.authorization.Resource;
 import org.jboss.security.identity.Identity;
@@ -65,11 +66,15 @@ public class ACLImpl implements ACL, Serializable
    private Resource resource;
 
    @Column(name = "resource")
+   @Index(name = "ACL_RESOURCE_IDX")
    private String resourceAsString;
 
    @Transient
    private Map<String, ACLEntry> entriesMap;
 
+   @Transient
+   private transient volatile ACLMaskIndex maskIndex;
+
    @OneToMany(mappedBy = "acl", fetch = FetchType.EAGER, cascade =
    {CascadeType.REMOVE, CascadeType.PERSIST})
    @Cascade(
@@ -155,6 +160,7 @@ public class ACLImpl implements ACL, Serializable
       this.entries.add((ACLEntryImpl) entry);
       ((ACLEntryImpl) entry).setAcl(this);
       this.entriesMap.put(entry.getIdentityOrRole(), entry);
+      this.maskIndex = null;
       return true;
    }
 
@@ -168,7 +174,9 @@ public class ACLImpl implements ACL, Serializable
       if (this.entriesMap == null)
          this.initEntriesMap();
       this.entriesMap.remove(entry.getIdentityOrRole());
-      return this.entries.remove(entry);
+      boolean removed = this.entries.remove(entry);
+      this.maskIndex = null;
+      return removed;
    }
 
    /*
@@ -228,6 +236,25 @@ public class ACLImpl implements ACL, Serializable
       return false;
    }
 
+   /**
+    * <p>
+    * Obtains the index of the permission masks of the entries of this {@code ACL}. The index is built on first use
+    * and rebuilt after the entries change.
+    * </p>
+    * 
+    * @return the {@code ACLMaskIndex} of this ACL.
+    */
+   ACLMaskIndex getMaskIndex()
+   {
+      ACLMaskIndex index = this.maskIndex;
+      if (index == null)
+      {
+         index = new ACLMaskIndex(this.entries);
+         this.maskIndex = index;
+      }
+      return index;
+   }
+
    /**
     * <p>
     * Obtains the stringfied representation of the resource associated with this {@code ACL}.
@@ -0,0 +1,165 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.security.acl;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>
+ * Immutable index of the permission masks of the entries of an {@code ACL}, keyed by identity or role name. The
+ * names and masks are kept in open addressing arrays, so a lookup does not allocate. The effective mask of a
+ * {@code RoleSet} (the union of the masks of its roles) is computed once and cached.
+ * </p>
+ */
+final class ACLMaskIndex
+{
+   /**
+    * <p>
+    * Mask returned when none of the looked up names has an entry in the {@code ACL}.
+    * </p>
+    */
+   static final long NO_ENTRY = -1L;
+
+   // maximum number of role sets whose effective mask is cached.
+   private static final int MAX_CACHED_ROLE_SETS = 256;
+
+   private final String[] names;
+
+   private final int[] masks;
+
+   private final ConcurrentMap<RoleSet, Long> effectiveMasks = new ConcurrentHashMap<RoleSet, Long>();
+
+   /**
+    * <p>
+    * Builds the index of the specified entries.
+    * </p>
+    * 
+    * @param entries    the entries of the {@code ACL}.
+    */
+   ACLMaskIndex(Collection<? extends ACLEntry> entries)
+   {
+      int capacity = 2;
+      while (capacity < entries.size() * 2)
+         capacity <<= 1;
+      this.names = new String[capacity];
+      this.masks = new int[capacity];
+      for (ACLEntry entry : entries)
+      {
+         String name = entry.getIdentityOrRole();
+         if (name == null)
+            continue;
+         ACLPermission permission = entry.getPermission();
+         int mask = permission instanceof BitMaskPermission ? ((BitMaskPermission) permission).getMaskValue() : 0;
+         int slot = this.slot(name);
+         this.names[slot] = name;
+         this.masks[slot] = mask;
+      }
+   }
+
+   /**
+    * <p>
+    * Obtains the permission mask of the entry of the specified identity or role.
+    * </p>
+    * 
+    * @param identityOrRole the name of the identity or role.
+    * @return   the mask of the entry, or {@link #NO_ENTRY} if the ACL has no entry for the name.
+    */
+   long getMask(String identityOrRole)
+   {
+      if (identityOrRole == null)
+         return NO_ENTRY;
+      int slot = this.slot(identityOrRole);
+      return this.names[slot] != null ? this.masks[slot] & 0xFFFFFFFFL : NO_ENTRY;
+   }
+
+   /**
+    * <p>
+    * Obtains the union of the permission masks of the entries of the specified roles.
+    * </p>
+    * 
+    * @param roles  the interned role set.
+    * @return   the union of the masks, or {@link #NO_ENTRY} if the ACL has no entry for any of the roles.
+    */
+   long getEffectiveMask(RoleSet roles)
+   {
+      Long cached = this.effectiveMasks.get(roles);
+      if (cached != null)
+         return cached.longValue();
+      long effective = NO_ENTRY;
+      for (String name : roles.getNames())
+      {
+         long mask = this.getMask(name);
+         if (mask != NO_ENTRY)
+            effective = effective == NO_ENTRY ? mask : effective | mask;
+      }
+      if (this.effectiveMasks.size() < MAX_CACHED_ROLE_SETS)
+         this.effectiveMasks.putIfAbsent(roles, Long.valueOf(effective));
+      return effective;
+   }
+
+   /**
+    * <p>
+    * Checks if one of the specified roles has an entry that holds all the bits of the requested mask. This is the
+    * semantics of {@code ACLEntry.checkPermission} applied to each role in turn.
+    * </p>
+    * 
+    * @param roles  the interned role set.
+    * @param requestedMask  the requested permission mask.
+    * @return   {@code true} if a role is granted the requested permission; {@code false} otherwise.
+    */
+   boolean isGranted(RoleSet roles, int requestedMask)
+   {
+      long effective = this.getEffectiveMask(roles);
+      if (effective == NO_ENTRY)
+         return false;
+      long requested = requestedMask & 0xFFFFFFFFL;
+      // an empty permission is always part of another permission.
+      if (requested == 0)
+         return true;
+      if ((effective & requested) != requested)
+         return false;
+      // when a single bit is requested the union of the masks is exact.
+      if ((requested & (requested - 1)) == 0)
+         return true;
+      // otherwise the requested bits must all be held by the same role.
+      for (String name : roles.getNames())
+      {
+         long mask = this.getMask(name);
+         if (mask != NO_ENTRY && (mask & requested) == requested)
+            return true;
+      }
+      return false;
+   }
+
+   private int slot(String name)
+   {
+      int h = name.hashCode();
+      h ^= (h >>> 16);
+      int last = this.names.length - 1;
+      int slot = h & last;
+      while (this.names[slot] != null && !this.names[slot].equals(name))
+         slot = (slot + 1) & last;
+      return slot;
+   }
+}
@@ -24,11 +24,11 @@ package org.jboss.security.acl;
 import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
-import java.util.Collection;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
+import org.jboss.security.PicketBoxLogger;
 import org.jboss.security.PicketBoxMessages;
 import org.jboss.security.authorization.AuthorizationException;
 import org.jboss.security.authorization.Resource;
@@ -51,11 +51,15 @@ public class ACLProviderImpl implements ACLProvider
 
    private static final String CHECK_PARENT_ACL_OPTION = "checkParentACL";
    
+   private static final String ENTITLEMENT_PARALLELISM_OPTION = "entitlementParallelism";
+   
    /** persistence strategy used to retrieve the ACLs */
    protected ACLPersistenceStrategy strategy;
 
    private boolean checkParentACL;
    
+   private int entitlementParallelism = 1;
+   
    /*
     * (non-Javadoc)
     * 
@@ -68,6 +72,19 @@ public class ACLProviderImpl implements ACLProvider
          strategyClassName = "org.jboss.security.acl.JPAPersistenceStrategy";
 
       this.checkParentACL = Boolean.valueOf((String) options.get(CHECK_PARENT_ACL_OPTION)); 
+      String parallelism = (String) options.get(ENTITLEMENT_PARALLELISM_OPTION);
+      if (parallelism != null)
+      {
+         try
+         {
+            this.entitlementParallelism = Integer.parseInt(parallelism.trim());
+         }
+         catch (NumberFormatException e)
+         {
+            PicketBoxLogger.LOGGER.debugFailureToParseNumberProperty(ENTITLEMENT_PARALLELISM_OPTION,
+                  this.entitlementParallelism);
+         }
+      }
          
       try
       {
@@ -105,14 +122,13 @@ public class ACLProviderImpl implements ACLProvider
    /**
     * <p>
     * Helper method that populates the {@code entitlements} collection as it traverses through the resources. The
-    * resources are visited using a depth-first search algorithm, and when each node is visited one of the following
+    * resources are visited one level of the tree at a time, and when each node is visited one of the following
     * happens:
     * <li>
     * <ul>
     * an ACL for the resource is located and there is an entry for the identity - the permissions assigned to the
     * identity are used to construct the {@code EntitlementEntry} object and this object is added to the collection. The
-    * method is then called recursively for each one of the resource's children passing the permissions that were
-    * extracted from the ACL.
+    * resource's children are then visited with the permissions that were extracted from the ACL.
     * </ul>
     * <ul>
     * an ACL for the resource is found, but there is no entry for the identity - this means the identity doesn't have
@@ -126,41 +142,22 @@ public class ACLProviderImpl implements ACLProvider
     * </ul>
     * </li>
     * </p>
+    * <p>
+    * The ACLs of all the resources of a level are retrieved at once when the strategy is a
+    * {@code BatchACLPersistenceStrategy}. Levels holding many resources are evaluated by up to
+    * {@code entitlementParallelism} threads (1 by default).
+    * </p>
     * 
     * @param entitlements a reference for the collection of {@code EntitlementEntry} objects that is being constructed.
     * @param resource the {@code Resource} being visited.
     * @param identityName a {@code String} representing the identity for which the entitlements are being built.
     * @param permission the {@code ACLPermission} to be used in case no ACL is found for the resource being visited.
     */
-   @SuppressWarnings("unchecked")
    protected void fillEntitlements(Set<EntitlementEntry> entitlements, Resource resource, String identityName,
          ACLPermission permission)
    {
-      ACLPermission currentPermission = permission;
-
-      ACL acl = this.strategy.getACL(resource);
-      if (acl != null)
-      {
-         ACLEntry entry = acl.getEntry(identityName);
-         // null entry means the identity has no permissions over the specified resource.
-         if (entry == null)
-            return;
-         currentPermission = entry.getPermission();
-         entitlements.add(new EntitlementEntry(resource, currentPermission, identityName));
-      }
-      else
-      {
-         // if resource's ACL is null, build an entry using the permission parameter.
-         entitlements.add(new EntitlementEntry(resource, currentPermission, identityName));
-      }
-
-      // iterate through the sub-resources (if any), adding their entries to the entitlements collection.
-      Collection<Resource> childResources = (Collection<Resource>) resource.getMap().get(ResourceKeys.CHILD_RESOURCES);
-      if (childResources != null)
-      {
-         for (Resource childResource : childResources)
-            fillEntitlements(entitlements, childResource, identityName, currentPermission);
-      }
+      new EntitlementWalker(this.strategy, this.entitlementParallelism).fillEntitlements(entitlements, resource,
+            identityName, permission);
    }
 
    /**
@@ -174,7 +171,8 @@ public class ACLProviderImpl implements ACLProvider
     * If the resource doesn't have an associated ACL, we start looking for an ACL in the parent resource recursively,
     * until an ACL is located or until no parent resource is found. In the first case, the algorithm described above is
     * used to return the identity's permissions. In the latter case, we return all permissions (lack of an ACL means
-    * that the resource is not protected and the user should be granted all permissions).
+    * that the resource is not protected and the user should be granted all permissions). The ACLs of the whole parent
+    * chain are retrieved at once when the strategy is a {@code BatchACLPersistenceStrategy}.
     * </p>
     * 
     * @param resource the {@code Resource} for which we want to discover the permissions that have been assigned to the
@@ -186,22 +184,8 @@ public class ACLProviderImpl implements ACLProvider
     */
    protected ACLPermission getInitialPermissions(Resource resource, String identityName)
    {
-      ACL acl = this.strategy.getACL(resource);
-      // if no ACL was found, try to find a parent ACL.
-      if (acl == null)
-      {
-         Resource parent = (Resource) resource.getMap().get(ResourceKeys.PARENT_RESOURCE);
-         if (parent != null)
-            return getInitialPermissions(parent, identityName);
-         // no ACL was found and no parent resource exists - identity has all permissions as resource is not protected.
-         return new CompositeACLPermission(BasicACLPermission.values());
-      }
-      // if an ACL was found, return the permissions associated with the specified identity.
-      ACLEntry entry = acl.getEntry(identityName);
-      if (entry != null)
-         return entry.getPermission();
-      // the absence of an entry means that the identity has no permissions over the specified resource.
-      return null;
+      return new EntitlementWalker(this.strategy, this.entitlementParallelism).getInitialPermissions(resource,
+            identityName);
    }
 
    /*
@@ -0,0 +1,275 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.security.acl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.security.authorization.Resource;
+import org.jboss.security.authorization.ResourceKeys;
+
+/**
+ * <p>
+ * Computes the entitlements of an identity over a resource tree. The tree is walked one level at a time: the
+ * {@code ACL}s of all the resources of a level are obtained with a single call when the persistence strategy is a
+ * {@code BatchACLPersistenceStrategy}, and the permission inherited by each resource is carried along with it so
+ * that the parent chain is never walked again.
+ * </p>
+ * <p>
+ * Large levels are split into chunks that are evaluated by up to {@code parallelism} threads. The entries are
+ * gathered into a concurrent set.
+ * </p>
+ */
+final class EntitlementWalker
+{
+   // smallest number of resources evaluated by a single thread.
+   private static final int MIN_CHUNK_SIZE = 256;
+
+   private static final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory()
+   {
+      private final AtomicInteger count = new AtomicInteger();
+
+      public Thread newThread(Runnable r)
+      {
+         Thread thread = new Thread(r, "ACLProvider entitlements " + count.incrementAndGet());
+         thread.setDaemon(true);
+         return thread;
+      }
+   });
+
+   private final ACLPersistenceStrategy strategy;
+
+   private final int parallelism;
+
+   /**
+    * <p>
+    * Creates a walker that uses the specified strategy to obtain the {@code ACL}s.
+    * </p>
+    * 
+    * @param strategy   the {@code ACLPersistenceStrategy} used to retrieve the ACLs.
+    * @param parallelism    the maximum number of threads evaluating a level of the tree.
+    */
+   EntitlementWalker(ACLPersistenceStrategy strategy, int parallelism)
+   {
+      this.strategy = strategy;
+      this.parallelism = Math.max(parallelism, 1);
+   }
+
+   /**
+    * <p>
+    * Obtains the permissions the identity has over the resource, looking up the parent resources when the resource
+    * has no {@code ACL}. The {@code ACL}s of the whole parent chain are obtained with a single call when possible.
+    * </p>
+    * 
+    * @param resource   the {@code Resource} being checked.
+    * @param identityName   the name of the identity (or role) being checked.
+    * @return   the permissions of the identity, all the permissions if no resource of the chain is protected, or
+    *         {@code null} if the identity has no permissions at all.
+    */
+   ACLPermission getInitialPermissions(Resource resource, String identityName)
+   {
+      List<Resource> chain = new ArrayList<Resource>();
+      for (Resource current = resource; current != null; current = (Resource) current.getMap().get(
+            ResourceKeys.PARENT_RESOURCE))
+         chain.add(current);
+      Map<Resource, ACL> acls = this.prefetch(chain);
+      for (Resource current : chain)
+      {
+         ACL acl = this.getACL(current, acls);
+         if (acl != null)
+         {
+            // the absence of an entry means that the identity has no permissions over the specified resource.
+            ACLEntry entry = acl.getEntry(identityName);
+            return entry != null ? entry.getPermission() : null;
+         }
+      }
+      // no ACL was found in the chain - identity has all permissions as resource is not protected.
+      return new CompositeACLPermission(BasicACLPermission.values());
+   }
+
+   /**
+    * <p>
+    * Adds to {@code entitlements} an {@code EntitlementEntry} for each resource of the tree rooted at
+    * {@code resource} over which the identity has permissions.
+    * </p>
+    * 
+    * @param entitlements   the set being filled.
+    * @param resource   the root of the resource tree.
+    * @param identityName   the name of the identity (or role) being checked.
+    * @param permission the permission of the identity over the root when it has no {@code ACL}.
+    */
+   void fillEntitlements(Set<EntitlementEntry> entitlements, Resource resource, String identityName,
+         ACLPermission permission)
+   {
+      Set<EntitlementEntry> collected = this.parallelism > 1 ? Collections
+            .newSetFromMap(new ConcurrentHashMap<EntitlementEntry, Boolean>()) : entitlements;
+      List<Node> level = Collections.singletonList(new Node(resource, permission));
+      while (!level.isEmpty())
+      {
+         List<Resource> resources = new ArrayList<Resource>(level.size());
+         for (Node node : level)
+            resources.add(node.resource);
+         Map<Resource, ACL> acls = this.prefetch(resources);
+
+         int chunks = Math.min(this.parallelism, level.size() / MIN_CHUNK_SIZE);
+         if (chunks > 1)
+            level = this.visitInParallel(level, chunks, acls, identityName, collected);
+         else
+            level = this.visit(level, acls, identityName, collected);
+      }
+      if (collected != entitlements)
+         entitlements.addAll(collected);
+   }
+
+   private List<Node> visitInParallel(List<Node> level, int chunks, final Map<Resource, ACL> acls,
+         final String identityName, final Set<EntitlementEntry> entitlements)
+   {
+      int chunkSize = (level.size() + chunks - 1) / chunks;
+      List<Future<List<Node>>> futures = new ArrayList<Future<List<Node>>>(chunks - 1);
+      for (int start = chunkSize; start < level.size(); start += chunkSize)
+      {
+         final List<Node> chunk = level.subList(start, Math.min(start + chunkSize, level.size()));
+         futures.add(executor.submit(new Callable<List<Node>>()
+         {
+            public List<Node> call()
+            {
+               return visit(chunk, acls, identityName, entitlements);
+            }
+         }));
+      }
+      // the calling thread evaluates the first chunk itself.
+      List<Node> next = new ArrayList<Node>(this.visit(level.subList(0, chunkSize), acls, identityName, entitlements));
+      boolean interrupted = false;
+      try
+      {
+         for (Future<List<Node>> future : futures)
+         {
+            while (true)
+            {
+               try
+               {
+                  next.addAll(future.get());
+                  break;
+               }
+               catch (InterruptedException ie)
+               {
+                  // the chunks are short lived, wait for them and restore the interrupt status afterwards.
+                  interrupted = true;
+               }
+               catch (ExecutionException ee)
+               {
+                  Throwable cause = ee.getCause();
+                  if (cause instanceof RuntimeException)
+                     throw (RuntimeException) cause;
+                  if (cause instanceof Error)
+                     throw (Error) cause;
+                  throw new IllegalStateException(cause);
+               }
+            }
+         }
+      }
+      finally
+      {
+         if (interrupted)
+            Thread.currentThread().interrupt();
+      }
+      return next;
+   }
+
+   /**
+    * <p>
+    * Evaluates the resources of a level and returns the resources of the next level together with the permission
+    * they inherit.
+    * </p>
+    */
+   @SuppressWarnings("unchecked")
+   private List<Node> visit(List<Node> level, Map<Resource, ACL> acls, String identityName,
+         Set<EntitlementEntry> entitlements)
+   {
+      List<Node> next = new ArrayList<Node>();
+      for (Node node : level)
+      {
+         ACLPermission currentPermission = node.permission;
+         ACL acl = this.getACL(node.resource, acls);
+         if (acl != null)
+         {
+            ACLEntry entry = acl.getEntry(identityName);
+            // null entry means the identity has no permissions over the resource and its subtree.
+            if (entry == null)
+               continue;
+            currentPermission = entry.getPermission();
+         }
+         entitlements.add(new EntitlementEntry(node.resource, currentPermission, identityName));
+
+         Collection<Resource> childResources = (Collection<Resource>) node.resource.getMap().get(
+               ResourceKeys.CHILD_RESOURCES);
+         if (childResources != null)
+         {
+            for (Resource childResource : childResources)
+               next.add(new Node(childResource, currentPermission));
+         }
+      }
+      return next;
+   }
+
+   private Map<Resource, ACL> prefetch(List<Resource> resources)
+   {
+      if (resources.size() > 1 && this.strategy instanceof BatchACLPersistenceStrategy)
+         return ((BatchACLPersistenceStrategy) this.strategy).getACLs(resources);
+      return null;
+   }
+
+   private ACL getACL(Resource resource, Map<Resource, ACL> acls)
+   {
+      return acls != null ? acls.get(resource) : this.strategy.getACL(resource);
+   }
+
+   /**
+    * <p>
+    * A resource waiting to be visited, with the permission it inherits from its parent.
+    * </p>
+    */
+   private static final class Node
+   {
+      private final Resource resource;
+
+      private final ACLPermission permission;
+
+      private Node(Resource resource, ACLPermission permission)
+      {
+         this.resource = resource;
+         this.permission = permission;
+      }
+   }
+}
@@ -3,6 +3,9 @@ package org.jboss.security.acl;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.persistence.EntityManager;
@@ -19,14 +22,29 @@ import org.jboss.security.authorization.Resource;
  * Implementation of {@code ACLPersistenceStrategy} that uses the Java Persistence API (JPA) to
  * persist the {@code ACL}s.
  * </p>
+ * <p>
+ * The retrieved {@code ACL}s are kept in a size bounded cache that can be safely shared by concurrent
+ * threads. The cache also remembers the resources that have no {@code ACL}. Changes made to the database by
+ * other means than this strategy are therefore not seen until the entries are evicted.
+ * </p>
  * 
  * @author <a href="mailto:sguilhen@redhat.com">Stefan Guilhen</a>
  */
-public class JPAPersistenceStrategy implements ACLPersistenceStrategy
+public class JPAPersistenceStrategy implements BatchACLPersistenceStrategy
 {
 
+   /**
+    * <p>
+    * Default maximum number of resources whose {@code ACL} is cached.
+    * </p>
+    */
+   public static final int DEFAULT_CACHE_SIZE = 10000;
+
+   // maximum number of resources looked up by a single query.
+   private static final int BATCH_SIZE = 500;
+
    // in memory cache of the created ACLs.
-   private final Map<Resource, ACL> aclMap;
+   private final ACLCache aclCache;
 
    private final EntityManagerFactory managerFactory;
 
@@ -39,7 +57,20 @@ public class JPAPersistenceStrategy implements ACLPersistenceStrategy
 
    public JPAPersistenceStrategy(ACLResourceFactory resourceFactory)
    {
-      this.aclMap = new HashMap<Resource, ACL>();
+      this(resourceFactory, DEFAULT_CACHE_SIZE);
+   }
+
+   /**
+    * <p>
+    * Creates a strategy that caches the {@code ACL}s of at most {@code cacheSize} resources.
+    * </p>
+    * 
+    * @param resourceFactory    the factory used to instantiate the resources of the retrieved ACLs, may be null.
+    * @param cacheSize  the maximum number of resources whose ACL is cached.
+    */
+   public JPAPersistenceStrategy(ACLResourceFactory resourceFactory, int cacheSize)
+   {
+      this.aclCache = new ACLCache(cacheSize);
       this.managerFactory = Persistence.createEntityManagerFactory("ACL");
       this.resourceFactory = resourceFactory;
    }
@@ -63,9 +94,10 @@ public class JPAPersistenceStrategy implements ACLPersistenceStrategy
          throw PicketBoxMessages.MESSAGES.invalidNullArgument("resource");
 
       // check the cache first.
-      ACL acl = this.aclMap.get(resource);
-      if (acl == null)
+      ACL acl = this.aclCache.get(resource);
+      if (acl == null || acl == ACLCache.NO_ACL)
       {
+         acl = null;
          EntityManager entityManager = this.managerFactory.createEntityManager();
          EntityTransaction transaction = entityManager.getTransaction();
          transaction.begin();
@@ -74,9 +106,9 @@ public class JPAPersistenceStrategy implements ACLPersistenceStrategy
             // create a new ACL and persist it to the database.
             acl = new ACLImpl(resource, entries);
             entityManager.persist(acl);
-            // add the newly-created ACL to the cache.
-            this.aclMap.put(resource, acl);
             transaction.commit();
+            // add the newly-created ACL to the cache.
+            this.aclCache.put(resource, acl);
          }
          catch (RuntimeException re)
          {
@@ -118,15 +150,17 @@ public class JPAPersistenceStrategy implements ACLPersistenceStrategy
          if (acl != null)
          {
             entityManager.remove(acl);
-            // remove the ACL from the cache.
-            result = this.aclMap.remove(resource) != null;
+            result = true;
          }
          transaction.commit();
+         // remember that the resource has no ACL anymore.
+         this.aclCache.put(resource, null);
       }
       catch (RuntimeException re)
       {
          re.printStackTrace();
          transaction.rollback();
+         result = false;
       }
       finally
       {
@@ -142,22 +176,78 @@ public class JPAPersistenceStrategy implements ACLPersistenceStrategy
    public ACL getACL(Resource resource)
    {
       // check the cache first.
-      ACL acl = this.aclMap.get(resource);
+      ACL acl = this.aclCache.get(resource);
       if (acl == null)
       {
          EntityManager entityManager = this.managerFactory.createEntityManager();
          try
          {
             acl = this.findACLByResource(resource, entityManager);
-            if (acl != null)
-               this.aclMap.put(resource, acl);
+            this.aclCache.putIfAbsent(resource, acl);
          }
          finally
          {
             entityManager.close();
          }
       }
-      return acl;
+      return acl == ACLCache.NO_ACL ? null : acl;
+   }
+
+   /*
+    * (non-Javadoc)
+    * @see org.jboss.security.acl.BatchACLPersistenceStrategy#getACLs(java.util.Collection)
+    */
+   @SuppressWarnings("unchecked")
+   public Map<Resource, ACL> getACLs(Collection<? extends Resource> resources)
+   {
+      Map<Resource, ACL> acls = new HashMap<Resource, ACL>();
+      // collect the resources that are not cached yet, indexed by their string representation.
+      Map<String, Resource> missing = new LinkedHashMap<String, Resource>();
+      for (Resource resource : resources)
+      {
+         ACL acl = this.aclCache.get(resource);
+         if (acl == null)
+            missing.put(Util.getResourceAsString(resource), resource);
+         else if (acl != ACLCache.NO_ACL)
+            acls.put(resource, acl);
+      }
+      if (missing.isEmpty())
+         return acls;
+
+      EntityManager entityManager = this.managerFactory.createEntityManager();
+      try
+      {
+         Iterator<String> iterator = missing.keySet().iterator();
+         List<String> batch = new ArrayList<String>(Math.min(missing.size(), BATCH_SIZE));
+         while (iterator.hasNext())
+         {
+            batch.add(iterator.next());
+            if (batch.size() < BATCH_SIZE && iterator.hasNext())
+               continue;
+            List<ACLImpl> found = entityManager.createQuery(
+                  "SELECT a FROM ACLImpl a WHERE a.resourceAsString IN (:resources)").setParameter("resources", batch)
+                  .getResultList();
+            for (ACLImpl acl : found)
+            {
+               Resource resource = missing.remove(acl.getResourceAsString());
+               if (resource != null)
+               {
+                  acl.setResource(resource);
+                  this.aclCache.putIfAbsent(resource, acl);
+                  acls.put(resource, acl);
+               }
+            }
+            batch.clear();
+         }
+      }
+      finally
+      {
+         entityManager.close();
+      }
+      // the resources that are still missing have no ACL.
+      for (Resource resource : missing.values())
+         this.aclCache.putIfAbsent(resource, null);
+      return acls;
    }
 
    /*
@@ -212,9 +302,9 @@ public class JPAPersistenceStrategy implements ACLPersistenceStrategy
          }
          // merge will take care of the entries that might have been removed.
          entityManager.merge(acl);
-         // update the cache.
-         this.aclMap.put(acl.getResource(), acl);
          transaction.commit();
+         // update the cache.
+         this.aclCache.put(acl.getResource(), acl);
          return true;
       }
       catch (RuntimeException re)
@@ -243,9 +333,8 @@ public class JPAPersistenceStrategy implements ACLPersistenceStrategy
       ACLImpl acl = null;
       try
       {
-         acl = (ACLImpl) entityManager.createQuery(
-               "SELECT a FROM ACLImpl a WHERE a.resourceAsString LIKE '" + Util.getResourceAsString(resource) + "'")
-               .getSingleResult();
+         acl = (ACLImpl) entityManager.createQuery("SELECT a FROM ACLImpl a WHERE a.resourceAsString = :resource")
+               .setParameter("resource", Util.getResourceAsString(resource)).getSingleResult();
          acl.setResource(resource);
       }
       catch (NoResultException nre)
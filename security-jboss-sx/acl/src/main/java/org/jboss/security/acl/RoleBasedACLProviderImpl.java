@@ -40,6 +40,11 @@ import org.jboss.security.identity.RoleGroup;
  * which is based on the identity name, is used. Otherwise, {@code #isAccessGranted()} iterates over the roles and if
  * one of the roles has sufficient permissions, then access is granted.
  * </p>
+ * <p>
+ * When the {@code ACL} is an {@code ACLImpl} the check uses its precompiled mask index: the flattened roles of the
+ * identity are interned into a {@code RoleSet} whose effective mask is cached by the ACL, so the common case is a
+ * single mask test.
+ * </p>
  * 
  * @author <a href="mailto:sguilhen@redhat.com">Stefan Guilhen</a>
  */
@@ -91,7 +96,15 @@ public class RoleBasedACLProviderImpl extends ACLProviderImpl
       if (super.strategy != null)
       {
          ACL acl = strategy.getACL(resource);
-         if (acl != null)
+         if (acl instanceof ACLImpl)
+         {
+            // check the permission against the precompiled masks of the identity's roles.
+            if (!(permission instanceof BitMaskPermission))
+               return false;
+            return ((ACLImpl) acl).getMaskIndex().isGranted(RoleSet.of(identity.getRole()),
+                  ((BitMaskPermission) permission).getMaskValue());
+         }
+         else if (acl != null)
          {
             // check if any of the identity's roles has access to the resource.
             List<Role> roles = new ArrayList<Role>();
@@ -0,0 +1,144 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.security.acl;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jboss.security.identity.Role;
+import org.jboss.security.identity.RoleGroup;
+
+/**
+ * <p>
+ * An immutable set of role names, obtained by flattening the role tree of an identity. Role sets are interned, so
+ * that the identities that have the same roles share the same instance and the effective permissions computed for a
+ * role set can be cached by each {@code ACL}.
+ * </p>
+ */
+final class RoleSet
+{
+   // maximum number of interned role sets, the role sets created afterwards are not interned.
+   private static final int MAX_INTERNED = 4096;
+
+   private static final ConcurrentMap<RoleSet, RoleSet> interned = new ConcurrentHashMap<RoleSet, RoleSet>();
+
+   private final String[] names;
+
+   private final int hash;
+
+   private RoleSet(String[] names)
+   {
+      this.names = names;
+      this.hash = Arrays.hashCode(names);
+   }
+
+   /**
+    * <p>
+    * Obtains the interned role set holding the names of the simple roles of the specified role tree.
+    * </p>
+    * 
+    * @param role   the root of the role tree.
+    * @return   the interned {@code RoleSet}.
+    */
+   static RoleSet of(Role role)
+   {
+      String[] names = new String[count(role)];
+      int filled = fill(role, names, 0);
+      Arrays.sort(names, 0, filled);
+      // drop the duplicate names.
+      int size = 0;
+      for (int i = 0; i < filled; i++)
+      {
+         if (size == 0 || !names[i].equals(names[size - 1]))
+            names[size++] = names[i];
+      }
+      RoleSet set = new RoleSet(size == names.length ? names : Arrays.copyOf(names, size));
+      RoleSet existing = interned.get(set);
+      if (existing != null)
+         return existing;
+      if (interned.size() >= MAX_INTERNED)
+         return set;
+      existing = interned.putIfAbsent(set, set);
+      return existing != null ? existing : set;
+   }
+
+   /**
+    * <p>
+    * Obtains the names of the roles of this set.
+    * </p>
+    * 
+    * @return   the sorted role names. The array must not be modified.
+    */
+   String[] getNames()
+   {
+      return this.names;
+   }
+
+   private static int count(Role role)
+   {
+      if (!(role instanceof RoleGroup))
+         return 1;
+      List<Role> roles = ((RoleGroup) role).getRoles();
+      int count = 0;
+      for (int i = 0; i < roles.size(); i++)
+         count += count(roles.get(i));
+      return count;
+   }
+
+   private static int fill(Role role, String[] names, int index)
+   {
+      if (!(role instanceof RoleGroup))
+      {
+         // skip the unnamed roles, and the roles added to the tree after it was counted.
+         String name = role.getRoleName();
+         if (name == null || index == names.length)
+            return index;
+         names[index] = name;
+         return index + 1;
+      }
+      List<Role> roles = ((RoleGroup) role).getRoles();
+      for (int i = 0; i < roles.size(); i++)
+         index = fill(roles.get(i), names, index);
+      return index;
+   }
+
+   @Override
+   public boolean equals(Object obj)
+   {
+      if (this == obj)
+         return true;
+      if (obj instanceof RoleSet)
+      {
+         RoleSet other = (RoleSet) obj;
+         return this.hash == other.hash && Arrays.equals(this.names, other.names);
+      }
+      return false;
+   }
+
+   @Override
+   public int hashCode()
+   {
+      return this.hash;
+   }
+}
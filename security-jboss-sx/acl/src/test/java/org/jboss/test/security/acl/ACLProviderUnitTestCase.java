@@ -216,4 +216,54 @@ public class ACLProviderUnitTestCase extends TestCase
       assertEquals("Found unexpected permissions", expectedPermission, entry.getPermission());
 
    }
+
+   /**
+    * <p>
+    * Tests the {@code getEntitlements} method on a wide resource tree evaluated by several threads.
+    * </p>
+    * 
+    * @throws Exception if an error occurs while running the test.
+    */
+   public void testGetEntitlementsInParallel() throws Exception
+   {
+      ACLProvider parallelProvider = new ACLProviderImpl();
+      Map<String, Object> options = new HashMap<String, Object>();
+      options.put("entitlementParallelism", "4");
+      parallelProvider.initialize(new HashMap<String, Object>(), options);
+      parallelProvider.setPersistenceStrategy(this.provider.getPersistenceStrategy());
+
+      // resource 3 gets 1500 children, one of them with an ACL that grants no permissions to the identity.
+      Collection<Resource> childResources = new ArrayList<Resource>();
+      for (int i = 0; i < 1500; i++)
+      {
+         Resource child = new TestResource(1000 + i, "Resource " + (1000 + i));
+         child.getMap().put(ResourceKeys.PARENT_RESOURCE, this.resources[3]);
+         childResources.add(child);
+      }
+      this.resources[3].getMap().put(ResourceKeys.CHILD_RESOURCES, childResources);
+      Resource protectedChild = childResources.iterator().next();
+      Collection<ACLEntry> entries = new ArrayList<ACLEntry>();
+      entries.add(new ACLEntryImpl(new CompositeACLPermission(BasicACLPermission.values()), IdentityFactory
+            .createIdentity("Another Identity")));
+      this.registration.registerACL(protectedChild, entries);
+      try
+      {
+         Set<EntitlementEntry> parallelEntries = parallelProvider.getEntitlements(EntitlementEntry.class,
+               this.resources[2], this.identity);
+         // the 7 entries of the original tree plus the unprotected children of resource 3.
+         assertEquals("Found unexpected number of entries", 7 + 1499, parallelEntries.size());
+         CompositeACLPermission expectedPermission = new CompositeACLPermission(BasicACLPermission.values());
+         for (EntitlementEntry entry : parallelEntries)
+         {
+            TestResource resource = (TestResource) entry.getResource();
+            assertTrue("Unexpected entry for protected resource", resource != protectedChild);
+            if (resource.getResourceId() >= 1000)
+               assertEquals("Found unexpected permissions", expectedPermission, entry.getPermission());
+         }
+      }
+      finally
+      {
+         this.registration.deRegisterACL(protectedChild);
+      }
+   }
 }
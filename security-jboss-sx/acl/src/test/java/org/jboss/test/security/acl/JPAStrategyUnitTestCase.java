@@ -22,7 +22,9 @@
 package org.jboss.test.security.acl;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Map;
 
 import junit.framework.TestCase;
 
@@ -32,7 +34,9 @@ import org.jboss.security.acl.ACLEntryImpl;
 import org.jboss.security.acl.ACLImpl;
 import org.jboss.security.acl.ACLPersistenceStrategy;
 import org.jboss.security.acl.BasicACLPermission;
+import org.jboss.security.acl.BatchACLPersistenceStrategy;
 import org.jboss.security.acl.JPAPersistenceStrategy;
+import org.jboss.security.authorization.Resource;
 import org.jboss.security.identity.plugins.IdentityFactory;
 
 /**
@@ -210,4 +214,39 @@ public class JPAStrategyUnitTestCase extends TestCase
       for (ACL acl : retrievedACLs)
          assertNotNull(acl.getResource());
    }
+
+   /**
+    * <p>
+    * Tests the retrieval of the ACLs of many resources at once.
+    * </p>
+    * 
+    * @throws Exception if an error occurs when running the test.
+    */
+   public void testBatchRetrieval() throws Exception
+   {
+      // create ACLs for half of the resources.
+      for (int index = 0; index < this.resources.length / 2; index++)
+         this.createdACLs.add(this.strategy.createACL(this.resources[index]));
+
+      // use a new strategy so that the ACLs are loaded from the database.
+      BatchACLPersistenceStrategy batchStrategy = new JPAPersistenceStrategy(new TestResourceFactory());
+      Map<Resource, ACL> acls = batchStrategy.getACLs(Arrays.asList(this.resources));
+      assertEquals("Invalid number of ACLs", this.resources.length / 2, acls.size());
+      for (int index = 0; index < this.resources.length; index++)
+      {
+         ACL acl = acls.get(this.resources[index]);
+         if (index < this.resources.length / 2)
+         {
+            assertNotNull("ACL not found", acl);
+            assertEquals("Unexpected resource", this.resources[index], acl.getResource());
+            // the ACL must now be cached.
+            assertSame(acl, batchStrategy.getACL(this.resources[index]));
+         }
+         else
+         {
+            assertNull("Unexpected ACL", acl);
+            assertNull(batchStrategy.getACL(this.resources[index]));
+         }
+      }
+   }
 }
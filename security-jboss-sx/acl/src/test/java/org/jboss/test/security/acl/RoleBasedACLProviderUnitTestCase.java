@@ -26,6 +26,7 @@ import java.util.List;
 
 import junit.framework.TestCase;
 
+import org.jboss.security.acl.ACL;
 import org.jboss.security.acl.ACLEntry;
 import org.jboss.security.acl.ACLEntryImpl;
 import org.jboss.security.acl.ACLPersistenceStrategy;
@@ -122,4 +123,41 @@ public class RoleBasedACLProviderUnitTestCase extends TestCase
       assertFalse(provider.isAccessGranted(this.resources[0], identity, BasicACLPermission.READ));
    }
 
+   /**
+    * <p>
+    * Tests the checks of composite permissions against nested role groups, and the checks made after the entries of
+    * an ACL have changed.
+    * </p>
+    * 
+    * @throws Exception if an error occurs while running the test.
+    */
+   public void testCompositePermissions() throws Exception
+   {
+      ACLProvider provider = new RoleBasedACLProviderImpl();
+      provider.setPersistenceStrategy(this.strategy);
+      CompositeACLPermission readUpdate = new CompositeACLPermission(BasicACLPermission.READ,
+            BasicACLPermission.UPDATE);
+
+      // role2 is nested in a group - it holds both READ and UPDATE.
+      RoleGroup nested = RoleFactory.createRoleGroup("Nested");
+      nested.addRole(RoleFactory.createRole("role2"));
+      RoleGroup roleGroup = RoleFactory.createRoleGroup("RoleGroup");
+      roleGroup.addRole(RoleFactory.createRole("role1"));
+      roleGroup.addRole(nested);
+      Identity identity = IdentityFactory.createIdentityWithRole("mary", roleGroup);
+      assertTrue(provider.isAccessGranted(this.resources[0], identity, readUpdate));
+
+      // role1 and role4 together hold READ and DELETE, but no single role holds both.
+      ACL acl = this.strategy.getACL(this.resources[0]);
+      acl.addEntry(new ACLEntryImpl(BasicACLPermission.DELETE, "role4"));
+      roleGroup = RoleFactory.createRoleGroup("RoleGroup");
+      roleGroup.addRole(RoleFactory.createRole("role1"));
+      roleGroup.addRole(RoleFactory.createRole("role4"));
+      identity = IdentityFactory.createIdentityWithRole("mary", roleGroup);
+      assertTrue(provider.isAccessGranted(this.resources[0], identity, BasicACLPermission.DELETE));
+      assertTrue(provider.isAccessGranted(this.resources[0], identity, BasicACLPermission.READ));
+      assertFalse(provider.isAccessGranted(this.resources[0], identity, new CompositeACLPermission(
+            BasicACLPermission.READ, BasicACLPermission.DELETE)));
+      assertFalse(provider.isAccessGranted(this.resources[0], identity, readUpdate));
+   }
 }
@@ -43,6 +43,15 @@ public class IdentityFactory
    public static final String PRINCIPAL_CLASS = "org.jboss.security.SimplePrincipal";
 
    public static final String GROUP_CLASS = "org.jboss.security.SimpleGroup";
+
+   private static final WeakInterner<SimpleRole> roles = new WeakInterner<SimpleRole>()
+   {
+      @Override
+      protected SimpleRole create(String name)
+      {
+         return new SimpleRole(name);
+      }
+   };
    
    public static Principal createPrincipal(String name) throws Exception
    {
@@ -54,6 +63,18 @@ public class IdentityFactory
       return (Group) loadClass(GROUP_CLASS, name);
    }
 
+   /**
+    * Get the canonical {@code SimpleRole} of a role name. The same instance is returned for
+    * the same name while it is in use, so comparing the roles is a reference check.
+    * 
+    * @param name the role name.
+    * @return the {@code SimpleRole} without parent of the name.
+    */
+   public static SimpleRole createRole(String name)
+   {
+      return roles.intern(name);
+   }
+
    public static Identity createIdentity(String name) throws Exception
    {
       return (Identity) loadClass(IDENTITY_CLASS, name);
@@ -110,4 +131,4 @@ public class IdentityFactory
       return ctr.newInstance(new Object[]
       {ctorArg1, ctorArg2});
    }
-}
\ No newline at end of file
+}
\ No newline at end of file
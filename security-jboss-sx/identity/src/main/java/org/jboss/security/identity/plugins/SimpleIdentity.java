@@ -50,7 +50,7 @@ public class SimpleIdentity implements Identity
    public SimpleIdentity(String name, String roleName)
    {
       this.name = name;
-      this.role = new SimpleRole(roleName);
+      this.role = IdentityFactory.createRole(roleName);
    }
 
    public SimpleIdentity(String name, Role role)
@@ -113,4 +113,4 @@ public class SimpleIdentity implements Identity
    {
       return this.name.hashCode();
    }
-}
\ No newline at end of file
+}
\ No newline at end of file
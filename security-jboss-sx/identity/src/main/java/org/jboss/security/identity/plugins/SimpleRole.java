@@ -39,6 +39,9 @@ public class SimpleRole implements Role, Cloneable
 
    private final Role parent;
 
+   /** the hash code, computed on first use */
+   private transient int hashCode;
+
    public static final String ANYBODY = "<ANYBODY>";
 
    public static final Role ANYBODY_ROLE = new SimpleRole(ANYBODY);
@@ -103,21 +106,30 @@ public class SimpleRole implements Role, Cloneable
    @Override
    public int hashCode()
    {
-      int hashCode = roleName.hashCode();
-      if (parent != null)
-         hashCode += parent.hashCode();
+      int hashCode = this.hashCode;
+      if (hashCode == 0)
+      {
+         hashCode = roleName.hashCode();
+         if (parent != null)
+            hashCode += parent.hashCode();
+         this.hashCode = hashCode;
+      }
       return hashCode;
    }
 
    @Override
    public boolean equals(Object obj)
    {
+      if (obj == this)
+         return true;
       if (obj instanceof SimpleRole)
       {
          SimpleRole other = SimpleRole.class.cast(obj);
+         if (hashCode() != other.hashCode())
+            return false;
          return parent != null ? (roleName.equals(other.roleName) && parent.equals(other.parent)) :
                  (roleName.equals(other.roleName) && other.parent == null);
       }
       return false;
    }
-}
\ No newline at end of file
+}
\ No newline at end of file
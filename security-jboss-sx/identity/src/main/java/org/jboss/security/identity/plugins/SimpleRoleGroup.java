@@ -21,11 +21,17 @@
   */
 package org.jboss.security.identity.plugins;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.security.Principal;
 import java.security.acl.Group;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
@@ -39,6 +45,12 @@ import org.jboss.security.identity.RoleType;
 
 /**
  *  Simple Role Group
+ *  <p>
+ *  The roles are held in an immutable snapshot that is replaced on every
+ *  update, so the membership checks read it without locking. The names of the
+ *  {@code SimpleRole} members are indexed in a hash set, other members such as
+ *  nested role groups are checked one by one.
+ *  </p>
  *  @author Anil.Saldhana@redhat.com
  *  @since  Nov 16, 2007 
  *  @version $Revision$
@@ -47,7 +59,10 @@ public class SimpleRoleGroup extends SimpleRole implements RoleGroup
 {
    private static final long serialVersionUID = 1L;
 
-   private ArrayList<Role> roles = new ArrayList<Role>();
+   // keep the serialized form of the list based implementation
+   private static final ObjectStreamField[] serialPersistentFields = {new ObjectStreamField("roles", ArrayList.class)};
+
+   private transient volatile Snapshot snapshot = Snapshot.EMPTY;
 
    private static final String ROLES_IDENTIFIER = "Roles";
 
@@ -59,30 +74,32 @@ public class SimpleRoleGroup extends SimpleRole implements RoleGroup
    public SimpleRoleGroup(String roleName, List<Role> roles)
    {
       super(roleName);
-      if (this.roles == null)
-         this.roles = new ArrayList<Role>();
       addAll(roles);
    }
 
    public SimpleRoleGroup(Group rolesGroup)
    {
       super(rolesGroup.getName());
+      List<Role> roles = new ArrayList<Role>();
       Enumeration<? extends Principal> principals = rolesGroup.members();
       while (principals.hasMoreElements())
       {
-         SimpleRole role = new SimpleRole(principals.nextElement().getName());
-         addRole(role);
+         SimpleRole role = IdentityFactory.createRole(principals.nextElement().getName());
+         roles.add(role);
       }
+      addAll(roles);
    }
 
    public SimpleRoleGroup(Set<Principal> rolesAsPrincipals)
    {
       super(ROLES_IDENTIFIER);
+      List<Role> roles = new ArrayList<Role>(rolesAsPrincipals.size());
       for (Principal p : rolesAsPrincipals)
       {
-         SimpleRole role = new SimpleRole(p.getName());
-         addRole(role);
+         SimpleRole role = IdentityFactory.createRole(p.getName());
+         roles.add(role);
       }
+      addAll(roles);
    }
 
    /*
@@ -101,8 +118,8 @@ public class SimpleRoleGroup extends SimpleRole implements RoleGroup
     */
    public synchronized void addRole(Role role)
    {
-      if (!this.roles.contains(role))
-         this.roles.add(role);
+      if (!this.snapshot.members.contains(role))
+         this.snapshot = this.snapshot.add(Collections.singletonList(role));
    }
 
    /*
@@ -111,15 +128,9 @@ public class SimpleRoleGroup extends SimpleRole implements RoleGroup
     */
    public synchronized void addAll(List<Role> roles)
    {
-      if (roles != null)
+      if (roles != null && !roles.isEmpty())
       {
-         for (Role role : roles)
-         {
-            if (!this.roles.contains(role))
-            {
-               this.roles.add(role);
-            }
-         }
+         this.snapshot = this.snapshot.add(roles);
       }
    }
 
@@ -129,7 +140,12 @@ public class SimpleRoleGroup extends SimpleRole implements RoleGroup
     */
    public synchronized void removeRole(Role role)
    {
-      this.roles.remove(role);
+      if (this.snapshot.members.contains(role))
+      {
+         List<Role> roles = new ArrayList<Role>(this.snapshot.roles);
+         roles.remove(role);
+         this.snapshot = Snapshot.EMPTY.add(roles);
+      }
    }
 
    /*
@@ -138,7 +154,7 @@ public class SimpleRoleGroup extends SimpleRole implements RoleGroup
     */
    public synchronized void clearRoles()
    {
-      this.roles.clear();
+      this.snapshot = Snapshot.EMPTY;
    }
 
    /*
@@ -147,21 +163,18 @@ public class SimpleRoleGroup extends SimpleRole implements RoleGroup
     */
    public List<Role> getRoles()
    {
-      // unmodifiable view: clients must update the roles through the addRole and removeRole methods.
-      return Collections.unmodifiableList(roles);
+      // unmodifiable snapshot: clients must update the roles through the addRole and removeRole methods.
+      return this.snapshot.roles;
    }
 
    /*
     * (non-Javadoc)
     * @see org.jboss.security.identity.plugins.SimpleRole#clone()
     */
-   @SuppressWarnings("unchecked")
-   public synchronized Object clone() throws CloneNotSupportedException
+   public Object clone() throws CloneNotSupportedException
    {
-      SimpleRoleGroup clone = (SimpleRoleGroup) super.clone();
-      if (clone != null)
-         clone.roles = (ArrayList<Role>) this.roles.clone();
-      return clone;
+      // the snapshot is immutable so the clone can share it
+      return super.clone();
    }
 
    /*
@@ -171,27 +184,14 @@ public class SimpleRoleGroup extends SimpleRole implements RoleGroup
    @Override
    public boolean containsAll(Role anotherRole)
    {
-      boolean isContained = false;
-
       if (anotherRole.getType() == RoleType.simple)
       {
-         // synchronize iteration to avoid concurrent modification exception.
-         synchronized (this)
-         {
-            for (Role r : roles)
-            {
-               isContained = r.containsAll(anotherRole);
-               if (isContained)
-                  return true;
-            }
-         }
+         return this.snapshot.contains(anotherRole);
       }
       else
       {
          //Dealing with another roleGroup
-         RoleGroup anotherRG = (RoleGroup) anotherRole;
-         CopyOnWriteArrayList<Role> anotherRoles = new CopyOnWriteArrayList<Role>(anotherRG.getRoles());
-         for (Role r : anotherRoles)
+         for (Role r : rolesOf((RoleGroup) anotherRole))
          {
             //if any of the roles are not there, no point checking further
             if (!this.containsAll(r))
@@ -199,7 +199,6 @@ public class SimpleRoleGroup extends SimpleRole implements RoleGroup
          }
          return true;
       }
-      return false;
    }
 
    /*
@@ -210,10 +209,24 @@ public class SimpleRoleGroup extends SimpleRole implements RoleGroup
    {
       if (anotherRole == null)
          throw PicketBoxMessages.MESSAGES.invalidNullArgument("anotherRole");
-      CopyOnWriteArrayList<Role> roleList = new CopyOnWriteArrayList<Role>(anotherRole.getRoles());
-      for (Role r : roleList)
+      return containsAny(rolesOf(anotherRole));
+   }
+
+   /**
+    * Check if at least one of the given roles is contained in this group, as
+    * defined by {@link #containsAll(Role)}.
+    *
+    * @param roles the roles to look for.
+    * @return {@code true} if one of the roles is contained in this group; {@code false} otherwise.
+    */
+   public boolean containsAny(Collection<? extends Role> roles)
+   {
+      if (roles == null)
+         throw PicketBoxMessages.MESSAGES.invalidNullArgument("roles");
+      Snapshot current = this.snapshot;
+      for (Role r : roles)
       {
-         if (this.containsAll(r))
+         if (r.getType() == RoleType.simple ? current.contains(r) : this.containsAll(r))
             return true;
       }
       return false;
@@ -223,15 +236,9 @@ public class SimpleRoleGroup extends SimpleRole implements RoleGroup
     * (non-Javadoc)
     * @see org.jboss.security.identity.RoleGroup#containsRole(org.jboss.security.identity.Role)
     */
-   public synchronized boolean containsRole(Role role)
+   public boolean containsRole(Role role)
    {
-      // synchronize iteration to avoid concurrent modification exception.
-      for (Role r : roles)
-      {
-         if (r.containsAll(role))
-            return true;
-      }
-      return false;
+      return this.snapshot.contains(role);
    }
 
    /*
@@ -244,14 +251,108 @@ public class SimpleRoleGroup extends SimpleRole implements RoleGroup
       StringBuilder builder = new StringBuilder();
       builder.append(this.getRoleName());
       builder.append("(");
-      synchronized (this)
+      for (Role role : this.snapshot.roles)
       {
-         for (Role role : roles)
-         {
-            builder.append(role.toString()).append(",");
-         }
+         builder.append(role.toString()).append(",");
       }
       builder.append(")");
       return builder.toString();
    }
+
+   private static List<Role> rolesOf(RoleGroup roleGroup)
+   {
+      if (roleGroup instanceof SimpleRoleGroup)
+         return roleGroup.getRoles();
+      // copy the roles of other implementations to avoid concurrent modification exceptions
+      return new CopyOnWriteArrayList<Role>(roleGroup.getRoles());
+   }
+
+   private void writeObject(ObjectOutputStream out) throws IOException
+   {
+      ObjectOutputStream.PutField fields = out.putFields();
+      fields.put("roles", new ArrayList<Role>(this.snapshot.roles));
+      out.writeFields();
+   }
+
+   @SuppressWarnings("unchecked")
+   private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+   {
+      ObjectInputStream.GetField fields = in.readFields();
+      List<Role> roles = (List<Role>) fields.get("roles", null);
+      this.snapshot = roles != null ? Snapshot.EMPTY.add(roles) : Snapshot.EMPTY;
+   }
+
+   /**
+    * Immutable state of the group.
+    */
+   private static final class Snapshot
+   {
+      static final Snapshot EMPTY = new Snapshot(Collections.<Role>emptyList(), Collections.<Role>emptySet(),
+            Collections.<String>emptySet(), false, new Role[0]);
+
+      /** the roles in insertion order */
+      final List<Role> roles;
+
+      /** the roles, for duplicate checks */
+      final Set<Role> members;
+
+      /** the names of the SimpleRole members */
+      final Set<String> names;
+
+      /** true if the SimpleRole.ANYBODY role is a member */
+      final boolean anybody;
+
+      /** the members that are not SimpleRole instances */
+      final Role[] others;
+
+      private Snapshot(List<Role> roles, Set<Role> members, Set<String> names, boolean anybody, Role[] others)
+      {
+         this.roles = roles;
+         this.members = members;
+         this.names = names;
+         this.anybody = anybody;
+         this.others = others;
+      }
+
+      Snapshot add(Collection<? extends Role> added)
+      {
+         List<Role> roles = new ArrayList<Role>(this.roles.size() + added.size());
+         roles.addAll(this.roles);
+         Set<Role> members = new HashSet<Role>(this.members);
+         Set<String> names = new HashSet<String>(this.names);
+         boolean anybody = this.anybody;
+         List<Role> others = new ArrayList<Role>();
+         Collections.addAll(others, this.others);
+         for (Role role : added)
+         {
+            if (!members.add(role))
+               continue;
+            roles.add(role);
+            // subclasses may change the containsAll semantics, only index plain simple roles
+            if (role.getClass() == SimpleRole.class)
+            {
+               names.add(role.getRoleName());
+               anybody |= ANYBODY.equals(role.getRoleName());
+            }
+            else
+            {
+               others.add(role);
+            }
+         }
+         return new Snapshot(Collections.unmodifiableList(roles), members, names, anybody,
+               others.toArray(new Role[others.size()]));
+      }
+
+      boolean contains(Role role)
+      {
+         if (role.getType() == RoleType.simple && (anybody || names.contains(role.getRoleName())))
+            return true;
+         for (Role r : others)
+         {
+            if (r.containsAll(role))
+               return true;
+         }
+         return false;
+      }
+   }
 }
@@ -0,0 +1,116 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.security.identity.plugins;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>
+ * Interner of named instances. The same instance is returned for the same name as long as it is in use: the instances
+ * are weakly referenced, so the names that are no longer referenced (for example the usernames of failed logins) are
+ * dropped by the garbage collector instead of filling the table.
+ * </p>
+ * 
+ * @param <T> the type of the interned instances.
+ * @version $Revision$
+ */
+public abstract class WeakInterner<T>
+{
+   private final ConcurrentMap<String, NamedReference<T>> instances = new ConcurrentHashMap<String, NamedReference<T>>();
+
+   private final ReferenceQueue<T> queue = new ReferenceQueue<T>();
+
+   /**
+    * <p>
+    * Creates the instance of a name.
+    * </p>
+    * 
+    * @param name the name, never null.
+    * @return the new instance.
+    */
+   protected abstract T create(String name);
+
+   /**
+    * <p>
+    * Gets the canonical instance of a name.
+    * </p>
+    * 
+    * @param name the name.
+    * @return the instance of the name, a new uninterned instance when the name is null.
+    */
+   public T intern(String name)
+   {
+      if (name == null)
+         return create(name);
+      expunge();
+      T created = null;
+      while (true)
+      {
+         NamedReference<T> ref = instances.get(name);
+         if (ref != null)
+         {
+            T instance = ref.get();
+            if (instance != null)
+               return instance;
+         }
+         if (created == null)
+            created = create(name);
+         NamedReference<T> newRef = new NamedReference<T>(name, created, queue);
+         if (ref == null ? instances.putIfAbsent(name, newRef) == null : instances.replace(name, ref, newRef))
+            return created;
+      }
+   }
+
+   /**
+    * <p>
+    * Gets the number of interned names, including the names of the instances collected but not yet expunged.
+    * </p>
+    * 
+    * @return the number of interned names.
+    */
+   public int size()
+   {
+      expunge();
+      return instances.size();
+   }
+
+   private void expunge()
+   {
+      NamedReference<?> ref;
+      while ((ref = (NamedReference<?>) queue.poll()) != null)
+         instances.remove(ref.name, ref);
+   }
+
+   private static class NamedReference<T> extends WeakReference<T>
+   {
+      private final String name;
+
+      NamedReference(String name, T referent, ReferenceQueue<T> queue)
+      {
+         super(referent, queue);
+         this.name = name;
+      }
+   }
+}
@@ -21,6 +21,12 @@
   */
 package org.jboss.test.identity.impl;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
 import junit.framework.TestCase;
 
 import org.jboss.security.identity.Role;
@@ -62,4 +68,43 @@ public class RoleGroupUnitTestCase extends TestCase
       methodRoles.containsAtleastOneRole(userRole);
    }
 
+   public void testContainsAny()
+   {
+      SimpleRoleGroup nested = new SimpleRoleGroup("nested");
+      nested.addRole(new SimpleRole("cRole"));
+
+      SimpleRoleGroup srg = new SimpleRoleGroup("Roles");
+      srg.addRole(new SimpleRole("aRole"));
+      srg.addRole(new SimpleRole("bRole"));
+      srg.addRole(nested);
+
+      assertTrue(srg.containsAny(Arrays.asList(new SimpleRole("xRole"), new SimpleRole("bRole"))));
+      assertTrue(srg.containsAny(Arrays.asList(new SimpleRole("xRole"), new SimpleRole("cRole"))));
+      assertFalse(srg.containsAny(Arrays.asList(new SimpleRole("xRole"), new SimpleRole("yRole"))));
+
+      srg.removeRole(new SimpleRole("bRole"));
+      assertFalse(srg.containsRole(new SimpleRole("bRole")));
+      assertTrue(srg.containsRole(new SimpleRole("aRole")));
+      srg.addRole(new SimpleRole("aRole"));
+      assertEquals(2, srg.getRoles().size());
+   }
+
+   public void testSerialization() throws Exception
+   {
+      SimpleRoleGroup srg = new SimpleRoleGroup("Roles");
+      srg.addRole(new SimpleRole("aRole"));
+      srg.addRole(new SimpleRole("bRole"));
+
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      ObjectOutputStream oos = new ObjectOutputStream(baos);
+      oos.writeObject(srg);
+      oos.close();
+      ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()));
+      SimpleRoleGroup copy = (SimpleRoleGroup) ois.readObject();
+
+      assertEquals("Roles", copy.getRoleName());
+      assertEquals(2, copy.getRoles().size());
+      assertTrue(copy.containsRole(new SimpleRole("bRole")));
+      assertFalse(copy.containsRole(new SimpleRole("cRole")));
+   }
 }
@@ -0,0 +1,66 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.security;
+
+import org.jboss.security.identity.plugins.WeakInterner;
+
+/**
+ * <p>
+ * Factory of canonical {@code SimplePrincipal} instances. The names are interned so that the same instance is returned
+ * for the same name: the principals built by the login modules compare by reference in the authentication caches and
+ * in {@code SimpleGroup}, without comparing the names again.
+ * </p>
+ * <p>
+ * The principals are created before the credentials are validated, so they are weakly interned: the principals of
+ * failed logins are no longer referenced and are dropped with their names.
+ * </p>
+ * 
+ * @version $Revision$
+ */
+public class PrincipalFactory
+{
+   private static final WeakInterner<SimplePrincipal> principals = new WeakInterner<SimplePrincipal>()
+   {
+      @Override
+      protected SimplePrincipal create(String name)
+      {
+         return new SimplePrincipal(name);
+      }
+   };
+
+   private PrincipalFactory()
+   {
+   }
+
+   /**
+    * <p>
+    * Gets the canonical {@code SimplePrincipal} of a name.
+    * </p>
+    * 
+    * @param name the principal name.
+    * @return the {@code SimplePrincipal} of the name.
+    */
+   public static SimplePrincipal getPrincipal(String name)
+   {
+      return principals.intern(name);
+   }
+}
@@ -21,9 +21,9 @@
 */
 package org.jboss.security;
 
-import java.security.AccessController;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.security.Principal;
-import java.security.PrivilegedAction;
 import java.security.acl.Group;
 import java.util.Collection;
 import java.util.Collections;
@@ -46,8 +46,9 @@ public class SimpleGroup extends SimplePrincipal implements Group, Cloneable
    private static final long serialVersionUID = 6051859639378507247L;
    
    private HashMap members;
-   
-   private static final String OVERRIDE_EQUALS_BEHAVIOR = "org.jboss.security.simpleprincipal.equals.override";
+
+   /** Set once a member that is not a SimplePrincipal is added, only such a member can match by name */
+   private transient boolean foreignMembers;
  
    public SimpleGroup(String groupName)
     {
@@ -64,7 +65,11 @@ public class SimpleGroup extends SimplePrincipal implements Group, Cloneable
     {
         boolean isMember = members.containsKey(user);
         if( isMember == false )
+        {
             members.put(user, user);
+            if( (user instanceof SimplePrincipal) == false )
+               foreignMembers = true;
+        }
         return isMember == false;
     }
     /** Returns true if the passed principal is a member of the group.
@@ -105,24 +110,16 @@ public class SimpleGroup extends SimplePrincipal implements Group, Cloneable
                 }
             }
         }
-        if ("true".equals(AccessController.doPrivileged(new PrivilegedAction()
-        {
-           public Object run()
-           {
-              return System.getProperty(OVERRIDE_EQUALS_BEHAVIOR, "false");
-           }
-        })))
+        // only a member that is not a SimplePrincipal can match a SimplePrincipal by name
+        if (isMember == false && foreignMembers && member instanceof SimplePrincipal
+              && SimplePrincipal.isEqualsOverridden())
         {
-           if (isMember == false)
+           for (Iterator iterator = members.keySet().iterator(); iterator.hasNext();)
            {
-              for (Iterator iterator = members.keySet().iterator(); iterator.hasNext();)
-              {
-                 Principal p = (Principal) iterator.next();
-                 if (member instanceof SimplePrincipal)
-                    isMember = p.getName() == null ? member.getName() == null : p.getName().equals(member.getName());
-                 if (isMember)
-                    break;
-              }
+              Principal p = (Principal) iterator.next();
+              isMember = p.getName() == null ? member.getName() == null : p.getName().equals(member.getName());
+              if (isMember)
+                 break;
            }
         }
         return isMember;
@@ -170,4 +167,17 @@ public class SimpleGroup extends SimplePrincipal implements Group, Cloneable
         clone.members = (HashMap)this.members.clone();   
       return clone;  
    } 
+
+   private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+   {
+      in.defaultReadObject();
+      for (Iterator iter = members.keySet().iterator(); iter.hasNext();)
+      {
+         if ((iter.next() instanceof SimplePrincipal) == false)
+         {
+            foreignMembers = true;
+            break;
+         }
+      }
+   }
 }
\ No newline at end of file
@@ -36,6 +36,7 @@ public class SimplePrincipal implements Principal, Serializable
    private static final long serialVersionUID = 7701951188631723261L;
    private final String name;
    private static final String OVERRIDE_EQUALS_BEHAVIOR = "org.jboss.security.simpleprincipal.equals.override";
+   private static volatile Boolean equalsOverridden;
 
    public SimplePrincipal(String name)
    {
@@ -45,19 +46,19 @@ public class SimplePrincipal implements Principal, Serializable
    /**
     * Compare this SimplePrincipal's name against another Principal. If system property
     * org.jboss.security.simpleprincipal.equals.override is set to true will only
-    * compare instances of SimplePrincipals.
+    * compare instances of SimplePrincipals. The property is read once, see
+    * {@link #resetEqualsOverride()}.
     * @return true if name equals another.getName();
     */ 
    @Override
    public boolean equals(Object another)
    {
+      if (another == this)
+         return true;
       if (!(another instanceof Principal))
          return false;
-      if ("true".equals(SecurityActions.getProperty(OVERRIDE_EQUALS_BEHAVIOR, "false")))
-      {
-         if (!(another instanceof SimplePrincipal))
-            return false;
-      }
+      if (!(another instanceof SimplePrincipal) && isEqualsOverridden())
+         return false;
       String anotherName = ((Principal) another).getName();
       boolean equals = false;
       if (name == null)
@@ -83,4 +84,24 @@ public class SimplePrincipal implements Principal, Serializable
    {
       return name;
    }
+
+   /**
+    * Makes the next comparison read the org.jboss.security.simpleprincipal.equals.override
+    * property again. Only meant for tests that change the property at runtime.
+    */
+   public static void resetEqualsOverride()
+   {
+      equalsOverridden = null;
+   }
+
+   static boolean isEqualsOverridden()
+   {
+      Boolean overridden = equalsOverridden;
+      if (overridden == null)
+      {
+         overridden = Boolean.valueOf("true".equals(SecurityActions.getProperty(OVERRIDE_EQUALS_BEHAVIOR, "false")));
+         equalsOverridden = overridden;
+      }
+      return overridden.booleanValue();
+   }
 }
\ No newline at end of file
@@ -31,6 +31,7 @@ import java.security.PrivilegedAction;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.StringTokenizer;
 
 /**
@@ -44,6 +45,60 @@ public class Util
 {
    private static PasswordCache externalPasswordCache;
    
+   /**
+    * Compare a cached credential against a provided credential by trying Comparable,
+    * char[], byte[], Object[], and finally Object.equals(). A char[] and a String
+    * match if they hold the same characters.
+    * @param cachedCredential the credential of a previous authentication
+    * @param credential the credential to validate
+    * @return true if both credentials are null or they match
+    */
+   @SuppressWarnings({"rawtypes", "unchecked"})
+   public static boolean credentialsMatch(Object cachedCredential, Object credential)
+   {
+      boolean isValid = false;
+      // Check for a null credential as can be the case for an anonymous user
+      if (credential == null || cachedCredential == null)
+      {
+         // Both credentials must be null
+         isValid = (credential == null) && (cachedCredential == null);
+      }
+      // See if the credential is assignable to the cache value
+      else if (cachedCredential.getClass().isAssignableFrom(credential.getClass()))
+      {
+         if (cachedCredential instanceof Comparable)
+         {
+            Comparable c = (Comparable) cachedCredential;
+            isValid = c.compareTo(credential) == 0;
+         }
+         else if (cachedCredential instanceof char[])
+         {
+            isValid = Arrays.equals((char[]) cachedCredential, (char[]) credential);
+         }
+         else if (cachedCredential instanceof byte[])
+         {
+            isValid = Arrays.equals((byte[]) cachedCredential, (byte[]) credential);
+         }
+         else if (cachedCredential.getClass().isArray())
+         {
+            isValid = Arrays.equals((Object[]) cachedCredential, (Object[]) credential);
+         }
+         else
+         {
+            isValid = cachedCredential.equals(credential);
+         }
+      }
+      else if (cachedCredential instanceof char[] && credential instanceof String)
+      {
+         isValid = Arrays.equals((char[]) cachedCredential, ((String) credential).toCharArray());
+      }
+      else if (cachedCredential instanceof String && credential instanceof char[])
+      {
+         isValid = Arrays.equals(((String) cachedCredential).toCharArray(), (char[]) credential);
+      }
+      return isValid;
+   }
+
    /**
     * Execute a password load command to obtain the char[] contents of a
     * password.
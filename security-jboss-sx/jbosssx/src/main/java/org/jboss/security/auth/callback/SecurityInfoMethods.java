@@ -0,0 +1,69 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.security.auth.callback;
+
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Method;
+import java.security.Principal;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Resolves the {@code setSecurityInfo(Principal, Object)} method of the callback
+ * handlers used by the authentication managers. The methods are looked up once
+ * per handler class; the classes are weakly referenced and the methods softly
+ * referenced, as a method holds its class.
+ *
+ * @version $Revision$
+ */
+public final class SecurityInfoMethods
+{
+   private static final Class<?>[] SIGNATURE = {Principal.class, Object.class};
+
+   private static final Map<Class<?>, SoftReference<Method>> methods = new WeakHashMap<Class<?>, SoftReference<Method>>();
+
+   private SecurityInfoMethods()
+   {
+   }
+
+   /**
+    * Get the setSecurityInfo(Principal, Object) method of a callback handler class.
+    *
+    * @param handlerClass the class of the callback handler
+    * @return the public method
+    * @throws NoSuchMethodException if the class has no such method
+    */
+   public static Method get(Class<?> handlerClass) throws NoSuchMethodException
+   {
+      synchronized (methods)
+      {
+         SoftReference<Method> ref = methods.get(handlerClass);
+         Method method = ref != null ? ref.get() : null;
+         if (method == null)
+         {
+            method = handlerClass.getMethod("setSecurityInfo", SIGNATURE);
+            methods.put(handlerClass, new SoftReference<Method>(method));
+         }
+         return method;
+      }
+   }
+}
@@ -0,0 +1,407 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.security.auth.certs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PublicKey;
+import java.security.cert.CRL;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.jboss.security.PicketBoxLogger;
+
+/**
+ * A X509RevocationChecker that checks certs against certificate revocation
+ * lists read from local files or URLs. The lists are indexed by issuer in memory,
+ * and read again in the background by the first check made after the refresh
+ * interval. When a list cannot be read, the previous one is kept. As long as a
+ * list has never been read, its issuer is not known and all the certs are
+ * rejected; the reading is then retried at least every 30 seconds.
+ * <p>
+ * The signature of a list is verified with the key of its issuer, looked up by
+ * subject in the trust store of the security domain, and the list must not be
+ * past its next update. A list that fails either test cannot tell whether a cert
+ * has been revoked, so the certs of its issuer are rejected until a valid list
+ * is read.
+ * </p>
+ * option: crlLocations - the comma separated files or URLs of the CRLs, in DER or PEM form
+ * option: crlRefreshInterval - the time in milliseconds between two reads of the CRLs,
+ *    default is 3600000 (one hour), 0 disables the refresh
+ * option: crlTimeout - the connect and read timeout in milliseconds of the CRLs read
+ *    from URLs, default is 10000
+ * 
+ * @version $Revision$
+ */
+public class CRLRevocationChecker implements X509RevocationChecker
+{
+   public static final String CRL_LOCATIONS = "crlLocations";
+   public static final String CRL_REFRESH_INTERVAL = "crlRefreshInterval";
+   public static final String CRL_TIMEOUT = "crlTimeout";
+
+   private static final long DEFAULT_REFRESH_INTERVAL = 3600000;
+   private static final int DEFAULT_TIMEOUT = 10000;
+
+   /** The longest time in milliseconds between two reads while a list has never been read */
+   private static final long RETRY_INTERVAL = 30000;
+
+   private static final ScheduledThreadPoolExecutor refresher = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+   {
+      private final AtomicInteger count = new AtomicInteger();
+
+      public Thread newThread(Runnable r)
+      {
+         Thread thread = new Thread(r, "CRLRevocationChecker refresh " + count.incrementAndGet());
+         thread.setDaemon(true);
+         return thread;
+      }
+   });
+
+   private final List<String> locations = new ArrayList<String>();
+
+   private long refreshInterval = DEFAULT_REFRESH_INTERVAL;
+
+   private int timeout = DEFAULT_TIMEOUT;
+
+   /** The CRLs read from each location */
+   private final Map<String, List<IssuerCRL>> crlsByLocation = new HashMap<String, List<IssuerCRL>>();
+
+   /** The CRLs of all the locations, by issuer */
+   private volatile Map<X500Principal, List<IssuerCRL>> crls = Collections.emptyMap();
+
+   /** The time of the next refresh, Long.MAX_VALUE while a refresh is pending or when there is none */
+   private volatile long nextRefresh = Long.MAX_VALUE;
+
+   /** Whether a location has never been read */
+   private volatile boolean incomplete;
+
+   /** The pending refresh */
+   private Future<?> refreshTask;
+
+   private boolean closed;
+
+   public void initialize(Map<String, ?> options)
+   {
+      String option = (String) options.get(CRL_LOCATIONS);
+      if (option != null)
+      {
+         StringTokenizer st = new StringTokenizer(option, ",");
+         while (st.hasMoreTokens())
+         {
+            String location = st.nextToken().trim();
+            if (location.length() > 0)
+               locations.add(location);
+         }
+      }
+
+      option = (String) options.get(CRL_REFRESH_INTERVAL);
+      if (option != null)
+      {
+         try
+         {
+            refreshInterval = Long.parseLong(option);
+         }
+         catch (NumberFormatException e)
+         {
+            PicketBoxLogger.LOGGER.debugFailureToParseNumberProperty(CRL_REFRESH_INTERVAL, refreshInterval);
+         }
+      }
+      option = (String) options.get(CRL_TIMEOUT);
+      if (option != null)
+      {
+         try
+         {
+            timeout = Integer.parseInt(option);
+         }
+         catch (NumberFormatException e)
+         {
+            PicketBoxLogger.LOGGER.debugFailureToParseNumberProperty(CRL_TIMEOUT, timeout);
+         }
+      }
+      refresh();
+      if (incomplete)
+      {
+         synchronized (this)
+         {
+            for (String location : locations)
+            {
+               if (!crlsByLocation.containsKey(location))
+                  PicketBoxLogger.LOGGER.errorFailureToLoadCRL(location);
+            }
+         }
+      }
+   }
+
+   public boolean isRevoked(X509Certificate cert, KeyStore trustStore)
+   {
+      long now = System.currentTimeMillis();
+      if (now >= nextRefresh)
+         scheduleRefresh();
+      // fail closed, the missing list may revoke the cert
+      if (incomplete)
+         return true;
+
+      List<IssuerCRL> issuerCRLs = crls.get(cert.getIssuerX500Principal());
+      if (issuerCRLs == null)
+         return false;
+      for (IssuerCRL crl : issuerCRLs)
+      {
+         if (!crl.isValid(trustStore, now) || crl.crl.getRevokedCertificate(cert.getSerialNumber()) != null)
+         {
+            PicketBoxLogger.LOGGER.traceCertificateRevoked(cert.getSerialNumber().toString(16),
+                  cert.getIssuerX500Principal().getName());
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Cancel the pending refresh, no CRL is read any more.
+    */
+   public synchronized void close()
+   {
+      closed = true;
+      nextRefresh = Long.MAX_VALUE;
+      if (refreshTask != null)
+      {
+         refreshTask.cancel(false);
+         refresher.purge();
+         refreshTask = null;
+      }
+   }
+
+   /**
+    * Read all the CRLs again and replace the index.
+    */
+   public void refresh()
+   {
+      // read the lists without holding the lock, a slow location does not block close()
+      Map<String, List<IssuerCRL>> loaded = new HashMap<String, List<IssuerCRL>>();
+      for (String location : locations)
+      {
+         try
+         {
+            loaded.put(location, load(location));
+         }
+         catch (Exception e)
+         {
+            PicketBoxLogger.LOGGER.warnFailureToLoadCRL(location, e);
+         }
+      }
+
+      synchronized (this)
+      {
+         crlsByLocation.putAll(loaded);
+         Map<X500Principal, List<IssuerCRL>> index = new HashMap<X500Principal, List<IssuerCRL>>();
+         for (List<IssuerCRL> locationCRLs : crlsByLocation.values())
+         {
+            for (IssuerCRL crl : locationCRLs)
+            {
+               X500Principal issuer = crl.crl.getIssuerX500Principal();
+               List<IssuerCRL> issuerCRLs = index.get(issuer);
+               if (issuerCRLs == null)
+               {
+                  issuerCRLs = new ArrayList<IssuerCRL>();
+                  index.put(issuer, issuerCRLs);
+               }
+               issuerCRLs.add(crl);
+            }
+         }
+         crls = index;
+         incomplete = !crlsByLocation.keySet().containsAll(locations);
+         refreshTask = null;
+         if (!closed && incomplete)
+            nextRefresh = System.currentTimeMillis() + (refreshInterval > 0 ? Math.min(refreshInterval, RETRY_INTERVAL) : RETRY_INTERVAL);
+         else if (!closed && refreshInterval > 0 && !locations.isEmpty())
+            nextRefresh = System.currentTimeMillis() + refreshInterval;
+      }
+   }
+
+   /**
+    * Read the CRLs again in the background, unless it is already pending.
+    */
+   private synchronized void scheduleRefresh()
+   {
+      if (closed || refreshTask != null)
+         return;
+      nextRefresh = Long.MAX_VALUE;
+      refreshTask = refresher.submit(new Runnable()
+      {
+         public void run()
+         {
+            refresh();
+         }
+      });
+   }
+
+   private List<IssuerCRL> load(String location) throws Exception
+   {
+      List<IssuerCRL> locationCRLs = new ArrayList<IssuerCRL>();
+      CertificateFactory factory = CertificateFactory.getInstance("X.509");
+      InputStream is = openStream(location);
+      try
+      {
+         for (CRL crl : factory.generateCRLs(is))
+         {
+            if (crl instanceof X509CRL)
+               locationCRLs.add(new IssuerCRL((X509CRL) crl));
+         }
+      }
+      finally
+      {
+         is.close();
+      }
+      return locationCRLs;
+   }
+
+   private InputStream openStream(String location) throws IOException
+   {
+      File file = new File(location);
+      if (file.exists())
+         return new FileInputStream(file);
+      try
+      {
+         URLConnection connection = new URL(location).openConnection();
+         connection.setConnectTimeout(timeout);
+         connection.setReadTimeout(timeout);
+         return connection.getInputStream();
+      }
+      catch (MalformedURLException e)
+      {
+         // neither an existing file nor an URL
+         return new FileInputStream(file);
+      }
+   }
+
+   /**
+    * A CRL, with the key of its issuer once its signature has been verified.
+    */
+   private static class IssuerCRL
+   {
+      private final X509CRL crl;
+
+      private volatile PublicKey issuerKey;
+
+      /** Whether the failure to use the CRL has been logged */
+      private volatile boolean reported;
+
+      IssuerCRL(X509CRL crl)
+      {
+         this.crl = crl;
+      }
+
+      /**
+       * Check that the CRL is signed by a trusted issuer and is still current.
+       */
+      boolean isValid(KeyStore trustStore, long now)
+      {
+         if (issuerKey == null)
+         {
+            GeneralSecurityException failure = null;
+            try
+            {
+               issuerKey = verify(trustStore);
+            }
+            catch (GeneralSecurityException e)
+            {
+               failure = e;
+            }
+            if (issuerKey == null)
+            {
+               if (!reported)
+               {
+                  reported = true;
+                  PicketBoxLogger.LOGGER.warnFailureToVerifyCRL(crl.getIssuerX500Principal().getName(), failure);
+               }
+               return false;
+            }
+         }
+         Date nextUpdate = crl.getNextUpdate();
+         if (nextUpdate != null && nextUpdate.getTime() < now)
+         {
+            if (!reported)
+            {
+               reported = true;
+               PicketBoxLogger.LOGGER.warnExpiredCRL(crl.getIssuerX500Principal().getName(), nextUpdate);
+            }
+            return false;
+         }
+         return true;
+      }
+
+      /**
+       * Verify the signature of the CRL with the trusted certs of its issuer.
+       * @return the key of the issuer, null if no trusted cert of the issuer is found
+       */
+      private PublicKey verify(KeyStore trustStore) throws GeneralSecurityException
+      {
+         if (trustStore == null)
+            return null;
+         GeneralSecurityException failure = null;
+         Enumeration<String> aliases = trustStore.aliases();
+         while (aliases.hasMoreElements())
+         {
+            Certificate cert = trustStore.getCertificate(aliases.nextElement());
+            if (!(cert instanceof X509Certificate)
+                  || !crl.getIssuerX500Principal().equals(((X509Certificate) cert).getSubjectX500Principal()))
+               continue;
+            try
+            {
+               crl.verify(cert.getPublicKey());
+               return cert.getPublicKey();
+            }
+            catch (GeneralSecurityException e)
+            {
+               // there may be another cert for the same subject
+               failure = e;
+            }
+         }
+         if (failure != null)
+            throw failure;
+         return null;
+      }
+   }
+}
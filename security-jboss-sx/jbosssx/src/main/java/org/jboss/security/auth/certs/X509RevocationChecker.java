@@ -0,0 +1,62 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.security.auth.certs;
+
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.Map;
+
+/**
+ * A revocation checker for X509Certificate used by authentication layers. An
+ * instance is shared by all the logins of a login module configuration.
+ * 
+ * @see org.jboss.security.auth.spi.BaseCertLoginModule
+ * @see CRLRevocationChecker
+ * 
+ * @version $Revision$
+ */
+public interface X509RevocationChecker
+{
+   /**
+    * Configure the checker, called once before the first check.
+    * 
+    * @param options - the options of the login module
+    */
+   public void initialize(Map<String, ?> options);
+
+   /**
+    * Check whether a cert has been revoked.
+    * 
+    * @param cert - the X509Certificate to check
+    * @param trustStore - the trust store of the security domain, holding the certs of
+    *    the trusted issuers, may be null
+    * @return true if the cert has been revoked, false otherwise
+    */
+   public boolean isRevoked(X509Certificate cert, KeyStore trustStore);
+
+   /**
+    * Release the resources of the checker, called when the login module configuration
+    * it was created for is dropped. Checks may still be made afterwards by the logins
+    * in progress.
+    */
+   public void close();
+}
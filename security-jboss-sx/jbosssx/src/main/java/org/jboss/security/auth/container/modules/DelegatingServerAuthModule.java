@@ -30,6 +30,11 @@ import javax.security.auth.message.MessageInfo;
  
 /**
  *  Server Auth Module that delegates work to a login context 
+ *  <p>
+ *  The module is shared by the requests of a cached server auth context, so the
+ *  login context of a request is kept in the map of its {@link MessageInfo} for
+ *  {@link #cleanSubject(MessageInfo, Subject)}, not in the module.
+ *  </p>
  *  @author Anil.Saldhana@redhat.com
  *  @since  Jul 25, 2007 
  *  @version $Revision$
@@ -37,7 +42,9 @@ import javax.security.auth.message.MessageInfo;
 @SuppressWarnings({"rawtypes"})
 public class DelegatingServerAuthModule extends AbstractServerAuthModule
 {  
-   private LoginContext loginContext = null;
+   /** The key of the login context of a request in the map of its message info */
+   private static final String LOGIN_CONTEXT_KEY = DelegatingServerAuthModule.class.getName() + ".loginContext";
+   
    private String loginContextName = null;
 
    public DelegatingServerAuthModule()
@@ -60,6 +67,9 @@ public class DelegatingServerAuthModule extends AbstractServerAuthModule
 
    public void cleanSubject(MessageInfo messageInfo, Subject subject) throws AuthException
    {
+      LoginContext loginContext = null;
+      if(messageInfo != null && messageInfo.getMap() != null)
+         loginContext = (LoginContext) messageInfo.getMap().remove(LOGIN_CONTEXT_KEY);
       if(loginContext != null)
          try
          {
@@ -76,13 +86,16 @@ public class DelegatingServerAuthModule extends AbstractServerAuthModule
       throw new UnsupportedOperationException();
    } 
    
+   @SuppressWarnings("unchecked")
    @Override
    protected boolean validate(Subject clientSubject, MessageInfo messageInfo) throws AuthException
    {
       try
       {
-         loginContext = SecurityActions.createLoginContext(getSecurityDomainName(), clientSubject, this.callbackHandler);
+         LoginContext loginContext = SecurityActions.createLoginContext(getSecurityDomainName(), clientSubject, this.callbackHandler);
          loginContext.login();
+         if(messageInfo != null && messageInfo.getMap() != null)
+            messageInfo.getMap().put(LOGIN_CONTEXT_KEY, loginContext);
          return true;
       }
       catch (Exception e)
@@ -0,0 +1,139 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.security.auth.login;
+
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.security.auth.login.AppConfigurationEntry;
+
+import org.jboss.security.config.SecurityConfiguration;
+
+/**
+ * <p>
+ * The {@code AppConfigurationEntry} arrays returned by the JAAS {@code Configuration} implementations, built once
+ * for each version of an application policy instead of on every login. The entries carry the security domain option
+ * and their option maps are unmodifiable, the callers get a copy of the array but share the entries.
+ * </p>
+ * <p>
+ * When copy mode is enabled, every call returns new entries built by
+ * {@link BaseAuthenticationInfo#copyAppConfigurationEntry()}, as in the previous releases.
+ * </p>
+ * 
+ * @version $Revision$
+ */
+public class AppConfigurationEntryCache
+{
+   private final ConcurrentMap<String, CachedEntries> entries = new ConcurrentHashMap<String, CachedEntries>();
+
+   private volatile boolean copyMode;
+
+   /**
+    * <p>
+    * Gets the login modules of a policy.
+    * </p>
+    * 
+    * @param policyName the name of the application policy the authentication info belongs to.
+    * @param authInfo the authentication info of the policy.
+    * @return the {@code AppConfigurationEntry} array of the authentication info.
+    */
+   public AppConfigurationEntry[] getAppConfigurationEntry(String policyName, BaseAuthenticationInfo authInfo)
+   {
+      if (copyMode)
+         return copy(authInfo);
+
+      long version = SecurityConfiguration.getApplicationPolicyVersion(policyName);
+      CachedEntries cached = entries.get(policyName);
+      if (cached == null || cached.authInfo != authInfo || cached.version != version)
+      {
+         cached = new CachedEntries(authInfo, version, copy(authInfo));
+         entries.put(policyName, cached);
+      }
+      return cached.entries.clone();
+   }
+
+   /**
+    * <p>
+    * Indicates whether new entries are built on every call.
+    * </p>
+    * 
+    * @return {@code true} if copy mode is enabled.
+    */
+   public boolean isCopyMode()
+   {
+      return copyMode;
+   }
+
+   /**
+    * <p>
+    * Enables or disables the copy mode, in which new entries are built on every call for the callers that modify
+    * the entries or depend on the security domain option being evaluated on every login.
+    * </p>
+    * 
+    * @param copyMode {@code true} to build new entries on every call.
+    */
+   public void setCopyMode(boolean copyMode)
+   {
+      this.copyMode = copyMode;
+      entries.clear();
+   }
+
+   /**
+    * <p>
+    * Discards the entries built so far.
+    * </p>
+    */
+   public void clear()
+   {
+      entries.clear();
+   }
+
+   private static AppConfigurationEntry[] copy(final BaseAuthenticationInfo authInfo)
+   {
+      PrivilegedAction<AppConfigurationEntry[]> action = new PrivilegedAction<AppConfigurationEntry[]>()
+      {
+         public AppConfigurationEntry[] run()
+         {
+            return authInfo.copyAppConfigurationEntry();
+         }
+      };
+      return AccessController.doPrivileged(action);
+   }
+
+   private static class CachedEntries
+   {
+      private final BaseAuthenticationInfo authInfo;
+
+      private final long version;
+
+      private final AppConfigurationEntry[] entries;
+
+      CachedEntries(BaseAuthenticationInfo authInfo, long version, AppConfigurationEntry[] entries)
+      {
+         this.authInfo = authInfo;
+         this.version = version;
+         this.entries = entries;
+      }
+   }
+}
@@ -0,0 +1,463 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.security.auth.login;
+
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Constructor;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.security.auth.Subject;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.login.AppConfigurationEntry;
+import javax.security.auth.login.AppConfigurationEntry.LoginModuleControlFlag;
+import javax.security.auth.login.Configuration;
+import javax.security.auth.login.LoginException;
+import javax.security.auth.spi.LoginModule;
+
+import org.jboss.security.PicketBoxMessages;
+import org.jboss.security.SecurityConstants;
+import org.jboss.security.config.SecurityConfiguration;
+
+/**
+ * <p>
+ * Runs the login module stack of a security domain directly, as a lighter replacement of
+ * {@code javax.security.auth.login.LoginContext}. The {@code LoginContext} looks the login module classes up by
+ * name through the context class loader on every login; here the constructors are resolved once per version of the
+ * application policy and class loader, and the modules are invoked without reflection.
+ * </p>
+ * <p>
+ * The REQUIRED, REQUISITE, SUFFICIENT and OPTIONAL flags, the login/commit/abort sequence and the state shared
+ * between the modules behave as with the {@code LoginContext}. A login module that cannot be instantiated fails
+ * the login whatever its flag, as with the {@code LoginContext}. The modules that were not reached by the login
+ * phase, because a SUFFICIENT module succeeded or a REQUISITE one failed, are not instantiated to be committed,
+ * aborted or logged out.
+ * </p>
+ * <p>
+ * Like {@code LoginContext}, an instance serves a single login and its logout.
+ * </p>
+ * <p>
+ * The authentication managers use it for a security domain when their direct login option is set, or when
+ * {@link #DIRECT_LOGIN_OPTION} is set to "true" on one of the login modules of the domain.
+ * </p>
+ * 
+ * @version $Revision$
+ */
+public class DirectLoginContext
+{
+   /**
+    * Login module option that has the login module stack of the security domain run by a
+    * {@code DirectLoginContext} when set to "true" on one of its login modules
+    */
+   public static final String DIRECT_LOGIN_OPTION = "jboss.security.authentication.direct_login";
+
+   private static final int LOGIN = 0;
+
+   private static final int COMMIT = 1;
+
+   private static final int ABORT = 2;
+
+   private static final int LOGOUT = 3;
+
+   /**
+    * The resolved module stack of each context class loader and configuration name. The stacks hold the module
+    * classes of the class loader, so they are softly referenced to let the loader be collected.
+    */
+   private static final Map<ClassLoader, ConcurrentMap<String, SoftReference<ModuleStack>>> stacks =
+      new WeakHashMap<ClassLoader, ConcurrentMap<String, SoftReference<ModuleStack>>>();
+
+   private final String name;
+
+   private final Subject subject;
+
+   private final CallbackHandler handler;
+
+   private final ModuleStack stack;
+
+   private final LoginModule[] modules;
+
+   private final Map<String, Object> sharedState = new HashMap<String, Object>();
+
+   private boolean loginSucceeded;
+
+   /**
+    * <p>
+    * Creates a login context for the login modules configured for the specified name, falling back to the default
+    * application policy when there are none, as {@code LoginContext} does.
+    * </p>
+    * 
+    * @param name the name of the security domain.
+    * @param subject the {@code Subject} to authenticate, a new one is created when {@code null}.
+    * @param handler the {@code CallbackHandler} passed to the login modules.
+    * @throws LoginException if no login module is configured for the name.
+    */
+   public DirectLoginContext(String name, Subject subject, CallbackHandler handler) throws LoginException
+   {
+      this(name, subject, handler, getEntries(name));
+   }
+
+   /**
+    * <p>
+    * Creates a login context for login modules already resolved with {@link #getEntries(String)}.
+    * </p>
+    * 
+    * @param name the name of the security domain.
+    * @param subject the {@code Subject} to authenticate, a new one is created when {@code null}.
+    * @param handler the {@code CallbackHandler} passed to the login modules.
+    * @param entries the login modules configured for the name.
+    * @throws LoginException if no login module is configured for the name.
+    */
+   public DirectLoginContext(String name, Subject subject, CallbackHandler handler, AppConfigurationEntry[] entries)
+         throws LoginException
+   {
+      this.name = name;
+      this.subject = subject != null ? subject : new Subject();
+      this.handler = handler;
+      this.stack = getModuleStack(name, entries);
+      this.modules = new LoginModule[stack.entries.length];
+   }
+
+   /**
+    * <p>
+    * Performs the authentication: the login phase, then the commit phase on success or the abort phase on failure.
+    * </p>
+    * 
+    * @throws LoginException if the authentication fails.
+    */
+   public void login() throws LoginException
+   {
+      loginSucceeded = false;
+      try
+      {
+         invoke(LOGIN);
+         invoke(COMMIT);
+         loginSucceeded = true;
+      }
+      catch (LoginException le)
+      {
+         try
+         {
+            invoke(ABORT);
+         }
+         catch (LoginException ignored)
+         {
+            // the login failure is reported
+         }
+         throw le;
+      }
+   }
+
+   /**
+    * <p>
+    * Logs the {@code Subject} out.
+    * </p>
+    * 
+    * @throws LoginException if the logout fails.
+    */
+   public void logout() throws LoginException
+   {
+      invoke(LOGOUT);
+   }
+
+   /**
+    * <p>
+    * Gets the authenticated {@code Subject}.
+    * </p>
+    * 
+    * @return the {@code Subject}, or {@code null} if the authentication did not succeed.
+    */
+   public Subject getSubject()
+   {
+      return loginSucceeded ? subject : null;
+   }
+
+   /**
+    * <p>
+    * Checks whether the login module stack of a security domain asks to be run by a {@code DirectLoginContext}.
+    * </p>
+    * 
+    * @param name the name of the security domain.
+    * @return {@code true} if {@link #DIRECT_LOGIN_OPTION} is set to "true" on one of its login modules.
+    */
+   public static boolean isEnabled(String name)
+   {
+      return isEnabled(getEntries(name));
+   }
+
+   /**
+    * <p>
+    * Checks whether a login module stack asks to be run by a {@code DirectLoginContext}.
+    * </p>
+    * 
+    * @param entries the login modules resolved with {@link #getEntries(String)}, may be {@code null}.
+    * @return {@code true} if {@link #DIRECT_LOGIN_OPTION} is set to "true" on one of the login modules.
+    */
+   public static boolean isEnabled(AppConfigurationEntry[] entries)
+   {
+      if (entries == null)
+         return false;
+      for (AppConfigurationEntry entry : entries)
+      {
+         Object option = entry.getOptions().get(DIRECT_LOGIN_OPTION);
+         if (option != null && Boolean.parseBoolean(option.toString().trim()))
+            return true;
+      }
+      return false;
+   }
+
+   @Override
+   public String toString()
+   {
+      StringBuilder builder = new StringBuilder("DirectLoginContext[");
+      builder.append(name).append(", modules=[");
+      for (int i = 0; i < stack.entries.length; i++)
+      {
+         if (i > 0)
+            builder.append(", ");
+         builder.append(stack.entries[i].getLoginModuleName());
+         builder.append('(').append(flagName(stack.entries[i].getControlFlag())).append(')');
+      }
+      builder.append("], loginSucceeded=").append(loginSucceeded).append(']');
+      return builder.toString();
+   }
+
+   private static String flagName(LoginModuleControlFlag flag)
+   {
+      if (flag == LoginModuleControlFlag.REQUIRED)
+         return "required";
+      if (flag == LoginModuleControlFlag.REQUISITE)
+         return "requisite";
+      if (flag == LoginModuleControlFlag.SUFFICIENT)
+         return "sufficient";
+      return "optional";
+   }
+
+   private void invoke(int phase) throws LoginException
+   {
+      LoginException firstError = null;
+      LoginException firstRequiredError = null;
+      boolean success = false;
+
+      for (int i = 0; i < modules.length; i++)
+      {
+         AppConfigurationEntry entry = stack.entries[i];
+         LoginModuleControlFlag flag = entry.getControlFlag();
+         LoginModule module = modules[i];
+         if (module == null)
+         {
+            if (phase != LOGIN)
+               continue;
+            // thrown whatever the flag of the module
+            module = newLoginModule(i);
+         }
+         try
+         {
+            if (modules[i] == null)
+            {
+               module.initialize(subject, handler, sharedState, entry.getOptions());
+               modules[i] = module;
+            }
+
+            boolean status;
+            switch (phase)
+            {
+               case LOGIN :
+                  status = module.login();
+                  break;
+               case COMMIT :
+                  status = module.commit();
+                  break;
+               case ABORT :
+                  status = module.abort();
+                  break;
+               default :
+                  status = module.logout();
+            }
+
+            if (status)
+            {
+               // a SUFFICIENT module ends the phase unless a REQUIRED one failed before
+               if (phase != ABORT && phase != LOGOUT && flag == LoginModuleControlFlag.SUFFICIENT
+                     && firstRequiredError == null)
+                  return;
+               success = true;
+            }
+         }
+         catch (Exception e)
+         {
+            LoginException le;
+            if (e instanceof LoginException)
+               le = (LoginException) e;
+            else
+            {
+               le = PicketBoxMessages.MESSAGES.loginModuleFailed(entry.getLoginModuleName());
+               le.initCause(e);
+            }
+
+            if (flag == LoginModuleControlFlag.REQUISITE)
+            {
+               if (phase == ABORT || phase == LOGOUT)
+               {
+                  if (firstRequiredError == null)
+                     firstRequiredError = le;
+               }
+               else
+                  throw firstRequiredError != null ? firstRequiredError : le;
+            }
+            else if (flag == LoginModuleControlFlag.REQUIRED)
+            {
+               if (firstRequiredError == null)
+                  firstRequiredError = le;
+            }
+            else if (firstError == null)
+               firstError = le;
+         }
+      }
+
+      if (firstRequiredError != null)
+         throw firstRequiredError;
+      if (!success && firstError != null)
+         throw firstError;
+      if (!success)
+         throw PicketBoxMessages.MESSAGES.allLoginModulesIgnored();
+   }
+
+   private LoginModule newLoginModule(int index) throws LoginException
+   {
+      try
+      {
+         return (LoginModule) stack.getConstructor(index).newInstance();
+      }
+      catch (LoginException le)
+      {
+         throw le;
+      }
+      catch (Throwable e)
+      {
+         LoginException le = PicketBoxMessages.MESSAGES.failedToInstantiateLoginModule(stack.entries[index].getLoginModuleName());
+         le.initCause(e);
+         throw le;
+      }
+   }
+
+   /**
+    * Get the module stack of a name, reusing the resolved constructors of the context class loader while the
+    * policy version does not change.
+    */
+   private static ModuleStack getModuleStack(String name, AppConfigurationEntry[] entries) throws LoginException
+   {
+      if (entries == null)
+         throw PicketBoxMessages.MESSAGES.noLoginModulesConfigured(name);
+
+      ClassLoader loader = SecurityActions.getContextClassLoader();
+      if (loader == null)
+         loader = ClassLoader.getSystemClassLoader();
+      long version = SecurityConfiguration.getApplicationPolicyVersion(name);
+
+      ConcurrentMap<String, SoftReference<ModuleStack>> loaderStacks;
+      synchronized (stacks)
+      {
+         loaderStacks = stacks.get(loader);
+         if (loaderStacks == null)
+         {
+            loaderStacks = new ConcurrentHashMap<String, SoftReference<ModuleStack>>();
+            stacks.put(loader, loaderStacks);
+         }
+      }
+      SoftReference<ModuleStack> ref = loaderStacks.get(name);
+      ModuleStack stack = ref != null ? ref.get() : null;
+      ModuleStack current = new ModuleStack(entries, loader, version, stack);
+      if (current.constructors != (stack != null ? stack.constructors : null))
+         loaderStacks.put(name, new SoftReference<ModuleStack>(current));
+      return current;
+   }
+
+   /**
+    * <p>
+    * Gets the login modules configured for a name, or for the default application policy when there are none.
+    * </p>
+    * 
+    * @param name the name of the security domain.
+    * @return the login modules, or {@code null} if there are none.
+    */
+   public static AppConfigurationEntry[] getEntries(String name)
+   {
+      Configuration config = SecurityActions.getConfiguration();
+      AppConfigurationEntry[] entries = config.getAppConfigurationEntry(name);
+      if (entries == null)
+         entries = config.getAppConfigurationEntry(SecurityConstants.DEFAULT_APPLICATION_POLICY);
+      return entries;
+   }
+
+   private static class ModuleStack
+   {
+      private final AppConfigurationEntry[] entries;
+
+      private final ClassLoader loader;
+
+      private final long version;
+
+      /** The constructors of the login modules, shared with the previous stack when they are still valid */
+      private final Constructor<?>[] constructors;
+
+      ModuleStack(AppConfigurationEntry[] entries, ClassLoader loader, long version, ModuleStack previous)
+      {
+         this.entries = entries;
+         this.loader = loader;
+         this.version = version;
+         if (previous != null && previous.loader == loader && previous.version == version
+               && sameModules(previous.entries, entries))
+            this.constructors = previous.constructors;
+         else
+            this.constructors = new Constructor<?>[entries.length];
+      }
+
+      Constructor<?> getConstructor(int index) throws Exception
+      {
+         Constructor<?> constructor = constructors[index];
+         if (constructor == null)
+         {
+            Class<?> moduleClass = Class.forName(entries[index].getLoginModuleName(), true, loader);
+            constructor = moduleClass.getConstructor();
+            constructors[index] = constructor;
+         }
+         return constructor;
+      }
+
+      private static boolean sameModules(AppConfigurationEntry[] previous, AppConfigurationEntry[] entries)
+      {
+         if (previous == entries)
+            return true;
+         if (previous.length != entries.length)
+            return false;
+         for (int i = 0; i < entries.length; i++)
+         {
+            if (previous[i] != entries[i] && !previous[i].getLoginModuleName().equals(entries[i].getLoginModuleName()))
+               return false;
+         }
+         return true;
+      }
+   }
+}
@@ -24,6 +24,8 @@ package org.jboss.security.auth.login;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 
+import javax.security.auth.login.Configuration;
+
 
 /**
  *  Privileged Blocks
@@ -43,4 +45,15 @@ class SecurityActions
          }
        });  
    } 
+
+   static Configuration getConfiguration()
+   {
+      return AccessController.doPrivileged(new PrivilegedAction<Configuration>()
+      { 
+         public Configuration run()
+         { 
+            return Configuration.getConfiguration();
+         }
+       });  
+   } 
 }
\ No newline at end of file
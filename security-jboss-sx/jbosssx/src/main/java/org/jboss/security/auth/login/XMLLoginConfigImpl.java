@@ -28,8 +28,6 @@ import java.io.InputStreamReader;
 import java.io.Serializable;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.security.AccessController;
-import java.security.PrivilegedAction;
 import java.util.ArrayList;
 
 import javax.security.auth.AuthPermission;
@@ -70,6 +68,9 @@ public class XMLLoginConfigImpl extends Configuration implements Serializable, A
 
    transient PolicyConfig appConfigs = new PolicyConfig();
 
+   /** The entries returned to the logins, built once per policy version */
+   transient AppConfigurationEntryCache entryCache = new AppConfigurationEntryCache();
+
    /** The URL to the XML or Sun login configuration */
    protected URL loginConfigURL;
 
@@ -110,6 +111,7 @@ public class XMLLoginConfigImpl extends Configuration implements Serializable, A
       if (sm != null)
          sm.checkPermission(REFRESH_PERM);
       appConfigs.clear();
+      entryCache.clear();
       loadConfig();
    }
 
@@ -125,6 +127,7 @@ public class XMLLoginConfigImpl extends Configuration implements Serializable, A
       AppConfigurationEntry[] entry = null;
       ApplicationPolicy aPolicy = this.getApplicationPolicy(appName);
       BaseAuthenticationInfo authInfo = null;
+      String policyName = appName;
       if (aPolicy != null)
          authInfo = aPolicy.getAuthenticationInfo();
 
@@ -138,22 +141,14 @@ public class XMLLoginConfigImpl extends Configuration implements Serializable, A
             PicketBoxLogger.LOGGER.traceGetAppConfigEntryViaDefault(appName, DEFAULT_APP_CONFIG_NAME);
             ApplicationPolicy defPolicy = appConfigs.get(DEFAULT_APP_CONFIG_NAME);
             authInfo = defPolicy != null ? (AuthenticationInfo) defPolicy.getAuthenticationInfo() : null;
+            policyName = DEFAULT_APP_CONFIG_NAME;
          }
       }
 
       if (authInfo != null)
       {
          PicketBoxLogger.LOGGER.traceEndGetAppConfigEntryWithSuccess(appName, authInfo.toString());
-         // Make a copy of the authInfo object
-         final BaseAuthenticationInfo theAuthInfo = authInfo;
-         PrivilegedAction<AppConfigurationEntry[]> action = new PrivilegedAction<AppConfigurationEntry[]>()
-         {
-            public AppConfigurationEntry[] run()
-            {
-               return theAuthInfo.copyAppConfigurationEntry();
-            }
-         };
-         entry = AccessController.doPrivileged(action);
+         entry = entryCache.getAppConfigurationEntry(policyName, authInfo);
       }
       else
       {
@@ -194,6 +189,23 @@ public class XMLLoginConfigImpl extends Configuration implements Serializable, A
       this.parentConfig = parentConfig;
    }
 
+   /**
+    * Get whether new AppConfigurationEntry objects are built on every login
+    */
+   public boolean getCopyAppConfigurationEntries()
+   {
+      return entryCache.isCopyMode();
+   }
+
+   /**
+    * Set whether new AppConfigurationEntry objects are built on every login instead of being shared
+    * until the application policy changes
+    */
+   public void setCopyAppConfigurationEntries(boolean flag)
+   {
+      entryCache.setCopyMode(flag);
+   }
+
    /**
     * Get whether the login config xml document is validated againsts its DTD
     */
@@ -26,6 +26,8 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.security.auth.Subject;
 import javax.security.auth.callback.CallbackHandler;
@@ -55,6 +57,11 @@ import org.jboss.security.plugins.ClassLoaderLocatorFactory;
 
 /**
  *  Provides configuration for the server side
+ *  <p>
+ *  The server auth contexts are built once per security domain and auth context id
+ *  and handed out until the application policy or its authentication information
+ *  is replaced, or until {@link #refresh()} is called.
+ *  </p>
  *  @author <a href="mailto:Anil.Saldhana@jboss.org">Anil Saldhana</a>
  *  @since  May 15, 2006 
  *  @version $Revision$
@@ -64,8 +71,11 @@ public class JBossServerAuthConfig implements ServerAuthConfig
    private String layer;
    private String contextId;
    private CallbackHandler callbackHandler = new JBossCallbackHandler(); 
+   /** The modules of the last context built */
    @SuppressWarnings("rawtypes")
-   private List modules = new ArrayList();
+   private volatile List modules = new ArrayList();
+   /** The contexts built, by security domain and auth context id */
+   private final ConcurrentMap<String, CachedAuthContext> authContexts = new ConcurrentHashMap<String, CachedAuthContext>();
    @SuppressWarnings({"unused", "rawtypes"})
    private Map contextProperties;
 
@@ -95,9 +105,6 @@ public class JBossServerAuthConfig implements ServerAuthConfig
          Subject serviceSubject, Map properties) 
    throws AuthException
    { 
-      List<ControlFlag> controlFlags = new ArrayList<ControlFlag>();
-      
-      Map<String,Map> mapOptionsByName = new HashMap<String,Map>();
       SecurityContext securityContext = SecurityActions.getSecurityContext();
       String secDomain = null;
       if (securityContext != null)
@@ -123,6 +130,22 @@ public class JBossServerAuthConfig implements ServerAuthConfig
       if(bai == null)
          throw PicketBoxMessages.MESSAGES.failedToObtainAuthenticationInfo(secDomain);
 
+      String key = secDomain + ":" + authContextID;
+      CachedAuthContext cached = authContexts.get(key);
+      if(cached != null && cached.policy == ap && cached.authenticationInfo == bai)
+         return cached.context;
+      JBossServerAuthContext serverAuthContext = createAuthContext(secDomain, bai);
+      authContexts.put(key, new CachedAuthContext(ap, bai, serverAuthContext));
+      return serverAuthContext;
+   }
+
+   @SuppressWarnings({"rawtypes", "unchecked"})
+   private JBossServerAuthContext createAuthContext(String secDomain, BaseAuthenticationInfo bai)
+   throws AuthException
+   {
+      List<ControlFlag> controlFlags = new ArrayList<ControlFlag>();
+      List modules = new ArrayList();
+      Map<String,Map> mapOptionsByName = new HashMap<String,Map>();
       if(bai instanceof AuthenticationInfo)
       {
          //Need to get a wrapper
@@ -130,6 +153,9 @@ public class JBossServerAuthConfig implements ServerAuthConfig
          Map options = new HashMap();
          options.put("javax.security.auth.login.LoginContext", secDomain); //Name of sec domain
          sam.initialize(null, null, this.callbackHandler, options); 
+         // the context initializes the modules again with these options
+         mapOptionsByName.put(sam.getClass().getName(), options);
+         controlFlags.add(ControlFlag.REQUIRED);
          modules.add(sam);
       }
       else
@@ -190,6 +216,7 @@ public class JBossServerAuthConfig implements ServerAuthConfig
        
       JBossServerAuthContext serverAuthContext = new JBossServerAuthContext(modules, mapOptionsByName, this.callbackHandler);
       serverAuthContext.setControlFlags(controlFlags);
+      this.modules = modules;
       return serverAuthContext;
    }
  
@@ -215,6 +242,7 @@ public class JBossServerAuthConfig implements ServerAuthConfig
     */
    public void refresh()
    { 
+      authContexts.clear();
    } 
    
    //Custom Methods
@@ -251,4 +279,22 @@ public class JBossServerAuthConfig implements ServerAuthConfig
       Constructor ctr = clazz.getConstructor(new Class[]{String.class});
       return (ServerAuthModule) ctr.newInstance(new Object[]{lmshName});
    }
-}
\ No newline at end of file
+   
+   /**
+    * A context along with the policy it was built from
+    */
+   private static class CachedAuthContext
+   {
+      private final ApplicationPolicy policy;
+      private final BaseAuthenticationInfo authenticationInfo;
+      private final JBossServerAuthContext context;
+
+      CachedAuthContext(ApplicationPolicy policy, BaseAuthenticationInfo authenticationInfo,
+            JBossServerAuthContext context)
+      {
+         this.policy = policy;
+         this.authenticationInfo = authenticationInfo;
+         this.context = context;
+      }
+   }
+}
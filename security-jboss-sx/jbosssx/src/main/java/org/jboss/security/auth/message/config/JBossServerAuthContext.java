@@ -24,8 +24,12 @@ package org.jboss.security.auth.message.config;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.security.auth.Subject;
 import javax.security.auth.callback.CallbackHandler;
@@ -42,6 +46,10 @@ import org.jboss.security.config.ControlFlag;
 
 /**
  *  Default Server Authentication Context
+ *  <p>
+ *  The message types supported by the modules are read once, when the context
+ *  is created, and whether a request type is supported is remembered per type.
+ *  </p>
  *  @author <a href="mailto:Anil.Saldhana@jboss.org">Anil Saldhana</a>
  *  @since  May 17, 2006 
  *  @version $Revision$
@@ -57,6 +65,15 @@ public class JBossServerAuthContext implements ServerAuthContext
     * Control Flags for the individual modules
     */
    protected List<ControlFlag> controlFlags = new ArrayList<ControlFlag>();
+   
+   /** Upper bound of the request types whose support is remembered */
+   private static final int MAX_REQUEST_TYPES = 64;
+   
+   /** The message types supported by the modules */
+   private final Set<Class> supportedTypes = new HashSet<Class>();
+   
+   /** Whether a request type is supported by one of the modules */
+   private final ConcurrentMap<Class, Boolean> supportedRequestTypes = new ConcurrentHashMap<Class, Boolean>();
      
    public JBossServerAuthContext(List<ServerAuthModule> modules,
          Map<String,Map> moduleNameToOptions, CallbackHandler cbh) throws AuthException
@@ -67,6 +84,9 @@ public class JBossServerAuthContext implements ServerAuthContext
       {
          sam.initialize(null, null, cbh, 
                moduleOptionsByName.get(sam.getClass().getName())); 
+         Class[] types = sam.getSupportedMessageTypes();
+         if(types != null)
+            supportedTypes.addAll(Arrays.asList(types));
       }
    }
    
@@ -106,36 +126,37 @@ public class JBossServerAuthContext implements ServerAuthContext
    public AuthStatus validateRequest(MessageInfo messageInfo, Subject clientSubject, 
          Subject serviceSubject) throws AuthException
    { 
-      List<ServerAuthModule> supportingModules = new ArrayList<ServerAuthModule>();
-      
       Class requestType = messageInfo.getRequestMessage().getClass();
-      Class[] requestInterfaces = requestType.getInterfaces(); 
-      
-      List<Class> intfaee = Arrays.asList(requestInterfaces);
-      
-      for(ServerAuthModule sam:modules)
-      { 
-         List<Class> supportedTypes = Arrays.asList(sam.getSupportedMessageTypes());
-         
-         //Check the interfaces
-         for(Class clazz:intfaee)
-         {
-            if(supportedTypes.contains(clazz) && !supportingModules.contains(sam)) 
-               supportingModules.add(sam);
-         } 
-         
-         //Check the class type also
-         if((supportedTypes.contains(Object.class) || supportedTypes.contains(requestType))
-               && !supportingModules.contains(sam)) 
-            supportingModules.add(sam); 
+      Boolean supported = supportedRequestTypes.get(requestType);
+      if(supported == null)
+      {
+         supported = Boolean.valueOf(isSupported(requestType));
+         if(supportedRequestTypes.size() < MAX_REQUEST_TYPES)
+            supportedRequestTypes.put(requestType, supported);
       }
-      if(supportingModules.size() == 0)
+      if(supported.booleanValue() == false)
          throw PicketBoxMessages.MESSAGES.noServerAuthModuleForRequestType(requestType);
 
       AuthStatus authStatus = invokeModules(messageInfo, clientSubject, serviceSubject);
       return authStatus;
    } 
    
+   /**
+    * Check whether a module supports a request type, through the class itself
+    * or one of the interfaces it declares.
+    */
+   private boolean isSupported(Class requestType)
+   {
+      if(supportedTypes.contains(Object.class) || supportedTypes.contains(requestType))
+         return true;
+      for(Class clazz:requestType.getInterfaces())
+      {
+         if(supportedTypes.contains(clazz))
+            return true;
+      }
+      return false;
+   }
+   
    private AuthStatus invokeModules(MessageInfo messageInfo,
          Subject clientSubject, Subject serviceSubject) 
    throws AuthException
@@ -24,6 +24,7 @@ package org.jboss.security.auth.spi;
 
 import org.jboss.logging.Logger;
 import org.jboss.security.*;
+import org.jboss.security.auth.login.DirectLoginContext;
 
 import javax.security.auth.Subject;
 import javax.security.auth.callback.CallbackHandler;
@@ -78,7 +79,7 @@ public abstract class AbstractServerLoginModule implements LoginModule
    private static final String[] ALL_VALID_OPTIONS =
    {
 	   PASSWORD_STACKING,USE_FIRST_PASSWORD,PRINCIPAL_CLASS,UNAUTHENTICATED_IDENTITY,
-	   SecurityConstants.SECURITY_DOMAIN_OPTION
+	   SecurityConstants.SECURITY_DOMAIN_OPTION,DirectLoginContext.DIRECT_LOGIN_OPTION
    };
 
    private HashSet<String> validOptions;
@@ -339,7 +340,8 @@ public abstract class AbstractServerLoginModule implements LoginModule
    /** Utility method to create a Principal for the given username. This
     * creates an instance of the principalClassName type if this option was
     * specified using the class constructor matching: ctor(String). If
-    * principalClassName was not specified, a SimplePrincipal is created.
+    * principalClassName was not specified, the canonical SimplePrincipal of
+    * the name is obtained from the PrincipalFactory.
     *
     * @param username the name of the principal
     * @return the principal instance
@@ -352,7 +354,7 @@ public abstract class AbstractServerLoginModule implements LoginModule
       Principal p = null;
       if( principalClassName == null )
       {
-         p = new SimplePrincipal(username);
+         p = PrincipalFactory.getPrincipal(username);
       }
       else
       {
@@ -22,14 +22,22 @@
 package org.jboss.security.auth.spi;
 
 import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.Principal;
 import java.security.acl.Group;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
@@ -47,7 +55,13 @@ import org.jboss.security.SecurityConstants;
 import org.jboss.security.SecurityDomain;
 import org.jboss.security.SecurityUtil;
 import org.jboss.security.auth.callback.ObjectCallback;
+import org.jboss.security.auth.certs.CRLRevocationChecker;
 import org.jboss.security.auth.certs.X509CertificateVerifier;
+import org.jboss.security.auth.certs.X509RevocationChecker;
+import org.jboss.security.cache.BoundedConcurrentCache;
+import org.jboss.security.cache.FlushListener;
+import org.jboss.security.cache.FlushListeners;
+import org.jboss.security.config.SecurityConfiguration;
 
 /**
  * Base Login Module that uses X509Certificates as credentials for
@@ -69,11 +83,31 @@ public class BaseCertLoginModule extends AbstractServerLoginModule
    // see AbstractServerLoginModule
    private static final String SECURITY_DOMAIN = "securityDomain";
    private static final String VERIFIER = "verifier";
+   private static final String REVOCATION_CHECKER = "revocationChecker";
+   private static final String VERIFICATION_CACHE_TIMEOUT = "verificationCacheTimeout";
+   private static final String VERIFICATION_CACHE_MAX_SIZE = "verificationCacheMaxSize";
    
    private static final String[] ALL_VALID_OPTIONS =
    {
-	   SECURITY_DOMAIN,VERIFIER
+	   SECURITY_DOMAIN,VERIFIER,REVOCATION_CHECKER,VERIFICATION_CACHE_TIMEOUT,VERIFICATION_CACHE_MAX_SIZE,
+	   CRLRevocationChecker.CRL_LOCATIONS,CRLRevocationChecker.CRL_REFRESH_INTERVAL,CRLRevocationChecker.CRL_TIMEOUT
    };
+
+   /** The resolved domain, verifier class, revocation checker and verification cache of each
+    *  security domain and module options */
+   private static final ConcurrentMap<ConfigurationKey, CertConfiguration> configurations =
+      new ConcurrentHashMap<ConfigurationKey, CertConfiguration>();
+
+   static
+   {
+      FlushListeners.addListener(new FlushListener()
+      {
+         public void flush(String securityDomain)
+         {
+            flushConfigurations(securityDomain);
+         }
+      });
+   }
    
    /** A principal derived from the certificate alias */
    private Principal identity;
@@ -83,6 +117,10 @@ public class BaseCertLoginModule extends AbstractServerLoginModule
    private Object domain = null;
    /** An option certificate verifier */
    private X509CertificateVerifier verifier; 
+   /** An option certificate revocation checker */
+   private X509RevocationChecker revocationChecker;
+   /** The expiration time of the certificates already verified, by alias and fingerprint */
+   private Map<String, Long> verifications;
 
    /** Override the super version to pickup the following options after first
     * calling the super method.
@@ -91,9 +129,24 @@ public class BaseCertLoginModule extends AbstractServerLoginModule
     *    trust and keystore from.
     * option: verifier - the class name of the X509CertificateVerifier to use
     *    for verification of the login certificate
+    * option: revocationChecker - the class name of the X509RevocationChecker to use,
+    *    defaults to CRLRevocationChecker when crlLocations is set
+    * option: crlLocations - see CRLRevocationChecker
+    * option: crlRefreshInterval - see CRLRevocationChecker
+    * option: crlTimeout - see CRLRevocationChecker
+    * option: verificationCacheTimeout - the time in milliseconds a successful verification
+    *    of a certificate is remembered, bounded by the certificate expiration. Default is 0,
+    *    every login verifies the certificate.
+    * option: verificationCacheMaxSize - the maximum number of verifications remembered,
+    *    default is 1000
+    *
+    * The security domain, the verifier class and the revocation checker are resolved once
+    * per security domain and module options, and shared by the following logins until the
+    * application policy of the domain changes or the domain is flushed.
     *
     * @see SecurityDomain
     * @see X509CertificateVerifier
+    * @see X509RevocationChecker
     *
     * @param subject the Subject to update after a successful login.
     * @param callbackHandler the CallbackHandler that will be used to obtain the
@@ -107,45 +160,15 @@ public class BaseCertLoginModule extends AbstractServerLoginModule
       addValidOptions(ALL_VALID_OPTIONS);
       super.initialize(subject, callbackHandler, sharedState, options);
 
-      // Get the security domain and default to "other"
-      String sd = (String) options.get(SECURITY_DOMAIN);
-      sd = SecurityUtil.unprefixSecurityDomain(sd);
-      if (sd == null)
-         sd = "other";
-
-      try
-      {
-         Object tempDomain = new InitialContext().lookup(SecurityConstants.JAAS_CONTEXT_ROOT + sd);
-         if (tempDomain instanceof SecurityDomain)
-         {
-            domain = tempDomain;
-            PicketBoxLogger.LOGGER.traceSecurityDomainFound(domain.getClass().getName());
-         }
-         else {
-            tempDomain = new InitialContext().lookup(SecurityConstants.JAAS_CONTEXT_ROOT + sd + "/jsse");
-            if (tempDomain instanceof JSSESecurityDomain) {
-               domain = tempDomain;
-               PicketBoxLogger.LOGGER.traceSecurityDomainFound(domain.getClass().getName());
-            }
-            else
-            {
-               PicketBoxLogger.LOGGER.errorGettingJSSESecurityDomain(sd);
-            }
-         }
-      }
-      catch (NamingException e)
-      {
-         PicketBoxLogger.LOGGER.errorFindingSecurityDomain(sd, e);
-      }
-
-      String option = (String) options.get(VERIFIER);
-      if( option != null )
+      CertConfiguration config = getConfiguration(options);
+      domain = config.getDomain();
+      revocationChecker = config.getRevocationChecker();
+      verifications = config.verifications;
+      if( config.verifierClass != null )
       {
          try
          {
-            ClassLoader loader = SecurityActions.getContextClassLoader();
-            Class<?> verifierClass = loader.loadClass(option);
-            verifier = (X509CertificateVerifier) verifierClass.newInstance();
+            verifier = (X509CertificateVerifier) config.verifierClass.newInstance();
          }
          catch(Throwable e)
          {
@@ -365,6 +388,25 @@ public class BaseCertLoginModule extends AbstractServerLoginModule
       if( trustStore == null )
          trustStore = keyStore;
 
+      if( cert != null && revocationChecker != null && revocationChecker.isRevoked(cert, trustStore) )
+      {
+         PicketBoxLogger.LOGGER.traceEndValidateCredential(isValid);
+         return isValid;
+      }
+
+      String cacheKey = null;
+      if( cert != null && verifications != null )
+      {
+         cacheKey = getVerificationKey(alias, cert);
+         Long notAfter = cacheKey != null ? verifications.get(cacheKey) : null;
+         if( notAfter != null && System.currentTimeMillis() < notAfter.longValue() )
+         {
+            PicketBoxLogger.LOGGER.traceCachedCertificateVerification(cert.getSerialNumber().toString(16));
+            PicketBoxLogger.LOGGER.traceEndValidateCredential(true);
+            return true;
+         }
+      }
+
       if( verifier != null )
       {
          // Have the verifier validate the cert
@@ -420,8 +462,286 @@ public class BaseCertLoginModule extends AbstractServerLoginModule
          PicketBoxLogger.LOGGER.warnFailureToValidateCertificate();
       }
 
+      if( isValid && cacheKey != null )
+         verifications.put(cacheKey, Long.valueOf(cert.getNotAfter().getTime()));
+
       PicketBoxLogger.LOGGER.traceEndValidateCredential(isValid);
       return isValid;
    }
 
+   /**
+    * Get the shared configuration of the security domain and options, resolving the security
+    * domain, the verifier class and the revocation checker the first time. The configurations
+    * of a domain are replaced when its application policy changes.
+    */
+   private static CertConfiguration getConfiguration(Map<String,?> options)
+   {
+      String securityDomain = (String) options.get(SecurityConstants.SECURITY_DOMAIN_OPTION);
+      long version = SecurityConfiguration.getApplicationPolicyVersion(securityDomain);
+      ConfigurationKey key = new ConfigurationKey(securityDomain != null ? securityDomain : "", options);
+      while( true )
+      {
+         CertConfiguration config = configurations.get(key);
+         if( config != null && config.version == version )
+            return config;
+         if( config == null )
+         {
+            // the options are only copied when a configuration is created
+            key = new ConfigurationKey(key.securityDomain, new HashMap<String, Object>(options));
+            CertConfiguration created = new CertConfiguration(key.options, version);
+            if( configurations.putIfAbsent(key, created) == null )
+            {
+               removeOutdated(key.securityDomain, version);
+               return created;
+            }
+         }
+         else if( configurations.remove(key, config) )
+         {
+            config.close();
+         }
+         // another login registered or removed the configuration first, check it again
+      }
+   }
+
+   /**
+    * Drop the configurations built for a previous version of the application policy of a domain.
+    */
+   private static void removeOutdated(String securityDomain, long version)
+   {
+      Iterator<Map.Entry<ConfigurationKey, CertConfiguration>> entries = configurations.entrySet().iterator();
+      while( entries.hasNext() )
+      {
+         Map.Entry<ConfigurationKey, CertConfiguration> entry = entries.next();
+         if( entry.getKey().securityDomain.equals(securityDomain) && entry.getValue().version != version
+               && configurations.remove(entry.getKey(), entry.getValue()) )
+            entry.getValue().close();
+      }
+   }
+
+   /**
+    * Drop the configurations of a security domain, called when the domain is flushed.
+    * The revocation checkers of the configurations are closed, and the next login
+    * resolves the security domain, verifier and revocation checker again.
+    * 
+    * @param securityDomain the name of the security domain, null to drop all the configurations
+    */
+   public static void flushConfigurations(String securityDomain)
+   {
+      Iterator<Map.Entry<ConfigurationKey, CertConfiguration>> entries = configurations.entrySet().iterator();
+      while( entries.hasNext() )
+      {
+         Map.Entry<ConfigurationKey, CertConfiguration> entry = entries.next();
+         if( securityDomain == null || entry.getKey().securityDomain.equals(securityDomain) )
+         {
+            if( configurations.remove(entry.getKey(), entry.getValue()) )
+               entry.getValue().close();
+         }
+      }
+   }
+
+   /**
+    * Get the key of a certificate in the verification cache.
+    * @return the alias and the SHA-256 fingerprint of the certificate, null if it cannot be computed
+    */
+   private static String getVerificationKey(String alias, X509Certificate cert)
+   {
+      try
+      {
+         byte[] fingerprint = MessageDigest.getInstance("SHA-256").digest(cert.getEncoded());
+         return alias + ":" + new BigInteger(1, fingerprint).toString(16);
+      }
+      catch(GeneralSecurityException e)
+      {
+         return null;
+      }
+   }
+
+   /**
+    * The security domain and module options a configuration is built from
+    */
+   private static class ConfigurationKey
+   {
+      private final String securityDomain;
+      private final Map<String, ?> options;
+      private final int hashCode;
+
+      ConfigurationKey(String securityDomain, Map<String, ?> options)
+      {
+         this.securityDomain = securityDomain;
+         this.options = options;
+         this.hashCode = securityDomain.hashCode() * 31 + options.hashCode();
+      }
+
+      @Override
+      public boolean equals(Object obj)
+      {
+         if( obj instanceof ConfigurationKey == false )
+            return false;
+         ConfigurationKey other = (ConfigurationKey) obj;
+         return hashCode == other.hashCode && securityDomain.equals(other.securityDomain)
+            && options.equals(other.options);
+      }
+
+      @Override
+      public int hashCode()
+      {
+         return hashCode;
+      }
+   }
+
+   private static class CertConfiguration
+   {
+      private final Map<String, ?> options;
+      /** The version of the application policy of the domain */
+      private final long version;
+      private final String securityDomain;
+      /** The SecurityDomain to obtain the KeyStore/TrustStore from */
+      private volatile Object domain;
+      private final Class<?> verifierClass;
+      /** The revocation checker, initialized by the first login */
+      private X509RevocationChecker revocationChecker;
+      private boolean initialized;
+      private boolean closed;
+      private final Map<String, Long> verifications;
+
+      CertConfiguration(Map<String,?> options, long version)
+      {
+         this.options = options;
+         this.version = version;
+         securityDomain = (String) options.get(SECURITY_DOMAIN);
+
+         Class<?> tempClass = null;
+         String option = (String) options.get(VERIFIER);
+         if( option != null )
+         {
+            try
+            {
+               ClassLoader loader = SecurityActions.getContextClassLoader();
+               tempClass = loader.loadClass(option);
+            }
+            catch(Throwable e)
+            {
+               PicketBoxLogger.LOGGER.errorCreatingCertificateVerifier(e);
+            }
+         }
+         verifierClass = tempClass;
+
+         X509RevocationChecker tempChecker = null;
+         option = (String) options.get(REVOCATION_CHECKER);
+         if( option == null && options.get(CRLRevocationChecker.CRL_LOCATIONS) != null )
+            option = CRLRevocationChecker.class.getName();
+         if( option != null )
+         {
+            try
+            {
+               ClassLoader loader = SecurityActions.getContextClassLoader();
+               Class<?> checkerClass = loader.loadClass(option);
+               tempChecker = (X509RevocationChecker) checkerClass.newInstance();
+            }
+            catch(Throwable e)
+            {
+               PicketBoxLogger.LOGGER.errorCreatingRevocationChecker(e);
+            }
+         }
+         revocationChecker = tempChecker;
+
+         long timeout = getLong(options, VERIFICATION_CACHE_TIMEOUT, 0);
+         int maxSize = (int) getLong(options, VERIFICATION_CACHE_MAX_SIZE, 1000);
+         if( timeout > 0 && maxSize > 0 )
+            verifications = new BoundedConcurrentCache<String, Long>(maxSize, timeout, 0, TimeUnit.MILLISECONDS);
+         else
+            verifications = null;
+      }
+
+      /**
+       * Get the revocation checker, initializing it the first time. The initialization
+       * reads the CRLs, the other logins of the domain wait for it but not the logins
+       * of the other domains.
+       */
+      synchronized X509RevocationChecker getRevocationChecker()
+      {
+         if( !initialized && revocationChecker != null )
+         {
+            initialized = true;
+            try
+            {
+               revocationChecker.initialize(options);
+               if( closed )
+                  revocationChecker.close();
+            }
+            catch(Throwable e)
+            {
+               PicketBoxLogger.LOGGER.errorCreatingRevocationChecker(e);
+               revocationChecker = null;
+            }
+         }
+         return revocationChecker;
+      }
+
+      synchronized void close()
+      {
+         closed = true;
+         if( initialized && revocationChecker != null )
+            revocationChecker.close();
+      }
+
+      Object getDomain()
+      {
+         // keep on looking the domain up until it is deployed
+         Object tempDomain = domain;
+         if( tempDomain == null )
+         {
+            tempDomain = lookupDomain(securityDomain);
+            domain = tempDomain;
+         }
+         return tempDomain;
+      }
+
+      private static Object lookupDomain(String sd)
+      {
+         // Get the security domain and default to "other"
+         sd = SecurityUtil.unprefixSecurityDomain(sd);
+         if (sd == null)
+            sd = "other";
+
+         try
+         {
+            InitialContext ctx = new InitialContext();
+            Object tempDomain = ctx.lookup(SecurityConstants.JAAS_CONTEXT_ROOT + sd);
+            if (tempDomain instanceof SecurityDomain)
+            {
+               PicketBoxLogger.LOGGER.traceSecurityDomainFound(tempDomain.getClass().getName());
+               return tempDomain;
+            }
+            tempDomain = ctx.lookup(SecurityConstants.JAAS_CONTEXT_ROOT + sd + "/jsse");
+            if (tempDomain instanceof JSSESecurityDomain) {
+               PicketBoxLogger.LOGGER.traceSecurityDomainFound(tempDomain.getClass().getName());
+               return tempDomain;
+            }
+            PicketBoxLogger.LOGGER.errorGettingJSSESecurityDomain(sd);
+         }
+         catch (NamingException e)
+         {
+            PicketBoxLogger.LOGGER.errorFindingSecurityDomain(sd, e);
+         }
+         return null;
+      }
+
+      private static long getLong(Map<String,?> options, String name, long defaultValue)
+      {
+         String option = (String) options.get(name);
+         if( option == null )
+            return defaultValue;
+         try
+         {
+            return Long.parseLong(option);
+         }
+         catch(NumberFormatException e)
+         {
+            PicketBoxLogger.LOGGER.debugFailureToParseNumberProperty(name, defaultValue);
+            return defaultValue;
+         }
+      }
+   }
+
 }
\ No newline at end of file
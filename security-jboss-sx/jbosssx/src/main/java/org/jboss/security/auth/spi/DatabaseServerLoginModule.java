@@ -26,7 +26,11 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
@@ -40,6 +44,8 @@ import javax.transaction.TransactionManager;
 
 import org.jboss.security.PicketBoxLogger;
 import org.jboss.security.PicketBoxMessages;
+import org.jboss.security.SecurityConstants;
+import org.jboss.security.config.SecurityConfiguration;
 import org.jboss.security.plugins.TransactionManagerLocator;
 
 
@@ -63,6 +69,20 @@ import org.jboss.security.plugins.TransactionManagerLocator;
  * <pre>
  *    "select Role, RoleGroup from Roles where PrincipalID=?"
  * </pre>
+ * <li><em>principalsRolesQuery</em>: An optional prepared statement query
+ * returning the password and the roles in one round trip, used instead of the
+ * principalsQuery and rolesQuery on password logins, equivalent to:
+ * <pre>
+ *    "select p.Password, r.Role, r.RoleGroup from Principals p left join Roles r
+ *       on p.PrincipalID=r.PrincipalID where p.PrincipalID=?"
+ * </pre>
+ * <li><em>loadRolesWithPassword</em>: If true the rolesQuery is executed on the
+ * connection used to obtain the password instead of a second connection.
+ * <li><em>cacheResources</em>: If true the DataSource and TransactionManager are
+ * looked up once and shared by the instances of the login module of the same
+ * security domain using the same JNDI names, until the application policy of the
+ * domain changes or {@link #flushCachedResources(String)} is called. Names in the
+ * java:comp namespace resolve per component and are never cached.
  * </ul>
  *
  * @author <a href="mailto:on@ibis.odessa.ua">Oleg Nitz</a>
@@ -77,11 +97,22 @@ public class DatabaseServerLoginModule extends UsernamePasswordLoginModule
    private static final String SUSPEND_RESUME = "suspendResume";
    private static final String PRINCIPALS_QUERY = "principalsQuery";
    private static final String TRANSACTION_MANAGER_JNDI_NAME = "transactionManagerJndiName";
+   private static final String PRINCIPALS_ROLES_QUERY = "principalsRolesQuery";
+   private static final String LOAD_ROLES_WITH_PASSWORD = "loadRolesWithPassword";
+   private static final String CACHE_RESOURCES = "cacheResources";
 
    private static final String[] ALL_VALID_OPTIONS =
    {
-      DS_JNDI_NAME,ROLES_QUERY,SUSPEND_RESUME,PRINCIPALS_QUERY,TRANSACTION_MANAGER_JNDI_NAME
+      DS_JNDI_NAME,ROLES_QUERY,SUSPEND_RESUME,PRINCIPALS_QUERY,TRANSACTION_MANAGER_JNDI_NAME,
+      PRINCIPALS_ROLES_QUERY,LOAD_ROLES_WITH_PASSWORD,CACHE_RESOURCES
    };
+
+   /** DataSources resolved by the login modules using cacheResources, keyed by security domain and JNDI name */
+   private static final ConcurrentMap<String, CachedResource<DataSource>> dataSources =
+      new ConcurrentHashMap<String, CachedResource<DataSource>>();
+   /** TransactionManagers resolved by the login modules using cacheResources, keyed by security domain and JNDI name */
+   private static final ConcurrentMap<String, CachedResource<TransactionManager>> transactionManagers =
+      new ConcurrentHashMap<String, CachedResource<TransactionManager>>();
    
    /** The JNDI name of the DataSource to use */
    protected String dsJndiName;
@@ -91,6 +122,16 @@ public class DatabaseServerLoginModule extends UsernamePasswordLoginModule
    protected String rolesQuery;
    /** Whether to suspend resume transactions during database operations */
    protected boolean suspendResume = true;
+   /** The sql query to obtain the user password and roles at once */
+   protected String principalsRolesQuery;
+   /** Whether to obtain the roles on the connection used for the password */
+   protected boolean loadRolesWithPassword = false;
+   /** Whether to share the DataSource and TransactionManager lookups */
+   protected boolean cacheResources = false;
+   /** The roles obtained along with the password, by role group name */
+   private Map<String, Group> passwordLoginRoles;
+   /** The security domain of the login module, scope of the cached resources */
+   private String securityDomain;
    
    protected String TX_MGR_JNDI_NAME = "java:/TransactionManager";
    
@@ -106,6 +147,12 @@ public class DatabaseServerLoginModule extends UsernamePasswordLoginModule
     *    "select Password from Principals where PrincipalID=?"
     * rolesQuery: The prepared statement query, equivalent to:
     *    "select Role, RoleGroup from Roles where PrincipalID=?"
+    * principalsRolesQuery: The prepared statement query returning the password,
+    *    role and role group of the user in one query
+    * loadRolesWithPassword: Whether to run the rolesQuery on the connection
+    *    used by the principalsQuery
+    * cacheResources: Whether to look up the DataSource and TransactionManager
+    *    once for all the login module instances
     */
    public void initialize(Subject subject, CallbackHandler callbackHandler,
       Map<String,?> sharedState, Map<String,?> options)
@@ -124,6 +171,16 @@ public class DatabaseServerLoginModule extends UsernamePasswordLoginModule
       tmp = options.get(SUSPEND_RESUME);
       if( tmp != null )
          suspendResume = Boolean.valueOf(tmp.toString()).booleanValue();
+      tmp = options.get(PRINCIPALS_ROLES_QUERY);
+      if( tmp != null )
+         principalsRolesQuery = tmp.toString();
+      tmp = options.get(LOAD_ROLES_WITH_PASSWORD);
+      if( tmp != null )
+         loadRolesWithPassword = Boolean.valueOf(tmp.toString()).booleanValue();
+      tmp = options.get(CACHE_RESOURCES);
+      if( tmp != null )
+         cacheResources = Boolean.valueOf(tmp.toString()).booleanValue();
+      securityDomain = (String) options.get(SecurityConstants.SECURITY_DOMAIN_OPTION);
 	  
       //Get the Transaction Manager JNDI Name
       String jname = (String) options.get(TRANSACTION_MANAGER_JNDI_NAME);
@@ -135,7 +192,7 @@ public class DatabaseServerLoginModule extends UsernamePasswordLoginModule
 	  try
       {
          if(this.suspendResume)
-            tm = this.getTransactionManager();
+            tm = this.cacheResources ? this.getCachedTransactionManager() : this.getTransactionManager();
       }
       catch (NamingException e)
       {
@@ -175,28 +232,49 @@ public class DatabaseServerLoginModule extends UsernamePasswordLoginModule
 
       try
       {
-         InitialContext ctx = new InitialContext();
-         DataSource ds = (DataSource) ctx.lookup(dsJndiName);
-         conn = ds.getConnection();
-         // Get the password
-         PicketBoxLogger.LOGGER.traceExecuteQuery(principalsQuery, username);
-         ps = conn.prepareStatement(principalsQuery);
-         ps.setString(1, username);
-         rs = ps.executeQuery();
-         if( rs.next() == false )
+         conn = getConnection();
+         if (principalsRolesQuery != null)
          {
-            throw PicketBoxMessages.MESSAGES.noMatchingUsernameFoundInPrincipals();
+            // Get the password and the roles
+            PicketBoxLogger.LOGGER.traceExecuteQuery(principalsRolesQuery, username);
+            ps = conn.prepareStatement(principalsRolesQuery);
+            ps.setString(1, username);
+            rs = ps.executeQuery();
+            if( rs.next() == false )
+            {
+               throw PicketBoxMessages.MESSAGES.noMatchingUsernameFoundInPrincipals();
+            }
+
+            password = rs.getString(1);
+            boolean hasRoleGroup = rs.getMetaData().getColumnCount() > 2;
+            Map<String, Group> roles = new HashMap<String, Group>();
+            do
+            {
+               String role = rs.getString(2);
+               // an outer join returns a null role for a user without roles
+               if (role != null)
+                  DbUtil.addRole(roles, role, hasRoleGroup ? rs.getString(3) : null, this);
+            } while (rs.next());
+            passwordLoginRoles = roles;
+         }
+         else
+         {
+            // Get the password
+            PicketBoxLogger.LOGGER.traceExecuteQuery(principalsQuery, username);
+            ps = conn.prepareStatement(principalsQuery);
+            ps.setString(1, username);
+            rs = ps.executeQuery();
+            if( rs.next() == false )
+            {
+               throw PicketBoxMessages.MESSAGES.noMatchingUsernameFoundInPrincipals();
+            }
+
+            password = rs.getString(1);
+            if (loadRolesWithPassword && rolesQuery != null)
+               passwordLoginRoles = DbUtil.loadRoles(conn, username, rolesQuery, this);
          }
-         
-         password = rs.getString(1);
          password = convertRawPassword(password);
       }
-      catch(NamingException ex)
-      {
-         LoginException le = new LoginException(PicketBoxMessages.MESSAGES.failedToLookupDataSourceMessage(dsJndiName));
-         le.initCause(ex);
-         throw le;
-      }
       catch(SQLException ex)
       {
          LoginException le = new LoginException(PicketBoxMessages.MESSAGES.failedToProcessQueryMessage());
@@ -255,12 +333,34 @@ public class DatabaseServerLoginModule extends UsernamePasswordLoginModule
     */
    protected Group[] getRoleSets() throws LoginException
    {
+      // roles already obtained along with the password
+      if (passwordLoginRoles != null)
+         return DbUtil.toRoleSets(passwordLoginRoles, this);
       if (rolesQuery != null)
       {
          String username = getUsername();
          PicketBoxLogger.LOGGER.traceExecuteQuery(rolesQuery, username);
-         Group[] roleSets = Util.getRoleSets(username, dsJndiName, rolesQuery, this,
-               suspendResume);
+         Group[] roleSets;
+         if (cacheResources)
+         {
+            if (suspendResume && tm == null)
+               throw PicketBoxMessages.MESSAGES.invalidNullTransactionManager();
+            // suspend before the DataSource lookup, as the non cached path does
+            TransactionManager txManager = suspendResume ? tm : null;
+            Transaction tx = DbUtil.suspend(txManager);
+            try
+            {
+               roleSets = DbUtil.getRoleSets(username, getDataSource(), rolesQuery, this);
+            }
+            finally
+            {
+               DbUtil.resume(txManager, tx);
+            }
+         }
+         else
+         {
+            roleSets = Util.getRoleSets(username, dsJndiName, rolesQuery, this, suspendResume);
+         }
          return roleSets;
       }
       return new Group[0];
@@ -282,4 +382,128 @@ public class DatabaseServerLoginModule extends UsernamePasswordLoginModule
       TransactionManagerLocator tml = new TransactionManagerLocator();
       return tml.getTM(this.TX_MGR_JNDI_NAME);
    } 
+
+   /**
+    * Get the DataSource named by dsJndiName, from the shared lookups if
+    * cacheResources is enabled.
+    * 
+    * @return the DataSource
+    * @throws LoginException if the lookup fails
+    */
+   protected DataSource getDataSource() throws LoginException
+   {
+      boolean cacheable = isCacheable(dsJndiName);
+      long version = cacheable ? SecurityConfiguration.getApplicationPolicyVersion(securityDomain) : 0;
+      String key = cacheKey(dsJndiName);
+      CachedResource<DataSource> cached = cacheable ? dataSources.get(key) : null;
+      if (cached != null && cached.version == version)
+         return cached.resource;
+
+      DataSource ds;
+      try
+      {
+         InitialContext ctx = new InitialContext();
+         ds = (DataSource) ctx.lookup(dsJndiName);
+      }
+      catch(NamingException ex)
+      {
+         LoginException le = new LoginException(PicketBoxMessages.MESSAGES.failedToLookupDataSourceMessage(dsJndiName));
+         le.initCause(ex);
+         throw le;
+      }
+      if (cacheable && ds != null)
+         dataSources.put(key, new CachedResource<DataSource>(ds, version));
+      return ds;
+   }
+
+   /**
+    * Drop the DataSources and TransactionManagers cached for a security domain,
+    * typically when the domain is flushed or undeployed.
+    * 
+    * @param securityDomain the name of the security domain, null to drop all the cached resources
+    */
+   public static void flushCachedResources(String securityDomain)
+   {
+      if (securityDomain == null)
+      {
+         dataSources.clear();
+         transactionManagers.clear();
+         return;
+      }
+      String prefix = securityDomain + ":";
+      for (Iterator<String> keys = dataSources.keySet().iterator(); keys.hasNext();)
+      {
+         if (keys.next().startsWith(prefix))
+            keys.remove();
+      }
+      for (Iterator<String> keys = transactionManagers.keySet().iterator(); keys.hasNext();)
+      {
+         if (keys.next().startsWith(prefix))
+            keys.remove();
+      }
+   }
+
+   private Connection getConnection() throws LoginException, SQLException
+   {
+      DataSource ds = getDataSource();
+      try
+      {
+         return ds.getConnection();
+      }
+      catch (SQLException e)
+      {
+         // the DataSource may have been undeployed, look it up again next time
+         if (isCacheable(dsJndiName))
+         {
+            String key = cacheKey(dsJndiName);
+            CachedResource<DataSource> cached = dataSources.get(key);
+            if (cached != null && cached.resource == ds)
+               dataSources.remove(key, cached);
+         }
+         throw e;
+      }
+   }
+
+   private TransactionManager getCachedTransactionManager() throws NamingException
+   {
+      if (!isCacheable(this.TX_MGR_JNDI_NAME))
+         return getTransactionManager();
+      long version = SecurityConfiguration.getApplicationPolicyVersion(securityDomain);
+      String key = cacheKey(this.TX_MGR_JNDI_NAME);
+      CachedResource<TransactionManager> cached = transactionManagers.get(key);
+      if (cached != null && cached.version == version)
+         return cached.resource;
+      TransactionManager txManager = getTransactionManager();
+      if (txManager != null)
+         transactionManagers.put(key, new CachedResource<TransactionManager>(txManager, version));
+      return txManager;
+   }
+
+   private boolean isCacheable(String jndiName)
+   {
+      // java:comp names resolve to the resources of the calling component
+      return cacheResources && jndiName != null && !jndiName.startsWith("java:comp");
+   }
+
+   private String cacheKey(String jndiName)
+   {
+      return (securityDomain != null ? securityDomain : "") + ":" + jndiName;
+   }
+
+   /**
+    * A resource looked up for a security domain, with the version of the
+    * application policy of the domain at the time of the lookup.
+    */
+   private static class CachedResource<T>
+   {
+      private final T resource;
+
+      private final long version;
+
+      CachedResource(T resource, long version)
+      {
+         this.resource = resource;
+         this.version = version;
+      }
+   }
 }
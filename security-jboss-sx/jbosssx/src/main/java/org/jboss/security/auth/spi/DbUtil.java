@@ -28,6 +28,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.HashMap;
+import java.util.Map;
 
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
@@ -58,11 +59,6 @@ class DbUtil
      String rolesQuery, AbstractServerLoginModule aslm, boolean suspendResume)
      throws LoginException
   {
-     Connection conn = null;
-     HashMap<String,Group> setsMap = new HashMap<String,Group>();
-     PreparedStatement ps = null;
-     ResultSet rs = null;
-     
      TransactionManager tm = null;
      
      if(suspendResume)
@@ -79,25 +75,118 @@ class DbUtil
         if(tm == null)
            throw PicketBoxMessages.MESSAGES.invalidNullTransactionManager();
      }
-     Transaction tx = null;
-     if (suspendResume)
+
+     Transaction tx = suspend(tm);
+     try
      {
-       // tx = TransactionDemarcationSupport.suspendAnyTransaction();
+        DataSource ds;
         try
         {
-           tx = tm.suspend();
+           InitialContext ctx = new InitialContext();
+           ds = (DataSource) ctx.lookup(dsJndiName);
         }
-        catch (SystemException e)
+        catch(NamingException ex)
         {
-           throw new RuntimeException(e);
+           LoginException le = new LoginException(PicketBoxMessages.MESSAGES.failedToLookupDataSourceMessage(dsJndiName));
+           le.initCause(ex);
+           throw le;
         }
+        return getRoleSets(username, ds, rolesQuery, aslm);
+     }
+     finally
+     {
+        resume(tm, tx);
      }
+  }
 
+  /** Execute the rolesQuery against an already resolved DataSource to obtain
+   the roles for the authenticated user. The caller is responsible for
+   suspending the current transaction if needed.
+   
+   @return Group[] containing the sets of roles
+   */
+  static Group[] getRoleSets(String username, DataSource ds, String rolesQuery,
+     AbstractServerLoginModule aslm)
+     throws LoginException
+  {
+     Connection conn = null;
+     Map<String,Group> setsMap = null;
      try
      {
-        InitialContext ctx = new InitialContext();
-        DataSource ds = (DataSource) ctx.lookup(dsJndiName);
         conn = ds.getConnection();
+        setsMap = loadRoles(conn, username, rolesQuery, aslm);
+     }
+     catch(SQLException ex)
+     {
+        LoginException le = new LoginException(PicketBoxMessages.MESSAGES.failedToProcessQueryMessage());
+        le.initCause(ex);
+        throw le;
+     }
+     finally
+     {
+        if( conn != null )
+        {
+           try
+           {
+              conn.close();
+           }
+           catch (Exception ex)
+           {}
+        }
+     }
+     
+     return toRoleSets(setsMap, aslm);
+  }
+
+  /** Suspend the current transaction.
+   @param tm the TransactionManager, null to not suspend anything
+   @return the suspended transaction, null if none
+   */
+  static Transaction suspend(TransactionManager tm)
+  {
+     if (tm == null)
+        return null;
+     // tx = TransactionDemarcationSupport.suspendAnyTransaction();
+     try
+     {
+        return tm.suspend();
+     }
+     catch (SystemException e)
+     {
+        throw new RuntimeException(e);
+     }
+  }
+
+  /** Resume a transaction suspended by suspend(TransactionManager).
+   @param tm the TransactionManager, null if nothing was suspended
+   */
+  static void resume(TransactionManager tm, Transaction tx)
+  {
+     if (tm == null)
+        return;
+     //TransactionDemarcationSupport.resumeAnyTransaction(tx);
+     try
+     {
+        tm.resume(tx);
+     }
+     catch (Exception e)
+     {
+        throw new RuntimeException(e);
+     }
+  }
+
+  /** Execute the rolesQuery on the given connection and collect the roles
+   by role group name. The returned map is empty if the query has no rows.
+   */
+  static Map<String,Group> loadRoles(Connection conn, String username,
+     String rolesQuery, AbstractServerLoginModule aslm)
+     throws SQLException
+  {
+     HashMap<String,Group> setsMap = new HashMap<String,Group>();
+     PreparedStatement ps = null;
+     ResultSet rs = null;
+     try
+     {
         // Get the user role names
         PicketBoxLogger.LOGGER.traceExecuteQuery(rolesQuery, username);
         ps = conn.prepareStatement(rolesQuery);
@@ -110,50 +199,8 @@ class DbUtil
            // The query may not have any parameters so just try it
         }
         rs = ps.executeQuery();
-        if( rs.next() == false )
-        {
-           if( aslm.getUnauthenticatedIdentity() == null )
-              throw PicketBoxMessages.MESSAGES.noMatchingUsernameFoundInRoles();
-           /* We are running with an unauthenticatedIdentity so create an empty Roles set and return. */
-           Group[] roleSets = { new SimpleGroup("Roles") };
-           return roleSets;
-        }
-
-        do
-        {
-           String name = rs.getString(1);
-           String groupName = rs.getString(2);
-           if( groupName == null || groupName.length() == 0 )
-              groupName = "Roles";
-           Group group = (Group) setsMap.get(groupName);
-           if( group == null )
-           {
-              group = new SimpleGroup(groupName);
-              setsMap.put(groupName, group);
-           }
-
-           try
-           {
-              Principal p = aslm.createIdentity(name);
-              group.addMember(p);
-           }
-           catch(Exception e)
-           {
-              PicketBoxLogger.LOGGER.debugFailureToCreatePrincipal(name, e);
-           }
-        } while( rs.next() );
-     }
-     catch(NamingException ex)
-     {
-        LoginException le = new LoginException(PicketBoxMessages.MESSAGES.failedToLookupDataSourceMessage(dsJndiName));
-        le.initCause(ex);
-        throw le;
-     }
-     catch(SQLException ex)
-     {
-        LoginException le = new LoginException(PicketBoxMessages.MESSAGES.failedToProcessQueryMessage());
-        le.initCause(ex);
-        throw le;
+        while( rs.next() )
+           addRole(setsMap, rs.getString(1), rs.getString(2), aslm);
      }
      finally
      {
@@ -175,29 +222,50 @@ class DbUtil
            catch(SQLException e)
            {}
         }
-        if( conn != null )
-        {
-           try
-           {
-              conn.close();
-           }
-           catch (Exception ex)
-           {}
-        }
-        if (suspendResume)
-        {
-           //TransactionDemarcationSupport.resumeAnyTransaction(tx);
-           try
-           {
-              tm.resume(tx);
-           }
-           catch (Exception e)
-           {
-              throw new RuntimeException(e);
-           }
-        }
      }
-     
+     return setsMap;
+  }
+
+  /** Add the role name to the group groupName, "Roles" if not specified.
+   */
+  static void addRole(Map<String,Group> setsMap, String name, String groupName,
+     AbstractServerLoginModule aslm)
+  {
+     if( groupName == null || groupName.length() == 0 )
+        groupName = "Roles";
+     Group group = (Group) setsMap.get(groupName);
+     if( group == null )
+     {
+        group = new SimpleGroup(groupName);
+        setsMap.put(groupName, group);
+     }
+
+     try
+     {
+        Principal p = aslm.createIdentity(name);
+        group.addMember(p);
+     }
+     catch(Exception e)
+     {
+        PicketBoxLogger.LOGGER.debugFailureToCreatePrincipal(name, e);
+     }
+  }
+
+  /** Turn the role groups collected by loadRoles into the role sets.
+   @exception LoginException thrown if no role was found and the login
+      module has no unauthenticatedIdentity
+   */
+  static Group[] toRoleSets(Map<String,Group> setsMap, AbstractServerLoginModule aslm)
+     throws LoginException
+  {
+     if( setsMap.isEmpty() )
+     {
+        if( aslm.getUnauthenticatedIdentity() == null )
+           throw PicketBoxMessages.MESSAGES.noMatchingUsernameFoundInRoles();
+        /* We are running with an unauthenticatedIdentity so create an empty Roles set and return. */
+        Group[] roleSets = { new SimpleGroup("Roles") };
+        return roleSets;
+     }
      Group[] roleSets = new Group[setsMap.size()];
      setsMap.values().toArray(roleSets);
      return roleSets;
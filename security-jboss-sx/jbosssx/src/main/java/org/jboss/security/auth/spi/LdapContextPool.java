@@ -0,0 +1,519 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.security.auth.spi;
+
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ldap.InitialLdapContext;
+
+import org.jboss.security.PicketBoxLogger;
+import org.jboss.security.PicketBoxMessages;
+import org.jboss.security.SecurityConstants;
+import org.jboss.security.cache.FlushListener;
+import org.jboss.security.cache.FlushListeners;
+
+/**
+ * A pool of LDAP connections bound with the search (bindDN) identity of the
+ * {@link LdapExtLoginModule} and {@link LdapLoginModule}. Pools are process wide
+ * and keyed by the security domain and the JNDI environment of the connection
+ * without its credentials, so the module instances of a security domain share
+ * the same pool. A pool is replaced when the credentials of the search identity
+ * change, and the pools of a security domain are closed when the domain is flushed.
+ * <p>
+ * The pool is enabled with the module options:
+ * <ul>
+ * <li>connectionPool : true to pool the search connections. The default is false.
+ * <li>connectionPoolMinIdle : the number of idle connections opened when the
+ * pool is created and kept open afterwards. The default is 0.
+ * <li>connectionPoolMaxIdle : the maximum number of idle connections kept open,
+ * extra connections are closed when they are released. The default is 8.
+ * <li>connectionPoolMaxSize : the maximum number of open connections, idle or
+ * in use. The default is 20, 0 means no limit.
+ * <li>connectionPoolMaxWait : the time in milliseconds to wait for a connection
+ * when connectionPoolMaxSize connections are open. The default is 30000.
+ * <li>connectionPoolMaxLifetime : the time in milliseconds after which a
+ * connection is closed instead of being reused. The default is 0, which means
+ * connections are reused for as long as they are valid.
+ * <li>connectionPoolValidate : true to check an idle connection by reading the
+ * root DSE before handing it out. The default is true.
+ * </ul>
+ * A user can be authenticated on a pooled connection with
+ * {@link #verify(PooledContext, String, Object)}, which binds the connection as
+ * the user and then binds it back as the search identity. With LDAP v3 providers
+ * such as the JDK one both binds happen on the open connection. A connection that
+ * cannot be bound back is discarded, the result of the user bind is kept.
+ *
+ * @version $Revision$
+ */
+final class LdapContextPool
+{
+   static final String POOL_OPT = "connectionPool";
+   static final String MIN_IDLE_OPT = "connectionPoolMinIdle";
+   static final String MAX_IDLE_OPT = "connectionPoolMaxIdle";
+   static final String MAX_SIZE_OPT = "connectionPoolMaxSize";
+   static final String MAX_WAIT_OPT = "connectionPoolMaxWait";
+   static final String MAX_LIFETIME_OPT = "connectionPoolMaxLifetime";
+   static final String VALIDATE_OPT = "connectionPoolValidate";
+
+   static final String[] ALL_VALID_OPTIONS =
+   {
+      POOL_OPT,
+      MIN_IDLE_OPT,
+      MAX_IDLE_OPT,
+      MAX_SIZE_OPT,
+      MAX_WAIT_OPT,
+      MAX_LIFETIME_OPT,
+      VALIDATE_OPT
+   };
+
+   private static final String[] VALIDATION_ATTRIBUTES = {"supportedLDAPVersion"};
+
+   /** The longest wait for a released idle connection before checking for a free slot again */
+   private static final long WAIT_SLICE = 100;
+
+   private static final ConcurrentMap<PoolKey, LdapContextPool> pools = new ConcurrentHashMap<PoolKey, LdapContextPool>();
+
+   static
+   {
+      FlushListeners.addListener(new FlushListener()
+      {
+         public void flush(String securityDomain)
+         {
+            closePools(securityDomain);
+         }
+      });
+   }
+
+   private final PoolKey key;
+
+   private final Hashtable<Object, Object> env;
+
+   private volatile boolean closed;
+
+   private final int minIdle;
+
+   private final long maxLifetime;
+
+   private final boolean validate;
+
+   private final BlockingDeque<PooledContext> idle;
+
+   // one permit per open connection, null if the number of connections is not limited
+   private final Semaphore permits;
+
+   private final long maxWait;
+
+   private LdapContextPool(PoolKey key, Hashtable<Object, Object> env, int minIdle, int maxIdle, int maxSize, long maxWait,
+         long maxLifetime, boolean validate)
+   {
+      this.key = key;
+      this.env = env;
+      this.minIdle = Math.min(minIdle, maxSize > 0 ? Math.min(maxIdle, maxSize) : maxIdle);
+      this.maxLifetime = maxLifetime;
+      this.validate = validate;
+      this.idle = new LinkedBlockingDeque<PooledContext>(Math.max(maxIdle, 1));
+      this.permits = maxSize > 0 ? new Semaphore(maxSize) : null;
+      this.maxWait = maxWait;
+   }
+
+   /**
+    * Get the pool of connections created with the given environment.
+    *
+    * @param env - the JNDI environment of the search connection, including its
+    *    principal and credentials
+    * @param options - the login module options
+    * @return the shared pool, null if pooling is not enabled by the options
+    */
+   static LdapContextPool getPool(Properties env, Map<String, ?> options)
+   {
+      if (!Boolean.valueOf((String) options.get(POOL_OPT)).booleanValue())
+         return null;
+      Hashtable<Object, Object> poolEnv = new Hashtable<Object, Object>(env);
+      Object domain = options.get(SecurityConstants.SECURITY_DOMAIN_OPTION);
+      PoolKey key = new PoolKey(domain != null ? domain.toString() : "", poolEnv);
+      LdapContextPool pool = pools.get(key);
+      if (pool != null && !pool.hasCredentials(poolEnv.get(Context.SECURITY_CREDENTIALS)))
+      {
+         // the search identity credentials changed, the pooled connections are bound with the old ones
+         if (pools.remove(key, pool))
+            pool.close();
+         pool = null;
+      }
+      if (pool == null)
+      {
+         int minIdle = (int) getNumber(options, MIN_IDLE_OPT, 0);
+         int maxIdle = (int) getNumber(options, MAX_IDLE_OPT, 8);
+         int maxSize = (int) getNumber(options, MAX_SIZE_OPT, 20);
+         long maxWait = getNumber(options, MAX_WAIT_OPT, 30000);
+         long maxLifetime = getNumber(options, MAX_LIFETIME_OPT, 0);
+         String validate = (String) options.get(VALIDATE_OPT);
+         pool = new LdapContextPool(key, poolEnv, minIdle, maxIdle, maxSize, maxWait, maxLifetime,
+            validate == null || Boolean.valueOf(validate).booleanValue());
+         LdapContextPool existing = pools.putIfAbsent(key, pool);
+         if (existing != null)
+            pool = existing;
+         else
+            pool.ensureMinIdle();
+      }
+      return pool;
+   }
+
+   /**
+    * Close the pools of a security domain and forget them. The connections in
+    * use are closed when they are released.
+    *
+    * @param securityDomain - the name of the security domain, null to close all the pools
+    */
+   static void closePools(String securityDomain)
+   {
+      for (LdapContextPool pool : pools.values())
+      {
+         if ((securityDomain == null || securityDomain.equals(pool.key.securityDomain)) && pools.remove(pool.key, pool))
+            pool.close();
+      }
+   }
+
+   /**
+    * Close the idle connections and the connections released afterwards.
+    */
+   private void close()
+   {
+      closed = true;
+      PooledContext pc;
+      while ((pc = idle.pollFirst()) != null)
+         close(pc);
+   }
+
+   private boolean hasCredentials(Object credentials)
+   {
+      return Arrays.deepEquals(new Object[] {env.get(Context.SECURITY_CREDENTIALS)}, new Object[] {credentials});
+   }
+
+   /**
+    * Take an idle connection from the pool, opening a new one if there is no
+    * valid idle connection. When the maximum number of connections are open the
+    * call waits for a connection to be released. The connection must be given
+    * back with {@link #release(PooledContext)}.
+    *
+    * @return the pooled connection
+    * @throws NamingException - thrown if a new connection cannot be opened, or if
+    *    no connection became available within the maximum wait time
+    */
+   PooledContext borrow() throws NamingException
+   {
+      long deadline = System.currentTimeMillis() + maxWait;
+      while (true)
+      {
+         PooledContext pc;
+         while ((pc = idle.pollFirst()) != null)
+         {
+            if (!isExpired(pc) && isValid(pc))
+               return pc;
+            close(pc);
+         }
+         if (permits == null || permits.tryAcquire())
+            return open();
+
+         long remaining = deadline - System.currentTimeMillis();
+         if (remaining <= 0)
+            throw PicketBoxMessages.MESSAGES.pooledLDAPConnectionUnavailable(maxWait);
+         try
+         {
+            // a released connection is either put back in the idle deque or closed,
+            // which frees a permit, so wait in slices and check both
+            pc = idle.pollFirst(Math.min(remaining, WAIT_SLICE), TimeUnit.MILLISECONDS);
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+            throw PicketBoxMessages.MESSAGES.pooledLDAPConnectionUnavailable(maxWait);
+         }
+         if (pc != null)
+         {
+            if (!isExpired(pc) && isValid(pc))
+               return pc;
+            close(pc);
+         }
+      }
+   }
+
+   /**
+    * Give a connection back to the pool. Broken or expired connections and
+    * connections in excess of the maximum idle count are closed.
+    *
+    * @param pc - the connection obtained from {@link #borrow()}
+    */
+   void release(PooledContext pc)
+   {
+      if (pc.broken || isExpired(pc) || closed || !idle.offerFirst(pc))
+      {
+         close(pc);
+         if (!closed)
+            ensureMinIdle();
+      }
+      else if (closed && idle.remove(pc))
+      {
+         // closed while the connection was given back
+         close(pc);
+      }
+   }
+
+   /**
+    * Authenticate a user by binding the pooled connection as the user, then
+    * bind the connection again with the search identity of the pool.
+    *
+    * @param pc - the pooled connection
+    * @param dn - the user distinguished name
+    * @param credential - the user credential
+    * @throws NamingException - thrown if the user bind fails. A failure to bind
+    *    the connection again as the search identity does not change the outcome,
+    *    the connection is then discarded when it is released
+    */
+   void verify(PooledContext pc, String dn, Object credential) throws NamingException
+   {
+      InitialLdapContext ctx = pc.ctx;
+      NamingException failure = null;
+      pc.broken = true;
+      try
+      {
+         ctx.addToEnvironment(Context.SECURITY_PRINCIPAL, dn);
+         ctx.addToEnvironment(Context.SECURITY_CREDENTIALS, credential);
+         ctx.reconnect(null);
+      }
+      catch (NamingException e)
+      {
+         failure = e;
+      }
+
+      try
+      {
+         restore(ctx, Context.SECURITY_PRINCIPAL);
+         restore(ctx, Context.SECURITY_CREDENTIALS);
+         ctx.reconnect(null);
+         pc.broken = false;
+      }
+      catch (NamingException e)
+      {
+         PicketBoxLogger.LOGGER.debugFailureToRebindPooledLDAPConnection(e);
+      }
+      if (failure != null)
+         throw failure;
+   }
+
+   private void restore(InitialLdapContext ctx, String propName) throws NamingException
+   {
+      Object value = env.get(propName);
+      if (value != null)
+         ctx.addToEnvironment(propName, value);
+      else
+         ctx.removeFromEnvironment(propName);
+   }
+
+   /**
+    * Open a connection, the caller holds the permit of the connection if the
+    * number of connections is limited.
+    */
+   private PooledContext open() throws NamingException
+   {
+      try
+      {
+         return new PooledContext(new InitialLdapContext(env, null));
+      }
+      catch (NamingException e)
+      {
+         if (permits != null)
+            permits.release();
+         throw e;
+      }
+      catch (RuntimeException e)
+      {
+         if (permits != null)
+            permits.release();
+         throw e;
+      }
+   }
+
+   private void ensureMinIdle()
+   {
+      while (idle.size() < minIdle)
+      {
+         if (permits != null && !permits.tryAcquire())
+            break;
+         PooledContext pc;
+         try
+         {
+            pc = open();
+         }
+         catch (NamingException e)
+         {
+            PicketBoxLogger.LOGGER.debugFailureToOpenPooledLDAPConnection(e);
+            break;
+         }
+         if (!idle.offerLast(pc))
+         {
+            close(pc);
+            break;
+         }
+      }
+   }
+
+   private boolean isExpired(PooledContext pc)
+   {
+      return maxLifetime > 0 && System.currentTimeMillis() - pc.created > maxLifetime;
+   }
+
+   private boolean isValid(PooledContext pc)
+   {
+      if (!validate)
+         return true;
+      try
+      {
+         pc.ctx.getAttributes("", VALIDATION_ATTRIBUTES);
+         return true;
+      }
+      catch (NamingException e)
+      {
+         return false;
+      }
+   }
+
+   private void close(PooledContext pc)
+   {
+      PicketBoxLogger.LOGGER.traceDiscardingPooledLDAPConnection(pc.ctx.toString());
+      try
+      {
+         pc.ctx.close();
+      }
+      catch (NamingException ignored)
+      {
+      }
+      finally
+      {
+         if (permits != null)
+            permits.release();
+      }
+   }
+
+   private static long getNumber(Map<String, ?> options, String name, long defaultValue)
+   {
+      String value = (String) options.get(name);
+      if (value == null)
+         return defaultValue;
+      try
+      {
+         return Long.parseLong(value.trim());
+      }
+      catch (NumberFormatException e)
+      {
+         PicketBoxLogger.LOGGER.debugFailureToParseNumberProperty(name, defaultValue);
+         return defaultValue;
+      }
+   }
+
+   /**
+    * The key of a pool: the security domain and the JNDI environment of the
+    * connections without their credentials.
+    */
+   private static final class PoolKey
+   {
+      private final String securityDomain;
+
+      private final Hashtable<Object, Object> env;
+
+      private final int hashCode;
+
+      PoolKey(String securityDomain, Hashtable<Object, Object> env)
+      {
+         this.securityDomain = securityDomain;
+         this.env = new Hashtable<Object, Object>(env);
+         this.env.remove(Context.SECURITY_CREDENTIALS);
+         this.hashCode = securityDomain.hashCode() * 31 + this.env.hashCode();
+      }
+
+      @Override
+      public int hashCode()
+      {
+         return hashCode;
+      }
+
+      @Override
+      public boolean equals(Object obj)
+      {
+         if (obj == this)
+            return true;
+         if (!(obj instanceof PoolKey))
+            return false;
+         PoolKey other = (PoolKey) obj;
+         return securityDomain.equals(other.securityDomain) && env.equals(other.env);
+      }
+   }
+
+   /**
+    * A connection handed out by the pool.
+    */
+   static final class PooledContext
+   {
+      private final InitialLdapContext ctx;
+
+      private final long created = System.currentTimeMillis();
+
+      private volatile boolean broken;
+
+      private PooledContext(InitialLdapContext ctx)
+      {
+         this.ctx = ctx;
+      }
+
+      InitialLdapContext getContext()
+      {
+         return ctx;
+      }
+
+      /**
+       * @return true if the connection is not bound as the search identity anymore
+       *    and is closed when it is released
+       */
+      boolean isBroken()
+      {
+         return broken;
+      }
+
+      /**
+       * Mark the connection as unusable so that it is closed when it is released.
+       */
+      void invalidate()
+      {
+         broken = true;
+      }
+   }
+}
@@ -23,14 +23,31 @@ package org.jboss.security.auth.spi;
 
 import java.security.Principal;
 import java.security.acl.Group;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.StringTokenizer;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import javax.management.ObjectName;
 import javax.naming.Context;
+import javax.naming.InterruptedNamingException;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.ReferralException;
@@ -46,8 +63,12 @@ import javax.security.auth.login.LoginException;
 
 import org.jboss.security.PicketBoxLogger;
 import org.jboss.security.PicketBoxMessages;
+import org.jboss.security.SecurityConstants;
 import org.jboss.security.SimpleGroup;
 import org.jboss.security.Util;
+import org.jboss.security.cache.BoundedConcurrentCache;
+import org.jboss.security.cache.FlushListener;
+import org.jboss.security.cache.FlushListeners;
 import org.jboss.security.vault.SecurityVaultUtil;
 
 /**
@@ -127,6 +148,20 @@ import org.jboss.security.vault.SecurityVaultUtil;
  the __roleAttributeIsDN__ property is set to false, this property is ignored.
  * __roleRecursion__ : How deep the role search will go below a given matching
  context. Disable with 0, which is the default.
+ * __roleCacheTimeout__ : The time in milliseconds the roles inherited by a role
+ DN found by the recursive role search are cached. The cache is shared by the
+ module instances with the same options, and is not used if the
+ __roleFilter__ references the input username with "{0}". The default is 0,
+ which disables the cache. The caches of a security domain are dropped when the
+ domain is flushed.
+ * __roleCacheMaxSize__ : The maximum number of role DNs in the role cache.
+ Defaults to 1000.
+ * __roleSearchParallelism__ : The number of threads resolving the role objects
+ found at the same level of the role search. Defaults to 1, which resolves them
+ one after the other. The nested levels are searched by the login thread with
+ the rolesSearch method. The threads are shared by all the module instances and
+ limited to 16, when none is available the login thread resolves the role
+ objects itself.
  * __searchTimeLimit__ : The timeout in milliseconds for the user/role searches.
  Defaults to 10000 (10 seconds).
  * __searchScope__ : Sets the search scope to one of the strings. The default is
@@ -141,6 +176,21 @@ import org.jboss.security.vault.SecurityVaultUtil;
  anonymous login by some ldap servers and this may not be a desirable feature.
  Set this to false to reject empty passwords, true to have the ldap server
  validate the empty password. The default is true.
+ * __connectionPool__ : A flag indicating if the connections bound with the
+ __bindDN__ should be pooled. The pool is shared by the module instances with
+ the same connection options, which are the instances of a security domain.
+ When enabled the user DN is authenticated by binding a pooled connection as
+ the user and then binding it back as the __bindDN__. The default is false.
+ * __connectionPoolMinIdle__, __connectionPoolMaxIdle__ : The minimum and maximum
+ number of idle pooled connections. The defaults are 0 and 8.
+ * __connectionPoolMaxSize__ : The maximum number of open pooled connections,
+ idle or in use. The default is 20, 0 means no limit.
+ * __connectionPoolMaxWait__ : The time in milliseconds to wait for a pooled
+ connection when the maximum number are open. The default is 30000.
+ * __connectionPoolMaxLifetime__ : The time in milliseconds after which a pooled
+ connection is closed instead of being reused. The default is 0, no limit.
+ * __connectionPoolValidate__ : A flag indicating if an idle pooled connection is
+ checked by reading the root DSE before it is used. The default is true.
  
  @author Andy Oliver
  @author Scott.Stark@jboss.org
@@ -169,6 +219,9 @@ public class LdapExtLoginModule extends UsernamePasswordLoginModule
    private static final String USERNAME_BEGIN_STRING = "usernameBeginString";
    private static final String USERNAME_END_STRING = "usernameEndString";
    private static final String ALLOW_EMPTY_PASSWORDS = "allowEmptyPasswords";
+   private static final String ROLE_CACHE_TIMEOUT_OPT = "roleCacheTimeout";
+   private static final String ROLE_CACHE_MAX_SIZE_OPT = "roleCacheMaxSize";
+   private static final String ROLE_SEARCH_PARALLELISM_OPT = "roleSearchParallelism";
    private static final String[] ALL_VALID_OPTIONS =
    {
       ROLES_CTX_DN_OPT,
@@ -191,6 +244,9 @@ public class LdapExtLoginModule extends UsernamePasswordLoginModule
       USERNAME_BEGIN_STRING,
       USERNAME_END_STRING,
       ALLOW_EMPTY_PASSWORDS,
+      ROLE_CACHE_TIMEOUT_OPT,
+      ROLE_CACHE_MAX_SIZE_OPT,
+      ROLE_SEARCH_PARALLELISM_OPT,
 
       Context.INITIAL_CONTEXT_FACTORY,
       Context.OBJECT_FACTORIES,
@@ -208,6 +264,44 @@ public class LdapExtLoginModule extends UsernamePasswordLoginModule
       Context.LANGUAGE,
       Context.APPLET
    };
+
+   // role caches shared by the module instances with the same options, bind credentials excluded
+   private static final ConcurrentMap<Map<?, ?>, Map<String, List<String>>> roleCaches =
+      new ConcurrentHashMap<Map<?, ?>, Map<String, List<String>>>();
+
+   static
+   {
+      FlushListeners.addListener(new FlushListener()
+      {
+         public void flush(String securityDomain)
+         {
+            Iterator<Map<?, ?>> keys = roleCaches.keySet().iterator();
+            while (keys.hasNext())
+            {
+               if (securityDomain == null || securityDomain.equals(keys.next().get(SecurityConstants.SECURITY_DOMAIN_OPTION)))
+                  keys.remove();
+            }
+         }
+      });
+   }
+
+   /** The maximum number of threads resolving role objects, for all the module instances */
+   private static final int MAX_ROLE_SEARCH_THREADS = 16;
+
+   // idle threads stop after a minute, a search the pool has no thread for runs on the login thread.
+   // The threads are created during the role search, which runs without a context class loader.
+   private static final ExecutorService roleSearchExecutor = new ThreadPoolExecutor(0, MAX_ROLE_SEARCH_THREADS,
+         60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory()
+   {
+      private final AtomicInteger count = new AtomicInteger();
+
+      public Thread newThread(Runnable r)
+      {
+         Thread thread = new Thread(r, "LdapExtLoginModule role search " + count.incrementAndGet());
+         thread.setDaemon(true);
+         return thread;
+      }
+   }, new ThreadPoolExecutor.CallerRunsPolicy());
    
    protected String bindDN;
 
@@ -234,6 +328,8 @@ public class LdapExtLoginModule extends UsernamePasswordLoginModule
    protected int searchTimeLimit = 10000;
 
    protected int searchScope = SearchControls.SUBTREE_SCOPE; 
+
+   protected int roleSearchParallelism = 1;
    
    protected String distinguishedNameAttribute;
    
@@ -246,6 +342,18 @@ public class LdapExtLoginModule extends UsernamePasswordLoginModule
    // simple flag to indicate is the validatePassword method was called
    protected boolean isPasswordValidated = false;
 
+   // the pool of bindDN connections, null if connections are not pooled
+   private transient LdapContextPool connectionPool;
+
+   // the pooled connection used by the current login
+   private transient LdapContextPool.PooledContext pooledContext;
+
+   // the shared cache of the roles inherited by a role DN, null if disabled
+   private transient Map<String, List<String>> roleCache;
+
+   // records the roles added by a nested roles search so they can be cached
+   private transient List<String> addedRoles;
+
    public LdapExtLoginModule()
    {
    }
@@ -256,6 +364,7 @@ public class LdapExtLoginModule extends UsernamePasswordLoginModule
    public void initialize(Subject subject, CallbackHandler callbackHandler, Map sharedState, Map options)
    {
       addValidOptions(ALL_VALID_OPTIONS);
+      addValidOptions(LdapContextPool.ALL_VALID_OPTIONS);
       super.initialize(subject, callbackHandler, sharedState, options);
    }
 
@@ -447,6 +556,20 @@ public class LdapExtLoginModule extends UsernamePasswordLoginModule
       if (distinguishedNameAttribute == null)
           distinguishedNameAttribute = "distinguishedName";
 
+      String parallelism = (String) options.get(ROLE_SEARCH_PARALLELISM_OPT);
+      if (parallelism != null)
+      {
+         try
+         {
+            roleSearchParallelism = Integer.parseInt(parallelism);
+         }
+         catch (NumberFormatException e)
+         {
+            PicketBoxLogger.LOGGER.debugFailureToParseNumberProperty(ROLE_SEARCH_PARALLELISM_OPT, this.roleSearchParallelism);
+         }
+      }
+      roleCache = getRoleCache();
+
       // Get the admin context for searching
       InitialLdapContext ctx = null;
       ClassLoader currentTCCL = SecurityActions.getContextClassLoader();
@@ -454,9 +577,29 @@ public class LdapExtLoginModule extends UsernamePasswordLoginModule
       {
          if (currentTCCL != null)
             SecurityActions.setContextClassLoader(null);
-         ctx = constructInitialLdapContext(bindDN, bindCredential);
+         Properties env = constructLdapContextEnvironment(bindDN, bindCredential);
+         connectionPool = LdapContextPool.getPool(env, options);
+         if (connectionPool != null)
+         {
+            pooledContext = connectionPool.borrow();
+            ctx = pooledContext.getContext();
+         }
+         else
+         {
+            PicketBoxLogger.LOGGER.traceLDAPConnectionEnv(env);
+            ctx = new InitialLdapContext(env, null);
+         }
          // Validate the user by binding against the userDN
          String userDN = bindDNAuthentication(ctx, username, credential, baseDN, baseFilter);
+         if (pooledContext != null && pooledContext.isBroken())
+         {
+            // the user is authenticated, search the roles on another connection
+            connectionPool.release(pooledContext);
+            pooledContext = null;
+            ctx = null;
+            pooledContext = connectionPool.borrow();
+            ctx = pooledContext.getContext();
+         }
 
          // Query for roles matching the role filter
          SearchControls constraints = new SearchControls();
@@ -471,7 +614,12 @@ public class LdapExtLoginModule extends UsernamePasswordLoginModule
       }
 	  finally
       {
-         if (ctx != null)
+         if (pooledContext != null)
+         {
+            connectionPool.release(pooledContext);
+            pooledContext = null;
+         }
+         else if (ctx != null)
             ctx.close();
          if (currentTCCL != null)
             SecurityActions.setContextClassLoader(currentTCCL);
@@ -552,7 +700,12 @@ public class LdapExtLoginModule extends UsernamePasswordLoginModule
       results.close();
       results = null;
       // SECURITY-225: don't need to authenticate again
-      if (isPasswordValidated)
+      if (isPasswordValidated && pooledContext != null)
+      {
+         // Bind the pooled connection as the user dn to authenticate the user
+         connectionPool.verify(pooledContext, userDN, credential);
+      }
+      else if (isPasswordValidated)
       {
          // Bind as the user dn to authenticate the user
          InitialLdapContext userCtx = constructInitialLdapContext(userDN, credential);
@@ -575,110 +728,285 @@ public class LdapExtLoginModule extends UsernamePasswordLoginModule
          int recursionMax, int nesting) throws NamingException
    {
       LdapContext ldapCtx = ctx;
-      
+      List<String> dns = new ArrayList<String>();
+
       Object[] filterArgs = {user, userDN};
       boolean referralsExist = true;
       while (referralsExist) {
-         NamingEnumeration results = ldapCtx.search(rolesCtxDN, roleFilter, filterArgs, constraints);
+         NamingEnumeration results = null;
          try
          {
+            results = ldapCtx.search(rolesCtxDN, roleFilter, filterArgs, constraints);
             while (results.hasMore())
             {
                SearchResult sr = (SearchResult) results.next();
-               
-               String dn;
                if (sr.isRelative()) {
-                  dn = canonicalize(sr.getName());
+                  dns.add(canonicalize(sr.getName()));
                }
                else {
-                  dn = sr.getNameInNamespace();
+                  dns.add(sr.getNameInNamespace());
                }
-               if (nesting == 0 && roleAttributeIsDN && roleNameAttributeID != null)
+            }
+            referralsExist = false;
+         }
+         catch (ReferralException e) {
+            // resolve the role objects found so far on the context they were found on
+            resolveRoles(ldapCtx, constraints, user, dns, recursionMax, nesting);
+            dns = new ArrayList<String>();
+            ldapCtx = (LdapContext) e.getReferralContext();
+         }
+         finally
+         {
+            if (results != null)
+               results.close();
+         }
+      } // while (referralsExist)
+
+      resolveRoles(ldapCtx, constraints, user, dns, recursionMax, nesting);
+   }
+
+   /**
+    Add the roles of the role objects found at one level of the roles search,
+    each followed by the roles it inherits. The nested levels are searched with
+    {@link #rolesSearch(LdapContext, SearchControls, String, String, int, int)}.
+    */
+   private void resolveRoles(LdapContext ldapCtx, SearchControls constraints, String user, List<String> dns,
+         int recursionMax, int nesting) throws NamingException
+   {
+      List<List<String>> resolved = null;
+      if (roleSearchParallelism > 1 && dns.size() > 1)
+         resolved = parallelRoleNames(ldapCtx, dns, nesting);
+
+      for (int i = 0; i < dns.size(); i++)
+      {
+         String dn = dns.get(i);
+         List<String> roleNames;
+         if (resolved != null)
+         {
+            roleNames = resolved.get(i);
+         }
+         else
+         {
+            roleNames = new ArrayList<String>();
+            roleNames(ldapCtx, dn, nesting, roleNames);
+         }
+         for (String roleName : roleNames)
+            addRole(roleName);
+
+         if (nesting < recursionMax)
+            ancestorRoles(ldapCtx, constraints, user, dn, recursionMax, nesting + 1);
+      }
+   }
+
+   /**
+    Collect the role names of a role object found by the roles search. This
+    method does not modify the state of the login module so it can be called
+    from the role search threads.
+    */
+   private void roleNames(LdapContext ldapCtx, String dn, int nesting, List<String> roleNames)
+         throws NamingException
+   {
+      if (nesting == 0 && roleAttributeIsDN && roleNameAttributeID != null)
+      {
+         if(parseRoleNameFromDN)
+         {
+            parseRole(dn, roleNames);
+         }
+         else
+         {
+            // Check the top context for role names
+            String[] attrNames = {roleNameAttributeID};
+            Attributes result2 = ldapCtx.getAttributes(dn, attrNames);
+            Attribute roles2 = result2.get(roleNameAttributeID);
+            if( roles2 != null )
+            {
+               for(int m = 0; m < roles2.size(); m ++)
                {
-                  if(parseRoleNameFromDN)
-                  {
-                     parseRole(dn);
-                  }
-                  else
-                  {
-                     // Check the top context for role names
-                     String[] attrNames = {roleNameAttributeID};
-                     Attributes result2 = ldapCtx.getAttributes(dn, attrNames);
-                     Attribute roles2 = result2.get(roleNameAttributeID);
-                     if( roles2 != null )
-                     {
-                        for(int m = 0; m < roles2.size(); m ++)
-                        {
-                           String roleName = (String) roles2.get(m);
-                           addRole(roleName);
-                        }
-                     }
-                  }
+                  String roleName = (String) roles2.get(m);
+                  roleNames.add(roleName);
                }
-   
-               // Query the context for the roleDN values
-               String[] attrNames = {roleAttributeID};
-               Attributes result = ldapCtx.getAttributes(dn, attrNames);
-               if (result != null && result.size() > 0)
+            }
+         }
+      }
+
+      // Query the context for the roleDN values
+      String[] attrNames = {roleAttributeID};
+      Attributes result = ldapCtx.getAttributes(dn, attrNames);
+      if (result != null && result.size() > 0)
+      {
+         Attribute roles = result.get(roleAttributeID);
+         for (int n = 0; n < roles.size(); n++)
+         {
+            String roleName = (String) roles.get(n);
+            if(roleAttributeIsDN && parseRoleNameFromDN)
+            {
+                parseRole(roleName, roleNames);
+            }
+            else if (roleAttributeIsDN)
+            {
+               // Query the roleDN location for the value of roleNameAttributeID
+               String roleDN = roleName;
+               String[] returnAttribute = {roleNameAttributeID};
+               try
                {
-                  Attribute roles = result.get(roleAttributeID);
-                  for (int n = 0; n < roles.size(); n++)
+                  Attributes result2 = ldapCtx.getAttributes(roleDN, returnAttribute);
+                  Attribute roles2 = result2.get(roleNameAttributeID);
+                  if (roles2 != null)
                   {
-                     String roleName = (String) roles.get(n);
-                     if(roleAttributeIsDN && parseRoleNameFromDN)
-                     {
-                         parseRole(roleName);
-                     }
-                     else if (roleAttributeIsDN)
-                     {
-                        // Query the roleDN location for the value of roleNameAttributeID
-                        String roleDN = roleName;
-                        String[] returnAttribute = {roleNameAttributeID};
-                        try
-                        {
-                           Attributes result2 = ldapCtx.getAttributes(roleDN, returnAttribute);
-                           Attribute roles2 = result2.get(roleNameAttributeID);
-                           if (roles2 != null)
-                           {
-                              for (int m = 0; m < roles2.size(); m++)
-                              {
-                                 roleName = (String) roles2.get(m);
-                                 addRole(roleName);
-                              }
-                           }
-                        }
-                        catch (NamingException e)
-                        {
-                           PicketBoxLogger.LOGGER.debugFailureToQueryLDAPAttribute(roleNameAttributeID, roleDN, e);
-                        }
-                     }
-                     else
+                     for (int m = 0; m < roles2.size(); m++)
                      {
-                        // The role attribute value is the role name
-                        addRole(roleName);
+                        roleName = (String) roles2.get(m);
+                        roleNames.add(roleName);
                      }
                   }
                }
-   
-               if (nesting < recursionMax)
+               catch (NamingException e)
                {
-                  rolesSearch(ldapCtx, constraints, user, dn, recursionMax, nesting + 1);
+                  PicketBoxLogger.LOGGER.debugFailureToQueryLDAPAttribute(roleNameAttributeID, roleDN, e);
                }
             }
-            referralsExist = false;
+            else
+            {
+               // The role attribute value is the role name
+               roleNames.add(roleName);
+            }
          }
-         catch (ReferralException e) {
-            ldapCtx = (LdapContext) e.getReferralContext();
+      }
+   }
+
+   /**
+    Add the roles inherited by the given role DN, from the shared role cache if
+    it is enabled. Otherwise the roles added by the nested rolesSearch are
+    recorded, and cached.
+    */
+   private void ancestorRoles(LdapContext ldapCtx, SearchControls constraints, String user, String roleDN,
+         int recursionMax, int nesting) throws NamingException
+   {
+      // The ancestors found for a role DN depend on the number of levels left to follow
+      String key = null;
+      if (roleCache != null)
+      {
+         key = (recursionMax - nesting) + ":" + roleDN;
+         List<String> cached = roleCache.get(key);
+         if (cached != null)
+         {
+            for (String roleName : cached)
+               addRole(roleName);
+            return;
          }
-         finally
+      }
+
+      List<String> outer = addedRoles;
+      List<String> roleNames = new ArrayList<String>();
+      addedRoles = roleNames;
+      try
+      {
+         rolesSearch(ldapCtx, constraints, user, roleDN, recursionMax, nesting);
+      }
+      finally
+      {
+         addedRoles = outer;
+      }
+      if (outer != null)
+         outer.addAll(roleNames);
+      if (key != null)
+         roleCache.put(key, Collections.unmodifiableList(roleNames));
+   }
+
+   /**
+    Collect the role names of the role objects found at one level of the roles
+    search using up to roleSearchParallelism threads. Every additional thread
+    works on its own instance of the context, which shares the connection of
+    ldapCtx. The role names are returned in the order of the search results.
+    */
+   private List<List<String>> parallelRoleNames(LdapContext ldapCtx, final List<String> dns, final int nesting)
+         throws NamingException
+   {
+      final AtomicReferenceArray<List<String>> resolved = new AtomicReferenceArray<List<String>>(dns.size());
+      final AtomicInteger next = new AtomicInteger();
+      int workers = Math.min(roleSearchParallelism, dns.size()) - 1;
+      List<Future<Void>> futures = new ArrayList<Future<Void>>(workers);
+      for (int i = 0; i < workers; i++)
+      {
+         final LdapContext workerCtx = ldapCtx.newInstance(null);
+         futures.add(roleSearchExecutor.submit(new Callable<Void>()
          {
-            if (results != null)
-               results.close();
+            public Void call() throws NamingException
+            {
+               try
+               {
+                  roleNames(workerCtx, dns, next, resolved, nesting);
+               }
+               finally
+               {
+                  workerCtx.close();
+               }
+               return null;
+            }
+         }));
+      }
+
+      NamingException failure = null;
+      try
+      {
+         roleNames(ldapCtx, dns, next, resolved, nesting);
+      }
+      catch (NamingException e)
+      {
+         failure = e;
+      }
+      for (Future<Void> future : futures)
+      {
+         try
+         {
+            future.get();
          }
-      } // while (referralsExist)
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+            if (failure == null)
+               failure = new InterruptedNamingException();
+         }
+         catch (ExecutionException e)
+         {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+               throw (RuntimeException) cause;
+            if (cause instanceof Error)
+               throw (Error) cause;
+            if (failure == null)
+               failure = (NamingException) cause;
+         }
+      }
+      if (failure != null)
+         throw failure;
+
+      List<List<String>> roleNames = new ArrayList<List<String>>(dns.size());
+      for (int i = 0; i < dns.size(); i++)
+         roleNames.add(resolved.get(i));
+      return roleNames;
+   }
+
+   private void roleNames(LdapContext ldapCtx, List<String> dns, AtomicInteger next,
+         AtomicReferenceArray<List<String>> resolved, int nesting) throws NamingException
+   {
+      int index;
+      while ((index = next.getAndIncrement()) < dns.size())
+      {
+         List<String> roleNames = new ArrayList<String>();
+         roleNames(ldapCtx, dns.get(index), nesting, roleNames);
+         resolved.set(index, roleNames);
+      }
    }
  
    private InitialLdapContext constructInitialLdapContext(String dn, Object credential) throws NamingException
+   {
+      Properties env = constructLdapContextEnvironment(dn, credential);
+      PicketBoxLogger.LOGGER.traceLDAPConnectionEnv(env);
+      return new InitialLdapContext(env, null);
+   }
+
+   private Properties constructLdapContextEnvironment(String dn, Object credential)
    {
       Properties env = new Properties();
       Iterator iter = options.entrySet().iterator();
@@ -709,8 +1037,53 @@ public class LdapExtLoginModule extends UsernamePasswordLoginModule
          env.setProperty(Context.SECURITY_PRINCIPAL, dn);
       if (credential != null)
          env.put(Context.SECURITY_CREDENTIALS, credential);
-       PicketBoxLogger.LOGGER.traceLDAPConnectionEnv(env);
-       return new InitialLdapContext(env, null);
+      return env;
+   }
+
+   private Map<String, List<String>> getRoleCache()
+   {
+      long timeout = 0;
+      String timeoutOption = (String) options.get(ROLE_CACHE_TIMEOUT_OPT);
+      if (timeoutOption != null)
+      {
+         try
+         {
+            timeout = Long.parseLong(timeoutOption);
+         }
+         catch (NumberFormatException e)
+         {
+            PicketBoxLogger.LOGGER.debugFailureToParseNumberProperty(ROLE_CACHE_TIMEOUT_OPT, timeout);
+         }
+      }
+      // The roles inherited by a role DN must not depend on the user
+      if (timeout <= 0 || roleFilter == null || roleFilter.indexOf("{0}") >= 0)
+         return null;
+
+      Map<Object, Object> key = new HashMap<Object, Object>(options);
+      key.remove(BIND_CREDENTIAL);
+      key.remove(Context.SECURITY_CREDENTIALS);
+      Map<String, List<String>> cache = roleCaches.get(key);
+      if (cache == null)
+      {
+         int maxSize = 1000;
+         String maxSizeOption = (String) options.get(ROLE_CACHE_MAX_SIZE_OPT);
+         if (maxSizeOption != null)
+         {
+            try
+            {
+               maxSize = Integer.parseInt(maxSizeOption);
+            }
+            catch (NumberFormatException e)
+            {
+               PicketBoxLogger.LOGGER.debugFailureToParseNumberProperty(ROLE_CACHE_MAX_SIZE_OPT, maxSize);
+            }
+         }
+         cache = new BoundedConcurrentCache<String, List<String>>(maxSize, timeout, 0, TimeUnit.MILLISECONDS);
+         Map<String, List<String>> existing = roleCaches.putIfAbsent(key, cache);
+         if (existing != null)
+            cache = existing;
+      }
+      return cache;
    }
 
    //JBAS-3438 : Handle "/" correctly
@@ -735,6 +1108,8 @@ public class LdapExtLoginModule extends UsernamePasswordLoginModule
    {
       if (roleName != null)
       {
+         if (addedRoles != null)
+            addedRoles.add(roleName);
          try
          {
             Principal p = super.createIdentity(roleName);
@@ -748,7 +1123,7 @@ public class LdapExtLoginModule extends UsernamePasswordLoginModule
       }
    }
    
-   private void parseRole(String dn)
+   private void parseRole(String dn, List<String> roleNames)
    {
       StringTokenizer st = new StringTokenizer(dn, ",");
       while(st != null && st.hasMoreTokens())
@@ -758,7 +1133,7 @@ public class LdapExtLoginModule extends UsernamePasswordLoginModule
          {
             StringTokenizer kst = new StringTokenizer(keyVal,"=");
             kst.nextToken();
-            addRole(kst.nextToken());
+            roleNames.add(kst.nextToken());
          }
       }
    }
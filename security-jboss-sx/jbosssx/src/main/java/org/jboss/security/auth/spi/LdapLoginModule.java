@@ -124,6 +124,24 @@ import org.jboss.security.vault.SecurityVaultUtil;
  * of the password is that returned by the JaasSecurityDomain#encrypt64(byte[])
  * method. The org.jboss.security.plugins.PBEUtils can also be used to generate
  * the encrypted form.
+ * <li>connectionPool : A flag indicating if the connections bound with the
+ * java.naming.security.principal should be pooled. The pool is shared by the
+ * module instances with the same connection options, which are the instances
+ * of a security domain. The user is authenticated by binding a pooled
+ * connection as the user DN and then binding it back as the
+ * java.naming.security.principal before the role searches. This option has no
+ * effect if java.naming.security.principal is not specified. The default is
+ * false.
+ * <li>connectionPoolMinIdle, connectionPoolMaxIdle : The minimum and maximum
+ * number of idle pooled connections. The defaults are 0 and 8.
+ * <li>connectionPoolMaxSize : The maximum number of open pooled connections,
+ * idle or in use. The default is 20, 0 means no limit.
+ * <li>connectionPoolMaxWait : The time in milliseconds to wait for a pooled
+ * connection when the maximum number are open. The default is 30000.
+ * <li>connectionPoolMaxLifetime : The time in milliseconds after which a pooled
+ * connection is closed instead of being reused. The default is 0, no limit.
+ * <li>connectionPoolValidate : A flag indicating if an idle pooled connection
+ * is checked by reading the root DSE before it is used. The default is true.
  * </ul>
  * A sample login config:
  * <p>
@@ -228,6 +246,7 @@ public class LdapLoginModule extends UsernamePasswordLoginModule
       Map<String,?> sharedState, Map<String,?> options)
    {
       addValidOptions(ALL_VALID_OPTIONS);
+      addValidOptions(LdapContextPool.ALL_VALID_OPTIONS);
       super.initialize(subject, callbackHandler, sharedState, options);
    }
    
@@ -348,27 +367,55 @@ public class LdapLoginModule extends UsernamePasswordLoginModule
       boolean matchOnUserDN = Boolean.valueOf(matchType).booleanValue();
       String userDN = principalDNPrefix + username + principalDNSuffix;
       env.setProperty(Context.PROVIDER_URL, providerURL);
-      env.setProperty(Context.SECURITY_PRINCIPAL, userDN);
-      env.put(Context.SECURITY_CREDENTIALS, credential);
-
-      PicketBoxLogger.LOGGER.traceLDAPConnectionEnv(env);
 
+      LdapContextPool connectionPool = null;
+      LdapContextPool.PooledContext pooledContext = null;
       InitialLdapContext ctx = null;
       ClassLoader currentTCCL = SecurityActions.getContextClassLoader();
       try
       {
          if (currentTCCL != null)
             SecurityActions.setContextClassLoader(null);
-         ctx = new InitialLdapContext(env, null);
-         PicketBoxLogger.LOGGER.traceSuccessfulLogInToLDAP(ctx.toString());
-
          if (bindDN != null)
          {
-            // Rebind the ctx to the bind dn/credentials for the roles searches
-            PicketBoxLogger.LOGGER.traceRebindWithConfiguredPrincipal(bindDN);
             env.setProperty(Context.SECURITY_PRINCIPAL, bindDN);
             env.put(Context.SECURITY_CREDENTIALS, bindCredential);
+            connectionPool = LdapContextPool.getPool(env, options);
+         }
+         if (connectionPool != null)
+         {
+            // Authenticate the user on a pooled bind dn connection, which is then used for the roles searches
+            pooledContext = connectionPool.borrow();
+            ctx = pooledContext.getContext();
+            connectionPool.verify(pooledContext, userDN, credential);
+            PicketBoxLogger.LOGGER.traceSuccessfulLogInToLDAP(ctx.toString());
+            if (pooledContext.isBroken())
+            {
+               // the user is authenticated, search the roles on another connection
+               connectionPool.release(pooledContext);
+               pooledContext = null;
+               ctx = null;
+               pooledContext = connectionPool.borrow();
+               ctx = pooledContext.getContext();
+            }
+         }
+         else
+         {
+            env.setProperty(Context.SECURITY_PRINCIPAL, userDN);
+            env.put(Context.SECURITY_CREDENTIALS, credential);
+            PicketBoxLogger.LOGGER.traceLDAPConnectionEnv(env);
             ctx = new InitialLdapContext(env, null);
+            PicketBoxLogger.LOGGER.traceSuccessfulLogInToLDAP(ctx.toString());
+
+            if (bindDN != null)
+            {
+               // Rebind the ctx to the bind dn/credentials for the roles searches
+               PicketBoxLogger.LOGGER.traceRebindWithConfiguredPrincipal(bindDN);
+               env.setProperty(Context.SECURITY_PRINCIPAL, bindDN);
+               env.put(Context.SECURITY_CREDENTIALS, bindCredential);
+               ctx.close();
+               ctx = new InitialLdapContext(env, null);
+            }
          }
 
          /* If a userRolesCtxDNAttributeName was speocified, see if there is a
@@ -521,7 +568,9 @@ public class LdapLoginModule extends UsernamePasswordLoginModule
       finally
       {
          // Close the context to release the connection
-         if (ctx != null)
+         if (pooledContext != null)
+            connectionPool.release(pooledContext);
+         else if (ctx != null)
             ctx.close();
          if (currentTCCL != null)
             SecurityActions.setContextClassLoader(currentTCCL);
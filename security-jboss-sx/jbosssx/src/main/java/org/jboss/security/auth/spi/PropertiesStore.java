@@ -0,0 +1,351 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.security.auth.spi;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.acl.Group;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jboss.security.PicketBoxLogger;
+import org.jboss.security.PicketBoxMessages;
+import org.jboss.security.SimpleGroup;
+import org.jboss.security.cache.FlushListener;
+import org.jboss.security.cache.FlushListeners;
+
+/**
+ * Process wide store of the properties files used by the login modules, such as
+ * the users and roles files of the {@link UsersRolesLoginModule} or the seeds of
+ * the {@code JBossTimeBasedOTPLoginModule}. A file is located and parsed once per class
+ * loader and resource name, and the parsed content is shared by all the login
+ * module instances. Files referenced by a file: URL are reloaded when their
+ * modification time or length changes, which is checked at most once every
+ * {@link #CHECK_INTERVAL} milliseconds. Other resources are only reloaded after
+ * the flush of a security domain.
+ *
+ * @version $Revision$
+ */
+public final class PropertiesStore
+{
+   /** Minimum interval in milliseconds between two checks of a file modification time */
+   static final long CHECK_INTERVAL = 1000;
+
+   private static final Map<ClassLoader, ConcurrentMap<String, Resource>> stores =
+      new WeakHashMap<ClassLoader, ConcurrentMap<String, Resource>>();
+
+   static
+   {
+      FlushListeners.addListener(new FlushListener()
+      {
+         public void flush(String securityDomain)
+         {
+            clear();
+         }
+      });
+   }
+
+   private PropertiesStore()
+   {
+   }
+
+   /**
+    * Get the current content of the given properties resources. The returned
+    * snapshot is shared and must not be modified.
+    *
+    * @param defaultsName - the name of the default properties file resource, may be null
+    * @param propertiesName - the name of the properties file resource
+    * @return the parsed properties
+    * @throws IOException - thrown if neither resource can be found or loaded
+    */
+   public static Snapshot getSnapshot(String defaultsName, String propertiesName) throws IOException
+   {
+      ClassLoader loader = SecurityActions.getContextClassLoader();
+      ConcurrentMap<String, Resource> store;
+      synchronized (stores)
+      {
+         store = stores.get(loader);
+         if (store == null)
+         {
+            store = new ConcurrentHashMap<String, Resource>();
+            stores.put(loader, store);
+         }
+      }
+      String key = defaultsName + '\n' + propertiesName;
+      Resource resource = store.get(key);
+      if (resource == null)
+      {
+         URL defaultUrl = defaultsName != null ? Util.findResource(loader, defaultsName) : null;
+         URL url = Util.findResource(loader, propertiesName);
+         if (url == null && defaultUrl == null)
+            throw PicketBoxMessages.MESSAGES.unableToFindPropertiesFile(propertiesName + "/" + defaultsName);
+         Resource newResource = new Resource(defaultUrl, defaultsName, url, propertiesName);
+         resource = store.putIfAbsent(key, newResource);
+         if (resource == null)
+            resource = newResource;
+      }
+      return resource.getSnapshot();
+   }
+
+   /**
+    * Drop all the stored properties, forcing them to be reloaded on next use.
+    * Called when any security domain is flushed, as the files are not tied
+    * to a domain.
+    */
+   static void clear()
+   {
+      synchronized (stores)
+      {
+         stores.clear();
+      }
+   }
+
+   private static File toFile(URL url)
+   {
+      if (url == null || !"file".equals(url.getProtocol()))
+         return null;
+      try
+      {
+         return new File(url.toURI());
+      }
+      catch (URISyntaxException e)
+      {
+         return new File(url.getPath());
+      }
+      catch (IllegalArgumentException e)
+      {
+         return null;
+      }
+   }
+
+   /**
+    * A located pair of default and regular properties files.
+    */
+   private static final class Resource
+   {
+      private final URL defaultUrl;
+
+      private final String defaultsName;
+
+      private final URL url;
+
+      private final String propertiesName;
+
+      private final File defaultFile;
+
+      private final File file;
+
+      private volatile Snapshot snapshot;
+
+      private volatile long nextCheck;
+
+      Resource(URL defaultUrl, String defaultsName, URL url, String propertiesName)
+      {
+         this.defaultUrl = defaultUrl;
+         this.defaultsName = defaultsName;
+         this.url = url;
+         this.propertiesName = propertiesName;
+         this.defaultFile = toFile(defaultUrl);
+         this.file = toFile(url);
+      }
+
+      Snapshot getSnapshot() throws IOException
+      {
+         Snapshot current = snapshot;
+         if (current != null && (defaultFile == null && file == null || System.currentTimeMillis() < nextCheck))
+            return current;
+         synchronized (this)
+         {
+            current = snapshot;
+            long now = System.currentTimeMillis();
+            if (current != null && now < nextCheck)
+               return current;
+            long[] stamp = stamp();
+            if (current == null || !current.isCurrent(stamp))
+            {
+               if (current != null)
+                  PicketBoxLogger.LOGGER.debugReloadingPropertiesFile(propertiesName);
+               Properties properties = Util.loadProperties(defaultUrl, defaultsName, url, propertiesName);
+               current = new Snapshot(properties, stamp);
+               snapshot = current;
+            }
+            nextCheck = now + CHECK_INTERVAL;
+            return current;
+         }
+      }
+
+      private long[] stamp()
+      {
+         return new long[] {
+               defaultFile != null ? defaultFile.lastModified() : 0,
+               defaultFile != null ? defaultFile.length() : 0,
+               file != null ? file.lastModified() : 0,
+               file != null ? file.length() : 0};
+      }
+   }
+
+   /**
+    * Immutable parsed content of a properties resource, with a lock free
+    * name to value lookup and username indexes of the role entries. A new
+    * snapshot is created each time the resource is reloaded.
+    */
+   public static final class Snapshot
+   {
+      private final Properties properties;
+
+      private final Map<String, String> values;
+
+      private final long[] stamp;
+
+      private final ConcurrentMap<Character, Map<String, List<String[]>>> roleIndexes =
+         new ConcurrentHashMap<Character, Map<String, List<String[]>>>();
+
+      Snapshot(Properties properties, long[] stamp)
+      {
+         this.properties = properties;
+         this.stamp = stamp;
+         Map<String, String> map = new HashMap<String, String>();
+         // propertyNames includes the names of the default properties
+         Enumeration<?> names = properties.propertyNames();
+         while (names.hasMoreElements())
+         {
+            String name = (String) names.nextElement();
+            map.put(name, properties.getProperty(name));
+         }
+         this.values = map;
+      }
+
+      boolean isCurrent(long[] otherStamp)
+      {
+         for (int i = 0; i < stamp.length; i++)
+         {
+            if (stamp[i] != otherStamp[i])
+               return false;
+         }
+         return true;
+      }
+
+      /**
+       * @return the loaded properties, shared and not to be modified
+       */
+      public Properties getProperties()
+      {
+         return properties;
+      }
+
+      public String getProperty(String name)
+      {
+         return values.get(name);
+      }
+
+      /**
+       * Same result as {@link Util#getRoleSets(String, Properties, char, AbstractServerLoginModule)}
+       * but only looking at the entries of the target user.
+       */
+      Group[] getRoleSets(String targetUser, char roleGroupSeperator, AbstractServerLoginModule aslm)
+      {
+         SimpleGroup rolesGroup = new SimpleGroup("Roles");
+         ArrayList<Group> groups = new ArrayList<Group>();
+         groups.add(rolesGroup);
+         if (targetUser != null)
+         {
+            List<String[]> entries = getRoleIndex(roleGroupSeperator).get(targetUser);
+            if (entries != null)
+            {
+               for (String[] entry : entries)
+               {
+                  String groupName = entry[0];
+                  String value = entry[1];
+                  PicketBoxLogger.LOGGER.traceAdditionOfRoleToGroup(value, groupName);
+                  if (groupName.equals("Roles"))
+                  {
+                     Util.parseGroupMembers(rolesGroup, value, aslm);
+                  }
+                  else
+                  {
+                     SimpleGroup group = new SimpleGroup(groupName);
+                     Util.parseGroupMembers(group, value, aslm);
+                     groups.add(group);
+                  }
+               }
+            }
+         }
+         Group[] roleSets = new Group[groups.size()];
+         groups.toArray(roleSets);
+         return roleSets;
+      }
+
+      private Map<String, List<String[]>> getRoleIndex(char roleGroupSeperator)
+      {
+         Character key = Character.valueOf(roleGroupSeperator);
+         Map<String, List<String[]>> index = roleIndexes.get(key);
+         if (index == null)
+         {
+            index = buildRoleIndex(roleGroupSeperator);
+            roleIndexes.putIfAbsent(key, index);
+         }
+         return index;
+      }
+
+      /**
+       * Index every username[.GroupName]=roles entry under each username it can match:
+       * the whole name in the "Roles" group, and every prefix ending before a separator
+       * with the remainder as the group name.
+       */
+      private Map<String, List<String[]>> buildRoleIndex(char roleGroupSeperator)
+      {
+         Map<String, List<String[]>> index = new HashMap<String, List<String[]>>();
+         for (Map.Entry<String, String> entry : values.entrySet())
+         {
+            String name = entry.getKey();
+            String value = entry.getValue();
+            addToIndex(index, name, "Roles", value);
+            for (int i = name.indexOf(roleGroupSeperator, 1); i > 0; i = name.indexOf(roleGroupSeperator, i + 1))
+               addToIndex(index, name.substring(0, i), name.substring(i + 1), value);
+         }
+         for (Map.Entry<String, List<String[]>> entry : index.entrySet())
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+         return Collections.unmodifiableMap(index);
+      }
+
+      private static void addToIndex(Map<String, List<String[]>> index, String username, String groupName, String value)
+      {
+         List<String[]> entries = index.get(username);
+         if (entries == null)
+         {
+            entries = new ArrayList<String[]>(2);
+            index.put(username, entries);
+         }
+         entries.add(new String[] {groupName, value});
+      }
+   }
+}
@@ -40,7 +40,9 @@ import org.jboss.security.util.StringPropertyReplacer;
  files may be overriden by the usersProperties and rolesProperties options.
  The properties files are loaded during initialization using the thread context
  class loader. This means that these files can be placed into the J2EE
- deployment jar or the JBoss config directory.
+ deployment jar or the JBoss config directory. Loaded files are shared by all
+ the instances of the login module and files on the file system are reloaded
+ when they are modified.
 
  The users.properties file uses a format:
  username1=password1
@@ -94,6 +96,10 @@ public class UsersRolesLoginModule extends UsernamePasswordLoginModule
    private Properties users;
    /** The roles.properties mappings */
    private Properties roles;
+   /** The shared users.properties content, null if the users were not loaded by loadUsers */
+   private PropertiesStore.Snapshot usersSnapshot;
+   /** The shared roles.properties content, null if the roles were not loaded by loadRoles */
+   private PropertiesStore.Snapshot rolesSnapshot;
    /** The character used to seperate the role group name from the username
     * e.g., '.' in jduke.CallerPrincipal=...
     */
@@ -179,7 +185,11 @@ public class UsersRolesLoginModule extends UsernamePasswordLoginModule
    protected Group[] getRoleSets() throws LoginException
    {
       String targetUser = getUsername();
-      Group[] roleSets = Util.getRoleSets(targetUser, roles, roleGroupSeperator, this);
+      Group[] roleSets;
+      if (rolesSnapshot != null && rolesSnapshot.getProperties() == roles)
+         roleSets = rolesSnapshot.getRoleSets(targetUser, roleGroupSeperator, this);
+      else
+         roleSets = Util.getRoleSets(targetUser, roles, roleGroupSeperator, this);
       return roleSets;
    }
 
@@ -188,7 +198,12 @@ public class UsersRolesLoginModule extends UsernamePasswordLoginModule
       String username = getUsername();
       String password = null;
       if (username != null)
-         password = users.getProperty(username, null);
+      {
+         if (usersSnapshot != null && usersSnapshot.getProperties() == users)
+            password = usersSnapshot.getProperty(username);
+         else
+            password = users.getProperty(username, null);
+      }
       return password;
    }
 
@@ -196,13 +211,15 @@ public class UsersRolesLoginModule extends UsernamePasswordLoginModule
 
    /**
     * Loads the users Properties from the defaultUsersRsrcName and usersRsrcName
-    * resource settings.
+    * resource settings. The Properties are shared with the other instances of
+    * the login module and must not be modified.
     * 
     * @throws IOException - thrown on failure to load the properties file.
     */ 
    protected void loadUsers() throws IOException
    {
-      users = Util.loadProperties(defaultUsersRsrcName, usersRsrcName);
+      usersSnapshot = PropertiesStore.getSnapshot(defaultUsersRsrcName, usersRsrcName);
+      users = usersSnapshot.getProperties();
    }
    /**
     * A hook to allow subclasses to create the users Properties map. This
@@ -222,13 +239,15 @@ public class UsersRolesLoginModule extends UsernamePasswordLoginModule
 
    /**
     * Loads the roles Properties from the defaultRolesRsrcName and rolesRsrcName
-    * resource settings.
+    * resource settings. The Properties are shared with the other instances of
+    * the login module and must not be modified.
     * 
     * @throws IOException - thrown on failure to load the properties file.
     */ 
    protected void loadRoles() throws IOException
    {
-      roles = Util.loadProperties(defaultRolesRsrcName, rolesRsrcName);
+      rolesSnapshot = PropertiesStore.getSnapshot(defaultRolesRsrcName, rolesRsrcName);
+      roles = rolesSnapshot.getProperties();
    }
    /**
     * A hook to allow subclasses to create the roles Properties map. This
@@ -167,51 +167,65 @@ public class Util
    static Properties loadProperties(String defaultsName, String propertiesName)
       throws IOException
    {
-      Properties bundle = null;
       ClassLoader loader = SecurityActions.getContextClassLoader();
-      URL defaultUrl = null;
+      URL defaultUrl = findResource(loader, defaultsName);
+      URL url = findResource(loader, propertiesName);
+      if( url == null && defaultUrl == null )
+      {
+         String propertiesFiles = propertiesName + "/" + defaultsName;
+         throw PicketBoxMessages.MESSAGES.unableToFindPropertiesFile(propertiesFiles);
+      }
+      return loadProperties(defaultUrl, defaultsName, url, propertiesName);
+   }
+
+   /** Locate a properties file resource. If the class loader is a URLClassLoader
+    * the findResource(String) method is first tried, then getResource(String),
+    * then the name is tried as a URL and finally as a file path.
+    * @param loader - the class loader used to search the resource
+    * @param name - the name of the properties file resource
+    * @return the URL of the resource, null if it cannot be found
+    * @exception java.io.IOException thrown if a file URL cannot be built
+    */
+   static URL findResource(ClassLoader loader, String name) throws IOException
+   {
       URL url = null;
       // First check for local visibility via a URLClassLoader.findResource
       if( loader instanceof URLClassLoader )
       {
          URLClassLoader ucl = (URLClassLoader) loader;
-         defaultUrl = SecurityActions.findResource(ucl,defaultsName);
-         url = SecurityActions.findResource(ucl,propertiesName);
-         PicketBoxLogger.LOGGER.traceAttemptToLoadResource(propertiesName);
+         url = SecurityActions.findResource(ucl,name);
+         PicketBoxLogger.LOGGER.traceAttemptToLoadResource(name);
       }
       // Do a general resource search
-      if( defaultUrl == null ) {
-         defaultUrl = loader.getResource(defaultsName);
-         if (defaultUrl == null) {
-            try {
-               defaultUrl = new URL(defaultsName);
-            } catch (MalformedURLException mue) {
-               PicketBoxLogger.LOGGER.debugFailureToOpenPropertiesFromURL(mue);
-               File tmp = new File(defaultsName);
-               if (tmp.exists())
-                  defaultUrl = tmp.toURI().toURL();
-            }
-         }
-      }
       if( url == null ) {
-         url = loader.getResource(propertiesName);
+         url = loader.getResource(name);
          if (url == null) {
             try {
-               url = new URL(propertiesName);
+               url = new URL(name);
             } catch (MalformedURLException mue) {
                PicketBoxLogger.LOGGER.debugFailureToOpenPropertiesFromURL(mue);
-               File tmp = new File(propertiesName);
+               File tmp = new File(name);
                if (tmp.exists())
                   url = tmp.toURI().toURL();
             }
          }
       }
-      if( url == null && defaultUrl == null )
-      {
-         String propertiesFiles = propertiesName + "/" + defaultsName;
-         throw PicketBoxMessages.MESSAGES.unableToFindPropertiesFile(propertiesFiles);
-      }
+      return url;
+   }
 
+   /** Load the properties found at url, using the properties found at defaultUrl
+    * as the defaults. Failures to load the defaults are ignored.
+    * @param defaultUrl - the location of the default properties, may be null
+    * @param defaultsName - the name of the default properties file resource
+    * @param url - the location of the properties, may be null
+    * @param propertiesName - the name of the properties file resource
+    * @return the loaded properties
+    * @exception java.io.IOException thrown if the properties file cannot be loaded
+    */
+   static Properties loadProperties(URL defaultUrl, String defaultsName, URL url, String propertiesName)
+      throws IOException
+   {
+      Properties bundle = null;
       Properties defaults = new Properties();
       if( defaultUrl != null )
       {
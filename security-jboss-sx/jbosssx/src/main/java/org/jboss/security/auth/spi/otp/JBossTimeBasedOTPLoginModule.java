@@ -22,14 +22,13 @@
 package org.jboss.security.auth.spi.otp;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.security.GeneralSecurityException;
+import java.security.Key;
 import java.security.acl.Group;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
-import java.util.Properties;
 import java.util.Set;
 import java.util.StringTokenizer;
 
@@ -48,7 +47,7 @@ import org.jboss.security.PicketBoxMessages;
 import org.jboss.security.SecurityConstants;
 import org.jboss.security.SimplePrincipal;
 import org.jboss.security.otp.TimeBasedOTP;
-import org.jboss.security.otp.TimeBasedOTPUtil;
+import org.jboss.security.otp.TimeBasedOTPValidator;
 
 /**
  * <p>
@@ -88,12 +87,17 @@ import org.jboss.security.otp.TimeBasedOTPUtil;
  * <li>numOfDigits:  Number of digits in the TOTP.  Default is 6.</li>
  * <li>additionalRoles: any additional roles that you want to add into the authenticated subject (on success). For multiple roles,
  * separate with a comma</li>
+ * <li>skew: Number of time steps accepted before and after the current one, from 0 to 4. Default is 1.</li>
+ * <li>rejectReplays: if "true", a TOTP that was already accepted for a user is rejected within its
+ * validity window. Default is false.</li>
  * </ul>
  * </p>
  * 
  * <p>
  * This login module requires the presence of "otp-users.properties" on the class path with the format:
  * username=key
+ * The file is shared by the login modules of a class loader and is read again when it is modified
+ * or when a security domain is flushed.
  * </p>
  * 
  * <p>
@@ -117,11 +121,19 @@ public class JBossTimeBasedOTPLoginModule implements LoginModule
    private static final String NUM_OF_DIGITS_OPT = "numOfDigits";
    private static final String ALGORITHM = "algorithm";
    private static final String ADDITIONAL_ROLES = "additionalRoles";
+   private static final String SKEW = "skew";
+   private static final String REJECT_REPLAYS = "rejectReplays";
    
    private static final String[] ALL_VALID_OPTIONS =
    {
-	   PASSWORD_STACKING,USE_FIRST_PASSWORD,NUM_OF_DIGITS_OPT,ALGORITHM,ADDITIONAL_ROLES
+	   PASSWORD_STACKING,USE_FIRST_PASSWORD,NUM_OF_DIGITS_OPT,ALGORITHM,ADDITIONAL_ROLES,SKEW,REJECT_REPLAYS
    };
+
+   // number of users whose last accepted TOTP is kept when replays are rejected
+   private static final int MAX_USED_CODES = 10000;
+
+   // largest accepted skew, each step widens the window in which a TOTP can be guessed
+   private static final int MAX_SKEW = 4;
    
    public static final String TOTP = "totp";
 
@@ -134,6 +146,11 @@ public class JBossTimeBasedOTPLoginModule implements LoginModule
    private int NUMBER_OF_DIGITS = 6;
    
    private String additionalRoles = null;
+
+   //Number of time steps accepted around the current one
+   private int skew = 1;
+
+   private boolean rejectReplays;
    
    /**
     * Default algorithm is HMAC_SHA1
@@ -183,6 +200,24 @@ public class JBossTimeBasedOTPLoginModule implements LoginModule
       }
       
       additionalRoles = (String) options.get(ADDITIONAL_ROLES); 
+
+      String skewString = (String) options.get(SKEW);
+      if( skewString != null && skewString.length() > 0 )
+      {
+         try
+         {
+            int value = Integer.parseInt( skewString );
+            if( value < 0 || value > MAX_SKEW )
+               throw new NumberFormatException( skewString );
+            skew = value;
+         }
+         catch( NumberFormatException nfe )
+         {
+            PicketBoxLogger.LOGGER.warnInvalidPropertyValue( skewString, SKEW, String.valueOf( skew ) );
+         }
+      }
+
+      rejectReplays = Boolean.valueOf( (String) options.get(REJECT_REPLAYS) ).booleanValue();
    }
 
    /**
@@ -215,15 +250,12 @@ public class JBossTimeBasedOTPLoginModule implements LoginModule
          username = nc.getName();
       }
       
-      //Load the otp-users.properties file
-      ClassLoader tcl = SecurityActions.getContextClassLoader();
-      InputStream is = null;
-      
-      Properties otp = new Properties();
+      //The seeds of otp-users.properties, shared and reloaded when the file changes
+      OTPSeedStore store = OTPSeedStore.getInstance( SecurityActions.getContextClassLoader() );
+      Key seed;
       try
       {
-    	 is = tcl.getResourceAsStream( "otp-users.properties" );
-         otp.load(is);
+         seed = store.getKey( username );
       }
       catch (IOException e)
       {
@@ -231,12 +263,10 @@ public class JBossTimeBasedOTPLoginModule implements LoginModule
          le.initCause(e);
          throw le;
       }
-      finally
+      if( seed == null )
       {
-    	  safeClose(is);
+         throw new LoginException();
       }
-      
-      String seed = otp.getProperty( username );
 
       String submittedTOTP = this.getTimeBasedOTPFromRequest();
       if( submittedTOTP == null || submittedTOTP.length() == 0 )
@@ -246,20 +276,9 @@ public class JBossTimeBasedOTPLoginModule implements LoginModule
   
       try
       {
-         boolean result =  false;
-         
-         if( algorithm.equals( TimeBasedOTP.HMAC_SHA1 ))
-         {
-            result =  TimeBasedOTPUtil.validate( submittedTOTP, seed.getBytes() , NUMBER_OF_DIGITS ); 
-         }
-         else if( algorithm.equals( TimeBasedOTP.HMAC_SHA256 ))
-         {
-            result =  TimeBasedOTPUtil.validate256( submittedTOTP, seed.getBytes() , NUMBER_OF_DIGITS ); 
-         }
-         else if( algorithm.equals( TimeBasedOTP.HMAC_SHA512 ))
-         {
-            result =  TimeBasedOTPUtil.validate512( submittedTOTP, seed.getBytes() , NUMBER_OF_DIGITS ); 
-         }
+         TimeBasedOTPValidator validator = store.getValidator( algorithm, NUMBER_OF_DIGITS, skew,
+               rejectReplays ? MAX_USED_CODES : 0 );
+         boolean result = validator.validate( username, submittedTOTP, seed );
          
          if(!result)
             throw new LoginException();
@@ -338,16 +357,4 @@ public class JBossTimeBasedOTPLoginModule implements LoginModule
          }
       }
    }
-   private void safeClose(InputStream fis)
-   {
-      try
-      {
-         if(fis != null)
-         {
-            fis.close();
-         }
-      }
-      catch(Exception ignored)
-      {}
-   }
 }
\ No newline at end of file
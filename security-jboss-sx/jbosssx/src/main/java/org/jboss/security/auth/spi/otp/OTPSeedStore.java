@@ -0,0 +1,137 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.security.auth.spi.otp;
+
+import java.io.IOException;
+import java.security.Key;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jboss.security.auth.spi.PropertiesStore;
+import org.jboss.security.otp.TimeBasedOTP;
+import org.jboss.security.otp.TimeBasedOTPValidator;
+
+/**
+ * The seeds of the "otp-users.properties" file, shared by all the
+ * {@code JBossTimeBasedOTPLoginModule} instances of a class loader. The file is
+ * loaded and reloaded by the {@link PropertiesStore}, and its seeds are parsed
+ * once per loaded version. The validators, and so the codes already used, are
+ * shared the same way.
+ * 
+ * @version $Revision$
+ */
+class OTPSeedStore
+{
+   static final String USERS_FILE = "otp-users.properties";
+
+   private static final Map<ClassLoader, OTPSeedStore> STORES =
+      Collections.synchronizedMap(new WeakHashMap<ClassLoader, OTPSeedStore>());
+
+   private final ConcurrentMap<String, TimeBasedOTPValidator> validators = new ConcurrentHashMap<String, TimeBasedOTPValidator>();
+
+   private volatile Seeds seeds;
+
+   private OTPSeedStore()
+   {
+   }
+
+   static OTPSeedStore getInstance(ClassLoader loader)
+   {
+      synchronized (STORES)
+      {
+         OTPSeedStore store = STORES.get(loader);
+         if (store == null)
+         {
+            store = new OTPSeedStore();
+            STORES.put(loader, store);
+         }
+         return store;
+      }
+   }
+
+   /**
+    * Get the key of a user.
+    * @param username
+    * @return the key, null if the user has no valid seed in the file
+    * @throws IOException if the file cannot be found or read
+    */
+   Key getKey(String username) throws IOException
+   {
+      PropertiesStore.Snapshot snapshot = PropertiesStore.getSnapshot(null, USERS_FILE);
+      Seeds current = seeds;
+      if (current == null || current.snapshot != snapshot)
+      {
+         current = new Seeds(snapshot);
+         seeds = current;
+      }
+      return username == null ? null : current.keys.get(username);
+   }
+
+   /**
+    * Get the validator for a configuration, shared so that the used codes are seen by all the login modules.
+    */
+   TimeBasedOTPValidator getValidator(String algorithm, int numDigits, int skew, int maxUsedCodes)
+   {
+      String key = algorithm + ":" + numDigits + ":" + skew + ":" + maxUsedCodes;
+      TimeBasedOTPValidator validator = validators.get(key);
+      if (validator == null)
+      {
+         validator = new TimeBasedOTPValidator(algorithm, numDigits, skew, maxUsedCodes);
+         TimeBasedOTPValidator previous = validators.putIfAbsent(key, validator);
+         if (previous != null)
+            validator = previous;
+      }
+      return validator;
+   }
+
+   /**
+    * The keys parsed from one version of the file
+    */
+   private static class Seeds
+   {
+      private final PropertiesStore.Snapshot snapshot;
+
+      private final Map<String, Key> keys = new HashMap<String, Key>();
+
+      Seeds(PropertiesStore.Snapshot snapshot)
+      {
+         this.snapshot = snapshot;
+         Properties otp = snapshot.getProperties();
+         for (String username : otp.stringPropertyNames())
+         {
+            try
+            {
+               keys.put(username, TimeBasedOTP.createKey(otp.getProperty(username)));
+            }
+            catch (NumberFormatException ignored)
+            {
+               // not an hexadecimal seed, the user cannot log in
+            }
+         }
+      }
+   }
+}
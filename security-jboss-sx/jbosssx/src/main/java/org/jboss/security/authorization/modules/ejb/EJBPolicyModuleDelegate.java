@@ -42,6 +42,7 @@ import org.jboss.security.authorization.modules.AuthorizationModuleDelegate;
 import org.jboss.security.authorization.resources.EJBResource;
 import org.jboss.security.identity.Role;
 import org.jboss.security.identity.RoleGroup;
+import org.jboss.security.identity.plugins.IdentityFactory;
 import org.jboss.security.identity.plugins.SimpleRole;
 import org.jboss.security.identity.plugins.SimpleRoleGroup;
 import org.jboss.security.javaee.SecurityRoleRef;
@@ -212,7 +213,7 @@ public class EJBPolicyModuleDelegate extends AuthorizationModuleDelegate
             throw PicketBoxMessages.MESSAGES.noMatchingRoleFoundInDescriptor(this.roleName);
       }
  
-      Role deploymentrole = new SimpleRole(roleName);
+      Role deploymentrole = IdentityFactory.createRole(roleName);
 
       boolean allowed = false;
       if (callerRunAs == null)
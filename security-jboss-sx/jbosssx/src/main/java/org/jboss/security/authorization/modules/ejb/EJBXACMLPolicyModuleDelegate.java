@@ -33,6 +33,7 @@ import org.jboss.security.authorization.Resource;
 import org.jboss.security.authorization.ResourceKeys;
 import org.jboss.security.authorization.modules.AuthorizationModuleDelegate;
 import org.jboss.security.authorization.resources.EJBResource;
+import org.jboss.security.authorization.util.XACMLDecisionCache;
 import org.jboss.security.identity.RoleGroup;
 import org.jboss.security.xacml.interfaces.PolicyDecisionPoint;
 import org.jboss.security.xacml.interfaces.RequestContext;
@@ -51,6 +52,9 @@ import org.jboss.security.xacml.interfaces.XACMLConstants;
  */
 public class EJBXACMLPolicyModuleDelegate extends EJBPolicyModuleDelegate
 {   
+   /** The util is stateless, it is shared by the delegates */
+   private static final EJBXACMLUtil util = new EJBXACMLUtil();
+   
    private String policyContextID;
    
    /**
@@ -101,7 +105,16 @@ public class EJBXACMLPolicyModuleDelegate extends EJBPolicyModuleDelegate
    private int process(RoleGroup callerRoles) 
    { 
       int result = AuthorizationContext.DENY;
-      EJBXACMLUtil util = new EJBXACMLUtil();
+      XACMLDecisionCache cache = util.getDecisionCache(policyRegistration, this.policyContextID);
+      String key = null;
+      if(cache != null && this.ejbMethod != null && this.ejbPrincipal != null)
+      {
+         key = XACMLDecisionCache.getKey(this.ejbPrincipal.getName(), this.ejbName,
+               util.getAction(this.ejbMethod), callerRoles);
+         Integer decision = cache.get(key);
+         if(decision != null)
+            return decision.intValue();
+      }
       try
       {
          RequestContext requestCtx = util.createXACMLRequest(this.ejbName,
@@ -114,6 +127,8 @@ public class EJBXACMLPolicyModuleDelegate extends EJBPolicyModuleDelegate
          ResponseContext response = pdp.evaluate(requestCtx);
          result = response.getDecision() == XACMLConstants.DECISION_PERMIT ? 
                AuthorizationContext.PERMIT : AuthorizationContext.DENY;
+         if(key != null)
+            cache.put(key, result);
       }
       catch(Exception e)
       {
@@ -27,10 +27,15 @@ import java.io.OutputStream;
 import java.lang.reflect.Method;
 import java.security.Principal;
 import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.jboss.security.PicketBoxLogger;
 import org.jboss.security.PicketBoxMessages;
 import org.jboss.security.authorization.util.JBossXACMLUtil;
+import org.jboss.security.cache.BoundedConcurrentCache;
+import org.jboss.security.cache.BoundedConcurrentCache.RemovalCause;
+import org.jboss.security.cache.BoundedConcurrentCache.RemovalListener;
 import org.jboss.security.identity.Role;
 import org.jboss.security.identity.RoleGroup;
 import org.jboss.security.xacml.core.model.context.ActionType;
@@ -54,34 +59,37 @@ import org.jboss.security.xacml.interfaces.XACMLConstants;
  */
 public class EJBXACMLUtil extends JBossXACMLUtil
 {
+   /** Upper bound of the methods whose requests are prepared, the least used ones are evicted */
+   private static final int MAX_TEMPLATES = 8192;
+   
+   /** The action ids of the methods */
+   private static final ConcurrentMap<Method, String> ACTIONS = newCache("EJB XACML action");
+   
+   /** The resource and action parts of the requests, shared by the requests for a method.
+    *  They are only read once part of a request. */
+   private static final ConcurrentMap<TemplateKey, RequestTemplate> TEMPLATES = newCache("EJB XACML request");
+
+   private static <K, V> ConcurrentMap<K, V> newCache(final String name)
+   {
+      BoundedConcurrentCache<K, V> cache = new BoundedConcurrentCache<K, V>(MAX_TEMPLATES);
+      final AtomicBoolean limitReached = new AtomicBoolean();
+      cache.setRemovalListener(new RemovalListener<K, V>()
+      {
+         public void entryRemoved(K key, V value, RemovalCause cause)
+         {
+            if (cause == RemovalCause.EVICTED && limitReached.compareAndSet(false, true))
+               PicketBoxLogger.LOGGER.infoCacheLimitReached(name, MAX_TEMPLATES);
+         }
+      });
+      return cache;
+   }
 
    public RequestContext createXACMLRequest( String ejbName, Method ejbMethod, Principal principal, RoleGroup callerRoles )
    throws Exception
    {
-      String action = ejbMethod.getName();
-      
-      //Let us look at the number of arguments
-      Class<?>[] paramTypes = ejbMethod.getParameterTypes();
-      if( paramTypes.length == 0 )
-         return this.createXACMLRequest(ejbName, action, principal, callerRoles );
-      
-      StringBuilder builder = new StringBuilder( "(" ); 
-      int i = 0;
-      for( Class<?> paramClass: paramTypes )
-      { 
-         if( i > 0 )
-            builder.append( "," );
-         builder.append( paramClass.getSimpleName() ); 
-         i++;
-      }
-      
-      builder.append( ")" );
-      
-      //Create an action type
-      ActionType actionType = getActionType( action + builder.toString() );
-      //actionType.
+      RequestTemplate template = getTemplate( ejbName, ejbMethod );
 
-      RequestContext requestCtx = this.getRequestContext( ejbName, actionType, principal, callerRoles );
+      RequestContext requestCtx = this.getRequestContext( template.resourceType, template.actionType, principal, callerRoles );
   
       if(PicketBoxLogger.LOGGER.isDebugEnabled())
       {
@@ -103,6 +111,41 @@ public class EJBXACMLUtil extends JBossXACMLUtil
       return requestCtx;
    }
 
+   /**
+    * Get the action id of a method: its name, followed by the simple names of
+    * its parameter types if it has any, as in <code>largeMethod(String,int[],String[])</code>
+    * 
+    * @param ejbMethod
+    * @return the action id
+    */
+   public String getAction( Method ejbMethod )
+   {
+      String action = ACTIONS.get( ejbMethod );
+      if( action != null )
+         return action;
+      action = ejbMethod.getName();
+      
+      //Let us look at the number of arguments
+      Class<?>[] paramTypes = ejbMethod.getParameterTypes();
+      if( paramTypes.length > 0 )
+      {
+         StringBuilder builder = new StringBuilder( action ).append( "(" ); 
+         int i = 0;
+         for( Class<?> paramClass: paramTypes )
+         { 
+            if( i > 0 )
+               builder.append( "," );
+            builder.append( paramClass.getSimpleName() ); 
+            i++;
+         }
+         
+         builder.append( ")" );
+         action = builder.toString();
+      }
+      ACTIONS.put( ejbMethod, action );
+      return action;
+   }
+
    /**
     * 
     * @param ejbName
@@ -133,6 +176,12 @@ public class EJBXACMLUtil extends JBossXACMLUtil
    
    private RequestContext getRequestContext( String ejbName, ActionType actionType,
          Principal principal, RoleGroup callerRoles ) throws IOException
+   {
+      return getRequestContext( getResourceType( ejbName ), actionType, principal, callerRoles );
+   }
+   
+   private RequestContext getRequestContext( ResourceType resourceType, ActionType actionType,
+         Principal principal, RoleGroup callerRoles ) throws IOException
    {
       if(principal == null)
          throw PicketBoxMessages.MESSAGES.invalidNullArgument("principal");
@@ -142,9 +191,6 @@ public class EJBXACMLUtil extends JBossXACMLUtil
       //Create a subject type
       SubjectType subject = this.getSubjectType( principal, callerRoles ); 
 
-      //Create a resource type
-      ResourceType resourceType = getResourceType( ejbName ); 
-
       //Create an Environment Type (Optional)
       EnvironmentType environmentType = getEnvironmentType();
 
@@ -156,6 +202,21 @@ public class EJBXACMLUtil extends JBossXACMLUtil
       return requestCtx; 
    }
 
+   /**
+    * Get the resource and action of a method, created on the first request for it
+    */
+   private RequestTemplate getTemplate( String ejbName, Method ejbMethod )
+   {
+      TemplateKey key = new TemplateKey( ejbName, ejbMethod );
+      RequestTemplate template = TEMPLATES.get( key );
+      if( template == null )
+      {
+         template = new RequestTemplate( getResourceType( ejbName ), getActionType( getAction( ejbMethod ) ) );
+         TEMPLATES.put( key, template );
+      }
+      return template;
+   }
+
    private RequestType getRequestType(SubjectType subject, ResourceType resourceType, ActionType actionType,
          EnvironmentType environmentType)
    {
@@ -232,4 +293,44 @@ public class EJBXACMLUtil extends JBossXACMLUtil
      catch(Exception e)
      {}
   }
-}
\ No newline at end of file
+  
+  private static class TemplateKey
+  {
+     private final String ejbName;
+     private final Method ejbMethod;
+     
+     TemplateKey( String ejbName, Method ejbMethod )
+     {
+        this.ejbName = ejbName;
+        this.ejbMethod = ejbMethod;
+     }
+     
+     @Override
+     public boolean equals( Object obj )
+     {
+        if( obj instanceof TemplateKey == false )
+           return false;
+        TemplateKey other = (TemplateKey) obj;
+        return ejbMethod.equals( other.ejbMethod ) 
+           && ( ejbName == null ? other.ejbName == null : ejbName.equals( other.ejbName ) );
+     }
+     
+     @Override
+     public int hashCode()
+     {
+        return ejbMethod.hashCode() * 31 + ( ejbName != null ? ejbName.hashCode() : 0 );
+     }
+  }
+  
+  private static class RequestTemplate
+  {
+     private final ResourceType resourceType;
+     private final ActionType actionType;
+     
+     RequestTemplate( ResourceType resourceType, ActionType actionType )
+     {
+        this.resourceType = resourceType;
+        this.actionType = actionType;
+     }
+  }
+}
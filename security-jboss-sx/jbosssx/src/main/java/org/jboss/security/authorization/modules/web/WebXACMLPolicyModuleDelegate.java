@@ -36,6 +36,7 @@ import org.jboss.security.authorization.Resource;
 import org.jboss.security.authorization.ResourceKeys;
 import org.jboss.security.authorization.modules.AuthorizationModuleDelegate;
 import org.jboss.security.authorization.resources.WebResource;
+import org.jboss.security.authorization.util.XACMLDecisionCache;
 import org.jboss.security.identity.RoleGroup;
 import org.jboss.security.xacml.interfaces.PolicyDecisionPoint;
 import org.jboss.security.xacml.interfaces.RequestContext;
@@ -52,7 +53,10 @@ import org.jboss.security.xacml.interfaces.XACMLConstants;
  *  @version $Revision: 46543 $
  */
 public class WebXACMLPolicyModuleDelegate extends AuthorizationModuleDelegate
-{ 
+{
+   /** The util is stateless, it is shared by the delegates */
+   private static final WebXACMLUtil util = new WebXACMLUtil();
+ 
    private String policyContextID = null;
    
    /**
@@ -114,17 +118,29 @@ public class WebXACMLPolicyModuleDelegate extends AuthorizationModuleDelegate
          throw PicketBoxMessages.MESSAGES.invalidNullProperty("userPrincipal");
 
       int result = AuthorizationContext.DENY;
-      WebXACMLUtil util = new WebXACMLUtil();
       try
       {
-         RequestContext requestCtx = util.createXACMLRequest(request,callerRoles);
          if(this.policyContextID == null)
            this.policyContextID = PolicyContext.getContextID();
+         // the request parameters are part of the action, only the requests without any are cached
+         XACMLDecisionCache cache = util.getDecisionCache(this.policyRegistration, this.policyContextID);
+         String key = null;
+         if(cache != null && request.getParameterNames().hasMoreElements() == false)
+         {
+            key = XACMLDecisionCache.getKey(userP.getName(), request.getRequestURI(), 
+                  "GET".equals(request.getMethod()) ? "read" : "write", callerRoles);
+            Integer decision = cache.get(key);
+            if(decision != null)
+               return decision.intValue();
+         }
+         RequestContext requestCtx = util.createXACMLRequest(request,callerRoles);
           
          PolicyDecisionPoint pdp = util.getPDP(this.policyRegistration, this.policyContextID);
          ResponseContext response = pdp.evaluate(requestCtx);
          result = response.getDecision() == XACMLConstants.DECISION_PERMIT ? 
                AuthorizationContext.PERMIT : AuthorizationContext.DENY; 
+         if(key != null)
+            cache.put(key, result);
       }
       catch(Exception e)
       {
@@ -28,6 +28,7 @@ import java.util.Set;
 
 import org.jboss.security.PicketBoxMessages;
 import org.jboss.security.authorization.PolicyRegistration;
+import org.jboss.security.plugins.JBossPolicyRegistration;
 import org.jboss.security.xacml.core.JBossPDP;
 import org.jboss.security.xacml.interfaces.PolicyDecisionPoint;
 import org.jboss.security.xacml.interfaces.PolicyLocator;
@@ -46,6 +47,15 @@ public class JBossXACMLUtil
    @SuppressWarnings("unchecked")
    public PolicyDecisionPoint getPDP(PolicyRegistration policyRegistration, String contextID)
    {
+      //The default registration keeps the PDP built from its policies
+      if(policyRegistration instanceof JBossPolicyRegistration)
+      {
+         PolicyDecisionPoint pdp = ((JBossPolicyRegistration) policyRegistration).getPDP(contextID);
+         if(pdp == null)
+            throw PicketBoxMessages.MESSAGES.missingXACMLPolicyForContextId(contextID);
+         return pdp;
+      }
+
       //See if a PDP exists already
       Map<String,Object> contextMap = new HashMap<String,Object>();
       contextMap.put("PDP", "PDP");
@@ -66,16 +76,40 @@ public class JBossXACMLUtil
          if(policies == null)
             throw PicketBoxMessages.MESSAGES.missingXACMLPolicyForContextId(contextID);
 
-         JBossPolicyLocator jpl = new JBossPolicyLocator(policies);
-         JBossPolicySetLocator jpsl = new JBossPolicySetLocator(policies);
-         HashSet<PolicyLocator> plset = new HashSet<PolicyLocator>();
-         plset.add(jpl);
-         plset.add(jpsl);
-         
-         pdp = new JBossPDP();
-         pdp.setPolicies(policies);
-         pdp.setLocators(plset); 
+         pdp = createPDP(policies);
       }
       return pdp;
    } 
+   
+   /**
+    * Get the decision cache of a policy context.
+    * @param policyRegistration
+    * @param contextID
+    * @return the cache, or null if the registration does not cache decisions
+    */
+   public XACMLDecisionCache getDecisionCache(PolicyRegistration policyRegistration, String contextID)
+   {
+      if(policyRegistration instanceof JBossPolicyRegistration && contextID != null)
+         return ((JBossPolicyRegistration) policyRegistration).getDecisionCache(contextID);
+      return null;
+   }
+   
+   /**
+    * Create a PDP evaluating a set of policies.
+    * @param policies
+    * @return the PDP
+    */
+   public static PolicyDecisionPoint createPDP(Set<XACMLPolicy> policies)
+   {
+      JBossPolicyLocator jpl = new JBossPolicyLocator(policies);
+      JBossPolicySetLocator jpsl = new JBossPolicySetLocator(policies);
+      HashSet<PolicyLocator> plset = new HashSet<PolicyLocator>();
+      plset.add(jpl);
+      plset.add(jpsl);
+      
+      PolicyDecisionPoint pdp = new JBossPDP();
+      pdp.setPolicies(policies);
+      pdp.setLocators(plset); 
+      return pdp;
+   }
 }
\ No newline at end of file
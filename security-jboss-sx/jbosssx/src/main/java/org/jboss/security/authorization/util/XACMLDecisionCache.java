@@ -0,0 +1,131 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.security.authorization.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jboss.security.identity.Role;
+import org.jboss.security.identity.RoleGroup;
+
+/**
+ *  Bounded cache of the XACML decisions of a policy context, keyed by the parts
+ *  of the request that are taken from the caller and the resource: the principal
+ *  name, the resource, the action and the caller roles. The oldest decisions are
+ *  evicted first once the cache is full.
+ *  <p>
+ *  The current time sent in the environment of the requests is not part of the
+ *  key, so the cache must not be used with policies depending on it.
+ *  </p>
+ *  @version $Revision$
+ */
+public class XACMLDecisionCache
+{
+   private static final char SEPARATOR = '\u0000';
+
+   private final int maxSize;
+
+   private final ConcurrentMap<String, Integer> decisions = new ConcurrentHashMap<String, Integer>();
+
+   /** The keys in insertion order, for eviction */
+   private final Queue<String> keys = new ConcurrentLinkedQueue<String>();
+
+   /**
+    * Create a new XACMLDecisionCache.
+    * 
+    * @param maxSize the maximum number of decisions kept
+    */
+   public XACMLDecisionCache(int maxSize)
+   {
+      this.maxSize = maxSize;
+   }
+
+   /**
+    * Build the key of a request.
+    * 
+    * @param principalName the name of the caller
+    * @param resource the resource id
+    * @param action the action id
+    * @param callerRoles the roles of the caller, in any order
+    * @return the key
+    */
+   public static String getKey(String principalName, String resource, String action, RoleGroup callerRoles)
+   {
+      StringBuilder key = new StringBuilder();
+      key.append(principalName).append(SEPARATOR).append(resource).append(SEPARATOR).append(action);
+      List<Role> roles = callerRoles != null ? callerRoles.getRoles() : null;
+      if (roles != null && roles.isEmpty() == false)
+      {
+         List<String> roleNames = new ArrayList<String>(roles.size());
+         for (Role role : roles)
+            roleNames.add(String.valueOf(role.getRoleName()));
+         Collections.sort(roleNames);
+         for (String roleName : roleNames)
+            key.append(SEPARATOR).append(roleName);
+      }
+      return key.toString();
+   }
+
+   /**
+    * Get a decision.
+    * 
+    * @param key the key of the request
+    * @return the decision, or null if it is not cached
+    */
+   public Integer get(String key)
+   {
+      return decisions.get(key);
+   }
+
+   /**
+    * Cache a decision, evicting the oldest ones if the cache is full.
+    * 
+    * @param key the key of the request
+    * @param decision the decision
+    */
+   public void put(String key, int decision)
+   {
+      if (decisions.put(key, Integer.valueOf(decision)) != null)
+         return;
+      keys.add(key);
+      while (decisions.size() > maxSize)
+      {
+         String eldest = keys.poll();
+         if (eldest == null)
+            break;
+         decisions.remove(eldest);
+      }
+   }
+
+   /**
+    * @return the number of cached decisions
+    */
+   public int size()
+   {
+      return decisions.size();
+   }
+}
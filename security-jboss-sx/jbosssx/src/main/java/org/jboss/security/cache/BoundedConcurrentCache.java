@@ -0,0 +1,671 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.security.cache;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ * A size bounded {@link ConcurrentMap} with optional expire-after-write and expire-after-access
+ * semantics, suitable for use as the cache of a {@code CacheableManager} such as the
+ * {@code JBossCachedAuthenticationManager}.
+ * </p>
+ * <p>
+ * Reads are lock free. Every entry carries a small saturating access counter and entries are
+ * kept in a clock queue in insertion order. When the cache grows past {@code maxEntries} the
+ * clock hand sweeps the queue: entries that were accessed since the last sweep have their
+ * counter halved and are given another chance, while the first entry whose counter has dropped
+ * to zero is evicted. Frequently used principals therefore survive a burst of one-off logins.
+ * </p>
+ * <p>
+ * Expired entries are removed lazily, when they are read or when the clock hand passes them.
+ * As a consequence {@link #size()} may include expired entries that have not been purged yet.
+ * </p>
+ * <p>
+ * A {@link RemovalListener} can be set to release the resources held by the values, such as the
+ * login contexts of cached authentications, when they are evicted, expire, are replaced or are
+ * removed.
+ * </p>
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the cached values
+ * @version $Revision$
+ */
+public class BoundedConcurrentCache<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>
+{
+   /** Default maximum number of entries **/
+   public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+   /** Upper bound of the per entry access counter **/
+   private static final int MAX_FREQUENCY = 15;
+
+   /** Minimum number of stale clock nodes tolerated before the queue is compacted **/
+   private static final int MIN_STALE_NODES = 64;
+
+   private final ConcurrentHashMap<K, Node<K, V>> map;
+
+   private final ConcurrentLinkedQueue<Node<K, V>> clock = new ConcurrentLinkedQueue<Node<K, V>>();
+
+   private final AtomicInteger clockSize = new AtomicInteger();
+
+   private final AtomicInteger liveSize = new AtomicInteger();
+
+   private final ReentrantLock evictionLock = new ReentrantLock();
+
+   private final int maxEntries;
+
+   private final long expireAfterWrite;
+
+   private final long expireAfterAccess;
+
+   private final TimeSource timeSource;
+
+   private volatile RemovalListener<? super K, ? super V> removalListener;
+
+   private final AtomicLong hitCount = new AtomicLong();
+
+   private final AtomicLong missCount = new AtomicLong();
+
+   private final AtomicLong evictionCount = new AtomicLong();
+
+   private final AtomicLong expirationCount = new AtomicLong();
+
+   private transient Set<Map.Entry<K, V>> entrySet;
+
+   /**
+    * Create a cache holding at most {@link #DEFAULT_MAX_ENTRIES} entries that never expire.
+    */
+   public BoundedConcurrentCache()
+   {
+      this(DEFAULT_MAX_ENTRIES);
+   }
+
+   /**
+    * Create a cache holding at most {@code maxEntries} entries that never expire.
+    *
+    * @param maxEntries the maximum number of entries
+    */
+   public BoundedConcurrentCache(int maxEntries)
+   {
+      this(maxEntries, 0, 0, TimeUnit.MILLISECONDS);
+   }
+
+   /**
+    * Create a new cache.
+    *
+    * @param maxEntries the maximum number of entries
+    * @param expireAfterWrite time after which an entry expires once it has been stored, 0 to disable
+    * @param expireAfterAccess time after which an entry expires once it was last read, 0 to disable
+    * @param unit the unit of both expiration times
+    */
+   public BoundedConcurrentCache(int maxEntries, long expireAfterWrite, long expireAfterAccess, TimeUnit unit)
+   {
+      this(maxEntries, expireAfterWrite, expireAfterAccess, unit, SYSTEM_TIME);
+   }
+
+   /**
+    * Create a new cache reading the time from the given source.
+    *
+    * @param maxEntries the maximum number of entries
+    * @param expireAfterWrite time after which an entry expires once it has been stored, 0 to disable
+    * @param expireAfterAccess time after which an entry expires once it was last read, 0 to disable
+    * @param unit the unit of both expiration times
+    * @param timeSource the source of the time the expiration times are measured with
+    */
+   public BoundedConcurrentCache(int maxEntries, long expireAfterWrite, long expireAfterAccess, TimeUnit unit,
+         TimeSource timeSource)
+   {
+      if (timeSource == null)
+         throw new IllegalArgumentException("timeSource is null");
+      if (maxEntries <= 0)
+         throw new IllegalArgumentException("maxEntries <= 0");
+      if (expireAfterWrite < 0 || expireAfterAccess < 0)
+         throw new IllegalArgumentException("negative expiration time");
+      this.maxEntries = maxEntries;
+      this.expireAfterWrite = unit.toNanos(expireAfterWrite);
+      this.expireAfterAccess = unit.toNanos(expireAfterAccess);
+      this.timeSource = timeSource;
+      this.map = new ConcurrentHashMap<K, Node<K, V>>(Math.min(maxEntries, 1 << 16));
+   }
+
+   /**
+    * Set the listener notified of the entries leaving the cache.
+    *
+    * @param removalListener the listener, null for none
+    */
+   public void setRemovalListener(RemovalListener<? super K, ? super V> removalListener)
+   {
+      this.removalListener = removalListener;
+   }
+
+   public int getMaxEntries()
+   {
+      return maxEntries;
+   }
+
+   /**
+    * @return number of reads that found a live entry
+    */
+   public long getHitCount()
+   {
+      return hitCount.get();
+   }
+
+   /**
+    * @return number of reads that found no entry or an expired one
+    */
+   public long getMissCount()
+   {
+      return missCount.get();
+   }
+
+   /**
+    * @return number of entries removed to keep the cache within its size bound
+    */
+   public long getEvictionCount()
+   {
+      return evictionCount.get();
+   }
+
+   /**
+    * @return number of entries removed because they expired
+    */
+   public long getExpirationCount()
+   {
+      return expirationCount.get();
+   }
+
+   /**
+    * Reset the hit, miss, eviction and expiration counters.
+    */
+   public void resetStatistics()
+   {
+      hitCount.set(0);
+      missCount.set(0);
+      evictionCount.set(0);
+      expirationCount.set(0);
+   }
+
+   /**
+    * Remove all the expired entries from the cache.
+    */
+   public void purgeExpired()
+   {
+      long now = timeSource.nanoTime();
+      for (Node<K, V> node : map.values())
+      {
+         if (isExpired(node, now))
+            expire(node);
+      }
+   }
+
+   @Override
+   public V get(Object key)
+   {
+      Node<K, V> node = map.get(key);
+      if (node != null)
+      {
+         long now = timeSource.nanoTime();
+         if (!isExpired(node, now))
+         {
+            node.recordAccess(now);
+            hitCount.incrementAndGet();
+            return node.value;
+         }
+         expire(node);
+      }
+      missCount.incrementAndGet();
+      return null;
+   }
+
+   @Override
+   public boolean containsKey(Object key)
+   {
+      Node<K, V> node = map.get(key);
+      if (node == null)
+         return false;
+      if (isExpired(node, timeSource.nanoTime()))
+      {
+         expire(node);
+         return false;
+      }
+      return true;
+   }
+
+   @Override
+   public V put(K key, V value)
+   {
+      if (value == null)
+         throw new NullPointerException("value");
+      Node<K, V> node = new Node<K, V>(key, value, timeSource.nanoTime());
+      Node<K, V> old = map.put(key, node);
+      linked(node, old == null);
+      if (old != null)
+         replaced(old, node);
+      return live(old, node.writeTime);
+   }
+
+   public V putIfAbsent(K key, V value)
+   {
+      if (value == null)
+         throw new NullPointerException("value");
+      Node<K, V> node = new Node<K, V>(key, value, timeSource.nanoTime());
+      for (;;)
+      {
+         Node<K, V> old = map.putIfAbsent(key, node);
+         if (old == null)
+         {
+            linked(node, true);
+            return null;
+         }
+         if (!isExpired(old, node.writeTime))
+         {
+            old.recordAccess(node.writeTime);
+            return old.value;
+         }
+         if (map.replace(key, old, node))
+         {
+            expirationCount.incrementAndGet();
+            linked(node, false);
+            removed(old, RemovalCause.EXPIRED);
+            return null;
+         }
+      }
+   }
+
+   @Override
+   public V remove(Object key)
+   {
+      Node<K, V> node = map.remove(key);
+      if (node == null)
+         return null;
+      liveSize.decrementAndGet();
+      long now = timeSource.nanoTime();
+      removed(node, isExpired(node, now) ? RemovalCause.EXPIRED : RemovalCause.EXPLICIT);
+      return live(node, now);
+   }
+
+   public boolean remove(Object key, Object value)
+   {
+      Node<K, V> node = map.get(key);
+      if (node == null || value == null || !value.equals(node.value) || isExpired(node, timeSource.nanoTime()))
+         return false;
+      if (map.remove(key, node))
+      {
+         liveSize.decrementAndGet();
+         removed(node, RemovalCause.EXPLICIT);
+         return true;
+      }
+      return false;
+   }
+
+   public boolean replace(K key, V oldValue, V newValue)
+   {
+      if (oldValue == null || newValue == null)
+         throw new NullPointerException();
+      Node<K, V> node = map.get(key);
+      if (node == null || !oldValue.equals(node.value) || isExpired(node, timeSource.nanoTime()))
+         return false;
+      Node<K, V> replacement = new Node<K, V>(key, newValue, timeSource.nanoTime());
+      if (map.replace(key, node, replacement))
+      {
+         linked(replacement, false);
+         replaced(node, replacement);
+         return true;
+      }
+      return false;
+   }
+
+   public V replace(K key, V value)
+   {
+      if (value == null)
+         throw new NullPointerException("value");
+      Node<K, V> replacement = new Node<K, V>(key, value, timeSource.nanoTime());
+      for (;;)
+      {
+         Node<K, V> node = map.get(key);
+         if (node == null || isExpired(node, replacement.writeTime))
+            return null;
+         if (map.replace(key, node, replacement))
+         {
+            linked(replacement, false);
+            replaced(node, replacement);
+            return node.value;
+         }
+      }
+   }
+
+   @Override
+   public int size()
+   {
+      return Math.max(liveSize.get(), 0);
+   }
+
+   @Override
+   public boolean isEmpty()
+   {
+      return map.isEmpty();
+   }
+
+   @Override
+   public void clear()
+   {
+      for (K key : map.keySet())
+      {
+         Node<K, V> node = map.remove(key);
+         if (node != null)
+         {
+            liveSize.decrementAndGet();
+            removed(node, RemovalCause.EXPLICIT);
+         }
+      }
+   }
+
+   @Override
+   public Set<Map.Entry<K, V>> entrySet()
+   {
+      Set<Map.Entry<K, V>> es = entrySet;
+      if (es == null)
+         entrySet = es = new EntrySet();
+      return es;
+   }
+
+   private boolean isExpired(Node<K, V> node, long now)
+   {
+      return (expireAfterWrite > 0 && now - node.writeTime >= expireAfterWrite)
+            || (expireAfterAccess > 0 && now - node.accessTime >= expireAfterAccess);
+   }
+
+   private V live(Node<K, V> node, long now)
+   {
+      return node == null || isExpired(node, now) ? null : node.value;
+   }
+
+   private void expire(Node<K, V> node)
+   {
+      if (map.remove(node.key, node))
+      {
+         liveSize.decrementAndGet();
+         expirationCount.incrementAndGet();
+         removed(node, RemovalCause.EXPIRED);
+      }
+   }
+
+   /**
+    * Notify the listener of a node replaced by another one, unless both map the same value.
+    */
+   private void replaced(Node<K, V> old, Node<K, V> replacement)
+   {
+      if (old.value != replacement.value)
+         removed(old, isExpired(old, replacement.writeTime) ? RemovalCause.EXPIRED : RemovalCause.REPLACED);
+   }
+
+   private void removed(Node<K, V> node, RemovalCause cause)
+   {
+      RemovalListener<? super K, ? super V> listener = removalListener;
+      if (listener != null)
+         listener.entryRemoved(node.key, node.value, cause);
+   }
+
+   /**
+    * Account for a node that has just been mapped and enforce the size bound.
+    */
+   private void linked(Node<K, V> node, boolean added)
+   {
+      if (added)
+         liveSize.incrementAndGet();
+      clock.offer(node);
+      clockSize.incrementAndGet();
+      while (needsSweep() && evictionLock.tryLock())
+      {
+         try
+         {
+            if (!sweep())
+               break;
+         }
+         finally
+         {
+            evictionLock.unlock();
+         }
+      }
+   }
+
+   private boolean needsSweep()
+   {
+      int live = liveSize.get();
+      return live > maxEntries || clockSize.get() - live > Math.max(live, MIN_STALE_NODES);
+   }
+
+   /**
+    * Advance the clock hand until the cache is within bounds. Must be called holding the eviction lock.
+    *
+    * @return false if the clock ran out of entries
+    */
+   private boolean sweep()
+   {
+      long now = timeSource.nanoTime();
+      // bound the work done by a single sweep: a full revolution plus the entries over the limit
+      int budget = clockSize.get() + MAX_FREQUENCY;
+      while (budget-- > 0 && needsSweep())
+      {
+         Node<K, V> node = clock.poll();
+         if (node == null)
+            return false;
+         clockSize.decrementAndGet();
+         // node was replaced or removed since it was queued
+         if (map.get(node.key) != node)
+            continue;
+         if (isExpired(node, now))
+         {
+            expire(node);
+            continue;
+         }
+         if (liveSize.get() > maxEntries && node.frequency == 0)
+         {
+            if (map.remove(node.key, node))
+            {
+               liveSize.decrementAndGet();
+               evictionCount.incrementAndGet();
+               removed(node, RemovalCause.EVICTED);
+            }
+            continue;
+         }
+         node.frequency >>>= 1;
+         clock.offer(node);
+         clockSize.incrementAndGet();
+      }
+      return true;
+   }
+
+   /**
+    * The reason an entry left the cache.
+    */
+   public enum RemovalCause
+   {
+      /** removed or cleared by the application **/
+      EXPLICIT,
+      /** a new value was stored for the key **/
+      REPLACED,
+      /** removed to keep the cache within its size bound **/
+      EVICTED,
+      /** removed because it expired **/
+      EXPIRED
+   }
+
+   /**
+    * Listener of the entries leaving the cache. It is called on the thread that removed the entry,
+    * after the removal, and must not throw.
+    *
+    * @param <K> the type of the keys
+    * @param <V> the type of the cached values
+    */
+   public interface RemovalListener<K, V>
+   {
+      void entryRemoved(K key, V value, RemovalCause cause);
+   }
+
+   /**
+    * Source of the time, in nanoseconds, the expiration times are measured with.
+    */
+   public interface TimeSource
+   {
+      long nanoTime();
+   }
+
+   private static final TimeSource SYSTEM_TIME = new TimeSource()
+   {
+      public long nanoTime()
+      {
+         return System.nanoTime();
+      }
+   };
+
+   /**
+    * A cache entry. The value and write time never change, a write always maps a new node.
+    */
+   private static final class Node<K, V>
+   {
+      final K key;
+
+      final V value;
+
+      final long writeTime;
+
+      volatile long accessTime;
+
+      /** approximate, racy increments are acceptable **/
+      volatile int frequency;
+
+      Node(K key, V value, long now)
+      {
+         this.key = key;
+         this.value = value;
+         this.writeTime = now;
+         this.accessTime = now;
+      }
+
+      void recordAccess(long now)
+      {
+         accessTime = now;
+         int f = frequency;
+         if (f < MAX_FREQUENCY)
+            frequency = f + 1;
+      }
+   }
+
+   private final class EntrySet extends AbstractSet<Map.Entry<K, V>>
+   {
+      @Override
+      public Iterator<Map.Entry<K, V>> iterator()
+      {
+         return new EntryIterator();
+      }
+
+      @Override
+      public int size()
+      {
+         return BoundedConcurrentCache.this.size();
+      }
+
+      @Override
+      public boolean contains(Object o)
+      {
+         if (!(o instanceof Map.Entry))
+            return false;
+         Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+         Node<K, V> node = map.get(e.getKey());
+         return node != null && node.value.equals(e.getValue()) && !isExpired(node, timeSource.nanoTime());
+      }
+
+      @Override
+      public boolean remove(Object o)
+      {
+         if (!(o instanceof Map.Entry))
+            return false;
+         Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+         return BoundedConcurrentCache.this.remove(e.getKey(), e.getValue());
+      }
+
+      @Override
+      public void clear()
+      {
+         BoundedConcurrentCache.this.clear();
+      }
+   }
+
+   /**
+    * Weakly consistent iterator over the live entries, skipping the expired ones.
+    */
+   private final class EntryIterator implements Iterator<Map.Entry<K, V>>
+   {
+      private final Iterator<Node<K, V>> delegate = map.values().iterator();
+
+      private Node<K, V> next;
+
+      private Node<K, V> last;
+
+      public boolean hasNext()
+      {
+         long now = timeSource.nanoTime();
+         while (next == null && delegate.hasNext())
+         {
+            Node<K, V> node = delegate.next();
+            if (!isExpired(node, now))
+               next = node;
+         }
+         return next != null;
+      }
+
+      public Map.Entry<K, V> next()
+      {
+         if (!hasNext())
+            throw new NoSuchElementException();
+         last = next;
+         next = null;
+         return new SimpleImmutableEntry<K, V>(last.key, last.value);
+      }
+
+      public void remove()
+      {
+         if (last == null)
+            throw new IllegalStateException();
+         if (map.remove(last.key, last))
+         {
+            liveSize.decrementAndGet();
+            removed(last, RemovalCause.EXPLICIT);
+         }
+         last = null;
+      }
+   }
+}
@@ -0,0 +1,43 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.security.cache;
+
+/**
+ * <p>
+ * Listener of the flushes of the security domain caches. Components holding resources cached per security domain,
+ * such as login modules sharing their configuration across instances, register a listener with
+ * {@link FlushListeners} to release them when the cache of the domain is flushed.
+ * </p>
+ * 
+ * @version $Revision$
+ */
+public interface FlushListener
+{
+   /**
+    * <p>
+    * Release the resources cached for a security domain.
+    * </p>
+    * 
+    * @param securityDomain the name of the flushed security domain, null when all the domains are flushed.
+    */
+   void flush(String securityDomain);
+}
@@ -0,0 +1,92 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.security.cache;
+
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import org.jboss.security.PicketBoxLogger;
+
+/**
+ * <p>
+ * Registry of the {@link FlushListener}s notified when the cache of a security domain is flushed.
+ * </p>
+ * 
+ * @version $Revision$
+ */
+public class FlushListeners
+{
+   private static final Set<FlushListener> listeners = new CopyOnWriteArraySet<FlushListener>();
+
+   private FlushListeners()
+   {
+   }
+
+   /**
+    * <p>
+    * Register a listener. A listener registered several times is notified once.
+    * </p>
+    * 
+    * @param listener the listener to register.
+    */
+   public static void addListener(FlushListener listener)
+   {
+      if (listener == null)
+         throw new IllegalArgumentException("listener is null");
+      listeners.add(listener);
+   }
+
+   /**
+    * <p>
+    * Unregister a listener.
+    * </p>
+    * 
+    * @param listener the listener to unregister.
+    */
+   public static void removeListener(FlushListener listener)
+   {
+      listeners.remove(listener);
+   }
+
+   /**
+    * <p>
+    * Notify all the registered listeners of the flush of a security domain. A failing listener does not prevent the
+    * others from being notified.
+    * </p>
+    * 
+    * @param securityDomain the name of the flushed security domain, null to flush all the domains.
+    */
+   public static void flush(String securityDomain)
+   {
+      for (FlushListener listener : listeners)
+      {
+         try
+         {
+            listener.flush(securityDomain);
+         }
+         catch (RuntimeException e)
+         {
+            PicketBoxLogger.LOGGER.warnFailureToFlushSecurityDomain(securityDomain, e);
+         }
+      }
+   }
+}
@@ -22,6 +22,7 @@
 package org.jboss.security.config;
 
 import java.security.Principal;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -39,6 +40,12 @@ import org.jboss.security.identity.RoleGroup;
 
 /**
  * Application Policy Information Holder - Authentication - Authorization - Audit - Mapping
+ * <p>
+ * When the policy extends a base policy, the getters return infos merged with the
+ * ones of the base policy. The merged infos are built once and shared by all the
+ * callers until this policy is modified through a setter or its base policy changes,
+ * so they must not be modified.
+ * </p>
  * 
  * @author <a href="mailto:Anil.Saldhana@jboss.org">Anil Saldhana</a>
  * @author <a href="mailto:mmoyses@redhat.com">Marcus Moyses</a>
@@ -67,6 +74,12 @@ public class ApplicationPolicy
    // Parent PolicyConfig
    private PolicyConfig policyConfig = new PolicyConfig();
 
+   // Incremented by the setters, the snapshot is rebuilt when it changes
+   private volatile int modCount;
+
+   // The infos merged with the ones of the base policy
+   private volatile Snapshot snapshot;
+
    public ApplicationPolicy(String theName)
    {
       if (theName == null)
@@ -95,59 +108,35 @@ public class ApplicationPolicy
 
    public ACLInfo getAclInfo()
    {
-      ACLInfo info = null;
-      ApplicationPolicy basePolicy = this.getBaseApplicationPolicy();
-      if (basePolicy != null)
-         info = basePolicy.getAclInfo();
-      if (info != null && this.aclInfo == null)
-         return info;
-      else if (info != null)
-         return (ACLInfo) this.aclInfo.merge(info);
-      else
-         return aclInfo;
+      return getSnapshot().aclInfo;
    }
 
    public void setAclInfo(ACLInfo aclInfo)
    {
       this.aclInfo = aclInfo;
+      modCount++;
    }
 
    public BaseAuthenticationInfo getAuthenticationInfo()
    {
-      BaseAuthenticationInfo bai = null;
-      ApplicationPolicy ap = this.getBaseApplicationPolicy();
-      if (ap != null)
-         bai = ap.getAuthenticationInfo();
-      if (bai != null && authenticationInfo == null)
-         return bai;
-      else if (bai != null)
-         return (BaseAuthenticationInfo) authenticationInfo.merge(bai);
-      else
-         return authenticationInfo;
+      return getSnapshot().authenticationInfo;
    }
 
    public void setAuthenticationInfo(BaseAuthenticationInfo authenticationInfo)
    {
       this.authenticationInfo = authenticationInfo;
+      modCount++;
    }
 
    public AuthorizationInfo getAuthorizationInfo()
    {
-      AuthorizationInfo bai = null;
-      ApplicationPolicy ap = this.getBaseApplicationPolicy();
-      if (ap != null)
-         bai = ap.getAuthorizationInfo();
-      if (bai != null && authorizationInfo == null)
-         return bai;
-      else if (bai != null)
-         return (AuthorizationInfo) authorizationInfo.merge(bai);
-      else
-         return authorizationInfo;
+      return getSnapshot().authorizationInfo;
    }
 
    public void setAuthorizationInfo(AuthorizationInfo authorizationInfo)
    {
       this.authorizationInfo = authorizationInfo;
+      modCount++;
    }
 
    /**
@@ -259,19 +248,7 @@ public class ApplicationPolicy
     */
    public MappingInfo getMappingInfo(String mappingType)
    {
-      mappingType = mappingType.toLowerCase();
-      MappingInfo bai = null;
-      ApplicationPolicy ap = this.getBaseApplicationPolicy();
-      if (ap != null)
-         bai = ap.getMappingInfo(mappingType);
-
-      MappingInfo mappings = this.mappingInfos.get(mappingType);
-      if (bai != null && mappings == null)
-         return bai;
-      else if (bai != null)
-         return (MappingInfo) mappings.merge(bai);
-      else
-         return mappings;
+      return getSnapshot().mappingInfos.get(mappingType.toLowerCase());
    }
 
    /**
@@ -290,46 +267,29 @@ public class ApplicationPolicy
          this.mappingInfos.get(mappingType).add(info.getModuleEntries());
       else
          this.mappingInfos.put(mappingType, info);
+      modCount++;
    }
 
    public AuditInfo getAuditInfo()
    {
-      AuditInfo bai = null;
-      ApplicationPolicy ap = this.getBaseApplicationPolicy();
-      if (ap != null)
-         bai = ap.getAuditInfo();
-
-      if (bai != null && auditInfo == null)
-         return bai;
-      else if (bai != null)
-         return (AuditInfo) auditInfo.merge(bai);
-      else
-         return auditInfo;
+      return getSnapshot().auditInfo;
    }
 
    public void setAuditInfo(AuditInfo auditInfo)
    {
       this.auditInfo = auditInfo;
+      modCount++;
    }
 
    public IdentityTrustInfo getIdentityTrustInfo()
    {
-      IdentityTrustInfo bai = null;
-      ApplicationPolicy ap = this.getBaseApplicationPolicy();
-      if (ap != null)
-         bai = ap.getIdentityTrustInfo();
-
-      if (bai != null && identityTrustInfo == null)
-         return bai;
-      else if (bai != null)
-         return (IdentityTrustInfo) identityTrustInfo.merge(bai);
-      else
-         return identityTrustInfo;
+      return getSnapshot().identityTrustInfo;
    }
 
    public void setIdentityTrustInfo(IdentityTrustInfo identityTrustInfo)
    {
       this.identityTrustInfo = identityTrustInfo;
+      modCount++;
    }
 
    public String getBaseApplicationPolicyName()
@@ -340,6 +300,7 @@ public class ApplicationPolicy
    public void setBaseApplicationPolicyName(String baseApplicationPolicy)
    {
       this.baseApplicationPolicyName = baseApplicationPolicy;
+      modCount++;
    }
 
    public String getName()
@@ -355,6 +316,24 @@ public class ApplicationPolicy
    public void setPolicyConfig(PolicyConfig policyConfig)
    {
       this.policyConfig = policyConfig;
+      modCount++;
+   }
+
+   /**
+    * Get the infos of this policy merged with the ones of its base policy. The merge is
+    * done once, until this policy is modified or its base policy changes.
+    */
+   private Snapshot getSnapshot()
+   {
+      ApplicationPolicy basePolicy = this.getBaseApplicationPolicy();
+      Snapshot baseSnapshot = basePolicy != null ? basePolicy.getSnapshot() : null;
+      Snapshot current = this.snapshot;
+      if (current != null && current.modCount == this.modCount && current.basePolicy == basePolicy
+            && current.baseSnapshot == baseSnapshot)
+         return current;
+      current = new Snapshot(this, basePolicy, baseSnapshot);
+      this.snapshot = current;
+      return current;
    }
 
    private ApplicationPolicy getBaseApplicationPolicy()
@@ -427,4 +406,68 @@ public class ApplicationPolicy
       }
       writer.writeEndElement();
    }
+
+   /**
+    * The infos of a policy, with inheritance resolved. The snapshot itself never changes,
+    * but the infos are the mutable objects set on the policy or merged from them: the
+    * merged ones are shared by the callers and must not be modified.
+    */
+   private static final class Snapshot
+   {
+      private final int modCount;
+
+      private final ApplicationPolicy basePolicy;
+
+      private final Snapshot baseSnapshot;
+
+      private final BaseAuthenticationInfo authenticationInfo;
+
+      private final ACLInfo aclInfo;
+
+      private final AuthorizationInfo authorizationInfo;
+
+      private final AuditInfo auditInfo;
+
+      private final IdentityTrustInfo identityTrustInfo;
+
+      private final Map<String, MappingInfo> mappingInfos;
+
+      Snapshot(ApplicationPolicy policy, ApplicationPolicy basePolicy, Snapshot baseSnapshot)
+      {
+         // read first, a concurrent modification then invalidates this snapshot
+         this.modCount = policy.modCount;
+         this.basePolicy = basePolicy;
+         this.baseSnapshot = baseSnapshot;
+         if (baseSnapshot == null)
+         {
+            this.authenticationInfo = policy.authenticationInfo;
+            this.aclInfo = policy.aclInfo;
+            this.authorizationInfo = policy.authorizationInfo;
+            this.auditInfo = policy.auditInfo;
+            this.identityTrustInfo = policy.identityTrustInfo;
+            this.mappingInfos = Collections.unmodifiableMap(new HashMap<String, MappingInfo>(policy.mappingInfos));
+            return;
+         }
+         this.authenticationInfo = (BaseAuthenticationInfo) merge(policy.authenticationInfo, baseSnapshot.authenticationInfo);
+         this.aclInfo = (ACLInfo) merge(policy.aclInfo, baseSnapshot.aclInfo);
+         this.authorizationInfo = (AuthorizationInfo) merge(policy.authorizationInfo, baseSnapshot.authorizationInfo);
+         this.auditInfo = (AuditInfo) merge(policy.auditInfo, baseSnapshot.auditInfo);
+         this.identityTrustInfo = (IdentityTrustInfo) merge(policy.identityTrustInfo, baseSnapshot.identityTrustInfo);
+         Map<String, MappingInfo> mappings = new HashMap<String, MappingInfo>(baseSnapshot.mappingInfos);
+         for (Entry<String, MappingInfo> entry : policy.mappingInfos.entrySet())
+            mappings.put(entry.getKey(), (MappingInfo) merge(entry.getValue(), mappings.get(entry.getKey())));
+         this.mappingInfos = Collections.unmodifiableMap(mappings);
+      }
+
+      @SuppressWarnings({"rawtypes", "unchecked"})
+      private static BaseSecurityInfo merge(BaseSecurityInfo info, BaseSecurityInfo baseInfo)
+      {
+         if (baseInfo != null && info == null)
+            return baseInfo;
+         else if (baseInfo != null)
+            return info.merge(baseInfo);
+         else
+            return info;
+      }
+   }
 }
\ No newline at end of file
@@ -8,7 +8,10 @@ package org.jboss.security.config;
 
 import java.security.Key;
 import java.security.spec.AlgorithmParameterSpec;
-import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jboss.security.PicketBoxMessages;
 
@@ -26,7 +29,15 @@ public class SecurityConfiguration
    /**
     * Map of Application Policies keyed in by name
     */
-   private static HashMap<String,ApplicationPolicy> appPolicies = new HashMap<String,ApplicationPolicy>();
+   private static final ConcurrentMap<String,ApplicationPolicy> appPolicies = new ConcurrentHashMap<String,ApplicationPolicy>();
+   /**
+    * Version of each policy name, kept after the policy is removed so that it never goes back
+    */
+   private static final ConcurrentMap<String,Long> versions = new ConcurrentHashMap<String,Long>();
+   /**
+    * Source of the versions, incremented on every change of the registered policies
+    */
+   private static final AtomicLong generation = new AtomicLong();
    private static String cipherAlgorithm;
    private static int iterationCount;
    private static String salt;
@@ -48,7 +59,15 @@ public class SecurityConfiguration
    { 
       if(applicationPolicy == null)
          throw PicketBoxMessages.MESSAGES.invalidNullArgument("applicationPolicy");
-      appPolicies.put(applicationPolicy.getName(), applicationPolicy);
+      String name = applicationPolicy.getName();
+      // the same policy is registered again on every lookup of XMLLoginConfigImpl
+      if(appPolicies.get(name) == applicationPolicy)
+         return;
+      synchronized(versions)
+      {
+         appPolicies.put(name, applicationPolicy);
+         policyChanged(name);
+      }
    }
    
    /**
@@ -57,7 +76,55 @@ public class SecurityConfiguration
     */
    public static void removeApplicationPolicy(String name)
    {
-      appPolicies.remove(name);
+      if(name == null)
+         return;
+      synchronized(versions)
+      {
+         if(appPolicies.remove(name) != null)
+            policyChanged(name);
+      }
+   }
+   
+   /**
+    * Get the version of an application policy. The version increases every time the policy,
+    * or one of the policies it extends, is registered, replaced or removed, so that the
+    * caches built from a policy can check that they are still current.
+    * @param policyName Name of the Policy
+    * @return the version, 0 if no policy was ever registered with that name
+    */
+   public static long getApplicationPolicyVersion(String policyName)
+   {
+      Long version = policyName != null ? versions.get(policyName) : null;
+      return version != null ? version.longValue() : 0;
+   }
+   
+   /**
+    * Give a new version to a policy and to the registered policies that extend it.
+    */
+   private static void policyChanged(String name)
+   {
+      Long version = Long.valueOf(generation.incrementAndGet());
+      versions.put(name, version);
+      for(Map.Entry<String,ApplicationPolicy> entry : appPolicies.entrySet())
+      {
+         if(extendsPolicy(entry.getValue(), name))
+            versions.put(entry.getKey(), version);
+      }
+   }
+   
+   private static boolean extendsPolicy(ApplicationPolicy policy, String name)
+   {
+      // bounded walk, the chain may have a cycle
+      for(int i = 0; policy != null && i < appPolicies.size(); i++)
+      {
+         String baseName = policy.getBaseApplicationPolicyName();
+         if(baseName == null)
+            return false;
+         if(baseName.equals(name))
+            return true;
+         policy = appPolicies.get(baseName);
+      }
+      return false;
    }
    
    /**
@@ -67,7 +134,7 @@ public class SecurityConfiguration
     */
    public static ApplicationPolicy getApplicationPolicy(String policyName)
    {
-      return (ApplicationPolicy)appPolicies.get(policyName);
+      return policyName != null ? appPolicies.get(policyName) : null;
    } 
    
    public static String getCipherAlgorithm()
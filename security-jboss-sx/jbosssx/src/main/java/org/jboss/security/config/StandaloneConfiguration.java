@@ -21,8 +21,6 @@
  */
 package org.jboss.security.config;
 
-import java.security.AccessController;
-import java.security.PrivilegedAction;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -32,6 +30,7 @@ import javax.security.auth.login.Configuration;
 import org.jboss.logging.Logger;
 import org.jboss.security.PicketBoxLogger;
 import org.jboss.security.SecurityConstants;
+import org.jboss.security.auth.login.AppConfigurationEntryCache;
 import org.jboss.security.auth.login.AuthenticationInfo;
 import org.jboss.security.auth.login.BaseAuthenticationInfo;
 
@@ -49,6 +48,9 @@ public class StandaloneConfiguration extends Configuration implements Applicatio
    
    protected ConcurrentMap<String,ApplicationPolicy> appPolicyMap = new ConcurrentHashMap<String, ApplicationPolicy>();
    
+   /** The entries returned to the logins, built once per policy version */
+   private final AppConfigurationEntryCache entryCache = new AppConfigurationEntryCache();
+   
    /**
     * Singleton instance
     */
@@ -91,6 +93,25 @@ public class StandaloneConfiguration extends Configuration implements Applicatio
       return ap != null;
    }
    
+   /**
+    * Get whether new AppConfigurationEntry objects are built on every login
+    * @return
+    */
+   public boolean isCopyAppConfigurationEntries()
+   {
+      return entryCache.isCopyMode();
+   }
+   
+   /**
+    * Set whether new AppConfigurationEntry objects are built on every login instead of being shared
+    * until the application policy changes
+    * @param copy
+    */
+   public void setCopyAppConfigurationEntries(boolean copy)
+   {
+      entryCache.setCopyMode(copy);
+   }
+   
    /**
     * Set the Parent Configuration to which we can delegate
     * @param parentConfig
@@ -107,6 +128,7 @@ public class StandaloneConfiguration extends Configuration implements Applicatio
       
       ApplicationPolicy aPolicy = getApplicationPolicy(appName);
       BaseAuthenticationInfo authInfo = null;
+      String policyName = appName;
       if (aPolicy != null)
          authInfo = aPolicy.getAuthenticationInfo();
 
@@ -121,21 +143,13 @@ public class StandaloneConfiguration extends Configuration implements Applicatio
          }
          ApplicationPolicy defPolicy = getApplicationPolicy(SecurityConstants.DEFAULT_APPLICATION_POLICY);
          authInfo = defPolicy != null ? (AuthenticationInfo) defPolicy.getAuthenticationInfo() : null;
+         policyName = SecurityConstants.DEFAULT_APPLICATION_POLICY;
       }
 
       if (authInfo != null)
       {
          PicketBoxLogger.LOGGER.traceEndGetAppConfigEntryWithSuccess(appName, authInfo.toString());
-         // Make a copy of the authInfo object
-         final BaseAuthenticationInfo theAuthInfo = authInfo;
-         PrivilegedAction<AppConfigurationEntry[]> action = new PrivilegedAction<AppConfigurationEntry[]>()
-         {
-            public AppConfigurationEntry[] run()
-            {
-               return theAuthInfo.copyAppConfigurationEntry();
-            }
-         };
-         entry = AccessController.doPrivileged(action);
+         entry = entryCache.getAppConfigurationEntry(policyName, authInfo);
       }
       else
       {
@@ -30,7 +30,9 @@ import java.security.acl.Group;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 
 import javax.security.jacc.PolicyContextException;
 
@@ -52,6 +54,10 @@ public class ContextPolicy
    private Permissions uncheckedPermissions = new Permissions();
    /** HashMap<String, Permissions> role name to permissions mapping */
    private HashMap<String, Permissions> rolePermissions = new HashMap<String, Permissions>();
+   /** The web permissions indexed on commit, null while the policy is being modified */
+   private volatile WebPermissionIndex webIndex;
+   /** The EJB permissions indexed on commit, null while the policy is being modified */
+   private volatile EJBPermissionIndex ejbIndex;
 
    ContextPolicy(String contextID)
    {
@@ -83,6 +89,15 @@ public class ContextPolicy
 
    boolean implies(ProtectionDomain domain, Permission permission)
    {
+      EJBPermissionIndex ejbs = ejbIndex;
+      EJBPermissionIndex.Decision decision = ejbs != null ? ejbs.getDecision(permission) : null;
+      if( decision != null )
+         return implies(domain, permission, decision);
+      WebPermissionIndex index = webIndex;
+      List<WebPermissionIndex.Entry> candidates = index != null ? index.candidates(permission) : null;
+      if( candidates != null )
+         return implies(domain, permission, candidates);
+
       boolean implied = false;
       // First check the excluded permissions
       if( excludedPermissions.implies(permission) )
@@ -99,7 +114,142 @@ public class ContextPolicy
       }
 
       // Check principal to role permissions
-      Principal[] principals = domain.getPrincipals();
+      ArrayList<String> principalNames = getPrincipalNames(domain);
+      if( principalNames.size() > 0 )
+      {
+         PicketBoxLogger.LOGGER.traceProtectionDomainPrincipals(principalNames);
+         for(int n = 0; implied == false && n < principalNames.size(); n ++)
+         {
+            String name = principalNames.get(n);
+            Permissions perms = rolePermissions.get(name);
+            PicketBoxLogger.LOGGER.debugImpliesParameters(name, perms);
+            if( perms == null )
+               continue;
+            implied = perms.implies(permission);
+            PicketBoxLogger.LOGGER.debugImpliesResult(implied);
+         }
+      }
+      else
+      {
+         PicketBoxLogger.LOGGER.traceNoPrincipalsInProtectionDomain(domain);
+      }
+
+      return implied;
+   }
+
+   /**
+    * Check a web permission against the candidates found in the web index, in
+    * the same order and with the same outcome as the checks of the permission sets.
+    */
+   private boolean implies(ProtectionDomain domain, Permission permission,
+         List<WebPermissionIndex.Entry> candidates)
+   {
+      int n = 0;
+      int size = candidates.size();
+      for(; n < size && candidates.get(n).kind == WebPermissionIndex.Kind.EXCLUDED; n ++)
+      {
+         if( candidates.get(n).permission.implies(permission) )
+         {
+            PicketBoxLogger.LOGGER.traceImpliesMatchesExcludedSet(permission);
+            return false;
+         }
+      }
+      for(; n < size && candidates.get(n).kind == WebPermissionIndex.Kind.UNCHECKED; n ++)
+      {
+         if( candidates.get(n).permission.implies(permission) )
+         {
+            PicketBoxLogger.LOGGER.traceImpliesMatchesUncheckedSet(permission);
+            return true;
+         }
+      }
+
+      // No role grants the permission, the principals do not matter
+      if( n == size )
+      {
+         PicketBoxLogger.LOGGER.debugImpliesResult(false);
+         return false;
+      }
+
+      ArrayList<String> principalNames = getPrincipalNames(domain);
+      if( principalNames.size() == 0 )
+      {
+         PicketBoxLogger.LOGGER.traceNoPrincipalsInProtectionDomain(domain);
+         return false;
+      }
+      PicketBoxLogger.LOGGER.traceProtectionDomainPrincipals(principalNames);
+      HashSet<String> roles = new HashSet<String>(principalNames);
+      boolean implied = false;
+      for(; implied == false && n < size; n ++)
+      {
+         WebPermissionIndex.Entry entry = candidates.get(n);
+         if( roles.contains(entry.role) )
+            implied = entry.permission.implies(permission);
+      }
+      PicketBoxLogger.LOGGER.debugImpliesResult(implied);
+      return implied;
+   }
+
+   /**
+    * Check an EJB permission against its decision from the EJB index, with the
+    * same outcome as the checks of the permission sets.
+    */
+   private boolean implies(ProtectionDomain domain, Permission permission,
+         EJBPermissionIndex.Decision decision)
+   {
+      if( decision.excluded )
+      {
+         PicketBoxLogger.LOGGER.traceImpliesMatchesExcludedSet(permission);
+         return false;
+      }
+      if( decision.unchecked )
+      {
+         PicketBoxLogger.LOGGER.traceImpliesMatchesUncheckedSet(permission);
+         return true;
+      }
+
+      // No role grants the permission, the principals do not matter
+      if( decision.roles.isEmpty() )
+      {
+         PicketBoxLogger.LOGGER.debugImpliesResult(false);
+         return false;
+      }
+
+      Principal[] principals = domain != null ? domain.getPrincipals() : null;
+      int length = principals != null ? principals.length : 0;
+      if( length == 0 )
+      {
+         PicketBoxLogger.LOGGER.traceNoPrincipalsInProtectionDomain(domain);
+         return false;
+      }
+      if( PicketBoxLogger.LOGGER.isTraceEnabled() )
+         PicketBoxLogger.LOGGER.traceProtectionDomainPrincipals(getPrincipalNames(domain));
+      boolean implied = false;
+      // Only look for the principal names among the roles granted the permission
+      for(int n = 0; implied == false && n < length; n ++)
+      {
+         Principal p = principals[n];
+         if( p instanceof Group )
+         {
+            Enumeration<? extends Principal> iter = ((Group) p).members();
+            while( implied == false && iter.hasMoreElements() )
+               implied = decision.roles.contains(iter.nextElement().getName());
+         }
+         else
+         {
+            implied = decision.roles.contains(p.getName());
+         }
+      }
+      PicketBoxLogger.LOGGER.debugImpliesResult(implied);
+      return implied;
+   }
+
+   /**
+    * Get the names of the principals of a domain, with the members of the groups in place of the groups.
+    * A null domain has no principals.
+    */
+   private static ArrayList<String> getPrincipalNames(ProtectionDomain domain)
+   {
+      Principal[] principals = domain != null ? domain.getPrincipals() : null;
       int length = principals != null ? principals.length : 0;
       ArrayList<String> principalNames = new ArrayList<String>();
       for(int n = 0; n < length; n ++)
@@ -122,30 +272,12 @@ public class ContextPolicy
             principalNames.add(name);
          }
       }
-      if( principalNames.size() > 0 )
-      {
-         PicketBoxLogger.LOGGER.traceProtectionDomainPrincipals(principalNames);
-         for(int n = 0; implied == false && n < principalNames.size(); n ++)
-         {
-            String name = principalNames.get(n);
-            Permissions perms = rolePermissions.get(name);
-            PicketBoxLogger.LOGGER.debugImpliesParameters(name, perms);
-            if( perms == null )
-               continue;
-            implied = perms.implies(permission);
-            PicketBoxLogger.LOGGER.debugImpliesResult(implied);
-         }
-      }
-      else
-      {
-         PicketBoxLogger.LOGGER.traceNoPrincipalsInProtectionDomain(domain);
-      }
-
-      return implied;
+      return principalNames;
    }
 
    void clear()
    {
+      dropIndexes();
       excludedPermissions = new Permissions();
       uncheckedPermissions = new Permissions();
       rolePermissions.clear();
@@ -154,12 +286,14 @@ public class ContextPolicy
    void addToExcludedPolicy(Permission permission)
       throws PolicyContextException
    {
+      dropIndexes();
       excludedPermissions.add(permission);
    }
    
    void addToExcludedPolicy(PermissionCollection permissions)
       throws PolicyContextException
    {
+      dropIndexes();
       Enumeration<Permission> iter = permissions.elements();
       while( iter.hasMoreElements() )
       {
@@ -171,6 +305,7 @@ public class ContextPolicy
    void addToRole(String roleName, Permission permission)
       throws PolicyContextException
    {
+      dropIndexes();
       Permissions perms = rolePermissions.get(roleName);
       if( perms == null )
       {
@@ -183,6 +318,7 @@ public class ContextPolicy
    void addToRole(String roleName, PermissionCollection permissions)
       throws PolicyContextException
    {
+      dropIndexes();
       Permissions perms = rolePermissions.get(roleName);
       if( perms == null )
       {
@@ -200,12 +336,14 @@ public class ContextPolicy
    void addToUncheckedPolicy(Permission permission)
       throws PolicyContextException
    {
+      dropIndexes();
       uncheckedPermissions.add(permission);
    }
 
    void addToUncheckedPolicy(PermissionCollection permissions)
       throws PolicyContextException
    {
+      dropIndexes();
       Enumeration<Permission> iter = permissions.elements();
       while( iter.hasMoreElements() )
       {
@@ -214,9 +352,22 @@ public class ContextPolicy
       }
    }
 
+   /**
+    * Index the web permissions so that a check only looks at the permissions
+    * whose URL pattern and HTTP methods can match the request, and the EJB
+    * permissions so that a check resolves to the roles granted the method.
+    */
    void commit()
       throws PolicyContextException
    {
+      webIndex = new WebPermissionIndex(excludedPermissions, uncheckedPermissions, rolePermissions);
+      ejbIndex = new EJBPermissionIndex(excludedPermissions, uncheckedPermissions, rolePermissions);
+   }
+
+   private void dropIndexes()
+   {
+      webIndex = null;
+      ejbIndex = null;
    }
 
    void delete()
@@ -239,12 +390,14 @@ public class ContextPolicy
    void removeExcludedPolicy()
       throws PolicyContextException
    {
+      dropIndexes();
       excludedPermissions = new Permissions();
    }
 
    void removeRole(String roleName)
       throws PolicyContextException
    {
+      dropIndexes();
       // JACC 1.4 spec: if "*" is used as the role name and no role by this name exists in the config, remove all roles.
       if ("*".equals(roleName) && !this.rolePermissions.containsKey("*"))
          this.rolePermissions.clear();
@@ -255,6 +408,7 @@ public class ContextPolicy
    void removeUncheckedPolicy()
       throws PolicyContextException
    {
+      dropIndexes();
       uncheckedPermissions = new Permissions();
    }
    
@@ -359,8 +359,8 @@ public class DelegatingPolicy extends Policy
    {
       ContextPolicy policy = getContextPolicy(contextID);
       openPolicies.remove(contextID);
-      activePolicies.put(contextID, policy);
       policy.commit();
+      activePolicies.put(contextID, policy);
    }
 
    public void delete(String contextID)
@@ -0,0 +1,260 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.security.jacc;
+
+import java.security.Permission;
+import java.security.PermissionCollection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.security.jacc.EJBMethodPermission;
+import javax.security.jacc.EJBRoleRefPermission;
+
+/**
+ * The EJB permissions of a {@link ContextPolicy}, indexed by EJB name and then
+ * by method name for the method permissions and by role reference for the
+ * role reference permissions.
+ * <p>
+ * The outcome of a check only depends on the name and actions of the checked
+ * permission, so it is resolved once into a {@link Decision} holding the
+ * excluded and unchecked flags and the roles granted the permission. The
+ * decisions are kept per EJB and method signature (method name, interface and
+ * parameters), so that a later check of the same method costs a map lookup
+ * followed by the intersection of the caller roles with the granted roles.
+ * </p>
+ * An index does not change once built, apart from the decisions it caches.
+ * 
+ * @version $Revision$
+ */
+final class EJBPermissionIndex
+{
+   /** Upper bound of the decisions kept per EJB, further ones are computed on each check */
+   private static final int MAX_DECISIONS = 4096;
+
+   private static final Decision NONE = new Decision(false, false, Collections.<String>emptySet());
+
+   private final Map<String, Bean> beans = new HashMap<String, Bean>();
+
+   /**
+    * Index the EJB permissions of a policy.
+    * 
+    * @param excluded - the excluded permissions
+    * @param unchecked - the unchecked permissions
+    * @param roles - the permissions of each role
+    */
+   EJBPermissionIndex(PermissionCollection excluded, PermissionCollection unchecked,
+         Map<String, ? extends PermissionCollection> roles)
+   {
+      add(Kind.EXCLUDED, null, excluded);
+      add(Kind.UNCHECKED, null, unchecked);
+      for (Map.Entry<String, ? extends PermissionCollection> role : roles.entrySet())
+         add(Kind.ROLE, role.getKey(), role.getValue());
+   }
+
+   /**
+    * Get the decision for a permission.
+    * 
+    * @param permission - the checked permission
+    * @return the decision, or null if the permission is not an EJB permission
+    */
+   Decision getDecision(Permission permission)
+   {
+      boolean method = permission instanceof EJBMethodPermission;
+      if (method == false && (permission instanceof EJBRoleRefPermission) == false)
+         return null;
+      Bean bean = beans.get(permission.getName());
+      if (bean == null)
+         return NONE;
+      String actions = permission.getActions();
+      String key = actions != null ? actions : "";
+      ConcurrentMap<String, Decision> decisions = method ? bean.methodDecisions : bean.roleRefDecisions;
+      Decision decision = decisions.get(key);
+      if (decision == null)
+      {
+         if (method)
+            decision = decide(permission, bean.methods.get(getMethodName(actions)), bean.allMethods);
+         else
+            decision = decide(permission, bean.roleRefs.get(key), null);
+         if (decisions.size() < MAX_DECISIONS)
+            decisions.putIfAbsent(key, decision);
+      }
+      return decision;
+   }
+
+   private void add(Kind kind, String role, PermissionCollection permissions)
+   {
+      if (permissions == null)
+         return;
+      Enumeration<Permission> elements = permissions.elements();
+      while (elements.hasMoreElements())
+      {
+         Permission p = elements.nextElement();
+         if (p instanceof EJBMethodPermission)
+         {
+            Entry entry = new Entry(kind, role, p);
+            String methodName = getMethodName(p.getActions());
+            Bean bean = getBean(p.getName());
+            if (methodName == null)
+               bean.allMethods.add(entry);
+            else
+               add(bean.methods, methodName, entry);
+         }
+         else if (p instanceof EJBRoleRefPermission)
+         {
+            String actions = p.getActions();
+            add(getBean(p.getName()).roleRefs, actions != null ? actions : "", new Entry(kind, role, p));
+         }
+      }
+   }
+
+   private Bean getBean(String name)
+   {
+      Bean bean = beans.get(name);
+      if (bean == null)
+      {
+         bean = new Bean();
+         beans.put(name, bean);
+      }
+      return bean;
+   }
+
+   private static Decision decide(Permission permission, List<Entry> candidates, List<Entry> more)
+   {
+      boolean excluded = false;
+      boolean unchecked = false;
+      Set<String> roles = new HashSet<String>();
+      for (int n = 0; n < 2; n++)
+      {
+         List<Entry> entries = n == 0 ? candidates : more;
+         if (entries == null)
+            continue;
+         for (Entry entry : entries)
+         {
+            if (entry.permission.implies(permission) == false)
+               continue;
+            if (entry.kind == Kind.EXCLUDED)
+               excluded = true;
+            else if (entry.kind == Kind.UNCHECKED)
+               unchecked = true;
+            else
+               roles.add(entry.role);
+         }
+      }
+      if (excluded == false && unchecked == false && roles.isEmpty())
+         return NONE;
+      return new Decision(excluded, unchecked, roles);
+   }
+
+   /**
+    * Get the method name of the actions of a method permission.
+    * @return the method name, or null if the actions apply to all methods
+    */
+   private static String getMethodName(String actions)
+   {
+      if (actions == null)
+         return null;
+      int comma = actions.indexOf(',');
+      String methodName = comma >= 0 ? actions.substring(0, comma) : actions;
+      return methodName.length() > 0 ? methodName : null;
+   }
+
+   private static void add(Map<String, List<Entry>> map, String key, Entry entry)
+   {
+      List<Entry> entries = map.get(key);
+      if (entries == null)
+      {
+         entries = new ArrayList<Entry>(1);
+         map.put(key, entries);
+      }
+      entries.add(entry);
+   }
+
+   /**
+    * The outcome of checking an EJB permission against the policy
+    */
+   static final class Decision
+   {
+      /** whether an excluded permission implies the permission */
+      final boolean excluded;
+
+      /** whether an unchecked permission implies the permission */
+      final boolean unchecked;
+
+      /** the roles with a permission implying the permission */
+      final Set<String> roles;
+
+      private Decision(boolean excluded, boolean unchecked, Set<String> roles)
+      {
+         this.excluded = excluded;
+         this.unchecked = unchecked;
+         this.roles = roles;
+      }
+   }
+
+   private enum Kind
+   {
+      EXCLUDED, UNCHECKED, ROLE
+   }
+
+   private static final class Entry
+   {
+      private final Kind kind;
+
+      private final String role;
+
+      private final Permission permission;
+
+      private Entry(Kind kind, String role, Permission permission)
+      {
+         this.kind = kind;
+         this.role = role;
+         this.permission = permission;
+      }
+   }
+
+   /**
+    * The permissions of one EJB
+    */
+   private static final class Bean
+   {
+      /** the method permissions by method name */
+      private final Map<String, List<Entry>> methods = new HashMap<String, List<Entry>>();
+
+      /** the method permissions that apply to all methods */
+      private final List<Entry> allMethods = new ArrayList<Entry>();
+
+      /** the role reference permissions by role reference */
+      private final Map<String, List<Entry>> roleRefs = new HashMap<String, List<Entry>>();
+
+      private final ConcurrentMap<String, Decision> methodDecisions = new ConcurrentHashMap<String, Decision>();
+
+      private final ConcurrentMap<String, Decision> roleRefDecisions = new ConcurrentHashMap<String, Decision>();
+   }
+}
@@ -0,0 +1,327 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.security.jacc;
+
+import java.security.Permission;
+import java.security.PermissionCollection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.security.jacc.WebResourcePermission;
+import javax.security.jacc.WebUserDataPermission;
+
+/**
+ * The web permissions of a {@link ContextPolicy}, indexed by the first URL
+ * pattern of their name following the servlet mapping rules: exact patterns
+ * in a map, path-prefix patterns in a trie of path segments, extension patterns
+ * in a map keyed by extension, and the default pattern together with the
+ * patterns that fit none of these in a list that is always searched.
+ * <p>
+ * {@link #candidates(Permission)} returns the permissions that may imply a
+ * permission checked for a request path, that is a superset of the permissions
+ * that actually imply it. Each candidate carries the bitset of the HTTP methods
+ * it applies to, so that most of the candidates that do not match the method
+ * of the request are discarded without calling
+ * {@link Permission#implies(Permission)}.
+ * </p>
+ * An index is immutable once built.
+ * 
+ * @version $Revision$
+ */
+final class WebPermissionIndex
+{
+   /** Source of an indexed permission */
+   enum Kind
+   {
+      EXCLUDED, UNCHECKED, ROLE
+   }
+
+   private static final String[] METHODS = {"DELETE", "GET", "HEAD", "OPTIONS", "POST", "PUT", "TRACE"};
+
+   /** bit of the methods that are not in METHODS */
+   private static final int OTHER_METHODS = 1 << METHODS.length;
+
+   private static final int ALL_METHODS = (OTHER_METHODS << 1) - 1;
+
+   private final PatternIndex resourceIndex = new PatternIndex();
+
+   private final PatternIndex userDataIndex = new PatternIndex();
+
+   /**
+    * Index the web permissions of a policy.
+    * 
+    * @param excluded - the excluded permissions
+    * @param unchecked - the unchecked permissions
+    * @param roles - the permissions of each role
+    */
+   WebPermissionIndex(PermissionCollection excluded, PermissionCollection unchecked,
+         Map<String, ? extends PermissionCollection> roles)
+   {
+      add(Kind.EXCLUDED, null, excluded);
+      add(Kind.UNCHECKED, null, unchecked);
+      for (Map.Entry<String, ? extends PermissionCollection> role : roles.entrySet())
+         add(Kind.ROLE, role.getKey(), role.getValue());
+   }
+
+   /**
+    * Get the permissions that may imply the given permission.
+    * 
+    * @param permission - the checked permission
+    * @return the candidate permissions, excluded ones first, then unchecked
+    * ones, then role ones, or null if the permission is not a web permission
+    * checked for a single request path, in which case the index cannot be used
+    */
+   List<Entry> candidates(Permission permission)
+   {
+      PatternIndex index;
+      if (permission instanceof WebResourcePermission)
+         index = resourceIndex;
+      else if (permission instanceof WebUserDataPermission)
+         index = userDataIndex;
+      else
+         return null;
+      String path = permission.getName();
+      // a request path starts with '/' and has no qualifying patterns, anything else is left to the permissions
+      if (path.length() == 0 || path.charAt(0) != '/' || path.indexOf(':') >= 0 || path.indexOf('*') >= 0)
+         return null;
+      int method = checkedMethod(permission.getActions());
+
+      List<Entry> candidates = new ArrayList<Entry>();
+      index.collect(path, method, candidates);
+      if (candidates.size() > 1)
+         Collections.sort(candidates);
+      return candidates;
+   }
+
+   private void add(Kind kind, String role, PermissionCollection permissions)
+   {
+      if (permissions == null)
+         return;
+      Enumeration<Permission> elements = permissions.elements();
+      while (elements.hasMoreElements())
+      {
+         Permission p = elements.nextElement();
+         if (p instanceof WebResourcePermission)
+            resourceIndex.add(new Entry(kind, role, p));
+         else if (p instanceof WebUserDataPermission)
+            userDataIndex.add(new Entry(kind, role, p));
+      }
+   }
+
+   /**
+    * Get the bit of the method of a checked permission.
+    * @return the bit of the method, or all the bits if the actions do not name a single known method
+    */
+   private static int checkedMethod(String actions)
+   {
+      if (actions == null)
+         return ALL_METHODS;
+      int colon = actions.indexOf(':');
+      String methods = colon >= 0 ? actions.substring(0, colon) : actions;
+      for (int i = 0; i < METHODS.length; i++)
+      {
+         if (METHODS[i].equals(methods))
+            return 1 << i;
+      }
+      return ALL_METHODS;
+   }
+
+   /**
+    * Get the bits of the methods a stored permission applies to.
+    */
+   private static int grantedMethods(String actions)
+   {
+      if (actions == null)
+         return ALL_METHODS;
+      int colon = actions.indexOf(':');
+      String methods = colon >= 0 ? actions.substring(0, colon) : actions;
+      if (methods.length() == 0)
+         return ALL_METHODS;
+      boolean exception = methods.charAt(0) == '!';
+      if (exception)
+         methods = methods.substring(1);
+      int bits = 0;
+      for (String method : methods.split(","))
+      {
+         int bit = OTHER_METHODS;
+         for (int i = 0; i < METHODS.length; i++)
+         {
+            if (METHODS[i].equals(method.trim()))
+               bit = 1 << i;
+         }
+         bits |= bit;
+      }
+      // an exception list applies to every other method, including the unknown ones
+      return exception ? (ALL_METHODS & ~bits) | OTHER_METHODS : bits;
+   }
+
+   /**
+    * An indexed permission
+    */
+   static final class Entry implements Comparable<Entry>
+   {
+      final Kind kind;
+
+      final String role;
+
+      final Permission permission;
+
+      final int methods;
+
+      private Entry(Kind kind, String role, Permission permission)
+      {
+         this.kind = kind;
+         this.role = role;
+         this.permission = permission;
+         this.methods = grantedMethods(permission.getActions());
+      }
+
+      public int compareTo(Entry other)
+      {
+         return kind.compareTo(other.kind);
+      }
+   }
+
+   /**
+    * The permissions of one class, indexed by their first URL pattern
+    */
+   private static final class PatternIndex
+   {
+      private final Map<String, List<Entry>> exact = new HashMap<String, List<Entry>>();
+
+      private final Map<String, List<Entry>> extensions = new HashMap<String, List<Entry>>();
+
+      private final PrefixNode prefixes = new PrefixNode();
+
+      private final List<Entry> always = new ArrayList<Entry>();
+
+      void add(Entry entry)
+      {
+         String name = entry.permission.getName();
+         int colon = name.indexOf(':');
+         String pattern = colon >= 0 ? name.substring(0, colon) : name;
+         if (pattern.startsWith("*."))
+         {
+            String extension = pattern.substring(2);
+            if (extension.indexOf('/') >= 0)
+               always.add(entry);
+            else
+               // keyed by the last extension, a request ending with ".tar.gz" is looked up under "gz"
+               add(extensions, extension.substring(extension.lastIndexOf('.') + 1), entry);
+         }
+         else if (pattern.startsWith("/") && pattern.endsWith("/*"))
+         {
+            PrefixNode node = prefixes;
+            String prefix = pattern.substring(0, pattern.length() - 2);
+            int start = 1;
+            while (start <= prefix.length())
+            {
+               int end = prefix.indexOf('/', start);
+               if (end < 0)
+                  end = prefix.length();
+               node = node.child(prefix.substring(start, end));
+               start = end + 1;
+            }
+            node.entries.add(entry);
+         }
+         else if (pattern.startsWith("/") && !pattern.equals("/") && pattern.indexOf('*') < 0)
+            add(exact, pattern, entry);
+         else
+            // the default pattern "/", the context root "" and the patterns the servlet rules do not define
+            always.add(entry);
+      }
+
+      void collect(String path, int method, List<Entry> candidates)
+      {
+         addAll(always, method, candidates);
+         addAll(exact.get(path), method, candidates);
+         int slash = path.lastIndexOf('/');
+         int dot = path.lastIndexOf('.');
+         if (dot > slash)
+            addAll(extensions.get(path.substring(dot + 1)), method, candidates);
+         // walk the trie along the segments of the path, every node on the way holds a matching prefix
+         PrefixNode node = prefixes;
+         int start = 1;
+         while (node != null)
+         {
+            addAll(node.entries, method, candidates);
+            if (start > path.length())
+               break;
+            int end = path.indexOf('/', start);
+            if (end < 0)
+               end = path.length();
+            node = node.children != null ? node.children.get(path.substring(start, end)) : null;
+            start = end + 1;
+         }
+      }
+
+      private static void addAll(List<Entry> entries, int method, List<Entry> candidates)
+      {
+         if (entries == null)
+            return;
+         for (int i = 0; i < entries.size(); i++)
+         {
+            Entry entry = entries.get(i);
+            if ((entry.methods & method) != 0)
+               candidates.add(entry);
+         }
+      }
+
+      private static void add(Map<String, List<Entry>> map, String key, Entry entry)
+      {
+         List<Entry> entries = map.get(key);
+         if (entries == null)
+         {
+            entries = new ArrayList<Entry>(1);
+            map.put(key, entries);
+         }
+         entries.add(entry);
+      }
+   }
+
+   /**
+    * A node of the path-prefix trie, one level per path segment
+    */
+   private static final class PrefixNode
+   {
+      private Map<String, PrefixNode> children;
+
+      private final List<Entry> entries = new ArrayList<Entry>(1);
+
+      PrefixNode child(String segment)
+      {
+         if (children == null)
+            children = new HashMap<String, PrefixNode>();
+         PrefixNode node = children.get(segment);
+         if (node == null)
+         {
+            node = new PrefixNode();
+            children.put(segment, node);
+         }
+         return node;
+      }
+   }
+}
@@ -21,6 +21,11 @@
   */
 package org.jboss.security.plugins;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import javax.security.auth.callback.CallbackHandler;
 
 import org.jboss.security.AuthenticationManager;
@@ -29,15 +34,37 @@ import org.jboss.security.ISecurityManagement;
 import org.jboss.security.JBossJSSESecurityDomain;
 import org.jboss.security.JSSESecurityDomain;
 import org.jboss.security.audit.AuditManager;
+import org.jboss.security.authorization.AuthorizationContext;
+import org.jboss.security.config.ApplicationPolicy;
+import org.jboss.security.config.SecurityConfiguration;
 import org.jboss.security.identitytrust.IdentityTrustManager;
 import org.jboss.security.mapping.MappingManager;
 import org.jboss.security.plugins.audit.JBossAuditManager;
+import org.jboss.security.plugins.authorization.JBossAuthorizationContext;
 import org.jboss.security.plugins.identitytrust.JBossIdentityTrustManager;
 import org.jboss.security.plugins.mapping.JBossMappingManager;
  
 /**
  *  The Default Security Management class that instantiates the standard 
  *  Security Managers (Authentication, Authorization, Audit, Mapping,IdentityTrust etc)
+ *  <p>
+ *  The audit and mapping managers are shared by all the instances of this class
+ *  and kept per security domain, so that a security context asking for one of them
+ *  on each request gets the same instance. They have no mutators and keep no
+ *  per-caller state. The managers of a domain are dropped when its
+ *  {@link ApplicationPolicy} is replaced in the {@link SecurityConfiguration}, or by
+ *  {@link #invalidate(String)} when the policy is modified in place.
+ *  </p>
+ *  <p>
+ *  The authentication and authorization managers are created on each call: their
+ *  callers set the authorization context, cache timeout, deep copy option or
+ *  authorization manager on the instance they get, and a shared instance would
+ *  leak these settings to every other caller of the domain. The authorization
+ *  managers are cheap to create as they share the authorization context of their
+ *  domain, which is kept with the audit and mapping managers. The identity trust
+ *  managers and the JSSE security domains are configured by their callers too
+ *  and are also created on each call.
+ *  </p>
  *  @author Anil.Saldhana@redhat.com
  *  @since  Sep 9, 2007 
  *  @version $Revision$
@@ -45,6 +72,10 @@ import org.jboss.security.plugins.mapping.JBossMappingManager;
 public class DefaultSecurityManagement implements ISecurityManagement
 {   
    private static final long serialVersionUID = 1L;
+
+   /** The managers of each security domain */
+   private static final ConcurrentMap<String, DomainManagers> domainManagers = new ConcurrentHashMap<String, DomainManagers>();
+
    private CallbackHandler handler = null;
    
    public DefaultSecurityManagement( CallbackHandler cbh)
@@ -52,12 +83,30 @@ public class DefaultSecurityManagement implements ISecurityManagement
       this.handler = cbh;
    }
    
+   /**
+    * Drop the managers of a security domain, the next call creates new ones.
+    * @param securityDomain the security domain whose policy has changed
+    */
+   public static void invalidate(String securityDomain)
+   {
+      if(securityDomain != null)
+         domainManagers.remove(securityDomain);
+   }
+   
    /**
     * @see ISecurityManagement#getAuditManager(String)
     */
    public AuditManager getAuditManager(String securityDomain)
    {
-      return new JBossAuditManager(securityDomain);
+      DomainManagers managers = getDomainManagers(securityDomain);
+      AuditManager am = managers != null ? (AuditManager) managers.get(AuditManager.class) : null;
+      if(am == null)
+      {
+         am = new JBossAuditManager(securityDomain);
+         if(managers != null)
+            am = (AuditManager) managers.register(AuditManager.class, am);
+      }
+      return am;
    }
    
    /**
@@ -73,7 +122,17 @@ public class DefaultSecurityManagement implements ISecurityManagement
     */
    public AuthorizationManager getAuthorizationManager(String securityDomain)
    {
-      return new JBossAuthorizationManager(securityDomain);
+      JBossAuthorizationManager am = new JBossAuthorizationManager(securityDomain);
+      DomainManagers managers = getDomainManagers(securityDomain);
+      if(managers != null)
+      {
+         AuthorizationContext ac = (AuthorizationContext) managers.get(AuthorizationContext.class);
+         if(ac == null)
+            ac = (AuthorizationContext) managers.register(AuthorizationContext.class,
+                  new SharedAuthorizationContext(am.getSecurityDomain()));
+         am.setAuthorizationContext(ac);
+      }
+      return am;
    }
 
    /**
@@ -89,7 +148,15 @@ public class DefaultSecurityManagement implements ISecurityManagement
     */
    public MappingManager getMappingManager(String securityDomain)
    {
-      return new JBossMappingManager(securityDomain);
+      DomainManagers managers = getDomainManagers(securityDomain);
+      MappingManager mm = managers != null ? (MappingManager) managers.get(MappingManager.class) : null;
+      if(mm == null)
+      {
+         mm = new JBossMappingManager(securityDomain);
+         if(managers != null)
+            mm = (MappingManager) managers.register(MappingManager.class, mm);
+      }
+      return mm;
    }
    
    /**
@@ -99,4 +166,73 @@ public class DefaultSecurityManagement implements ISecurityManagement
    {
       return new JBossJSSESecurityDomain(securityDomain);
    }
+
+   /**
+    * Get the managers of a security domain, replacing them if the policy of the domain has changed.
+    * @return the managers, or null if the domain has no name
+    */
+   private static DomainManagers getDomainManagers(String securityDomain)
+   {
+      if(securityDomain == null)
+         return null;
+      ApplicationPolicy policy = SecurityConfiguration.getApplicationPolicy(securityDomain);
+      DomainManagers managers = domainManagers.get(securityDomain);
+      if(managers != null && managers.policy == policy)
+         return managers;
+      DomainManagers created = new DomainManagers(policy);
+      boolean registered = managers == null ? domainManagers.putIfAbsent(securityDomain, created) == null
+            : domainManagers.replace(securityDomain, managers, created);
+      if(registered == false)
+      {
+         // another thread got there first, use its managers if they are for the same policy
+         managers = domainManagers.get(securityDomain);
+         if(managers != null && managers.policy == policy)
+            return managers;
+      }
+      return created;
+   }
+
+   /**
+    * The authorization context shared by the authorization managers of a domain.
+    * Its modules may be called by several threads at once, so their shared state
+    * is synchronized.
+    */
+   private static class SharedAuthorizationContext extends JBossAuthorizationContext
+   {
+      SharedAuthorizationContext(String securityDomain)
+      {
+         super(securityDomain);
+         this.sharedState = Collections.synchronizedMap(new HashMap<String, Object>());
+      }
+   }
+
+   /**
+    * The managers of a security domain, created for one version of its policy
+    */
+   private static class DomainManagers
+   {
+      private final ApplicationPolicy policy;
+
+      private final ConcurrentMap<Object, Object> managers = new ConcurrentHashMap<Object, Object>();
+
+      DomainManagers(ApplicationPolicy policy)
+      {
+         this.policy = policy;
+      }
+
+      Object get(Object key)
+      {
+         return managers.get(key);
+      }
+
+      /**
+       * Register a manager unless another thread did it first.
+       * @return the registered manager
+       */
+      Object register(Object key, Object manager)
+      {
+         Object existing = managers.putIfAbsent(key, manager);
+         return existing != null ? existing : manager;
+      }
+   }
 }
@@ -56,7 +56,7 @@ import org.jboss.security.authorization.Resource;
 import org.jboss.security.callbacks.SecurityContextCallback;
 import org.jboss.security.identity.Role;
 import org.jboss.security.identity.RoleGroup;
-import org.jboss.security.identity.plugins.SimpleRole;
+import org.jboss.security.identity.plugins.IdentityFactory;
 import org.jboss.security.identity.plugins.SimpleRoleGroup;
 import org.jboss.security.mapping.MappingContext;
 import org.jboss.security.mapping.MappingManager;
@@ -210,7 +210,7 @@ implements AuthorizationManager
          return false;
       
       // Check for inclusion in the user's role set
-      boolean isMember = userRoles.containsRole(new SimpleRole(role.getName())); 
+      boolean isMember = userRoles.containsRole(IdentityFactory.createRole(role.getName())); 
       if (isMember == false)
       {   // Check the AnybodyPrincipal special cases
          isMember = (role instanceof AnybodyPrincipal);
@@ -383,8 +383,7 @@ implements AuthorizationManager
             if(userRoles == null)
                userRoles = this.getEmptyRoleGroup();
             
-            mc.performMapping(contextMap, userRoles);
-            mappedUserRoles = mc.getMappingResult().getMappedObject();
+            mappedUserRoles = mc.map(contextMap, userRoles).getMappedObject();
             PicketBoxLogger.LOGGER.traceRolesAfterMapping(userRoles.toString());
          }
          securityContext.getData().put(ROLES_IDENTIFIER, mappedUserRoles);
@@ -414,7 +413,7 @@ implements AuthorizationManager
       Enumeration<? extends Principal> en = toCopy.members();
       while(en.hasMoreElements())
       {
-         source.addRole(new SimpleRole(en.nextElement().getName())); 
+         source.addRole(IdentityFactory.createRole(en.nextElement().getName())); 
       }
        
       return source;
@@ -459,7 +458,7 @@ implements AuthorizationManager
       Enumeration<? extends Principal> principals = roleGroup.members();
       while(principals.hasMoreElements())
       {
-         srg.addRole(new SimpleRole(principals.nextElement().getName()));
+         srg.addRole(IdentityFactory.createRole(principals.nextElement().getName()));
       }
       return srg;  
    }
@@ -24,22 +24,34 @@ package org.jboss.security.plugins;
 import java.io.InputStream;
 import java.io.Serializable;
 import java.net.URL;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.xml.bind.JAXBElement;
 
 import org.jboss.security.PicketBoxLogger;
 import org.jboss.security.PicketBoxMessages;
 import org.jboss.security.authorization.PolicyRegistration;
+import org.jboss.security.authorization.util.JBossXACMLUtil;
+import org.jboss.security.authorization.util.XACMLDecisionCache;
 import org.jboss.security.xacml.core.JBossPDP;
 import org.jboss.security.xacml.factories.PolicyFactory;
+import org.jboss.security.xacml.interfaces.PolicyDecisionPoint;
 import org.jboss.security.xacml.interfaces.XACMLPolicy;
 
 /**
  * Default implementation of Policy Registration interface
+ * <p>
+ * The registration is thread safe. The policy sets are replaced rather than
+ * modified, and the PDP built from the policies of a context is kept until the
+ * policies of the context change. A bounded cache of the decisions of each
+ * context can be enabled with {@link #setDecisionCacheSize(int)}; it is dropped
+ * whenever a policy or policy configuration of the context is (de)registered.
+ * </p>
  * 
  * @author Anil.Saldhana@redhat.com
  * @since Mar 31, 2008
@@ -49,19 +61,96 @@ public class JBossPolicyRegistration implements PolicyRegistration, Serializable
 {
    private static final long serialVersionUID = 1L;
 
-   private final Map<String, Set<XACMLPolicy>> contextIdToXACMLPolicy = new HashMap<String, Set<XACMLPolicy>>();
+   private final Map<String, Set<XACMLPolicy>> contextIdToXACMLPolicy = new ConcurrentHashMap<String, Set<XACMLPolicy>>();
 
    /**
     * When the policy configuration file is registered, we directly store a copy of the JBossPDP that has read in the
     * config file
     */
-   private final Map<String, JBossPDP> contextIDToJBossPDP = new HashMap<String, JBossPDP>();
+   private final Map<String, JBossPDP> contextIDToJBossPDP = new ConcurrentHashMap<String, JBossPDP>();
 
-   public void deRegisterPolicy(String contextID, String type)
+   /** The PDPs built from the registered policies */
+   private final ConcurrentMap<String, PolicyDecisionPoint> contextIDToPolicyPDP = new ConcurrentHashMap<String, PolicyDecisionPoint>();
+
+   private final ConcurrentMap<String, XACMLDecisionCache> decisionCaches = new ConcurrentHashMap<String, XACMLDecisionCache>();
+
+   private volatile int decisionCacheSize;
+
+   /**
+    * Set the number of decisions cached per policy context, 0 (the default) disables the cache.
+    * The decisions are keyed by caller, resource, action and roles, so the cache must not be
+    * enabled with policies depending on the current time.
+    * 
+    * @param decisionCacheSize
+    */
+   public void setDecisionCacheSize(int decisionCacheSize)
+   {
+      this.decisionCacheSize = decisionCacheSize;
+      this.decisionCaches.clear();
+   }
+
+   public int getDecisionCacheSize()
+   {
+      return decisionCacheSize;
+   }
+
+   /**
+    * Get the PDP of a policy context: the one read from the registered policy configuration,
+    * otherwise one evaluating the registered policies.
+    * 
+    * @param contextID
+    * @return the PDP, or null if nothing is registered for the context
+    */
+   public PolicyDecisionPoint getPDP(String contextID)
+   {
+      PolicyDecisionPoint pdp = this.contextIDToJBossPDP.get(contextID);
+      if (pdp != null)
+         return pdp;
+      pdp = this.contextIDToPolicyPDP.get(contextID);
+      if (pdp == null)
+      {
+         Set<XACMLPolicy> policies = this.contextIdToXACMLPolicy.get(contextID);
+         if (policies == null)
+            return null;
+         pdp = JBossXACMLUtil.createPDP(policies);
+         // only keep it if the policies have not changed meanwhile
+         synchronized (this)
+         {
+            if (this.contextIdToXACMLPolicy.get(contextID) == policies)
+               this.contextIDToPolicyPDP.put(contextID, pdp);
+         }
+      }
+      return pdp;
+   }
+
+   /**
+    * Get the decision cache of a policy context.
+    * 
+    * @param contextID
+    * @return the cache, or null if decisions are not cached
+    */
+   public XACMLDecisionCache getDecisionCache(String contextID)
+   {
+      int size = this.decisionCacheSize;
+      if (size <= 0)
+         return null;
+      XACMLDecisionCache cache = this.decisionCaches.get(contextID);
+      if (cache == null)
+      {
+         cache = new XACMLDecisionCache(size);
+         XACMLDecisionCache existing = this.decisionCaches.putIfAbsent(contextID, cache);
+         if (existing != null)
+            cache = existing;
+      }
+      return cache;
+   }
+
+   public synchronized void deRegisterPolicy(String contextID, String type)
    {
       if (PolicyRegistration.XACML.equalsIgnoreCase(type))
       {
          this.contextIdToXACMLPolicy.remove(contextID);
+         policiesChanged(contextID);
          PicketBoxLogger.LOGGER.traceDeregisterPolicy(contextID, type);
       }
    }
@@ -115,13 +204,17 @@ public class JBossPolicyRegistration implements PolicyRegistration, Serializable
          {
             XACMLPolicy policy = PolicyFactory.createPolicy(stream);
 
-            Set<XACMLPolicy> policySet = this.contextIdToXACMLPolicy.get(contextID);
-            if (policySet == null)
+            synchronized (this)
             {
-               policySet = new HashSet<XACMLPolicy>();
+               // a new set, the current one may be in use by a PDP
+               Set<XACMLPolicy> policySet = new HashSet<XACMLPolicy>();
+               Set<XACMLPolicy> current = this.contextIdToXACMLPolicy.get(contextID);
+               if (current != null)
+                  policySet.addAll(current);
+               policySet.add(policy);
+               this.contextIdToXACMLPolicy.put(contextID, Collections.unmodifiableSet(policySet));
+               policiesChanged(contextID);
             }
-            policySet.add(policy);
-            this.contextIdToXACMLPolicy.put(contextID, policySet);
          }
          catch (Exception e)
          {
@@ -144,7 +237,11 @@ public class JBossPolicyRegistration implements PolicyRegistration, Serializable
          {
             JAXBElement<?> jaxbModel = (JAXBElement<?>) objectModel;
             JBossPDP pdp = new JBossPDP(jaxbModel);
-            this.contextIDToJBossPDP.put(contextId, pdp);
+            synchronized (this)
+            {
+               this.contextIDToJBossPDP.put(contextId, pdp);
+               policiesChanged(contextId);
+            }
          }
          catch (Exception e)
          {
@@ -163,7 +260,11 @@ public class JBossPolicyRegistration implements PolicyRegistration, Serializable
          try
          {
             JBossPDP pdp = new JBossPDP(stream);
-            this.contextIDToJBossPDP.put(contextId, pdp);
+            synchronized (this)
+            {
+               this.contextIDToJBossPDP.put(contextId, pdp);
+               policiesChanged(contextId);
+            }
          }
          catch (Exception e)
          {
@@ -171,6 +272,16 @@ public class JBossPolicyRegistration implements PolicyRegistration, Serializable
          }
       }
    }
+   /**
+    * Drop what was derived from the policies of a context, the PDP before the
+    * decisions so that a decision computed meanwhile cannot outlive them
+    */
+   private void policiesChanged(String contextID)
+   {
+      this.contextIDToPolicyPDP.remove(contextID);
+      this.decisionCaches.remove(contextID);
+   }
+
    private void safeClose(InputStream fis)
    {
       try
@@ -0,0 +1,351 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.security.plugins.audit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.jboss.security.PicketBoxLogger;
+import org.jboss.security.audit.AuditContext;
+import org.jboss.security.audit.AuditEvent;
+import org.jboss.security.audit.AuditProvider;
+import org.jboss.security.audit.BatchAuditProvider;
+
+/**
+ *  Audit context that queues the audit events in a bounded buffer and hands
+ *  them to its providers from a background dispatcher thread. The dispatcher
+ *  takes the queued events in batches: a {@link BatchAuditProvider} receives a
+ *  whole batch at once, other providers receive the events one by one.
+ *  <p>
+ *  The {@link OverflowPolicy} decides what happens to an event when the queue
+ *  is full. The queue depth and the number of dispatched and dropped events
+ *  are available for monitoring.
+ *  </p>
+ *  @version $Revision$
+ */
+public class AsyncAuditContext extends JBossAuditContext
+{
+   /**
+    * Behavior of {@link AsyncAuditContext#audit(AuditEvent)} when the queue is full
+    */
+   public enum OverflowPolicy
+   {
+      /** wait for room in the queue */
+      BLOCK,
+      /** discard the event */
+      DROP,
+      /** once the queue is half full keep one event out of the sample rate, discard the event if the queue is full */
+      SAMPLE
+   }
+
+   private final AuditContext next;
+
+   private final BlockingQueue<AuditEvent> queue;
+
+   private final int capacity;
+
+   private final int batchSize;
+
+   private final OverflowPolicy overflowPolicy;
+
+   private final int sampleRate;
+
+   private final AtomicInteger sampleCount = new AtomicInteger();
+
+   private final AtomicLong accepted = new AtomicLong();
+
+   private final AtomicLong dispatched = new AtomicLong();
+
+   private final AtomicLong dropped = new AtomicLong();
+
+   private final AtomicInteger peakQueueDepth = new AtomicInteger();
+
+   private final Thread dispatcher;
+
+   private volatile boolean closed;
+
+   // held for reading while an event is queued and for writing by close(), so
+   // that no event is queued once the dispatcher may have drained the queue
+   private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+
+   /**
+    * Create a context and start its dispatcher thread
+    * @param securityDomain the security domain
+    * @param next an audit context that also receives every event after the providers of this context, may be null
+    * @param capacity the maximum number of queued events
+    * @param batchSize the maximum number of events handed to the providers at once
+    * @param overflowPolicy the behavior when the queue is full
+    * @param sampleRate the sample rate of the {@link OverflowPolicy#SAMPLE} policy
+    */
+   public AsyncAuditContext(String securityDomain, AuditContext next, int capacity, int batchSize,
+         OverflowPolicy overflowPolicy, int sampleRate)
+   {
+      super(securityDomain);
+      this.next = next;
+      this.capacity = Math.max(capacity, 1);
+      this.batchSize = Math.max(batchSize, 1);
+      this.overflowPolicy = overflowPolicy != null ? overflowPolicy : OverflowPolicy.BLOCK;
+      this.sampleRate = Math.max(sampleRate, 1);
+      this.queue = new ArrayBlockingQueue<AuditEvent>(this.capacity);
+      this.dispatcher = new Thread(new Dispatcher(), "Audit dispatcher " + securityDomain);
+      this.dispatcher.setDaemon(true);
+      this.dispatcher.start();
+   }
+
+   /**
+    * Queue the event for the dispatcher. The event is audited on the calling
+    * thread if the context has been closed.
+    * @see AuditContext#audit(AuditEvent)
+    */
+   @Override
+   public void audit(AuditEvent ae)
+   {
+      Boolean queued = null;
+      closeLock.readLock().lock();
+      try
+      {
+         if (!closed)
+            queued = enqueue(ae);
+      }
+      finally
+      {
+         closeLock.readLock().unlock();
+      }
+      if (queued == null)
+      {
+         dispatch(ae);
+         return;
+      }
+      if (queued.booleanValue())
+      {
+         accepted.incrementAndGet();
+         int depth = queue.size();
+         int peak;
+         while (depth > (peak = peakQueueDepth.get()) && !peakQueueDepth.compareAndSet(peak, depth));
+      }
+      else
+      {
+         dropped.incrementAndGet();
+         PicketBoxLogger.LOGGER.traceDroppedAuditEvent(securityDomain);
+      }
+   }
+
+   /**
+    * Wait until the events queued so far have been handed to the providers
+    * @param timeout the maximum time to wait
+    * @param unit the unit of the timeout
+    * @return true if the events have been dispatched, false if the timeout elapsed
+    * @throws InterruptedException if the calling thread is interrupted
+    */
+   public boolean flush(long timeout, TimeUnit unit) throws InterruptedException
+   {
+      long target = accepted.get();
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      synchronized (dispatched)
+      {
+         while (dispatched.get() < target)
+         {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0)
+               return false;
+            dispatched.wait(remaining);
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Stop the dispatcher once the queued events have been dispatched. Events
+    * audited afterwards are handed to the providers on the calling thread.
+    */
+   public void close()
+   {
+      closeLock.writeLock().lock();
+      try
+      {
+         closed = true;
+      }
+      finally
+      {
+         closeLock.writeLock().unlock();
+      }
+      dispatcher.interrupt();
+   }
+
+   /**
+    * @return the number of events waiting in the queue
+    */
+   public int getQueueDepth()
+   {
+      return queue.size();
+   }
+
+   /**
+    * @return the highest number of events seen waiting in the queue
+    */
+   public int getPeakQueueDepth()
+   {
+      return peakQueueDepth.get();
+   }
+
+   /**
+    * @return the maximum number of events the queue can hold
+    */
+   public int getCapacity()
+   {
+      return capacity;
+   }
+
+   /**
+    * @return the number of events handed to the providers by the dispatcher
+    */
+   public long getDispatchedCount()
+   {
+      return dispatched.get();
+   }
+
+   /**
+    * @return the number of events discarded because of the overflow policy
+    */
+   public long getDroppedCount()
+   {
+      return dropped.get();
+   }
+
+   /**
+    * @return the overflow policy
+    */
+   public OverflowPolicy getOverflowPolicy()
+   {
+      return overflowPolicy;
+   }
+
+   /**
+    * Queue the event according to the overflow policy
+    * @return true if the event was queued, false if it was discarded, null if the
+    *    calling thread was interrupted while waiting for room in the queue
+    */
+   private Boolean enqueue(AuditEvent ae)
+   {
+      switch (overflowPolicy)
+      {
+         case DROP:
+            return Boolean.valueOf(queue.offer(ae));
+         case SAMPLE:
+            return Boolean.valueOf((queue.size() < capacity / 2 || sampleCount.incrementAndGet() % sampleRate == 0)
+                  && queue.offer(ae));
+         default:
+            try
+            {
+               queue.put(ae);
+               return Boolean.TRUE;
+            }
+            catch (InterruptedException e)
+            {
+               Thread.currentThread().interrupt();
+               return null;
+            }
+      }
+   }
+
+   private void dispatch(AuditEvent ae)
+   {
+      super.audit(ae);
+      if (next != null)
+         next.audit(ae);
+   }
+
+   private void dispatch(List<AuditEvent> batch)
+   {
+      List<AuditProvider> providers = this.providerList;
+      for (int i = 0; i < providers.size(); i++)
+      {
+         AuditProvider ap = providers.get(i);
+         try
+         {
+            if (ap instanceof BatchAuditProvider)
+            {
+               ((BatchAuditProvider) ap).audit(batch);
+            }
+            else
+            {
+               for (AuditEvent ae : batch)
+                  ap.audit(ae);
+            }
+         }
+         catch (RuntimeException e)
+         {
+            PicketBoxLogger.LOGGER.warnAuditProviderFailure(ap.getClass().getName(), e);
+         }
+      }
+      if (next != null)
+      {
+         for (AuditEvent ae : batch)
+            next.audit(ae);
+      }
+   }
+
+   private class Dispatcher implements Runnable
+   {
+      public void run()
+      {
+         List<AuditEvent> batch = new ArrayList<AuditEvent>(batchSize);
+         while (!closed || !queue.isEmpty())
+         {
+            try
+            {
+               AuditEvent first = closed ? queue.poll() : queue.take();
+               if (first == null)
+                  continue;
+               batch.add(first);
+            }
+            catch (InterruptedException e)
+            {
+               // close() was called, dispatch what is left in the queue
+               continue;
+            }
+            queue.drainTo(batch, batchSize - 1);
+            try
+            {
+               dispatch(batch);
+            }
+            catch (RuntimeException e)
+            {
+               PicketBoxLogger.LOGGER.warnAuditProviderFailure(String.valueOf(next), e);
+            }
+            synchronized (dispatched)
+            {
+               dispatched.addAndGet(batch.size());
+               dispatched.notifyAll();
+            }
+            batch.clear();
+         }
+      }
+   }
+}
@@ -7,12 +7,12 @@
 package org.jboss.security.plugins.audit;
 
 import java.security.PrivilegedActionException;
-import java.util.Arrays;
-import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.jboss.security.PicketBoxLogger;
 import org.jboss.security.SecurityUtil;
+import org.jboss.security.cache.FlushListener;
+import org.jboss.security.cache.FlushListeners;
 import org.jboss.security.audit.AuditContext;
 import org.jboss.security.audit.AuditEvent;
 import org.jboss.security.audit.AuditManager;
@@ -27,20 +27,53 @@ import org.jboss.security.plugins.ClassLoaderLocatorFactory;
 
 /**
  *  Manages a set of AuditContext
+ *  <p>
+ *  The audit context of a security domain is built once from its audit
+ *  configuration and shared until the configuration changes. When the
+ *  <code>jboss.security.audit.async</code> system property is true the
+ *  contexts deliver the events from a background thread, see
+ *  {@link AsyncAuditContext}. The companion properties are
+ *  <code>jboss.security.audit.async.capacity</code>,
+ *  <code>jboss.security.audit.async.batch</code>,
+ *  <code>jboss.security.audit.async.overflow</code> (BLOCK, DROP or SAMPLE)
+ *  and <code>jboss.security.audit.async.sample</code>. The contexts of a
+ *  domain are dropped when the domain is flushed or no longer has an audit
+ *  configuration.
+ *  </p>
  *  @author <a href="mailto:Anil.Saldhana@jboss.org">Anil Saldhana</a>
  *  @version $Revision$
  *  @since  Aug 22, 2006
  */ 
 public class JBossAuditManager implements AuditManager
 {
+   public static final String ASYNC_PROPERTY = "jboss.security.audit.async";
+
+   public static final String ASYNC_CAPACITY_PROPERTY = "jboss.security.audit.async.capacity";
+
+   public static final String ASYNC_BATCH_PROPERTY = "jboss.security.audit.async.batch";
+
+   public static final String ASYNC_OVERFLOW_PROPERTY = "jboss.security.audit.async.overflow";
+
+   public static final String ASYNC_SAMPLE_PROPERTY = "jboss.security.audit.async.sample";
+
    private static ConcurrentHashMap<String,AuditContext> contexts = new ConcurrentHashMap<String,AuditContext>();
    
+   // contexts built from the audit configuration of the security domains
+   private static ConcurrentHashMap<String,ConfiguredContext> configuredContexts = new ConcurrentHashMap<String,ConfiguredContext>();
+   
    private static AuditContext defaultContext = null;
    
    static
    {
       defaultContext = new JBossAuditContext("Default_Context");
       defaultContext.addProvider(new LogAuditProvider()); 
+      FlushListeners.addListener(new FlushListener()
+      {
+         public void flush(String securityDomain)
+         {
+            flushConfiguredContexts(securityDomain);
+         }
+      });
    }
 
    private String securityDomain;
@@ -52,29 +85,18 @@ public class JBossAuditManager implements AuditManager
    
    public AuditContext getAuditContext() throws PrivilegedActionException
    {
-	  ClassLoader moduleCL = null;
       AuditContext ac = (AuditContext)contexts.get(securityDomain);
       if(ac == null)
       {
-    	  ac = new JBossAuditContext(securityDomain);
     	  ApplicationPolicy ap = SecurityConfiguration.getApplicationPolicy(securityDomain);
     	  if(ap != null)
     	  {
     		  AuditInfo ai = ap.getAuditInfo();
     		  if(ai != null)
-    		  {  
-    			  String jbossModuleName = ai.getJBossModuleName();
-    			  if(jbossModuleName != null)
-    			  {
-    				  ClassLoaderLocator cll = ClassLoaderLocatorFactory.get();
-    				   if(cll != null)
-    				   {
-    					   moduleCL = cll.get(jbossModuleName);
-    				   }
-    			  }
-				  ac = instantiate(moduleCL, ai);
-    		  }
+    			  ac = getConfiguredContext(ai);
     	  }
+    	  if(ac == null && configuredContexts.containsKey(securityDomain))
+    	     flushConfiguredContexts(securityDomain);
       }
       if(ac == null)
       {
@@ -109,8 +131,8 @@ public class JBossAuditManager implements AuditManager
         throw new RuntimeException(e);
       }
       ac.audit(ae); 
-      //Provide default JBoss trace logging
-      if(ac !=  defaultContext)
+      //Provide default JBoss trace logging, the asynchronous contexts forward the events themselves
+      if(ac !=  defaultContext && !(ac instanceof AsyncAuditContext))
       {
          defaultContext.audit(ae);
       }
@@ -121,12 +143,100 @@ public class JBossAuditManager implements AuditManager
       return this.securityDomain;
    } 
    
-   private AuditContext instantiate(ClassLoader cl, AuditInfo ai)
+   private AuditContext getConfiguredContext(AuditInfo ai)
+   {
+      AuditProviderEntry[] entries = ai.getAuditProviderEntry();
+      String jbossModuleName = ai.getJBossModuleName();
+      ConfiguredContext cc = configuredContexts.get(securityDomain);
+      if(cc != null && cc.isBuiltFrom(jbossModuleName, entries))
+         return cc.context;
+      synchronized(configuredContexts)
+      {
+         cc = configuredContexts.get(securityDomain);
+         if(cc != null && cc.isBuiltFrom(jbossModuleName, entries))
+            return cc.context;
+         ClassLoader moduleCL = null;
+         if(jbossModuleName != null)
+         {
+            ClassLoaderLocator cll = ClassLoaderLocatorFactory.get();
+            if(cll != null)
+            {
+               moduleCL = cll.get(jbossModuleName);
+            }
+         }
+         AuditContext ac = instantiate(moduleCL, entries);
+         configuredContexts.put(securityDomain, new ConfiguredContext(jbossModuleName, entries, ac));
+         if(cc != null)
+            cc.close();
+         return ac;
+      }
+   }
+
+   /**
+    * Drop the audit contexts built for a security domain
+    * @param securityDomain the security domain, null for all of them
+    */
+   static void flushConfiguredContexts(String securityDomain)
+   {
+      synchronized(configuredContexts)
+      {
+         if(securityDomain == null)
+         {
+            for(ConfiguredContext cc : configuredContexts.values())
+               cc.close();
+            configuredContexts.clear();
+         }
+         else
+         {
+            ConfiguredContext cc = configuredContexts.remove(securityDomain);
+            if(cc != null)
+               cc.close();
+         }
+      }
+   }
+   
+   private static int getIntProperty(String name, int defaultValue)
    {
-       AuditContext ac = new JBossAuditContext(securityDomain);
-       AuditProviderEntry[] apeArr = ai.getAuditProviderEntry();
-       List<AuditProviderEntry> list = Arrays.asList(apeArr);
-       for(AuditProviderEntry ape:list)
+      String value = SecurityActions.getSystemProperty(name, null);
+      if(value == null)
+         return defaultValue;
+      try
+      {
+         return Integer.parseInt(value.trim());
+      }
+      catch (NumberFormatException e)
+      {
+         PicketBoxLogger.LOGGER.warnInvalidPropertyValue(value, name, String.valueOf(defaultValue));
+         return defaultValue;
+      }
+   }
+
+   private AuditContext instantiate(ClassLoader cl, AuditProviderEntry[] apeArr)
+   {
+       AuditContext ac;
+       if(Boolean.parseBoolean(SecurityActions.getSystemProperty(ASYNC_PROPERTY, "false")))
+       {
+          AsyncAuditContext.OverflowPolicy policy = AsyncAuditContext.OverflowPolicy.BLOCK;
+          String overflow = SecurityActions.getSystemProperty(ASYNC_OVERFLOW_PROPERTY, null);
+          if(overflow != null)
+          {
+             try
+             {
+                policy = AsyncAuditContext.OverflowPolicy.valueOf(overflow.trim().toUpperCase());
+             }
+             catch (IllegalArgumentException e)
+             {
+                PicketBoxLogger.LOGGER.warnInvalidPropertyValue(overflow, ASYNC_OVERFLOW_PROPERTY, policy.name());
+             }
+          }
+          ac = new AsyncAuditContext(securityDomain, defaultContext,
+                getIntProperty(ASYNC_CAPACITY_PROPERTY, 8192),
+                getIntProperty(ASYNC_BATCH_PROPERTY, 256),
+                policy, getIntProperty(ASYNC_SAMPLE_PROPERTY, 10));
+       }
+       else
+          ac = new JBossAuditContext(securityDomain);
+       for(AuditProviderEntry ape:apeArr)
        {
           String pname = ape.getName();
           try
@@ -136,9 +246,50 @@ public class JBossAuditManager implements AuditManager
           }
           catch (Exception e)
           {
+             if(ac instanceof AsyncAuditContext)
+                ((AsyncAuditContext) ac).close();
              throw new RuntimeException(e);
           } 
        }
        return ac;
    }
+
+   /**
+    * An audit context together with the configuration it was built from
+    */
+   private static class ConfiguredContext
+   {
+      private final String jbossModuleName;
+
+      private final AuditProviderEntry[] entries;
+
+      private final AuditContext context;
+
+      ConfiguredContext(String jbossModuleName, AuditProviderEntry[] entries, AuditContext context)
+      {
+         this.jbossModuleName = jbossModuleName;
+         this.entries = entries.clone();
+         this.context = context;
+      }
+
+      boolean isBuiltFrom(String moduleName, AuditProviderEntry[] current)
+      {
+         if(moduleName == null ? jbossModuleName != null : !moduleName.equals(jbossModuleName))
+            return false;
+         if(current.length != entries.length)
+            return false;
+         for(int i = 0; i < entries.length; i++)
+         {
+            if(current[i] != entries[i])
+               return false;
+         }
+         return true;
+      }
+
+      void close()
+      {
+         if(context instanceof AsyncAuditContext)
+            ((AsyncAuditContext) context).close();
+      }
+   }
 }
\ No newline at end of file
@@ -22,6 +22,7 @@
 package org.jboss.security.plugins.audit;
 
 import java.security.AccessController;
+import java.security.PrivilegedAction;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
  
@@ -102,4 +103,15 @@ class SecurityActions
          }
       });
    }
+
+   static String getSystemProperty(final String name, final String defaultValue)
+   {
+      return AccessController.doPrivileged(new PrivilegedAction<String>()
+      {
+         public String run()
+         {
+            return System.getProperty(name, defaultValue);
+         }
+      });
+   }
 }
\ No newline at end of file
@@ -21,19 +21,23 @@
 */
 package org.jboss.security.plugins.auth;
 
+import java.io.Serializable;
 import java.lang.reflect.Method;
 import java.lang.reflect.UndeclaredThrowableException;
 import java.security.Principal;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.security.auth.Subject;
 import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.login.AppConfigurationEntry;
 import javax.security.auth.login.LoginContext;
 import javax.security.auth.login.LoginException;
 
 import org.jboss.security.AuthenticationManager;
 import org.jboss.security.AuthorizationManager;
+import org.jboss.security.CacheableManager;
 import org.jboss.security.PicketBoxLogger;
 import org.jboss.security.PicketBoxMessages;
 import org.jboss.security.RealmMapping;
@@ -42,12 +46,20 @@ import org.jboss.security.SecurityContext;
 import org.jboss.security.SecurityContextAssociation;
 import org.jboss.security.SecurityUtil;
 import org.jboss.security.SubjectSecurityManager;
+import org.jboss.security.Util;
 import org.jboss.security.auth.callback.JBossCallbackHandler;
+import org.jboss.security.auth.callback.SecurityInfoMethods;
 import org.jboss.security.auth.login.BaseAuthenticationInfo;
+import org.jboss.security.auth.login.DirectLoginContext;
+import org.jboss.security.cache.BoundedConcurrentCache;
+import org.jboss.security.cache.BoundedConcurrentCache.RemovalCause;
+import org.jboss.security.cache.BoundedConcurrentCache.RemovalListener;
+import org.jboss.security.cache.FlushListeners;
 import org.jboss.security.config.ApplicationPolicy;
 import org.jboss.security.config.SecurityConfiguration;
 import org.jboss.security.plugins.ClassLoaderLocator;
 import org.jboss.security.plugins.ClassLoaderLocatorFactory;
+import org.jboss.security.plugins.auth.JaasSecurityManagerBase.DomainInfo;
 
 /** The JaasSecurityManager is responsible both for authenticating credentials
  associated with principals and for role mapping. This implementation relies
@@ -55,6 +67,10 @@ import org.jboss.security.plugins.ClassLoaderLocatorFactory;
  domain name associated with the class for authentication,
  and the context JAAS Subject object for role mapping.
  
+ Authentication results can optionally be cached by setting a cache through
+ {@link #setCache(ConcurrentMap)}. Without a cache every call to isValid
+ performs a JAAS login.
+ 
  @see #isValid(Principal, Object, Subject)
  @see #getPrincipal(Principal)
  @see #doesUserHaveRole(Principal, Set)
@@ -65,7 +81,7 @@ import org.jboss.security.plugins.ClassLoaderLocatorFactory;
  @version $Revision: 62860 $
 */
 public class JaasSecurityManagerBase 
-   implements SubjectSecurityManager, RealmMapping
+   implements SubjectSecurityManager, RealmMapping, CacheableManager<ConcurrentMap<Principal, DomainInfo>, Principal>
 {
    /** The name of the domain this instance is securing. It is used as
     the appName into the SecurityPolicy.
@@ -74,12 +90,17 @@ public class JaasSecurityManagerBase
    /** A cache of DomainInfo objects keyd by Principal. This is now
     always set externally by our security manager service.
     */
+   protected ConcurrentMap<Principal, DomainInfo> domainCache;
+   /** The time in milliseconds a cached authentication remains valid, 0 for no limit */
+   private long cacheTimeout = 0;
    /** The JAAS callback handler to use in defaultLogin */
    private CallbackHandler handler;
    /** The setSecurityInfo(Principal, Object) method of the handler obj */
    private transient Method setSecurityInfo;
    /** The flag to indicate that the Subject sets need to be deep copied*/
    private boolean deepCopySubjectOption = false; 
+   /** The flag to indicate that the login modules are run by a DirectLoginContext instead of a LoginContext */
+   private boolean directLoginOption = false;
    
    private AuthorizationManager authorizationManager;
 
@@ -104,10 +125,9 @@ public class JaasSecurityManagerBase
       String categoryName = getClass().getName()+'.'+securityDomain;
 
       // Get the setSecurityInfo(Principal principal, Object credential) method
-      Class<?>[] sig = {Principal.class, Object.class};
       try
       {
-         setSecurityInfo = handler.getClass().getMethod("setSecurityInfo", sig);
+         setSecurityInfo = SecurityInfoMethods.get(handler.getClass());
       }
       catch (Exception e)
       {
@@ -125,6 +145,30 @@ public class JaasSecurityManagerBase
    {
       this.deepCopySubjectOption = flag ;
    } 
+
+   /**
+    * Flag to specify if the login module stack of the domain is run
+    * by a {@link DirectLoginContext} instead of the JAAS LoginContext. The login
+    * modules of the domain can also ask for it with {@link DirectLoginContext#DIRECT_LOGIN_OPTION}
+    * 
+    * @param flag
+    */
+   public void setDirectLoginOption(Boolean flag)
+   {
+      this.directLoginOption = flag;
+   }
+
+   /**
+    * Set the time in milliseconds after which a cached authentication
+    * is no longer used. A value of 0 keeps entries until they are flushed
+    * or removed by the cache itself.
+    * 
+    * @param cacheTimeout
+    */
+   public void setCacheTimeout(long cacheTimeout)
+   {
+      this.cacheTimeout = cacheTimeout;
+   }
    
    /**
     * Set an AuthorizationManager
@@ -176,7 +220,7 @@ public class JaasSecurityManagerBase
    }
 
    /** Validate that the given credential is correct for principal. This first
-    will check the current CachePolicy object if one exists to see if the
+    will check the current cache if one exists to see if the
     user's cached credentials match the given credential. If there is no
     credential cache or the cache information is invalid or does not match,
     the user is authenticated against the JAAS login modules configured for
@@ -190,9 +234,13 @@ public class JaasSecurityManagerBase
    public boolean isValid(Principal principal, Object credential,
       Subject activeSubject)
    {
-      PicketBoxLogger.LOGGER.traceBeginIsValid(principal, null);
+      // first check cache
+      DomainInfo cachedEntry = getCacheInfo(principal);
+      PicketBoxLogger.LOGGER.traceBeginIsValid(principal, cachedEntry != null ? cachedEntry.toString() : null);
 
       boolean isValid = false;
+      if( cachedEntry != null )
+         isValid = validateCache(cachedEntry, credential, activeSubject);
       if( isValid == false )
          isValid = authenticate(principal, credential, activeSubject);
 
@@ -278,6 +326,116 @@ public class JaasSecurityManagerBase
       throw new UnsupportedOperationException();
    }
 
+   /**
+    * @see CacheableManager#setCache(Object)
+    */
+   public void setCache(ConcurrentMap<Principal, DomainInfo> cache)
+   {
+      // the subjects of the entries evicted or expired by a bounded cache are logged out
+      if (cache instanceof BoundedConcurrentCache)
+         ((BoundedConcurrentCache<Principal, DomainInfo>) cache).setRemovalListener(LOGOUT_LISTENER);
+      this.domainCache = cache;
+   }
+
+   /**
+    * @see CacheableManager#flushCache()
+    */
+   public void flushCache()
+   {
+      PicketBoxLogger.LOGGER.traceFlushWholeCache();
+      if (domainCache != null)
+         domainCache.clear();
+      // release the resources the login modules cached for the domain
+      FlushListeners.flush(securityDomain);
+   }
+
+   /**
+    * @see CacheableManager#flushCache(Object)
+    */
+   public void flushCache(Principal key)
+   {
+      if (domainCache != null && key != null)
+      {
+         PicketBoxLogger.LOGGER.traceFlushCacheEntry(key.getName());
+         domainCache.remove(key);
+      }
+   }
+
+   /**
+    * @see CacheableManager#containsKey(Object)
+    */
+   public boolean containsKey(Principal key)
+   {
+      return getCacheInfo(key) != null;
+   }
+
+   /**
+    * @see CacheableManager#getCachedKeys()
+    */
+   public Set<Principal> getCachedKeys()
+   {
+      if (domainCache != null)
+         return domainCache.keySet();
+      return null;
+   }
+
+   /**
+    * Retrieve a live entry from the cache, dropping it if it has expired.
+    * 
+    * @param principal entry's key
+    * @return entry's value or null if not found
+    */
+   private DomainInfo getCacheInfo(Principal principal)
+   {
+      if (domainCache == null || principal == null)
+         return null;
+      DomainInfo info = domainCache.get(principal);
+      if (info != null && info.isExpired(System.currentTimeMillis()))
+      {
+         domainCache.remove(principal, info);
+         info = null;
+      }
+      return info;
+   }
+
+   /**
+    * Validate the cache credential value against the provided credential
+    */
+   private boolean validateCache(DomainInfo info, Object credential, Subject theSubject)
+   {
+      PicketBoxLogger.LOGGER.traceBeginValidateCache(info.toString(), credential != null ? credential.getClass() : null);
+
+      boolean isValid = Util.credentialsMatch(info.credential, credential);
+
+      // If the credentials match, set the thread's active Subject
+      if (isValid && theSubject != null)
+      {
+         SubjectActions.copySubject(info.subject, theSubject, false, this.deepCopySubjectOption);
+      }
+      PicketBoxLogger.LOGGER.traceEndValidteCache(isValid);
+      return isValid;
+   }
+
+   /**
+    * Insert a new entry in the cache, replacing any entry of the principal.
+    */
+   private void updateCache(DomainInfo info, Subject subject, Principal principal, Object credential)
+   {
+      // If we don't have a cache there is nothing to update
+      if (domainCache == null || principal == null)
+         return;
+
+      info.subject = new Subject();
+      SubjectActions.copySubject(subject, info.subject, true, this.deepCopySubjectOption);
+      info.credential = credential;
+      if (cacheTimeout > 0)
+         info.expirationTime = System.currentTimeMillis() + cacheTimeout;
+
+      PicketBoxLogger.LOGGER.traceUpdateCache(SubjectActions.toString(subject), SubjectActions.toString(info.subject));
+      domainCache.put(principal, info);
+      PicketBoxLogger.LOGGER.traceInsertedCacheInfo(info.toString());
+   }
+
    /** Currently this simply calls defaultLogin() to do a JAAS login using the
     security domain name as the login module configuration name.
     
@@ -327,8 +485,8 @@ public class JaasSecurityManagerBase
 
 			// Validate the principal using the login configuration for this
 			// domain
-			LoginContext lc = defaultLogin(principal, credential);
-			subject = lc.getSubject();
+			DomainInfo info = new DomainInfo();
+			subject = defaultLogin(principal, credential, info);
 
 			// Set the current subject if login was successful
 			if (subject != null) {
@@ -341,6 +499,8 @@ public class JaasSecurityManagerBase
 				}
 
 				authenticated = true;
+				// Build the Subject based DomainInfo cache value
+				updateCache(info, subject, principal, credential);
 			}
 		} catch (LoginException e) {
 			// Don't log anonymous user failures unless trace level logging is
@@ -358,35 +518,113 @@ public class JaasSecurityManagerBase
 
    /** Pass the security info to the login modules configured for
     this security domain using our SecurityAssociationHandler.
+    The login context is kept in the given DomainInfo for the logout.
     @return The authenticated Subject if successful.
     @exception LoginException throw if login fails for any reason.
     */
-   private LoginContext defaultLogin(Principal principal, Object credential)
+   private Subject defaultLogin(Principal principal, Object credential, DomainInfo info)
       throws LoginException
    {
       /* We use our internal CallbackHandler to provide the security info. A
       copy must be made to ensure there is a unique handler per active
       login since there can be multiple active logins.
       */
-      Object[] securityInfo = {principal, credential};
       CallbackHandler theHandler = null;
-      try
+      if (handler.getClass() == JBossCallbackHandler.class)
       {
-         theHandler = (CallbackHandler) handler.getClass().newInstance();
-         setSecurityInfo.invoke(theHandler, securityInfo);
+         theHandler = new JBossCallbackHandler(principal, credential);
       }
-      catch (Throwable e)
+      else
       {
-         LoginException le = new LoginException(PicketBoxMessages.MESSAGES.unableToFindSetSecurityInfoMessage());
-         le.initCause(e);
-         throw le;
+         Object[] securityInfo = {principal, credential};
+         try
+         {
+            theHandler = (CallbackHandler) handler.getClass().newInstance();
+            setSecurityInfo.invoke(theHandler, securityInfo);
+         }
+         catch (Throwable e)
+         {
+            LoginException le = new LoginException(PicketBoxMessages.MESSAGES.unableToFindSetSecurityInfoMessage());
+            le.initCause(e);
+            throw le;
+         }
       }
       Subject subject = new Subject();
-      LoginContext lc = null;
       PicketBoxLogger.LOGGER.traceDefaultLoginPrincipal(principal);
-      lc = SubjectActions.createLoginContext(securityDomain, subject, theHandler);
+      AppConfigurationEntry[] entries = DirectLoginContext.getEntries(securityDomain);
+      if (directLoginOption || DirectLoginContext.isEnabled(entries))
+      {
+         DirectLoginContext dlc = new DirectLoginContext(securityDomain, subject, theHandler, entries);
+         dlc.login();
+         info.directLoginContext = dlc;
+         PicketBoxLogger.LOGGER.traceDefaultLoginSubject(dlc.toString(), SubjectActions.toString(subject));
+         return dlc.getSubject();
+      }
+      LoginContext lc = SubjectActions.createLoginContext(securityDomain, subject, theHandler);
       lc.login();
+      info.loginContext = lc;
       PicketBoxLogger.LOGGER.traceDefaultLoginSubject(lc.toString(), SubjectActions.toString(subject));
-      return lc;
+      return lc.getSubject();
+   }
+
+   /**
+    * Logs out the {@link DomainInfo} values removed from the cache.
+    */
+   private static final RemovalListener<Principal, DomainInfo> LOGOUT_LISTENER = new RemovalListener<Principal, DomainInfo>()
+   {
+      public void entryRemoved(Principal key, DomainInfo value, RemovalCause cause)
+      {
+         value.logout();
+      }
+   };
+
+   /**
+    * A cache value. Holds information about the authentication process.
+    */
+   public static class DomainInfo implements Serializable
+   {
+      private static final long serialVersionUID = -1489414962960416384L;
+
+      protected LoginContext loginContext;
+
+      protected DirectLoginContext directLoginContext;
+
+      protected Subject subject;
+
+      protected Object credential;
+
+      /** the time in milliseconds after which the entry is stale, 0 if it never expires */
+      protected long expirationTime;
+
+      public boolean isExpired(long now)
+      {
+         return expirationTime > 0 && now > expirationTime;
+      }
+
+      public void logout()
+      {
+         if (loginContext != null)
+         {
+            try
+            {
+               loginContext.logout();
+            }
+            catch (Exception e)
+            {
+               PicketBoxLogger.LOGGER.traceCacheEntryLogoutFailure(e);
+            }
+         }
+         else if (directLoginContext != null)
+         {
+            try
+            {
+               directLoginContext.logout();
+            }
+            catch (Exception e)
+            {
+               PicketBoxLogger.LOGGER.traceCacheEntryLogoutFailure(e);
+            }
+         }
+      }
    }
 }
\ No newline at end of file
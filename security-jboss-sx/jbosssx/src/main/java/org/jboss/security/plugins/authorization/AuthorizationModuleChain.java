@@ -0,0 +1,275 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.security.plugins.authorization;
+
+import java.security.PrivilegedActionException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.security.auth.Subject;
+import javax.security.auth.callback.CallbackHandler;
+
+import org.jboss.security.PicketBoxLogger;
+import org.jboss.security.PicketBoxMessages;
+import org.jboss.security.authorization.AuthorizationModule;
+import org.jboss.security.authorization.config.AuthorizationModuleEntry;
+import org.jboss.security.config.ControlFlag;
+import org.jboss.security.identity.RoleGroup;
+
+/**
+ * The authorization modules of a security domain, resolved once from the
+ * {@code AuthorizationModuleEntry} array of its {@code AuthorizationInfo}. A
+ * chain is immutable and remembers the entries it was compiled from, so that
+ * a change of the {@code ApplicationPolicy} is detected with
+ * {@link #isCompiledFrom(String, AuthorizationModuleEntry[])}.
+ * <p>
+ * The module instances handed out by a chain depend on the value of the
+ * {@link JBossAuthorizationContext#MODULE_INSTANCE_OPTION} option of each entry:
+ * <ul>
+ * <li>new (the default): a new instance is created and initialized for every
+ * authorization.
+ * <li>pooled: instances are initialized for every authorization and reused by
+ * later authorizations once the current one is over. At most
+ * {@link JBossAuthorizationContext#MODULE_POOL_SIZE_OPTION} idle instances are
+ * kept, the extra ones are dropped when they are released.
+ * <li>stateless: a single instance is initialized once, with a null subject, callback
+ * handler, shared state and roles, and is shared by all the concurrent authorizations.
+ * This mode only works for modules that never read those values and rely on the
+ * Resource they are given alone; a module that reads them sees nulls.
+ * </ul>
+ *
+ * @version $Revision$
+ */
+final class AuthorizationModuleChain
+{
+   private final String jbossModuleName;
+
+   private final AuthorizationModuleEntry[] entries;
+
+   private final Link[] links;
+
+   private final List<ControlFlag> controlFlags;
+
+   private AuthorizationModuleChain(String jbossModuleName, AuthorizationModuleEntry[] entries, Link[] links)
+   {
+      this.jbossModuleName = jbossModuleName;
+      this.entries = entries;
+      this.links = links;
+      ControlFlag[] flags = new ControlFlag[links.length];
+      for (int i = 0; i < links.length; i++)
+         flags[i] = links[i].flag;
+      this.controlFlags = Collections.unmodifiableList(Arrays.asList(flags));
+   }
+
+   /**
+    * Resolve the module classes of the given entries.
+    *
+    * @param jbossModuleName - the name of the JBoss Module of the AuthorizationInfo, may be null
+    * @param entries - the module entries of the AuthorizationInfo
+    * @param cl - the class loader of the modules, null to use the default class loader
+    * @return the compiled chain
+    * @throws PrivilegedActionException - thrown if the context class loader cannot be obtained
+    * @throws IllegalStateException - thrown if a module class cannot be loaded
+    */
+   static AuthorizationModuleChain compile(String jbossModuleName, AuthorizationModuleEntry[] entries, ClassLoader cl)
+         throws PrivilegedActionException
+   {
+      Link[] links = new Link[entries.length];
+      for (int i = 0; i < entries.length; i++)
+      {
+         AuthorizationModuleEntry entry = entries[i];
+         ControlFlag flag = entry.getControlFlag();
+         if (flag == null)
+         {
+            flag = ControlFlag.REQUIRED;
+         }
+         Map<String, Object> options = entry.getOptions();
+         Object instance = options != null ? options.get(JBossAuthorizationContext.MODULE_INSTANCE_OPTION) : null;
+         Class<? extends AuthorizationModule> moduleClass = loadModuleClass(cl, entry.getPolicyModuleName());
+         Link link = new Link(moduleClass, flag, options, instance != null ? instance.toString() : null);
+         if (link.stateless != null)
+            link.stateless.initialize(null, null, null, options, null);
+         links[i] = link;
+      }
+      return new AuthorizationModuleChain(jbossModuleName, entries, links);
+   }
+
+   /**
+    * Check if the chain was compiled from the given configuration.
+    *
+    * @param jbossModuleName - the name of the JBoss Module of the AuthorizationInfo
+    * @param entries - the module entries of the AuthorizationInfo
+    * @return true if the chain holds the same entries in the same order
+    */
+   boolean isCompiledFrom(String jbossModuleName, AuthorizationModuleEntry[] entries)
+   {
+      if (this.entries.length != entries.length)
+         return false;
+      if (jbossModuleName == null ? this.jbossModuleName != null : !jbossModuleName.equals(this.jbossModuleName))
+         return false;
+      for (int i = 0; i < entries.length; i++)
+      {
+         if (this.entries[i] != entries[i])
+            return false;
+      }
+      return true;
+   }
+
+   /**
+    * Get the control flags of the modules, in the order of the chain.
+    *
+    * @return an unmodifiable list of control flags
+    */
+   List<ControlFlag> getControlFlags()
+   {
+      return controlFlags;
+   }
+
+   /**
+    * Get initialized instances of the modules for one authorization. They must
+    * be given back with {@link #releaseModules(List)} once the authorization is over.
+    *
+    * @return the modules, in the order of the chain
+    */
+   List<AuthorizationModule> acquireModules(Subject subject, CallbackHandler handler, Map<String, Object> sharedState,
+         RoleGroup roles)
+   {
+      List<AuthorizationModule> modules = new ArrayList<AuthorizationModule>(links.length);
+      for (Link link : links)
+      {
+         AuthorizationModule module = link.stateless;
+         if (module == null)
+         {
+            module = link.pool != null ? link.pool.poll() : null;
+            if (module == null)
+               module = link.newInstance();
+            module.initialize(subject, handler, sharedState, link.options, roles);
+         }
+         modules.add(module);
+      }
+      return modules;
+   }
+
+   /**
+    * Give back the modules obtained from {@link #acquireModules(Subject, CallbackHandler, Map, RoleGroup)}.
+    *
+    * @param modules - the modules used by the authorization
+    */
+   void releaseModules(List<AuthorizationModule> modules)
+   {
+      for (int i = 0; i < modules.size(); i++)
+      {
+         BlockingQueue<AuthorizationModule> pool = links[i].pool;
+         // a full pool drops the instance
+         if (pool != null)
+            pool.offer(modules.get(i));
+      }
+   }
+
+   private static Class<? extends AuthorizationModule> loadModuleClass(ClassLoader cl, String name)
+         throws PrivilegedActionException
+   {
+      Class<?> clazz = null;
+      try
+      {
+         if (cl == null)
+         {
+            cl = AuthorizationModuleChain.class.getClassLoader();
+         }
+         clazz = cl.loadClass(name);
+      }
+      catch (Exception ignore)
+      {
+         ClassLoader tcl = SecurityActions.getContextClassLoader();
+         try
+         {
+            clazz = tcl.loadClass(name);
+         }
+         catch (Exception e)
+         {
+            PicketBoxLogger.LOGGER.debugFailureToInstantiateClass(name, e);
+         }
+      }
+      if (clazz == null || !AuthorizationModule.class.isAssignableFrom(clazz))
+         throw new IllegalStateException(PicketBoxMessages.MESSAGES.failedToInstantiateClassMessage(AuthorizationModule.class));
+      return clazz.asSubclass(AuthorizationModule.class);
+   }
+
+   private static final class Link
+   {
+      private final Class<? extends AuthorizationModule> moduleClass;
+
+      private final ControlFlag flag;
+
+      private final Map<String, Object> options;
+
+      private final BlockingQueue<AuthorizationModule> pool;
+
+      private final AuthorizationModule stateless;
+
+      private Link(Class<? extends AuthorizationModule> moduleClass, ControlFlag flag, Map<String, Object> options,
+            String instance)
+      {
+         this.moduleClass = moduleClass;
+         this.flag = flag;
+         this.options = options;
+         this.pool = "pooled".equalsIgnoreCase(instance) ? new ArrayBlockingQueue<AuthorizationModule>(getPoolSize(options)) : null;
+         this.stateless = "stateless".equalsIgnoreCase(instance) ? newInstance() : null;
+      }
+
+      private static int getPoolSize(Map<String, Object> options)
+      {
+         int size = 32;
+         Object value = options != null ? options.get(JBossAuthorizationContext.MODULE_POOL_SIZE_OPTION) : null;
+         if (value != null)
+         {
+            try
+            {
+               size = Integer.parseInt(value.toString().trim());
+            }
+            catch (NumberFormatException e)
+            {
+               PicketBoxLogger.LOGGER.debugFailureToParseNumberProperty(JBossAuthorizationContext.MODULE_POOL_SIZE_OPTION, size);
+            }
+         }
+         return Math.max(size, 1);
+      }
+
+      private AuthorizationModule newInstance()
+      {
+         try
+         {
+            return moduleClass.newInstance();
+         }
+         catch (Exception e)
+         {
+            PicketBoxLogger.LOGGER.debugFailureToInstantiateClass(moduleClass.getName(), e);
+            throw new IllegalStateException(PicketBoxMessages.MESSAGES.failedToInstantiateClassMessage(AuthorizationModule.class));
+         }
+      }
+   }
+}
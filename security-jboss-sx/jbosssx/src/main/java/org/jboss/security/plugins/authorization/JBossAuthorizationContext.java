@@ -21,12 +21,16 @@
  */
 package org.jboss.security.plugins.authorization;
 
+import java.lang.ref.SoftReference;
 import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
-import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.security.auth.Subject;
 import javax.security.auth.callback.CallbackHandler;
@@ -42,6 +46,8 @@ import org.jboss.security.authorization.ResourceKeys;
 import org.jboss.security.authorization.ResourceType;
 import org.jboss.security.authorization.config.AuthorizationModuleEntry;
 import org.jboss.security.authorization.modules.DelegatingAuthorizationModule;
+import org.jboss.security.cache.FlushListener;
+import org.jboss.security.cache.FlushListeners;
 import org.jboss.security.config.ApplicationPolicy;
 import org.jboss.security.config.AuthorizationInfo;
 import org.jboss.security.config.ControlFlag;
@@ -64,6 +70,15 @@ import org.jboss.security.plugins.ClassLoaderLocatorFactory;
  *  b) Util.getApplicationPolicy will be used(which relies on SecurityConfiguration static class).
  *  c) Flag an error that there is no available Application Policy
  *  
+ *  The module classes of the AuthorizationInfo are resolved once per context class loader,
+ *  security domain and layer, and resolved again when the module entries of the policy
+ *  change or the security domain is flushed. The
+ *  module instances are created for every authorization unless the module option
+ *  {@link #MODULE_INSTANCE_OPTION} is set to "pooled" (up to {@link #MODULE_POOL_SIZE_OPTION}
+ *  idle instances are kept and reused) or "stateless" (a single instance is initialized
+ *  once, with a null subject, callback handler, shared state and roles, and shared).
+ *  The stateless mode is only correct for modules that do not read those values.
+ *  
  *  @author <a href="mailto:Anil.Saldhana@jboss.org">Anil Saldhana</a>
  *  @since  Jun 11, 2006 
  *  @version $Revision: 62954 $
@@ -73,6 +88,37 @@ public class JBossAuthorizationContext extends AuthorizationContext
    private final String EJB = SecurityConstants.DEFAULT_EJB_APPLICATION_POLICY;
    private final String WEB = SecurityConstants.DEFAULT_WEB_APPLICATION_POLICY;
 
+   /**
+    * Module option that selects how the instances of an authorization module are
+    * managed: "new" (the default), "pooled" or "stateless"
+    */
+   public static final String MODULE_INSTANCE_OPTION = "jboss.security.authorization.module_instance";
+
+   /**
+    * Module option that sets the maximum number of idle instances kept for a
+    * "pooled" authorization module. The default is 32.
+    */
+   public static final String MODULE_POOL_SIZE_OPTION = "jboss.security.authorization.module_pool_size";
+
+   /**
+    * Module chains keyed by context class loader, then by security domain and resource layer. The
+    * chains may hold classes of the class loader, so they are softly referenced to let the loader
+    * be collected.
+    */
+   private static final Map<ClassLoader, ConcurrentMap<String, SoftReference<AuthorizationModuleChain>>> moduleChains =
+      new WeakHashMap<ClassLoader, ConcurrentMap<String, SoftReference<AuthorizationModuleChain>>>();
+
+   static
+   {
+      FlushListeners.addListener(new FlushListener()
+      {
+         public void flush(String securityDomain)
+         {
+            flushModuleChains(securityDomain);
+         }
+      });
+   }
+
    private Subject authenticatedSubject = null;
 
    //Application Policy can be injected
@@ -131,14 +177,22 @@ public class JBossAuthorizationContext extends AuthorizationContext
    public int authorize(final Resource resource, final Subject subject, final RoleGroup callerRoles)
          throws AuthorizationException
    {  
-      final List<AuthorizationModule> modules = new ArrayList<AuthorizationModule>();
-      final List<ControlFlag> controlFlags = new ArrayList<ControlFlag>();
+      this.authenticatedSubject = subject;
+      final AuthorizationModuleChain chain;
+      try
+      {
+         chain = getModuleChain(resource);
+      }
+      catch (PrivilegedActionException e)
+      {
+         throw new AuthorizationException(e.getException().getLocalizedMessage());
+      }
+      final List<AuthorizationModule> modules = chain.acquireModules(subject, this.callbackHandler, this.sharedState,
+            callerRoles);
+      final List<ControlFlag> controlFlags = chain.getControlFlags();
       
       try
       {
-         this.authenticatedSubject = subject;
-
-         initializeModules(resource, callerRoles, modules, controlFlags); 
 
          AccessController.doPrivileged(new PrivilegedExceptionAction<Object>()
          {
@@ -164,46 +218,83 @@ public class JBossAuthorizationContext extends AuthorizationContext
       }
       finally
       { 
-         if(modules != null)
-            modules.clear();
-         if(controlFlags != null )
-            controlFlags.clear();  
+         chain.releaseModules(modules);
       }
       return PERMIT;
    }
 
    //Private Methods  
-   private void initializeModules(Resource resource, RoleGroup role, List<AuthorizationModule> modules,
-         List<ControlFlag> controlFlags) throws PrivilegedActionException
+   private AuthorizationModuleChain getModuleChain(Resource resource) throws PrivilegedActionException
    {
       AuthorizationInfo authzInfo = getAuthorizationInfo(securityDomainName, resource);
       if (authzInfo == null)
          throw PicketBoxMessages.MESSAGES.failedToObtainAuthorizationInfo(securityDomainName);
 
-      ClassLoader moduleCL = null;
       String jbossModuleName = authzInfo.getJBossModuleName();
-      if(jbossModuleName != null)
+      AuthorizationModuleEntry[] entries = authzInfo.getAuthorizationModuleEntry();
+      if (entries == null)
+         entries = new AuthorizationModuleEntry[0];
+      String key = securityDomainName + ":" + resource.getLayer();
+      ConcurrentMap<String, SoftReference<AuthorizationModuleChain>> chains =
+         getModuleChains(SecurityActions.getContextClassLoader());
+      SoftReference<AuthorizationModuleChain> ref = chains.get(key);
+      AuthorizationModuleChain chain = ref != null ? ref.get() : null;
+      if (chain == null || !chain.isCompiledFrom(jbossModuleName, entries))
       {
-    	  ClassLoaderLocator cll = ClassLoaderLocatorFactory.get();
-    	  if( cll != null)
-    	  {
-    		  moduleCL = cll.get(jbossModuleName);
-    	  }
+         ClassLoader moduleCL = null;
+         if(jbossModuleName != null)
+         {
+            ClassLoaderLocator cll = ClassLoaderLocatorFactory.get();
+            if( cll != null)
+            {
+               moduleCL = cll.get(jbossModuleName);
+            }
+         }
+         chain = AuthorizationModuleChain.compile(jbossModuleName, entries, moduleCL);
+         chains.put(key, new SoftReference<AuthorizationModuleChain>(chain));
       }
-      AuthorizationModuleEntry[] entries = authzInfo.getAuthorizationModuleEntry();
-      int len = entries != null ? entries.length : 0;
-      for (int i = 0; i < len; i++)
+      return chain;
+   }
+
+   private static ConcurrentMap<String, SoftReference<AuthorizationModuleChain>> getModuleChains(ClassLoader loader)
+   {
+      synchronized (moduleChains)
+      {
+         ConcurrentMap<String, SoftReference<AuthorizationModuleChain>> chains = moduleChains.get(loader);
+         if (chains == null)
+         {
+            chains = new ConcurrentHashMap<String, SoftReference<AuthorizationModuleChain>>();
+            moduleChains.put(loader, chains);
+         }
+         return chains;
+      }
+   }
+
+   /**
+    * Drop the module chains of a security domain, for all the class loaders.
+    * 
+    * @param securityDomain the name of the security domain, null to drop all the chains
+    */
+   static void flushModuleChains(String securityDomain)
+   {
+      synchronized (moduleChains)
       {
-    	  AuthorizationModuleEntry entry = entries[i];
-    	  ControlFlag flag = entry.getControlFlag();
-    	  if (flag == null)
-    	  {
-    		  flag = ControlFlag.REQUIRED;
-    	  }
-
-    	  controlFlags.add(flag);
-    	  AuthorizationModule module = instantiateModule(moduleCL, entry.getPolicyModuleName(), entry.getOptions(), role); 
-    	  modules.add(module);
+         if (securityDomain == null)
+         {
+            moduleChains.clear();
+            return;
+         }
+         for (ConcurrentMap<String, SoftReference<AuthorizationModuleChain>> chains : moduleChains.values())
+         {
+            Iterator<String> keys = chains.keySet().iterator();
+            while (keys.hasNext())
+            {
+               // the key is the security domain and the resource layer
+               String key = keys.next();
+               if (key.substring(0, key.lastIndexOf(':')).equals(securityDomain))
+                  keys.remove();
+            }
+         }
       }
    }
 
@@ -299,39 +390,6 @@ public class JBossAuthorizationContext extends AuthorizationContext
       }
    }
 
-   private AuthorizationModule instantiateModule(ClassLoader cl, String name, Map<String, Object> map, RoleGroup subjectRoles)
-         throws PrivilegedActionException
-   {
-      AuthorizationModule am = null;
-      try
-      {
-         Class<?> clazz;
-         try
-         {
-            if(cl == null)
-            {
-               cl = getClass().getClassLoader();
-            }
-            clazz = cl.loadClass(name);
-         }
-         catch (Exception ignore)
-         {
-            ClassLoader tcl = SecurityActions.getContextClassLoader();
-            clazz = tcl.loadClass(name);
-         }
-
-         am = (AuthorizationModule) clazz.newInstance();
-      }
-      catch (Exception e)
-      {
-         PicketBoxLogger.LOGGER.debugFailureToInstantiateClass(name, e);
-      }
-      if (am == null)
-         throw new IllegalStateException(PicketBoxMessages.MESSAGES.failedToInstantiateClassMessage(AuthorizationModule.class));
-      am.initialize(this.authenticatedSubject, this.callbackHandler, this.sharedState, map, subjectRoles);
-      return am;
-   }
-
    private AuthorizationInfo getAuthorizationInfo(String domainName, Resource resource)
    {
       ResourceType layer = resource.getLayer();
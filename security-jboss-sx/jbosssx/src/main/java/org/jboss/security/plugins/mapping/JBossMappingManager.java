@@ -21,9 +21,8 @@
   */
 package org.jboss.security.plugins.mapping;
 
-import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
 
-import org.jboss.security.PicketBoxLogger;
 import org.jboss.security.PicketBoxMessages;
 import org.jboss.security.SecurityConstants;
 import org.jboss.security.SecurityUtil;
@@ -32,7 +31,6 @@ import org.jboss.security.config.MappingInfo;
 import org.jboss.security.config.SecurityConfiguration;
 import org.jboss.security.mapping.MappingContext;
 import org.jboss.security.mapping.MappingManager;
-import org.jboss.security.mapping.MappingProvider;
 import org.jboss.security.mapping.config.MappingModuleEntry;
 import org.jboss.security.plugins.ClassLoaderLocator;
 import org.jboss.security.plugins.ClassLoaderLocatorFactory;
@@ -40,12 +38,21 @@ import org.jboss.security.plugins.ClassLoaderLocatorFactory;
 
 /**
  *  JBoss implementation of Mapping Manager 
+ *  <p>
+ *  The mapping providers are resolved once per security domain and mapping type
+ *  and shared by all the threads until the mapping configuration of the
+ *  domain changes. Every call to getMappingContext returns a new context.
+ *  A configuration whose providers cannot all be instantiated is resolved
+ *  again on every call, as the failure may be transient.
+ *  </p>
  *  @author Anil.Saldhana@redhat.com
  *  @since  Mar 9, 2007 
  *  @version $Revision$
  */
 public class JBossMappingManager implements MappingManager
 {   
+   private static final ConcurrentHashMap<String, MappingProviderChain<?>> mappingChains = new ConcurrentHashMap<String, MappingProviderChain<?>>();
+
    private String securityDomain;
 
    public JBossMappingManager(String domain)
@@ -56,21 +63,13 @@ public class JBossMappingManager implements MappingManager
    public <T> MappingContext<T> getMappingContext(String mappingType)
    {
       //Apply Mapping Logic
-      ApplicationPolicy aPolicy = SecurityConfiguration.getApplicationPolicy(securityDomain);
-
-      if(aPolicy == null)
-      {
-         String defaultDomain = SecurityConstants.DEFAULT_APPLICATION_POLICY;
-         aPolicy = SecurityConfiguration.getApplicationPolicy(defaultDomain);
-      }
-      if(aPolicy == null )
-         throw PicketBoxMessages.MESSAGES.failedToObtainApplicationPolicy(securityDomain);
+      ApplicationPolicy aPolicy = getApplicationPolicy();
 
       MappingContext<T> mc = null;
       MappingInfo rmi = aPolicy.getMappingInfo(mappingType);
 
       if( rmi != null)
-         mc = generateMappingContext(mc, rmi);
+         mc = generateMappingContext(mappingType, rmi);
 
       return mc;
    }
@@ -79,6 +78,18 @@ public class JBossMappingManager implements MappingManager
    public <T> MappingContext<T> getMappingContext(Class<T> mappingType)
    {
       //Apply Mapping Logic
+      ApplicationPolicy aPolicy = getApplicationPolicy();
+
+      MappingContext<T> mc = null;
+      MappingInfo rmi = aPolicy.getMappingInfo(mappingType);
+      if( rmi != null)
+        mc = generateMappingContext(mappingType.getName(), rmi);
+
+      return mc;
+   }
+
+   private ApplicationPolicy getApplicationPolicy()
+   {
       ApplicationPolicy aPolicy = SecurityConfiguration.getApplicationPolicy(securityDomain);
 
       if(aPolicy == null)
@@ -88,62 +99,38 @@ public class JBossMappingManager implements MappingManager
       }
       if(aPolicy == null )
          throw PicketBoxMessages.MESSAGES.failedToObtainApplicationPolicy(securityDomain);
-
-      MappingContext<T> mc = null;
-      MappingInfo rmi = aPolicy.getMappingInfo(mappingType);
-      if( rmi != null)
-        mc = generateMappingContext(mc, rmi);
-
-      return mc;
+      return aPolicy;
    }
 
-
-   private <T> MappingContext<T> generateMappingContext(MappingContext<T> mc, MappingInfo rmi)
+   @SuppressWarnings("unchecked")
+   private <T> MappingContext<T> generateMappingContext(String mappingType, MappingInfo rmi)
    {
-	   ClassLoader moduleCL = null;
 	   String jbossModuleName = rmi.getJBossModuleName();
-	   if(jbossModuleName != null)
-	   {
-		   ClassLoaderLocator cll = ClassLoaderLocatorFactory.get();
-		   if(cll != null)
-		   {
-			   moduleCL = cll.get(jbossModuleName);
-		   }
-	   }
 	   MappingModuleEntry[] mpe = rmi.getMappingModuleEntry();
-	   ArrayList<MappingProvider<T>> al = new ArrayList<MappingProvider<T>>();
-
-	   for(int i = 0 ; i < mpe.length; i++)
+	   String key = securityDomain + ":" + mappingType;
+	   MappingProviderChain<T> chain = (MappingProviderChain<T>) mappingChains.get(key);
+	   if(chain == null || !chain.isCompiledFrom(jbossModuleName, mpe))
 	   {
-		   MappingProvider<T> mp = getMappingProvider(moduleCL, mpe[i]);
-		   if(mp != null)
+		   ClassLoader moduleCL = null;
+		   if(jbossModuleName != null)
 		   {
-			   al.add(mp);
+			   ClassLoaderLocator cll = ClassLoaderLocatorFactory.get();
+			   if(cll != null)
+			   {
+				   moduleCL = cll.get(jbossModuleName);
+			   }
 		   }
+		   chain = MappingProviderChain.compile(jbossModuleName, mpe, moduleCL);
+		   if(chain.isComplete())
+			   mappingChains.put(key, chain);
+		   else
+			   mappingChains.remove(key);
 	   }
-	   return new MappingContext<T>(al);
+	   return chain.newContext();
    }
 
    public String getSecurityDomain()
    {
       return this.securityDomain;
    }
-
-   @SuppressWarnings("unchecked")
-   private <T> MappingProvider<T> getMappingProvider(ClassLoader cl, MappingModuleEntry mme)
-   {
-      MappingProvider<T> mp = null;
-      try
-      {
-         String fqn = mme.getMappingModuleName();
-         Class<?> clazz = SecurityActions.loadClass(cl, fqn);
-         mp = (MappingProvider<T>) clazz.newInstance();
-         mp.init(mme.getOptions());
-      }
-      catch(Exception e)
-      {
-         PicketBoxLogger.LOGGER.debugIgnoredException(e);
-      }
-      return mp; 
-   }
 }
\ No newline at end of file
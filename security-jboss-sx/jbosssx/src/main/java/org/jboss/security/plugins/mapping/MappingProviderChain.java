@@ -0,0 +1,266 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.security.plugins.mapping;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.jboss.security.PicketBoxLogger;
+import org.jboss.security.mapping.MappingContext;
+import org.jboss.security.mapping.MappingProvider;
+import org.jboss.security.mapping.MappingResult;
+import org.jboss.security.mapping.config.MappingModuleEntry;
+
+/**
+ * The mapping providers of a security domain for one mapping type, resolved
+ * once from the {@code MappingModuleEntry} array of its {@code MappingInfo}.
+ * The chain remembers the entries it was built from, so that a change of the
+ * {@code ApplicationPolicy} is detected with
+ * {@link #isCompiledFrom(String, MappingModuleEntry[])}.
+ * <p>
+ * A chain is shared by all the threads mapping objects of its security domain,
+ * but it is never handed out: every caller gets its own lightweight
+ * {@code MappingContext} from {@link #newContext()}. As a provider holds the
+ * result of the mapping it is performing, each mapping operation borrows
+ * initialized provider instances from a pool and gives them back once it is
+ * over. New instances are only created when all the pooled ones are in use.
+ * A context whose providers were requested with {@code getModules()} maps
+ * with those providers instead.
+ * </p>
+ * <p>
+ * A chain in which a provider could not be instantiated is not complete, see
+ * {@link #isComplete()}, and should be compiled again on the next request.
+ * </p>
+ *
+ * @param <T> the type of the mapped objects
+ * @version $Revision$
+ */
+final class MappingProviderChain<T>
+{
+   private final String jbossModuleName;
+
+   private final MappingModuleEntry[] entries;
+
+   private final Link<T>[] links;
+
+   private final boolean complete;
+
+   private MappingProviderChain(String jbossModuleName, MappingModuleEntry[] entries, Link<T>[] links)
+   {
+      this.jbossModuleName = jbossModuleName;
+      this.entries = entries;
+      this.links = links;
+      this.complete = links.length == entries.length;
+   }
+
+   /**
+    * Resolve and initialize the providers of the given entries. The entries whose
+    * provider cannot be instantiated are logged and ignored, and the chain is not
+    * complete.
+    *
+    * @param jbossModuleName - the name of the JBoss Module of the MappingInfo, may be null
+    * @param entries - the module entries of the MappingInfo
+    * @param cl - the class loader of the providers, null to use the default class loader
+    * @return the compiled chain
+    */
+   @SuppressWarnings("unchecked")
+   static <T> MappingProviderChain<T> compile(String jbossModuleName, MappingModuleEntry[] entries, ClassLoader cl)
+   {
+      List<Link<T>> links = new ArrayList<Link<T>>(entries.length);
+      for (MappingModuleEntry entry : entries)
+      {
+         try
+         {
+            Class<?> clazz = SecurityActions.loadClass(cl, entry.getMappingModuleName());
+            Link<T> link = new Link<T>((Class<? extends MappingProvider<T>>) clazz.asSubclass(MappingProvider.class), entry);
+            link.pool.offer(link.newInstance());
+            links.add(link);
+         }
+         catch (Exception e)
+         {
+            PicketBoxLogger.LOGGER.debugIgnoredException(e);
+         }
+      }
+      return new MappingProviderChain<T>(jbossModuleName, entries, links.toArray(new Link[links.size()]));
+   }
+
+   /**
+    * Check if the providers of all the entries were instantiated.
+    *
+    * @return false if an entry was ignored
+    */
+   boolean isComplete()
+   {
+      return complete;
+   }
+
+   /**
+    * Check if the chain was compiled from the given configuration.
+    *
+    * @param jbossModuleName - the name of the JBoss Module of the MappingInfo
+    * @param entries - the module entries of the MappingInfo
+    * @return true if the chain holds the same entries in the same order
+    */
+   boolean isCompiledFrom(String jbossModuleName, MappingModuleEntry[] entries)
+   {
+      if (this.entries.length != entries.length)
+         return false;
+      if (jbossModuleName == null ? this.jbossModuleName != null : !jbossModuleName.equals(this.jbossModuleName))
+         return false;
+      for (int i = 0; i < entries.length; i++)
+      {
+         if (this.entries[i] != entries[i])
+            return false;
+      }
+      return true;
+   }
+
+   /**
+    * Create a mapping context for one caller. The context maps objects with the
+    * pooled providers of the chain and keeps the result of its last
+    * performMapping call like any other {@code MappingContext}.
+    *
+    * @return a new context
+    */
+   MappingContext<T> newContext()
+   {
+      return new ChainMappingContext<T>(this);
+   }
+
+   private MappingProvider<T> acquireProvider(int index)
+   {
+      Link<T> link = links[index];
+      MappingProvider<T> mp = link.pool.poll();
+      if (mp == null)
+         mp = newInstance(link);
+      return mp;
+   }
+
+   private void releaseProvider(int index, MappingProvider<T> provider)
+   {
+      links[index].pool.offer(provider);
+   }
+
+   private static <T> MappingProvider<T> newInstance(Link<T> link)
+   {
+      try
+      {
+         return link.newInstance();
+      }
+      catch (Exception e)
+      {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   /**
+    * The context handed to the callers of a chain. The mappings use pooled
+    * providers until getModules() is called, the context then keeps its own
+    * providers and maps with them.
+    */
+   private static final class ChainMappingContext<T> extends MappingContext<T>
+   {
+      private final MappingProviderChain<T> chain;
+
+      private volatile List<MappingProvider<T>> modules;
+
+      private ChainMappingContext(MappingProviderChain<T> chain)
+      {
+         super(Collections.<MappingProvider<T>>emptyList());
+         this.chain = chain;
+      }
+
+      @Override
+      public synchronized List<MappingProvider<T>> getModules()
+      {
+         if (modules == null)
+         {
+            List<MappingProvider<T>> list = new ArrayList<MappingProvider<T>>(chain.links.length);
+            for (int i = 0; i < chain.links.length; i++)
+               list.add(chain.acquireProvider(i));
+            modules = Collections.unmodifiableList(list);
+         }
+         return modules;
+      }
+
+      @Override
+      public MappingResult<T> map(Map<String, Object> contextMap, T mappedObject)
+      {
+         MappingResult<T> mappingResult = new MappingResult<T>();
+         List<MappingProvider<T>> owned = modules;
+         if (owned != null)
+         {
+            for (MappingProvider<T> mp : owned)
+            {
+               mp.setMappingResult(mappingResult);
+               mp.performMapping(contextMap, mappedObject);
+            }
+            return mappingResult;
+         }
+         for (int i = 0; i < chain.links.length; i++)
+         {
+            MappingProvider<T> mp = chain.acquireProvider(i);
+            try
+            {
+               mp.setMappingResult(mappingResult);
+               mp.performMapping(contextMap, mappedObject);
+            }
+            finally
+            {
+               chain.releaseProvider(i, mp);
+            }
+         }
+         return mappingResult;
+      }
+
+      @Override
+      public boolean hasModules()
+      {
+         return chain.links.length > 0;
+      }
+   }
+
+   private static final class Link<T>
+   {
+      private final Class<? extends MappingProvider<T>> providerClass;
+
+      private final MappingModuleEntry entry;
+
+      private final ConcurrentLinkedQueue<MappingProvider<T>> pool = new ConcurrentLinkedQueue<MappingProvider<T>>();
+
+      private Link(Class<? extends MappingProvider<T>> providerClass, MappingModuleEntry entry)
+      {
+         this.providerClass = providerClass;
+         this.entry = entry;
+      }
+
+      private MappingProvider<T> newInstance() throws Exception
+      {
+         MappingProvider<T> mp = providerClass.newInstance();
+         mp.init(entry.getOptions());
+         return mp;
+      }
+   }
+}
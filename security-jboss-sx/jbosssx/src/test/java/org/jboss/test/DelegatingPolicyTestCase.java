@@ -33,9 +33,12 @@ import org.jboss.security.jacc.SubjectPolicyContextHandler;
 
 import javax.security.auth.Subject;
 import javax.security.jacc.EJBMethodPermission;
+import javax.security.jacc.EJBRoleRefPermission;
 import javax.security.jacc.PolicyConfiguration;
 import javax.security.jacc.PolicyConfigurationFactory;
 import javax.security.jacc.PolicyContext;
+import javax.security.jacc.WebResourcePermission;
+import javax.security.jacc.WebUserDataPermission;
 import java.lang.reflect.Constructor;
 import java.security.*;
 import java.util.Set;
@@ -159,6 +162,98 @@ public class DelegatingPolicyTestCase extends TestCase
       assertTrue("methodX allowed", implied);
    }
 
+   /**
+    * Test the checks of web permissions, which go through the index built on commit.
+    * 
+    * @throws Exception
+    */ 
+   public void testWebPermissions() throws Exception
+   {
+      PolicyConfigurationFactory pcf = PolicyConfigurationFactory.getPolicyConfigurationFactory();
+      PolicyConfiguration pc = pcf.getPolicyConfiguration("context-web", true);
+      pc.addToExcludedPolicy(new WebResourcePermission("/admin/secret/*", (String) null));
+      pc.addToUncheckedPolicy(new WebResourcePermission("/public/*", (String) null));
+      pc.addToUncheckedPolicy(new WebResourcePermission("/:/admin/*:/public/*:*.jsp:/index.html", "GET"));
+      pc.addToUncheckedPolicy(new WebUserDataPermission("/*", (String) null));
+      pc.addToRole("admin", new WebResourcePermission("/admin/*", "GET,POST"));
+      pc.addToRole("user", new WebResourcePermission("*.jsp", "!DELETE"));
+      pc.addToRole("user", new WebResourcePermission("/index.html", (String) null));
+      pc.commit();
+
+      Policy sysPolicy = Policy.getPolicy();
+      sysPolicy.refresh();
+      PolicyContext.setContextID("context-web");
+      ProtectionDomain admin = new ProtectionDomain(null, null, null, new Principal[]{new SimplePrincipal("admin")});
+      ProtectionDomain user = new ProtectionDomain(null, null, null, new Principal[]{new SimplePrincipal("user")});
+
+      assertTrue("public allowed", sysPolicy.implies(null, new WebResourcePermission("/public/a/b", "DELETE")));
+      assertTrue("default mapping allowed", sysPolicy.implies(null, new WebResourcePermission("/other", "GET")));
+      assertFalse("default mapping is GET only", sysPolicy.implies(null, new WebResourcePermission("/other", "PUT")));
+      assertFalse("qualified pattern", sysPolicy.implies(null, new WebResourcePermission("/admin/x", "GET")));
+      assertTrue("admin GET allowed", sysPolicy.implies(admin, new WebResourcePermission("/admin/x", "GET")));
+      assertTrue("admin POST allowed", sysPolicy.implies(admin, new WebResourcePermission("/admin/x/y", "POST")));
+      assertFalse("admin PUT denied", sysPolicy.implies(admin, new WebResourcePermission("/admin/x/y", "PUT")));
+      assertFalse("excluded", sysPolicy.implies(admin, new WebResourcePermission("/admin/secret/x", "GET")));
+      assertFalse("user denied", sysPolicy.implies(user, new WebResourcePermission("/admin/x", "GET")));
+      assertTrue("extension allowed", sysPolicy.implies(user, new WebResourcePermission("/a/b.jsp", "PUT")));
+      assertFalse("extension exception", sysPolicy.implies(user, new WebResourcePermission("/a/b.jsp", "DELETE")));
+      assertTrue("exact allowed", sysPolicy.implies(user, new WebResourcePermission("/index.html", "DELETE")));
+      ProtectionDomain anonymous = new ProtectionDomain(null, null, null, null);
+      assertFalse("no principals", sysPolicy.implies(anonymous, new WebResourcePermission("/index.html", "DELETE")));
+      assertTrue("user data allowed", sysPolicy.implies(null, new WebUserDataPermission("/x", "GET:CONFIDENTIAL")));
+
+      // changes of an open configuration are seen once committed again
+      pc = pcf.getPolicyConfiguration("context-web", false);
+      pc.addToRole("user", new WebResourcePermission("/admin/*", "PUT"));
+      pc.commit();
+      sysPolicy.refresh();
+      assertTrue("user PUT allowed", sysPolicy.implies(user, new WebResourcePermission("/admin/x", "PUT")));
+      pc.delete();
+   }
+
+   /**
+    * Test the checks of EJB permissions, which go through the index built on commit.
+    * 
+    * @throws Exception
+    */ 
+   public void testEJBPermissions() throws Exception
+   {
+      PolicyConfigurationFactory pcf = PolicyConfigurationFactory.getPolicyConfigurationFactory();
+      PolicyConfiguration pc = pcf.getPolicyConfiguration("context-ejb", true);
+      pc.addToExcludedPolicy(new EJBMethodPermission("someEJB", "remove,Remote,"));
+      pc.addToUncheckedPolicy(new EJBMethodPermission("someEJB", "getName"));
+      pc.addToRole("user", new EJBMethodPermission("someEJB", "methodX,Local,int"));
+      pc.addToRole("admin", new EJBMethodPermission("someEJB", null));
+      pc.addToRole("user", new EJBRoleRefPermission("someEJB", "userRef"));
+      pc.commit();
+
+      Policy sysPolicy = Policy.getPolicy();
+      sysPolicy.refresh();
+      PolicyContext.setContextID("context-ejb");
+      ProtectionDomain admin = new ProtectionDomain(null, null, null, new Principal[]{new SimplePrincipal("admin")});
+      ProtectionDomain user = new ProtectionDomain(null, null, null, new Principal[]{new SimplePrincipal("user")});
+
+      assertTrue("getName allowed", sysPolicy.implies(null, new EJBMethodPermission("someEJB", "getName,Remote,")));
+      assertFalse("remove excluded", sysPolicy.implies(admin, new EJBMethodPermission("someEJB", "remove,Remote,")));
+      assertTrue("local remove allowed", sysPolicy.implies(admin, new EJBMethodPermission("someEJB", "remove,Local,")));
+      assertTrue("methodX allowed", sysPolicy.implies(user, new EJBMethodPermission("someEJB", "methodX,Local,int")));
+      // a second check is answered by the cached decision
+      assertTrue("methodX allowed", sysPolicy.implies(user, new EJBMethodPermission("someEJB", "methodX,Local,int")));
+      assertFalse("remote methodX denied", sysPolicy.implies(user, new EJBMethodPermission("someEJB", "methodX,Remote,int")));
+      assertFalse("methodY denied", sysPolicy.implies(user, new EJBMethodPermission("someEJB", "methodY,Local,")));
+      assertFalse("otherEJB denied", sysPolicy.implies(admin, new EJBMethodPermission("otherEJB", "methodX,Local,int")));
+      assertTrue("role ref allowed", sysPolicy.implies(user, new EJBRoleRefPermission("someEJB", "userRef")));
+      assertFalse("role ref denied", sysPolicy.implies(admin, new EJBRoleRefPermission("someEJB", "userRef")));
+
+      // changes of an open configuration are seen once committed again
+      pc = pcf.getPolicyConfiguration("context-ejb", false);
+      pc.removeRole("user");
+      pc.commit();
+      sysPolicy.refresh();
+      assertFalse("methodX denied", sysPolicy.implies(user, new EJBMethodPermission("someEJB", "methodX,Local,int")));
+      pc.delete();
+   }
+
    public void testSubjectDoAs() throws Exception
    {
       PolicyConfigurationFactory pcf = PolicyConfigurationFactory.getPolicyConfigurationFactory();
@@ -26,7 +26,12 @@ import java.security.Principal;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
+import org.jboss.security.PrincipalFactory;
+import org.jboss.security.SimpleGroup;
 import org.jboss.security.SimplePrincipal;
+import org.jboss.security.identity.plugins.IdentityFactory;
+import org.jboss.security.identity.plugins.SimpleRole;
+import org.jboss.security.identity.plugins.WeakInterner;
 
 /** 
  * Tests of the org.jboss.security.SimplePrincipal.equals method
@@ -48,6 +53,19 @@ public class SimplePrincipalEqualsTestCase extends TestCase
       super(name);
    }
 
+   @Override
+   protected void tearDown() throws Exception
+   {
+      System.clearProperty(OVERRIDE_EQUALS_BEHAVIOR);
+      SimplePrincipal.resetEqualsOverride();
+   }
+
+   private static void setOverride(String value)
+   {
+      System.setProperty(OVERRIDE_EQUALS_BEHAVIOR, value);
+      SimplePrincipal.resetEqualsOverride();
+   }
+
    /**
     * Test the normal behavior (compares only Principal.getName)
     * 
@@ -55,7 +73,7 @@ public class SimplePrincipalEqualsTestCase extends TestCase
     */
    public void testNormalBehavior() throws Exception
    {
-      System.setProperty(OVERRIDE_EQUALS_BEHAVIOR, "false");
+      setOverride("false");
       assertTrue("Principals should be equal", simplePrincipal.equals(customPrincipal));
    }
 
@@ -67,10 +85,77 @@ public class SimplePrincipalEqualsTestCase extends TestCase
     */
    public void testBehaviorOverridden() throws Exception
    {
-      System.setProperty(OVERRIDE_EQUALS_BEHAVIOR, "true");
+      setOverride("true");
       assertFalse("Principals should not be equal", simplePrincipal.equals(customPrincipal));
    }
 
+   /**
+    * Test the group membership of a principal that is not a SimplePrincipal
+    * when the normal behavior is overridden
+    * 
+    * @throws Exception
+    */
+   public void testGroupBehaviorOverridden() throws Exception
+   {
+      setOverride("true");
+      SimpleGroup group = new SimpleGroup("Roles");
+      group.addMember(new SimplePrincipal("other"));
+      assertFalse(group.isMember(simplePrincipal));
+      group.addMember(customPrincipal);
+      assertTrue("Member should be found by name", group.isMember(simplePrincipal));
+      assertTrue(((SimpleGroup) group.clone()).isMember(simplePrincipal));
+   }
+
+   /**
+    * Test the canonical principals and roles of the PrincipalFactory
+    * 
+    * @throws Exception
+    */
+   public void testPrincipalFactory() throws Exception
+   {
+      setOverride("false");
+      SimplePrincipal principal = PrincipalFactory.getPrincipal("test");
+      assertSame(principal, PrincipalFactory.getPrincipal("test"));
+      assertEquals(simplePrincipal, principal);
+      assertEquals(simplePrincipal.hashCode(), principal.hashCode());
+      assertTrue("Principals should be equal", principal.equals(customPrincipal));
+      assertNotSame(principal, PrincipalFactory.getPrincipal("other"));
+      assertNull(PrincipalFactory.getPrincipal(null).getName());
+
+      assertSame(IdentityFactory.createRole("role"), IdentityFactory.createRole("role"));
+      assertEquals(new SimpleRole("role"), IdentityFactory.createRole("role"));
+      assertEquals(new SimpleRole("role").hashCode(), IdentityFactory.createRole("role").hashCode());
+      assertFalse(IdentityFactory.createRole("role").equals(IdentityFactory.createRole("other")));
+   }
+
+   /**
+    * Test that the interned names no longer in use are dropped
+    * 
+    * @throws Exception
+    */
+   public void testInternedNamesCollected() throws Exception
+   {
+      WeakInterner<SimplePrincipal> interner = new WeakInterner<SimplePrincipal>()
+      {
+         @Override
+         protected SimplePrincipal create(String name)
+         {
+            return new SimplePrincipal(name);
+         }
+      };
+      SimplePrincipal kept = interner.intern("kept");
+      for (int i = 0; i < 1000; i++)
+         interner.intern("user" + i);
+      for (int i = 0; i < 50 && interner.size() > 1; i++)
+      {
+         System.gc();
+         Thread.sleep(20);
+      }
+      assertEquals(1, interner.size());
+      assertSame(kept, interner.intern("kept"));
+      assertNull(interner.intern(null).getName());
+   }
+
    public static void main(java.lang.String[] args)
    {
       System.setErr(System.out);
@@ -0,0 +1,169 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.audit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.jboss.security.audit.AbstractAuditProvider;
+import org.jboss.security.audit.AuditEvent;
+import org.jboss.security.audit.AuditLevel;
+import org.jboss.security.audit.BatchAuditProvider;
+import org.jboss.security.plugins.audit.AsyncAuditContext;
+import org.jboss.security.plugins.audit.AsyncAuditContext.OverflowPolicy;
+
+/**
+ *  Tests for the asynchronous audit context
+ *  @version $Revision$
+ */
+public class AsyncAuditUnitTestCase extends TestCase
+{
+   public void testBatchDelivery() throws Exception
+   {
+      CollectingProvider single = new CollectingProvider(null);
+      CollectingBatchProvider batch = new CollectingBatchProvider();
+      AsyncAuditContext ac = new AsyncAuditContext("test", null, 100, 10, OverflowPolicy.BLOCK, 1);
+      ac.addProvider(single);
+      ac.addProvider(batch);
+      List<AuditEvent> events = new ArrayList<AuditEvent>();
+      for (int i = 0; i < 50; i++)
+      {
+         AuditEvent ae = new AuditEvent(AuditLevel.INFO);
+         events.add(ae);
+         ac.audit(ae);
+      }
+      assertTrue("Events dispatched", ac.flush(10, TimeUnit.SECONDS));
+      ac.close();
+      assertEquals(events, single.events);
+      assertEquals(events, batch.events);
+      assertTrue("Batches are bounded", batch.largestBatch <= 10);
+      assertEquals(50, ac.getDispatchedCount());
+      assertEquals(0, ac.getDroppedCount());
+   }
+
+   public void testDropWhenFull() throws Exception
+   {
+      CountDownLatch gate = new CountDownLatch(1);
+      CollectingProvider provider = new CollectingProvider(gate);
+      AsyncAuditContext ac = new AsyncAuditContext("test", null, 4, 1, OverflowPolicy.DROP, 1);
+      ac.addProvider(provider);
+      // the dispatcher blocks in the provider on the first event, the queue then fills up
+      for (int i = 0; i < 20; i++)
+         ac.audit(new AuditEvent(AuditLevel.INFO));
+      assertTrue("Events dropped", ac.getDroppedCount() > 0);
+      assertTrue(ac.getPeakQueueDepth() <= ac.getCapacity());
+      gate.countDown();
+      assertTrue("Events dispatched", ac.flush(10, TimeUnit.SECONDS));
+      ac.close();
+      assertEquals(20, provider.events.size() + ac.getDroppedCount());
+   }
+
+   public void testAuditAfterClose() throws Exception
+   {
+      CollectingProvider provider = new CollectingProvider(null);
+      AsyncAuditContext ac = new AsyncAuditContext("test", null, 10, 10, OverflowPolicy.BLOCK, 1);
+      ac.addProvider(provider);
+      ac.close();
+      AuditEvent ae = new AuditEvent(AuditLevel.ERROR);
+      ac.audit(ae);
+      assertEquals(Collections.singletonList(ae), provider.events);
+   }
+
+   public void testCloseWhileAuditing() throws Exception
+   {
+      CollectingProvider provider = new CollectingProvider(null);
+      final AsyncAuditContext ac = new AsyncAuditContext("test", null, 16, 4, OverflowPolicy.BLOCK, 1);
+      ac.addProvider(provider);
+      Thread[] threads = new Thread[4];
+      for (int i = 0; i < threads.length; i++)
+      {
+         threads[i] = new Thread()
+         {
+            public void run()
+            {
+               for (int j = 0; j < 500; j++)
+                  ac.audit(new AuditEvent(AuditLevel.INFO));
+            }
+         };
+         threads[i].start();
+      }
+      ac.close();
+      for (Thread thread : threads)
+         thread.join();
+      assertTrue("Events dispatched", ac.flush(10, TimeUnit.SECONDS));
+      // every event is either dispatched by the dispatcher or audited on the calling thread
+      assertEquals(2000, provider.events.size());
+   }
+
+   public static class CollectingProvider extends AbstractAuditProvider
+   {
+      final List<AuditEvent> events = Collections.synchronizedList(new ArrayList<AuditEvent>());
+
+      private final CountDownLatch gate;
+
+      public CollectingProvider(CountDownLatch gate)
+      {
+         this.gate = gate;
+      }
+
+      @Override
+      public void audit(AuditEvent ae)
+      {
+         if (gate != null)
+         {
+            try
+            {
+               gate.await(10, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e)
+            {
+               Thread.currentThread().interrupt();
+            }
+         }
+         events.add(ae);
+      }
+   }
+
+   public static class CollectingBatchProvider extends AbstractAuditProvider implements BatchAuditProvider
+   {
+      final List<AuditEvent> events = Collections.synchronizedList(new ArrayList<AuditEvent>());
+
+      int largestBatch;
+
+      public void audit(List<AuditEvent> batch)
+      {
+         largestBatch = Math.max(largestBatch, batch.size());
+         events.addAll(batch);
+      }
+
+      @Override
+      public void audit(AuditEvent ae)
+      {
+         events.add(ae);
+      }
+   }
+}
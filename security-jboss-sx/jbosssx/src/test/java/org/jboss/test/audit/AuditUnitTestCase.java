@@ -25,13 +25,16 @@ import junit.framework.TestCase;
 
 import org.jboss.security.SecurityContext;
 import org.jboss.security.SecurityContextFactory;
+import org.jboss.security.audit.AuditContext;
 import org.jboss.security.audit.AuditEvent;
 import org.jboss.security.audit.AuditLevel;
 import org.jboss.security.audit.AuditManager;
 import org.jboss.security.audit.config.AuditProviderEntry;
+import org.jboss.security.cache.FlushListeners;
 import org.jboss.security.config.ApplicationPolicy;
 import org.jboss.security.config.AuditInfo;
 import org.jboss.security.config.SecurityConfiguration;
+import org.jboss.security.plugins.audit.JBossAuditManager;
 
 //$Id$
 
@@ -70,6 +73,40 @@ public class AuditUnitTestCase extends TestCase
       assertEquals("Audit events are the same", ae, aev);
    }
    
+   /**
+    * The audit context of a domain is shared until its configuration changes
+    */
+   public void testAuditContextCached() throws Exception
+   {
+      JBossAuditManager am = new JBossAuditManager("test");
+      AuditContext ac = am.getAuditContext();
+      assertSame(ac, am.getAuditContext());
+      assertSame(ac, new JBossAuditManager("test").getAuditContext());
+      
+      setUpSecurityConfiguration();
+      AuditContext replaced = am.getAuditContext();
+      assertNotSame(ac, replaced);
+      assertSame(replaced, am.getAuditContext());
+   }
+   
+   /**
+    * The audit context of a domain is dropped when the domain is flushed
+    */
+   public void testAuditContextFlushed() throws Exception
+   {
+      JBossAuditManager am = new JBossAuditManager("test");
+      AuditContext ac = am.getAuditContext();
+      FlushListeners.flush("other");
+      assertSame(ac, am.getAuditContext());
+      
+      FlushListeners.flush("test");
+      AuditContext rebuilt = am.getAuditContext();
+      assertNotSame(ac, rebuilt);
+      assertSame(rebuilt, am.getAuditContext());
+      
+      FlushListeners.flush(null);
+      assertNotSame(rebuilt, am.getAuditContext());
+   }
    
    private void setUpSecurityConfiguration()
    {
@@ -0,0 +1,361 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.authentication;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import javax.security.auth.Subject;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.login.AppConfigurationEntry;
+import javax.security.auth.login.AppConfigurationEntry.LoginModuleControlFlag;
+import javax.security.auth.login.Configuration;
+import javax.security.auth.login.LoginContext;
+import javax.security.auth.login.LoginException;
+import javax.security.auth.spi.LoginModule;
+
+import junit.framework.TestCase;
+
+import org.jboss.security.SimplePrincipal;
+import org.jboss.security.auth.callback.AppCallbackHandler;
+import org.jboss.security.auth.login.DirectLoginContext;
+import org.jboss.security.plugins.JBossAuthenticationManager;
+import org.jboss.test.SecurityActions;
+
+/**
+ * Runs login module stacks with the DirectLoginContext and with the JAAS LoginContext, and checks that the
+ * outcome and the calls made on the login modules are the same.
+ * 
+ * @version $Revision$
+ */
+public class DirectLoginContextUnitTestCase extends TestCase
+{
+   /** The calls made on the test login modules, as "module.method" */
+   static final List<String> calls = new ArrayList<String>();
+
+   /** Whether the last login of a test login module was run by a DirectLoginContext */
+   static boolean directLogin;
+
+   private final Map<String, AppConfigurationEntry[]> domains = new HashMap<String, AppConfigurationEntry[]>();
+
+   private final CallbackHandler handler = new AppCallbackHandler("jduke", "theduke".toCharArray());
+
+   @Override
+   protected void setUp() throws Exception
+   {
+      super.setUp();
+      SecurityActions.setJAASConfiguration(new Configuration()
+      {
+         @Override
+         public AppConfigurationEntry[] getAppConfigurationEntry(String name)
+         {
+            return domains.get(name);
+         }
+
+         @Override
+         public void refresh()
+         {
+         }
+      });
+   }
+
+   public void testRequisiteFailureEndsLogin() throws Exception
+   {
+      domain("requisite", module("A", LoginModuleControlFlag.REQUISITE, "fail", "true"),
+            module("B", LoginModuleControlFlag.REQUIRED, "true", "true"));
+      assertEquals("A.login", compare("requisite"));
+      assertEquals(list("A.login", "A.abort"), calls);
+   }
+
+   public void testSufficientSuccessEndsLogin() throws Exception
+   {
+      domain("sufficient", module("A", LoginModuleControlFlag.SUFFICIENT, "true", "true"),
+            module("B", LoginModuleControlFlag.REQUIRED, "fail", "true"));
+      assertEquals("[A]", compare("sufficient"));
+      assertEquals(list("A.login", "A.commit", "A.logout"), calls);
+
+      // a REQUIRED failure before the SUFFICIENT module is not overridden
+      domain("required-sufficient", module("A", LoginModuleControlFlag.REQUIRED, "fail", "true"),
+            module("B", LoginModuleControlFlag.SUFFICIENT, "true", "true"),
+            module("C", LoginModuleControlFlag.OPTIONAL, "true", "true"));
+      assertEquals("A.login", compare("required-sufficient"));
+      assertEquals(list("A.login", "B.login", "C.login", "A.abort", "B.abort", "C.abort"), calls);
+   }
+
+   public void testOptionalFailures() throws Exception
+   {
+      domain("optional", module("A", LoginModuleControlFlag.OPTIONAL, "fail", "true"),
+            module("B", LoginModuleControlFlag.OPTIONAL, "true", "true"));
+      assertEquals("[B]", compare("optional"));
+
+      domain("optional-failures", module("A", LoginModuleControlFlag.OPTIONAL, "fail", "true"),
+            module("B", LoginModuleControlFlag.OPTIONAL, "fail", "true"));
+      assertEquals("A.login", compare("optional-failures"));
+   }
+
+   public void testAbortAfterCommitFailure() throws Exception
+   {
+      domain("commit", module("A", LoginModuleControlFlag.REQUIRED, "true", "fail"),
+            module("B", LoginModuleControlFlag.REQUIRED, "true", "true"));
+      assertEquals("A.commit", compare("commit"));
+      assertEquals(list("A.login", "B.login", "A.commit", "B.commit", "A.abort", "B.abort"), calls);
+   }
+
+   public void testSharedState() throws Exception
+   {
+      LoginModuleControlFlag required = LoginModuleControlFlag.REQUIRED;
+      AppConfigurationEntry b = module("B", required, "true", "true", "requires", "A");
+      domain("shared", module("A", required, "true", "true"), b);
+      assertEquals("[A, B]", compare("shared"));
+
+      domain("not-shared", b);
+      assertEquals("B.login", compare("not-shared"));
+   }
+
+   public void testAllModulesIgnored() throws Exception
+   {
+      domain("ignored", module("A", LoginModuleControlFlag.OPTIONAL, "false", "true"),
+            module("B", LoginModuleControlFlag.REQUIRED, "false", "true"));
+      assertEquals("failure", compare("ignored"));
+      assertEquals(list("A.login", "B.login", "A.abort", "B.abort"), calls);
+   }
+
+   public void testModuleNotInstantiated() throws Exception
+   {
+      // the login fails even though the module is optional
+      domain("missing", module("A", LoginModuleControlFlag.OPTIONAL, "true", "true"),
+            new AppConfigurationEntry("org.jboss.test.DoesNotExist", LoginModuleControlFlag.OPTIONAL,
+                  new HashMap<String, Object>()));
+      assertEquals("failure", compare("missing"));
+      assertEquals(list("A.login", "A.abort"), calls);
+   }
+
+   public void testNoLoginModulesConfigured() throws Exception
+   {
+      assertEquals("failure", compare("unknown"));
+
+      // the default application policy is used when there is one
+      domain("other", module("A", LoginModuleControlFlag.REQUIRED, "true", "true"));
+      assertEquals("[A]", compare("unknown"));
+   }
+
+   public void testToString() throws Exception
+   {
+      domain("sufficient", module("A", LoginModuleControlFlag.SUFFICIENT, "true", "true"),
+            module("B", LoginModuleControlFlag.REQUIRED, "true", "true"));
+      DirectLoginContext lc = new DirectLoginContext("sufficient", new Subject(), handler);
+      lc.login();
+      String module = TestLoginModule.class.getName();
+      assertEquals("DirectLoginContext[sufficient, modules=[" + module + "(sufficient), " + module
+            + "(required)], loginSucceeded=true]", lc.toString());
+   }
+
+   public void testDirectLoginOption() throws Exception
+   {
+      domain("jaas", module("A", LoginModuleControlFlag.REQUIRED, "true", "true"));
+      domain("direct", module("A", LoginModuleControlFlag.REQUIRED, "true", "true",
+            DirectLoginContext.DIRECT_LOGIN_OPTION, "true"));
+      assertFalse(DirectLoginContext.isEnabled("jaas"));
+      assertTrue(DirectLoginContext.isEnabled("direct"));
+
+      Principal p = new SimplePrincipal("jduke");
+      assertTrue(new JBossAuthenticationManager("jaas", handler).isValid(p, "theduke"));
+      assertFalse("Run by the LoginContext", directLogin);
+      assertTrue(new JBossAuthenticationManager("direct", handler).isValid(p, "theduke"));
+      assertTrue("Run by the DirectLoginContext", directLogin);
+
+      // the setter still applies to every domain
+      JBossAuthenticationManager am = new JBossAuthenticationManager("jaas", handler);
+      am.setDirectLoginOption(true);
+      assertTrue(am.isValid(p, "theduke"));
+      assertTrue("Run by the DirectLoginContext", directLogin);
+   }
+
+   /**
+    * Log in and out with both login contexts.
+    * @return the principals of the subject after a successful login, the message of the exception thrown by a
+    * test login module or "failure" for the other login failures
+    */
+   private String compare(String name)
+   {
+      String expected = login(name, false);
+      List<String> expectedCalls = new ArrayList<String>(calls);
+      String result = login(name, true);
+      assertEquals("Result of " + name, expected, result);
+      assertEquals("Calls of " + name, expectedCalls, calls);
+      return result;
+   }
+
+   private String login(String name, boolean direct)
+   {
+      calls.clear();
+      Subject subject = new Subject();
+      try
+      {
+         if (direct)
+         {
+            DirectLoginContext lc = new DirectLoginContext(name, subject, handler);
+            lc.login();
+            String principals = principals(lc.getSubject());
+            lc.logout();
+            return principals;
+         }
+         LoginContext lc = new LoginContext(name, subject, handler);
+         lc.login();
+         String principals = principals(lc.getSubject());
+         lc.logout();
+         return principals;
+      }
+      catch (LoginException e)
+      {
+         String message = e.getMessage();
+         return message != null && message.matches("[A-Z]\\.[a-z]+") ? message : "failure";
+      }
+   }
+
+   private static String principals(Subject subject)
+   {
+      TreeSet<String> names = new TreeSet<String>();
+      for (Principal principal : subject.getPrincipals())
+         names.add(principal.getName());
+      return names.toString();
+   }
+
+   private void domain(String name, AppConfigurationEntry... entries)
+   {
+      domains.put(name, entries);
+   }
+
+   /**
+    * @param login what the login method does: "true", "false" or "fail"
+    * @param commit what the commit method does: "true", "false" or "fail"
+    * @param extraOptions more option names and values
+    */
+   private static AppConfigurationEntry module(String name, LoginModuleControlFlag flag, String login, String commit,
+         String... extraOptions)
+   {
+      Map<String, Object> options = new HashMap<String, Object>();
+      options.put("name", name);
+      options.put("login", login);
+      options.put("commit", commit);
+      for (int i = 0; i + 1 < extraOptions.length; i += 2)
+         options.put(extraOptions[i], extraOptions[i + 1]);
+      return new AppConfigurationEntry(TestLoginModule.class.getName(), flag, options);
+   }
+
+   private static List<String> list(String... values)
+   {
+      List<String> list = new ArrayList<String>();
+      for (String value : values)
+         list.add(value);
+      return list;
+   }
+
+   /**
+    * A login module whose login and commit return true or false or fail, as set by its options. It records the
+    * calls made on it once its login was called, and ignores the others.
+    */
+   public static class TestLoginModule implements LoginModule
+   {
+      private Subject subject;
+
+      private Map<String, Object> sharedState;
+
+      private Map<String, ?> options;
+
+      private String name;
+
+      private boolean loginCalled;
+
+      private boolean loginSucceeded;
+
+      @SuppressWarnings("unchecked")
+      public void initialize(Subject subject, CallbackHandler callbackHandler, Map<String, ?> sharedState,
+            Map<String, ?> options)
+      {
+         this.subject = subject;
+         this.sharedState = (Map<String, Object>) sharedState;
+         this.options = options;
+         this.name = (String) options.get("name");
+      }
+
+      public boolean login() throws LoginException
+      {
+         loginCalled = true;
+         directLogin = false;
+         for (StackTraceElement element : new Throwable().getStackTrace())
+         {
+            if (element.getClassName().equals(DirectLoginContext.class.getName()))
+               directLogin = true;
+         }
+         String requires = (String) options.get("requires");
+         if (requires != null && !sharedState.containsKey(requires))
+         {
+            calls.add(name + ".login");
+            throw new LoginException(name + ".login");
+         }
+         loginSucceeded = result("login");
+         sharedState.put(name, Boolean.TRUE);
+         return loginSucceeded;
+      }
+
+      public boolean commit() throws LoginException
+      {
+         if (!loginCalled)
+            return false;
+         boolean status = result("commit");
+         if (status && loginSucceeded)
+            subject.getPrincipals().add(new SimplePrincipal(name));
+         return status;
+      }
+
+      public boolean abort() throws LoginException
+      {
+         if (!loginCalled)
+            return false;
+         calls.add(name + ".abort");
+         return true;
+      }
+
+      public boolean logout() throws LoginException
+      {
+         if (!loginCalled)
+            return false;
+         calls.add(name + ".logout");
+         subject.getPrincipals().remove(new SimplePrincipal(name));
+         return true;
+      }
+
+      private boolean result(String method) throws LoginException
+      {
+         calls.add(name + "." + method);
+         String result = (String) options.get(method);
+         if ("fail".equals(result))
+            throw new LoginException(name + "." + method);
+         return Boolean.parseBoolean(result);
+      }
+   }
+}
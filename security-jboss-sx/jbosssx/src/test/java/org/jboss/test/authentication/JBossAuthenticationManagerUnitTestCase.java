@@ -22,10 +22,16 @@
 package org.jboss.test.authentication;
 
 import java.security.Principal;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.security.auth.Subject;
 import javax.security.auth.login.AppConfigurationEntry;
 import javax.security.auth.login.Configuration;
+import javax.security.auth.login.LoginException;
 import javax.security.auth.login.AppConfigurationEntry.LoginModuleControlFlag;
 
 import junit.framework.TestCase;
@@ -33,7 +39,12 @@ import junit.framework.TestCase;
 import org.jboss.security.AuthenticationManager;
 import org.jboss.security.SimplePrincipal;
 import org.jboss.security.auth.callback.AppCallbackHandler;
+import org.jboss.security.auth.spi.UsersRolesLoginModule;
+import org.jboss.security.cache.BoundedConcurrentCache;
+import org.jboss.security.cache.FlushListener;
+import org.jboss.security.cache.FlushListeners;
 import org.jboss.security.plugins.JBossAuthenticationManager;
+import org.jboss.security.plugins.auth.JaasSecurityManagerBase.DomainInfo;
 import org.jboss.test.SecurityActions;
 
 //$Id$
@@ -76,6 +87,94 @@ public class JBossAuthenticationManagerUnitTestCase extends TestCase
       assertFalse(am.isValid(p, "bad")); 
    }
    
+   public void testCachedLogin() throws Exception
+   {
+      Principal p = new SimplePrincipal("jduke");
+      AppCallbackHandler acbh = new AppCallbackHandler("jduke","theduke".toCharArray());
+      JBossAuthenticationManager am = new JBossAuthenticationManager("test",acbh);
+      am.setCache(new ConcurrentHashMap<Principal, DomainInfo>());
+      am.setCacheTimeout(1000);
+
+      Subject subject = new Subject();
+      assertTrue(am.isValid(p, "theduke", subject));
+      assertTrue(am.containsKey(p));
+      assertTrue(subject.getPrincipals().contains(p));
+
+      // cache hit populates the subject as well
+      Subject cachedSubject = new Subject();
+      assertTrue(am.isValid(p, "theduke", cachedSubject));
+      assertTrue(cachedSubject.getPrincipals().contains(p));
+      assertFalse(am.isValid(p, "bad"));
+
+      am.flushCache(p);
+      assertFalse(am.containsKey(p));
+      assertTrue(am.isValid(p, "theduke"));
+      Thread.sleep(1500);
+      assertFalse(am.containsKey(p));
+   }
+
+   public void testDirectLogin() throws Exception
+   {
+      Principal p = new SimplePrincipal("jduke");
+      AppCallbackHandler acbh = new AppCallbackHandler("jduke","theduke".toCharArray());
+      JBossAuthenticationManager am = new JBossAuthenticationManager("test",acbh);
+      am.setDirectLoginOption(true);
+      am.setCache(new ConcurrentHashMap<Principal, DomainInfo>());
+
+      Subject subject = new Subject();
+      assertTrue(am.isValid(p, "theduke", subject));
+      assertTrue(subject.getPrincipals().contains(p));
+      assertTrue(am.containsKey(p));
+      assertFalse(am.isValid(p, "bad"));
+
+      // the entry logs out through the direct login context
+      am.flushCache(p);
+      assertFalse(am.containsKey(p));
+      assertFalse(am.isValid(new SimplePrincipal("jduke"), "bad", new Subject()));
+      assertTrue(am.isValid(p, "theduke", new Subject()));
+   }
+
+   public void testBoundedCacheLogout() throws Exception
+   {
+      LogoutCountingLoginModule.logouts.set(0);
+      JBossAuthenticationManager am = new JBossAuthenticationManager("logout",
+            new AppCallbackHandler("jduke","theduke".toCharArray()));
+      am.setCache(new BoundedConcurrentCache<Principal, DomainInfo>(1));
+
+      assertTrue(am.isValid(new SimplePrincipal("jduke"), "theduke"));
+      assertEquals(0, LogoutCountingLoginModule.logouts.get());
+      // the new entry evicts the first one, whose subject is logged out
+      assertTrue(am.isValid(new SimplePrincipal("scott"), "echoman"));
+      assertEquals(1, LogoutCountingLoginModule.logouts.get());
+      am.flushCache();
+      assertEquals(2, LogoutCountingLoginModule.logouts.get());
+   }
+
+   public void testFlushListeners() throws Exception
+   {
+      final List<String> flushed = new ArrayList<String>();
+      FlushListener listener = new FlushListener()
+      {
+         public void flush(String securityDomain)
+         {
+            flushed.add(securityDomain);
+         }
+      };
+      FlushListeners.addListener(listener);
+      try
+      {
+         JBossAuthenticationManager am = new JBossAuthenticationManager("test",
+               new AppCallbackHandler("jduke","theduke".toCharArray()));
+         am.flushCache();
+         assertEquals(1, flushed.size());
+         assertEquals("test", flushed.get(0));
+      }
+      finally
+      {
+         FlushListeners.removeListener(listener);
+      }
+   }
+
    private void establishSecurityConfiguration()
    { 
       SecurityActions.setJAASConfiguration((Configuration)new TestConfig());
@@ -90,6 +189,8 @@ public class JBossAuthenticationManagerUnitTestCase extends TestCase
          map.put("usersProperties", "users.properties"); 
          map.put("rolesProperties", "roles.properties");
          String moduleName = "org.jboss.security.auth.spi.UsersRolesLoginModule";
+         if ("logout".equals(name))
+            moduleName = LogoutCountingLoginModule.class.getName();
          AppConfigurationEntry ace = new AppConfigurationEntry(moduleName,
                LoginModuleControlFlag.REQUIRED, map);
          
@@ -101,4 +202,19 @@ public class JBossAuthenticationManagerUnitTestCase extends TestCase
       {
       } 
    }
+
+   /**
+    * Login module counting the logouts
+    */
+   public static class LogoutCountingLoginModule extends UsersRolesLoginModule
+   {
+      static final AtomicInteger logouts = new AtomicInteger();
+
+      @Override
+      public boolean logout() throws LoginException
+      {
+         logouts.incrementAndGet();
+         return super.logout();
+      }
+   }
 }
@@ -0,0 +1,239 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.authentication.jaas;
+
+import java.io.File;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.KeyStore;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+
+import javax.naming.Context;
+import javax.naming.spi.InitialContextFactory;
+import javax.security.auth.Subject;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.login.FailedLoginException;
+
+import junit.framework.TestCase;
+
+import org.jboss.security.SecurityConstants;
+import org.jboss.security.SecurityDomain;
+import org.jboss.security.auth.callback.ObjectCallback;
+import org.jboss.security.auth.spi.BaseCertLoginModule;
+import org.jboss.security.cache.FlushListeners;
+
+/**
+ * Tests the revocation checking and the verification cache of the BaseCertLoginModule.
+ * The certs of the certs directory are issued by the test CA, which revoked the
+ * "revoked" cert in crl.pem. expired-crl.pem is past its next update and
+ * forged-crl.pem is signed by another key with the same subject as the test CA.
+ * @version $Revision$
+ */
+public class BaseCertLoginModuleUnitTestCase extends TestCase
+{
+   private static final String DOMAIN = "cert-domain";
+
+   /** The trust store of the security domain found by the test context factory */
+   static KeyStore trustStore;
+
+   private String factory;
+
+   @Override
+   protected void setUp() throws Exception
+   {
+      super.setUp();
+      factory = System.getProperty(Context.INITIAL_CONTEXT_FACTORY);
+      System.setProperty(Context.INITIAL_CONTEXT_FACTORY, TestContextFactory.class.getName());
+      trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+      trustStore.load(null, null);
+      trustStore.setCertificateEntry("ca", cert("ca"));
+      trustStore.setCertificateEntry("valid", cert("valid"));
+      trustStore.setCertificateEntry("revoked", cert("revoked"));
+      BaseCertLoginModule.flushConfigurations(null);
+   }
+
+   @Override
+   protected void tearDown() throws Exception
+   {
+      if (factory != null)
+         System.setProperty(Context.INITIAL_CONTEXT_FACTORY, factory);
+      else
+         System.clearProperty(Context.INITIAL_CONTEXT_FACTORY);
+      BaseCertLoginModule.flushConfigurations(null);
+      super.tearDown();
+   }
+
+   public void testRevokedCertRejected() throws Exception
+   {
+      Map<String, Object> options = options(null);
+      assertTrue(login("valid", options));
+      assertTrue("No CRL configured", login("revoked", options));
+
+      options = options("crl.pem");
+      assertTrue(login("valid", options));
+      assertFalse("Revoked cert rejected", login("revoked", options));
+   }
+
+   public void testUnverifiedCRLRejectsIssuer() throws Exception
+   {
+      assertFalse("Forged CRL", login("valid", options("forged-crl.pem")));
+
+      BaseCertLoginModule.flushConfigurations(DOMAIN);
+      trustStore.deleteEntry("ca");
+      assertFalse("CRL issuer not trusted", login("valid", options("crl.pem")));
+   }
+
+   public void testExpiredCRLRejectsIssuer() throws Exception
+   {
+      assertFalse("Expired CRL", login("valid", options("expired-crl.pem")));
+   }
+
+   public void testVerificationCache() throws Exception
+   {
+      Map<String, Object> options = options("crl.pem");
+      options.put("verificationCacheTimeout", "60000");
+      assertTrue(login("valid", options));
+      trustStore.deleteEntry("valid");
+      assertTrue("Cached verification", login("valid", options));
+
+      // the cache is dropped with the configuration when the domain is flushed
+      FlushListeners.flush(DOMAIN);
+      assertFalse("Verified again", login("valid", options));
+   }
+
+   public void testVerificationCacheDisabledByDefault() throws Exception
+   {
+      Map<String, Object> options = options("crl.pem");
+      assertTrue(login("valid", options));
+      trustStore.deleteEntry("valid");
+      assertFalse("Verified again", login("valid", options));
+   }
+
+   public void testConfigurationPerOptions() throws Exception
+   {
+      // modules of the same domain with different options keep their own configuration
+      assertTrue(login("valid", options("crl.pem")));
+      assertFalse("Other CRL used", login("valid", options("forged-crl.pem")));
+      assertTrue("First CRL still used", login("valid", options("crl.pem")));
+   }
+
+   public void testMissingCRLRejectsAll() throws Exception
+   {
+      Map<String, Object> options = options(null);
+      options.put("crlLocations", new File("target/missing-crl.pem").getAbsolutePath());
+      assertFalse("CRL not read", login("valid", options));
+   }
+
+   private Map<String, Object> options(String crl)
+   {
+      HashMap<String, Object> options = new HashMap<String, Object>();
+      options.put("securityDomain", DOMAIN);
+      options.put(SecurityConstants.SECURITY_DOMAIN_OPTION, DOMAIN);
+      if (crl != null)
+         options.put("crlLocations", getClass().getClassLoader().getResource("certs/" + crl).toExternalForm());
+      return options;
+   }
+
+   private boolean login(final String alias, Map<String, Object> options) throws Exception
+   {
+      final X509Certificate cert = cert(alias);
+      CallbackHandler handler = new CallbackHandler()
+      {
+         public void handle(Callback[] callbacks)
+         {
+            for (Callback callback : callbacks)
+            {
+               if (callback instanceof NameCallback)
+                  ((NameCallback) callback).setName(alias);
+               else if (callback instanceof ObjectCallback)
+                  ((ObjectCallback) callback).setCredential(cert);
+            }
+         }
+      };
+      BaseCertLoginModule module = new BaseCertLoginModule();
+      module.initialize(new Subject(), handler, new HashMap<String, Object>(), options);
+      try
+      {
+         return module.login();
+      }
+      catch (FailedLoginException e)
+      {
+         return false;
+      }
+   }
+
+   private X509Certificate cert(String name) throws Exception
+   {
+      InputStream is = getClass().getClassLoader().getResourceAsStream("certs/" + name + ".pem");
+      try
+      {
+         return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(is);
+      }
+      finally
+      {
+         is.close();
+      }
+   }
+
+   /**
+    * Creates contexts that resolve any name to a SecurityDomain with the test trust store.
+    */
+   public static class TestContextFactory implements InitialContextFactory
+   {
+      public Context getInitialContext(Hashtable<?, ?> environment)
+      {
+         return (Context) proxy(Context.class, new InvocationHandler()
+         {
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+               if (method.getName().equals("lookup"))
+               {
+                  return proxy(SecurityDomain.class, new InvocationHandler()
+                  {
+                     public Object invoke(Object proxy, Method method, Object[] args)
+                     {
+                        if (method.getName().equals("getTrustStore"))
+                           return trustStore;
+                        return null;
+                     }
+                  });
+               }
+               return null;
+            }
+         });
+      }
+   }
+
+   static Object proxy(Class<?> type, InvocationHandler handler)
+   {
+      return Proxy.newProxyInstance(BaseCertLoginModuleUnitTestCase.class.getClassLoader(),
+         new Class<?>[] {type}, handler);
+   }
+}
@@ -0,0 +1,247 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.authentication.jaas;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.Context;
+import javax.naming.spi.InitialContextFactory;
+import javax.security.auth.Subject;
+import javax.security.auth.login.LoginException;
+import javax.sql.DataSource;
+
+import junit.framework.TestCase;
+
+import org.jboss.security.SecurityConstants;
+import org.jboss.security.SimplePrincipal;
+import org.jboss.security.auth.callback.UsernamePasswordHandler;
+import org.jboss.security.auth.spi.DatabaseServerLoginModule;
+
+/**
+ * Tests the DataSource cache of the DatabaseServerLoginModule
+ * @version $Revision$
+ */
+public class DatabaseServerLoginModuleUnitTestCase extends TestCase
+{
+   /** Number of JNDI lookups done through the test context factory */
+   static final AtomicInteger lookups = new AtomicInteger();
+
+   /** Number of upcoming DataSource.getConnection calls that fail */
+   static final AtomicInteger failingConnections = new AtomicInteger();
+
+   private String factory;
+
+   @Override
+   protected void setUp() throws Exception
+   {
+      super.setUp();
+      factory = System.getProperty(Context.INITIAL_CONTEXT_FACTORY);
+      System.setProperty(Context.INITIAL_CONTEXT_FACTORY, TestContextFactory.class.getName());
+      DatabaseServerLoginModule.flushCachedResources(null);
+      lookups.set(0);
+      failingConnections.set(0);
+   }
+
+   @Override
+   protected void tearDown() throws Exception
+   {
+      if (factory != null)
+         System.setProperty(Context.INITIAL_CONTEXT_FACTORY, factory);
+      else
+         System.clearProperty(Context.INITIAL_CONTEXT_FACTORY);
+      DatabaseServerLoginModule.flushCachedResources(null);
+      super.tearDown();
+   }
+
+   public void testCacheScopedToSecurityDomain() throws Exception
+   {
+      login("domain-a", "java:/TestDS");
+      login("domain-a", "java:/TestDS");
+      assertEquals(1, lookups.get());
+      login("domain-b", "java:/TestDS");
+      assertEquals(2, lookups.get());
+      login("domain-b", "java:/TestDS");
+      assertEquals(2, lookups.get());
+   }
+
+   public void testJavaCompNotCached() throws Exception
+   {
+      login("domain-a", "java:comp/env/jdbc/TestDS");
+      login("domain-a", "java:comp/env/jdbc/TestDS");
+      // one lookup for the password and one for the roles of each login
+      assertEquals(4, lookups.get());
+   }
+
+   public void testFlushCachedResources() throws Exception
+   {
+      login("domain-a", "java:/TestDS");
+      login("domain-b", "java:/TestDS");
+      assertEquals(2, lookups.get());
+      DatabaseServerLoginModule.flushCachedResources("domain-a");
+      login("domain-a", "java:/TestDS");
+      assertEquals(3, lookups.get());
+      login("domain-b", "java:/TestDS");
+      assertEquals(3, lookups.get());
+   }
+
+   public void testConnectionFailureInvalidatesCache() throws Exception
+   {
+      login("domain-a", "java:/TestDS");
+      assertEquals(1, lookups.get());
+      failingConnections.set(1);
+      try
+      {
+         login("domain-a", "java:/TestDS");
+         fail("The login should fail without a connection");
+      }
+      catch (LoginException expected)
+      {
+      }
+      login("domain-a", "java:/TestDS");
+      assertEquals(2, lookups.get());
+   }
+
+   private void login(String securityDomain, String dsJndiName) throws Exception
+   {
+      HashMap<String, Object> options = new HashMap<String, Object>();
+      options.put("dsJndiName", dsJndiName);
+      options.put("principalsQuery", "select Password from Principals where PrincipalID=?");
+      options.put("rolesQuery", "select Role, RoleGroup from Roles where PrincipalID=?");
+      options.put("cacheResources", "true");
+      options.put("suspendResume", "false");
+      options.put(SecurityConstants.SECURITY_DOMAIN_OPTION, securityDomain);
+
+      Subject subject = new Subject();
+      DatabaseServerLoginModule module = new DatabaseServerLoginModule();
+      module.initialize(subject, new UsernamePasswordHandler("scott", "echoman"),
+         new HashMap<String, Object>(), options);
+      assertTrue(module.login());
+      assertTrue(module.commit());
+      assertTrue(subject.getPrincipals().contains(new SimplePrincipal("scott")));
+   }
+
+   /**
+    * Creates contexts that resolve any name to a DataSource returning the
+    * password "echoman" and the role "Echo" for every user.
+    */
+   public static class TestContextFactory implements InitialContextFactory
+   {
+      public Context getInitialContext(Hashtable<?, ?> environment)
+      {
+         return (Context) proxy(Context.class, new InvocationHandler()
+         {
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+               if (method.getName().equals("lookup"))
+               {
+                  lookups.incrementAndGet();
+                  return dataSource();
+               }
+               return null;
+            }
+         });
+      }
+   }
+
+   static DataSource dataSource()
+   {
+      return (DataSource) proxy(DataSource.class, new InvocationHandler()
+      {
+         public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+         {
+            if (method.getName().equals("getConnection"))
+            {
+               if (failingConnections.getAndDecrement() > 0)
+                  throw new SQLException("DataSource unavailable");
+               return connection();
+            }
+            return null;
+         }
+      });
+   }
+
+   static Connection connection()
+   {
+      return (Connection) proxy(Connection.class, new InvocationHandler()
+      {
+         public Object invoke(Object proxy, Method method, Object[] args)
+         {
+            if (method.getName().equals("prepareStatement"))
+               return statement(((String) args[0]).indexOf("Roles") > 0);
+            return null;
+         }
+      });
+   }
+
+   static PreparedStatement statement(final boolean roles)
+   {
+      return (PreparedStatement) proxy(PreparedStatement.class, new InvocationHandler()
+      {
+         public Object invoke(Object proxy, Method method, Object[] args)
+         {
+            if (method.getName().equals("executeQuery"))
+               return roles ? resultSet("Echo", "Roles") : resultSet("echoman", null);
+            return null;
+         }
+      });
+   }
+
+   static ResultSet resultSet(final String first, final String second)
+   {
+      return (ResultSet) proxy(ResultSet.class, new InvocationHandler()
+      {
+         private boolean read;
+
+         public Object invoke(Object proxy, Method method, Object[] args)
+         {
+            String name = method.getName();
+            if (name.equals("next"))
+            {
+               boolean next = !read;
+               read = true;
+               return Boolean.valueOf(next);
+            }
+            if (name.equals("getString"))
+            {
+               int column = ((Integer) args[0]).intValue();
+               return column == 1 ? first : second;
+            }
+            return null;
+         }
+      });
+   }
+
+   static Object proxy(Class<?> type, InvocationHandler handler)
+   {
+      return Proxy.newProxyInstance(DatabaseServerLoginModuleUnitTestCase.class.getClassLoader(),
+         new Class<?>[] {type}, handler);
+   }
+}
@@ -0,0 +1,339 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.authentication.jaas;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.acl.Group;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.naming.AuthenticationException;
+import javax.naming.Context;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.ReferralException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapContext;
+import javax.naming.spi.InitialContextFactory;
+import javax.security.auth.Subject;
+
+import junit.framework.TestCase;
+
+import org.jboss.security.SimplePrincipal;
+import org.jboss.security.auth.callback.UsernamePasswordHandler;
+import org.jboss.security.auth.spi.LdapExtLoginModule;
+
+/**
+ * Tests the nested role and referral handling of the LdapExtLoginModule
+ * against an in memory directory.
+ * @version $Revision$
+ */
+public class LdapExtLoginModuleRolesUnitTestCase extends TestCase
+{
+   static final String USER_DN = "uid=jduke,ou=People,dc=jboss,dc=org";
+
+   static final String ROLES_DN = "ou=Roles,dc=jboss,dc=org";
+
+   /** The entries of the directory by DN, the relative ones are under ROLES_DN */
+   static final Map<String, Map<String, String>> entries = new HashMap<String, Map<String, String>>();
+
+   /** The entries of the directory a referral points to */
+   static final Map<String, Map<String, String>> referredEntries = new HashMap<String, Map<String, String>>();
+
+   /** Whether the roles search of the user returns a referral after the first result */
+   static boolean referral;
+
+   public LdapExtLoginModuleRolesUnitTestCase(String name)
+   {
+      super(name);
+   }
+
+   @Override
+   protected void setUp() throws Exception
+   {
+      super.setUp();
+      entries.clear();
+      referredEntries.clear();
+      referral = false;
+      entries.put("cn=Echo," + ROLES_DN, entry("cn", "Echo", "member", USER_DN));
+      entries.put("cn=TheDuke," + ROLES_DN, entry("cn", "TheDuke", "member", USER_DN));
+      entries.put("cn=Admin," + ROLES_DN, entry("cn", "Admin", "member", "cn=Echo," + ROLES_DN));
+      entries.put("cn=Super," + ROLES_DN, entry("cn", "Super", "member", "cn=Admin," + ROLES_DN));
+      referredEntries.put("cn=Remote,o=remote", entry("cn", "Remote", "member", USER_DN));
+   }
+
+   public void testNestedRoles() throws Exception
+   {
+      Group roles = login(new LdapExtLoginModule(), "2");
+      assertRoles(roles, "Echo", "TheDuke", "Admin", "Super");
+   }
+
+   public void testNestedRolesRecursionLimit() throws Exception
+   {
+      Group roles = login(new LdapExtLoginModule(), "1");
+      assertRoles(roles, "Echo", "TheDuke", "Admin");
+      assertFalse(roles.isMember(new SimplePrincipal("Super")));
+   }
+
+   public void testNestedRolesUseOverriddenRolesSearch() throws Exception
+   {
+      RecordingLdapExtLoginModule module = new RecordingLdapExtLoginModule();
+      Group roles = login(module, "2");
+      assertRoles(roles, "Echo", "TheDuke", "Admin", "Super");
+      assertTrue(module.searched.contains("0:" + USER_DN));
+      assertTrue(module.searched.contains("1:cn=Echo," + ROLES_DN));
+      assertTrue(module.searched.contains("2:cn=Admin," + ROLES_DN));
+   }
+
+   public void testReferralKeepsPreviousRoles() throws Exception
+   {
+      referral = true;
+      entries.remove("cn=TheDuke," + ROLES_DN);
+      Group roles = login(new LdapExtLoginModule(), "0");
+      assertRoles(roles, "Echo", "Remote");
+   }
+
+   private Group login(LdapExtLoginModule module, String recursion) throws Exception
+   {
+      HashMap<String, String> options = new HashMap<String, String>();
+      options.put(Context.INITIAL_CONTEXT_FACTORY, TestContextFactory.class.getName());
+      options.put("bindDN", "cn=Manager,dc=jboss,dc=org");
+      options.put("bindCredential", "secret");
+      options.put("baseCtxDN", "ou=People,dc=jboss,dc=org");
+      options.put("baseFilter", "(uid={0})");
+      options.put("rolesCtxDN", ROLES_DN);
+      options.put("roleFilter", "(member={1})");
+      options.put("roleAttributeID", "cn");
+      options.put("roleRecursion", recursion);
+
+      Subject subject = new Subject();
+      module.initialize(subject, new UsernamePasswordHandler("jduke", "theduke"),
+         new HashMap<String, Object>(), options);
+      assertTrue(module.login());
+      assertTrue(module.commit());
+      for (Group group : subject.getPrincipals(Group.class))
+      {
+         if (group.getName().equals("Roles"))
+            return group;
+      }
+      fail("No Roles group");
+      return null;
+   }
+
+   private void assertRoles(Group roles, String... names)
+   {
+      for (String name : names)
+         assertTrue(name, roles.isMember(new SimplePrincipal(name)));
+   }
+
+   static Map<String, String> entry(String... attributes)
+   {
+      Map<String, String> entry = new HashMap<String, String>();
+      for (int i = 0; i < attributes.length; i += 2)
+         entry.put(attributes[i], attributes[i + 1]);
+      return entry;
+   }
+
+   /**
+    * Records the DN of every roles search.
+    */
+   public static class RecordingLdapExtLoginModule extends LdapExtLoginModule
+   {
+      final List<String> searched = new ArrayList<String>();
+
+      @Override
+      protected void rolesSearch(LdapContext ctx, SearchControls constraints, String user, String userDN,
+            int recursionMax, int nesting) throws NamingException
+      {
+         searched.add(nesting + ":" + userDN);
+         super.rolesSearch(ctx, constraints, user, userDN, recursionMax, nesting);
+      }
+   }
+
+   /**
+    * Creates contexts over the in memory directory, checking the credentials
+    * of the user.
+    */
+   public static class TestContextFactory implements InitialContextFactory
+   {
+      public Context getInitialContext(Hashtable<?, ?> environment) throws NamingException
+      {
+         if (USER_DN.equals(environment.get(Context.SECURITY_PRINCIPAL))
+               && !"theduke".equals(environment.get(Context.SECURITY_CREDENTIALS)))
+            throw new AuthenticationException("Invalid credentials");
+         return context(entries, true);
+      }
+   }
+
+   static LdapContext context(final Map<String, Map<String, String>> directory, final boolean main)
+   {
+      return (LdapContext) Proxy.newProxyInstance(LdapExtLoginModuleRolesUnitTestCase.class.getClassLoader(),
+         new Class<?>[] {LdapContext.class}, new InvocationHandler()
+      {
+         public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+         {
+            String name = method.getName();
+            if (name.equals("search") && args.length == 4)
+               return search(directory, main, (String) args[0], (String) args[1], (Object[]) args[2]);
+            if (name.equals("getAttributes") && args.length == 2)
+               return attributes(directory.get(args[0]), (String[]) args[1]);
+            if (name.equals("newInstance"))
+               return proxy;
+            if (name.equals("getEnvironment"))
+               return new Hashtable<Object, Object>();
+            if (name.equals("toString"))
+               return "TestLdapContext";
+            return null;
+         }
+      });
+   }
+
+   static NamingEnumeration<SearchResult> search(Map<String, Map<String, String>> directory, boolean main,
+         String base, String filter, Object[] args)
+   {
+      // filters are (attribute={n})
+      String attribute = filter.substring(1, filter.indexOf('='));
+      Object value = args[Integer.parseInt(filter.substring(filter.indexOf('{') + 1, filter.indexOf('}')))];
+      List<SearchResult> results = new ArrayList<SearchResult>();
+      if (base.startsWith("ou=People") && "uid".equals(attribute))
+      {
+         results.add(new SearchResult("uid=" + value, null, new BasicAttributes()));
+      }
+      else
+      {
+         for (Map.Entry<String, Map<String, String>> entry : directory.entrySet())
+         {
+            if (!value.equals(entry.getValue().get(attribute)))
+               continue;
+            SearchResult sr;
+            if (entry.getKey().endsWith("," + ROLES_DN))
+            {
+               String rdn = entry.getKey().substring(0, entry.getKey().length() - ROLES_DN.length() - 1);
+               sr = new SearchResult(rdn, null, new BasicAttributes());
+            }
+            else
+            {
+               sr = new SearchResult(entry.getKey(), null, new BasicAttributes(), false);
+               sr.setNameInNamespace(entry.getKey());
+            }
+            results.add(sr);
+            // a referral is returned after the first role of the user
+            if (main && referral && USER_DN.equals(value))
+               break;
+         }
+      }
+      return new Results(results.iterator(), main && referral && USER_DN.equals(value));
+   }
+
+   static Attributes attributes(Map<String, String> entry, String[] ids)
+   {
+      BasicAttributes attributes = new BasicAttributes();
+      if (entry != null)
+      {
+         for (String id : ids)
+         {
+            if (entry.containsKey(id))
+               attributes.put(id, entry.get(id));
+         }
+      }
+      return attributes;
+   }
+
+   static class Results implements NamingEnumeration<SearchResult>
+   {
+      private final Iterator<SearchResult> iterator;
+
+      private final boolean referral;
+
+      Results(Iterator<SearchResult> iterator, boolean referral)
+      {
+         this.iterator = iterator;
+         this.referral = referral;
+      }
+
+      public boolean hasMore() throws NamingException
+      {
+         if (iterator.hasNext())
+            return true;
+         if (referral)
+            throw new TestReferralException();
+         return false;
+      }
+
+      public SearchResult next()
+      {
+         return iterator.next();
+      }
+
+      public boolean hasMoreElements()
+      {
+         return iterator.hasNext();
+      }
+
+      public SearchResult nextElement()
+      {
+         return iterator.next();
+      }
+
+      public void close()
+      {
+      }
+   }
+
+   static class TestReferralException extends ReferralException
+   {
+      private static final long serialVersionUID = 1L;
+
+      public Object getReferralInfo()
+      {
+         return "ldap://remote/o=remote";
+      }
+
+      public Context getReferralContext()
+      {
+         return context(referredEntries, false);
+      }
+
+      public Context getReferralContext(Hashtable<?, ?> env)
+      {
+         return getReferralContext();
+      }
+
+      public boolean skipReferral()
+      {
+         return false;
+      }
+
+      public void retryReferral()
+      {
+      }
+   }
+}
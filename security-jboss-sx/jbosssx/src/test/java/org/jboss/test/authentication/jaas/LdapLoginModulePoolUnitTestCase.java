@@ -0,0 +1,125 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2008, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors. 
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.authentication.jaas;
+
+import java.io.File;
+import java.util.HashMap;
+
+import javax.naming.Context;
+import javax.security.auth.login.AppConfigurationEntry;
+import javax.security.auth.login.Configuration;
+import javax.security.auth.login.LoginContext;
+import javax.security.auth.login.LoginException;
+
+import org.jboss.security.auth.callback.AppCallbackHandler;
+import org.jboss.security.auth.spi.LdapLoginModule;
+import org.jboss.security.cache.FlushListeners;
+import org.jboss.test.security.ldap.OpenDSUnitTestCase;
+
+/**
+ * Tests the LdapLoginModule with pooled bind connections
+ * @version $Revision$
+ */
+public class LdapLoginModulePoolUnitTestCase extends OpenDSUnitTestCase
+{
+   public LdapLoginModulePoolUnitTestCase(String name)
+   {
+      super(name);
+   }
+
+   @Override
+   protected void setUp() throws Exception
+   {
+      super.setUp();
+      //load it up with example1.ldif
+      String fileName = targetDir + "ldap" + fs + "example1.ldif";
+      boolean op = util.addLDIF(serverHost, port, adminDN, adminPW, new File(fileName).toURI().toURL());
+      assertTrue(op);
+
+      Configuration.setConfiguration(new Configuration()
+      {
+         @Override
+         public AppConfigurationEntry[] getAppConfigurationEntry(String cname)
+         {
+            String name = LdapLoginModule.class.getName();
+            HashMap<String, String> options = new HashMap<String, String>();
+
+            options.put("java.naming.factory.initial", ldapCtxFactory);
+            options.put("java.naming.provider.url", "ldap://localhost:10389/");
+            options.put("java.naming.security.authentication", "simple");
+            options.put("principalDNPrefix", "uid=");
+            options.put("uidAttributeID", "userid");
+            options.put("roleAttributeID", "roleName");
+            options.put("principalDNSuffix", ",ou=People,dc=jboss,dc=org");
+            options.put("rolesCtxDN", "cn=JBossSX Tests,ou=Roles,dc=jboss,dc=org");
+            options.put(Context.SECURITY_PRINCIPAL, adminDN);
+            options.put(Context.SECURITY_CREDENTIALS, adminPW);
+            options.put("connectionPool", "true");
+            options.put("connectionPoolMinIdle", "1");
+            options.put("connectionPoolMaxIdle", "2");
+
+            AppConfigurationEntry ace = new AppConfigurationEntry(name,
+            AppConfigurationEntry.LoginModuleControlFlag.REQUIRED, options);
+            AppConfigurationEntry[] entry = {ace};
+            return entry;
+         }
+
+         @Override
+         public void refresh()
+         {
+         }
+      });
+   }
+
+   public void testLDAPAddDelete() throws Exception
+   {
+      //Ignore
+   }
+
+   public void testPooledLogin() throws Exception
+   {
+      LoginContext lc = new LoginContext("test", new AppCallbackHandler("jduke", "theduke".toCharArray()));
+      lc.login();
+      lc.logout();
+
+      // A failed user bind must leave the pooled connection usable
+      lc = new LoginContext("test", new AppCallbackHandler("jduke", "badpass".toCharArray()));
+      try
+      {
+         lc.login();
+         fail("Login with a bad password should fail");
+      }
+      catch (LoginException e)
+      {
+      }
+
+      lc = new LoginContext("test", new AppCallbackHandler("jduke", "theduke".toCharArray()));
+      lc.login();
+      lc.logout();
+
+      // the flush closes the pool, the next login opens a new one
+      FlushListeners.flush(null);
+      lc = new LoginContext("test", new AppCallbackHandler("jduke", "theduke".toCharArray()));
+      lc.login();
+      lc.logout();
+   }
+}
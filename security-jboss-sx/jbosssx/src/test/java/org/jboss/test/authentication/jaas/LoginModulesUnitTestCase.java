@@ -21,6 +21,9 @@
   */
 package org.jboss.test.authentication.jaas;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.lang.reflect.Method;
 import java.security.MessageDigest;
 import java.security.Principal;
@@ -45,6 +48,7 @@ import org.jboss.security.SimpleGroup;
 import org.jboss.security.SimplePrincipal;
 import org.jboss.security.auth.callback.UsernamePasswordHandler;
 import org.jboss.security.auth.spi.UsernamePasswordLoginModule;
+import org.jboss.security.cache.FlushListeners;
 
 /** Tests of the LoginModule classes.
  * 
@@ -59,6 +63,10 @@ public class LoginModulesUnitTestCase extends TestCase
 
   private static Logger log = Logger.getLogger(LoginModulesUnitTestCase.class);
 
+  /** users and roles files of the testUsersRolesReload configuration */
+  private static File usersFile;
+  private static File rolesFile;
+
   /** Hard coded login configurations for the test cases. The configuration
    name corresponds to the unit test function that uses the configuration.
    */
@@ -152,6 +160,18 @@ public class LoginModulesUnitTestCase extends TestCase
         return entry;
      }  
      
+     AppConfigurationEntry[] testUsersRolesReload()
+     {
+        String name = "org.jboss.security.auth.spi.UsersRolesLoginModule";
+        HashMap options = new HashMap();
+        options.put("usersProperties", usersFile.getAbsolutePath());
+        options.put("rolesProperties", rolesFile.getAbsolutePath());
+        AppConfigurationEntry ace = new AppConfigurationEntry(name,
+        AppConfigurationEntry.LoginModuleControlFlag.REQUIRED, options);
+        AppConfigurationEntry[] entry = {ace};
+        return entry;
+     }
+
      AppConfigurationEntry[] testSharedMap()
      {
         String name = "org.jboss.test.authentication.jaas.helpers.SharedStatePopulatingLoginModule";
@@ -547,6 +567,86 @@ protected void setUp() throws Exception
   }
   
 
+  public void testUsersRolesReload() throws Exception
+  {
+     log.info("testUsersRolesReload");
+     usersFile = File.createTempFile("users", ".properties");
+     rolesFile = File.createTempFile("roles", ".properties");
+     try
+     {
+        writeFile(usersFile, "jduke=theduke\n");
+        writeFile(rolesFile, "jduke=Echo,TheDuke\njduke.CallerPrincipal=callerJduke\njduke2=Other\n");
+
+        LoginContext lc = new LoginContext("testUsersRolesReload", new UsernamePasswordHandler("jduke", "theduke"));
+        lc.login();
+        Subject subject = lc.getSubject();
+        Set<Group> groups = subject.getPrincipals(Group.class);
+        for (Group group : groups)
+        {
+           if (group.getName().equals("Roles"))
+           {
+              assertEquals("Roles group has 2 entries", 2, Collections.list(group.members()).size());
+              assertTrue("Echo is a role", group.isMember(new SimplePrincipal("Echo")));
+              assertTrue("TheDuke is a role", group.isMember(new SimplePrincipal("TheDuke")));
+           }
+           else if (group.getName().equals("CallerPrincipal"))
+           {
+              assertTrue("callerJduke is the caller principal", group.isMember(new SimplePrincipal("callerJduke")));
+           }
+        }
+        lc.logout();
+
+        // change the password, the store must pick up the modified file
+        writeFile(usersFile, "jduke=newduke\n");
+        usersFile.setLastModified(usersFile.lastModified() + 2000);
+        Thread.sleep(1500);
+        lc = new LoginContext("testUsersRolesReload", new UsernamePasswordHandler("jduke", "theduke"));
+        try
+        {
+           lc.login();
+           fail("Login with the old password should have failed");
+        }
+        catch(LoginException e)
+        {
+           // Ok
+        }
+        lc = new LoginContext("testUsersRolesReload", new UsernamePasswordHandler("jduke", "newduke"));
+        lc.login();
+        lc.logout();
+
+        // same size and modification time, the change is only seen after a flush of the domains
+        long lastModified = usersFile.lastModified();
+        writeFile(usersFile, "jduke=oldduke\n");
+        usersFile.setLastModified(lastModified);
+        Thread.sleep(1500);
+        lc = new LoginContext("testUsersRolesReload", new UsernamePasswordHandler("jduke", "newduke"));
+        lc.login();
+        lc.logout();
+        FlushListeners.flush(null);
+        lc = new LoginContext("testUsersRolesReload", new UsernamePasswordHandler("jduke", "oldduke"));
+        lc.login();
+        lc.logout();
+     }
+     finally
+     {
+        usersFile.delete();
+        rolesFile.delete();
+     }
+  }
+
+  private static void writeFile(File file, String content) throws IOException
+  {
+     FileWriter writer = new FileWriter(file);
+     try
+     {
+        writer.write(content);
+     }
+     finally
+     {
+        writer.close();
+     }
+  }
+
   public void testSharedMap() throws Exception
   {
      log.info("testSharedMap");
@@ -42,9 +42,11 @@ import org.jboss.security.SecurityConstants;
 import org.jboss.security.SecurityContext;
 import org.jboss.security.SecurityContextAssociation;
 import org.jboss.security.auth.callback.AppCallbackHandler;
+import org.jboss.security.auth.container.modules.DelegatingServerAuthModule;
 import org.jboss.security.auth.login.XMLLoginConfigImpl;
 import org.jboss.security.auth.message.GenericMessageInfo;
 import org.jboss.security.auth.message.config.JBossAuthConfigProvider;
+import org.jboss.security.auth.message.config.JBossServerAuthConfig;
 import org.jboss.security.plugins.JBossSecurityContext;
 import org.jboss.test.SecurityActions;
 
@@ -132,6 +134,52 @@ public class JASPIWorkflowUnitTestCase extends TestCase
       }
    }
 
+   @SuppressWarnings("unchecked")
+   public void testAuthContextCached() throws Exception
+   {
+      AuthConfigProvider provider = factory.getConfigProvider(layer, appId, null);
+      ServerAuthConfig serverConfig = provider.getServerAuthConfig(layer, appId, new AppCallbackHandler("anil",
+            "anilpwd".toCharArray()));
+      MessageInfo mi = new GenericMessageInfo(new Object(), new Object());
+      String authContextID = serverConfig.getAuthContextID(mi);
+      ServerAuthContext sctx = serverConfig.getAuthContext(authContextID, new Subject(), new HashMap());
+      int modules = ((JBossServerAuthConfig) serverConfig).getServerAuthModules().size();
+      assertSame("ServerAuthContext is cached", sctx, serverConfig.getAuthContext(authContextID, new Subject(),
+            new HashMap()));
+      assertEquals(AuthStatus.SUCCESS, sctx.validateRequest(mi, new Subject(), new Subject()));
+
+      serverConfig.refresh();
+      ServerAuthContext refreshed = serverConfig.getAuthContext(authContextID, new Subject(), new HashMap());
+      assertTrue("ServerAuthContext is rebuilt", sctx != refreshed);
+      assertEquals("Modules do not pile up", modules,
+            ((JBossServerAuthConfig) serverConfig).getServerAuthModules().size());
+   }
+
+   public void testDelegatingModulePerRequestLogin() throws Exception
+   {
+      HashMap<String, Object> options = new HashMap<String, Object>();
+      options.put("javax.security.auth.login.LoginContext", "jaas-lm-stack");
+      DelegatingServerAuthModule module = new DelegatingServerAuthModule();
+      module.initialize(null, null, new AppCallbackHandler("jduke", "theduke".toCharArray()), options);
+
+      //Two requests validated by the same module
+      MessageInfo first = new GenericMessageInfo(new Object(), new Object());
+      Subject firstSubject = new Subject();
+      assertEquals(AuthStatus.SUCCESS, module.validateRequest(first, firstSubject, new Subject()));
+      MessageInfo second = new GenericMessageInfo(new Object(), new Object());
+      Subject secondSubject = new Subject();
+      assertEquals(AuthStatus.SUCCESS, module.validateRequest(second, secondSubject, new Subject()));
+      assertFalse(firstSubject.getPrincipals().isEmpty());
+      assertFalse(secondSubject.getPrincipals().isEmpty());
+
+      //Cleaning the first request logs out its own subject only
+      module.cleanSubject(first, firstSubject);
+      assertTrue("First subject logged out", firstSubject.getPrincipals().isEmpty());
+      assertFalse("Second subject still logged in", secondSubject.getPrincipals().isEmpty());
+      module.cleanSubject(second, secondSubject);
+      assertTrue("Second subject logged out", secondSubject.getPrincipals().isEmpty());
+   }
+
    private void validateJAASConfiguration()
    {
       //Lets validate the configuration
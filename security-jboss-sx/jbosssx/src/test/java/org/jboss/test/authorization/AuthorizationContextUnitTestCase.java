@@ -24,6 +24,7 @@ package org.jboss.test.authorization;
 
 import java.io.IOException;
 import java.net.URL;
+import java.net.URLClassLoader;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -42,7 +43,13 @@ import org.jboss.security.authorization.AuthorizationContext;
 import org.jboss.security.authorization.AuthorizationException;
 import org.jboss.security.authorization.Resource;
 import org.jboss.security.authorization.ResourceType;
+import org.jboss.security.authorization.config.AuthorizationModuleEntry;
+import org.jboss.security.authorization.modules.AllDenyAuthorizationModule;
+import org.jboss.security.authorization.modules.AllPermitAuthorizationModule;
+import org.jboss.security.cache.FlushListeners;
+import org.jboss.security.config.ApplicationPolicy;
 import org.jboss.security.config.ApplicationPolicyRegistration;
+import org.jboss.security.config.AuthorizationInfo;
 import org.jboss.security.config.parser.StaxBasedConfigParser;
 import org.jboss.security.plugins.authorization.JBossAuthorizationContext;
 
@@ -162,19 +169,86 @@ public class AuthorizationContextUnitTestCase extends TestCase
       assertTrue("DENY?", AuthorizationContext.DENY == result);
    }
 
-   private int getResult(String policyName) throws Exception
+   /**
+    * Test that the module chain of a domain follows the changes of its policy
+    */
+   public void testModuleChainChange() throws Exception
    {
-      int result = AuthorizationContext.DENY;
+      String policyName = "module-chain-policy";
+      int result = getResult(policyName, createPolicy(policyName, AllPermitAuthorizationModule.class, null));
+      assertTrue("PERMIT?", AuthorizationContext.PERMIT == result);
+      result = getResult(policyName, createPolicy(policyName, AllDenyAuthorizationModule.class, null));
+      assertTrue("DENY?", AuthorizationContext.DENY == result);
+
+      ApplicationPolicy pooled = createPolicy(policyName, AllPermitAuthorizationModule.class, "pooled");
+      pooled.getAuthorizationInfo().getAuthorizationModuleEntry()[0].getOptions().put(
+            JBossAuthorizationContext.MODULE_POOL_SIZE_OPTION, "1");
+      for (int i = 0; i < 3; i++)
+      {
+         result = getResult(policyName, pooled);
+         assertTrue("PERMIT?", AuthorizationContext.PERMIT == result);
+      }
+      ApplicationPolicy stateless = createPolicy(policyName, AllDenyAuthorizationModule.class, "stateless");
+      for (int i = 0; i < 3; i++)
+      {
+         result = getResult(policyName, stateless);
+         assertTrue("DENY?", AuthorizationContext.DENY == result);
+      }
+   }
+
+   /**
+    * Test that the module chains are kept per context class loader and dropped on flush
+    */
+   public void testModuleChainPerClassLoader() throws Exception
+   {
+      String policyName = "module-chain-loader-policy";
+      ApplicationPolicy pooled = createPolicy(policyName, AllPermitAuthorizationModule.class, "pooled");
+      assertTrue("PERMIT?", AuthorizationContext.PERMIT == getResult(policyName, pooled));
 
+      Thread thread = Thread.currentThread();
+      ClassLoader tccl = thread.getContextClassLoader();
+      thread.setContextClassLoader(new URLClassLoader(new URL[0], tccl));
+      try
+      {
+         assertTrue("PERMIT?", AuthorizationContext.PERMIT == getResult(policyName, pooled));
+         FlushListeners.flush(policyName);
+         assertTrue("PERMIT?", AuthorizationContext.PERMIT == getResult(policyName, pooled));
+      }
+      finally
+      {
+         thread.setContextClassLoader(tccl);
+      }
+      FlushListeners.flush(null);
+      assertTrue("PERMIT?", AuthorizationContext.PERMIT == getResult(policyName, pooled));
+   }
+
+   private ApplicationPolicy createPolicy(String policyName, Class<?> moduleClass, String instance)
+   {
+      AuthorizationModuleEntry entry = new AuthorizationModuleEntry(moduleClass.getName());
+      if (instance != null)
+         entry.getOptions().put(JBossAuthorizationContext.MODULE_INSTANCE_OPTION, instance);
+      AuthorizationInfo info = new AuthorizationInfo(policyName);
+      info.add(entry);
+      return new ApplicationPolicy(policyName, info);
+   }
+
+   private int getResult(String policyName) throws Exception
+   {
       Configuration config = Configuration.getConfiguration();
       if(config instanceof ApplicationPolicyRegistration == false)
          throw new IllegalStateException("JAAS Configuration does not support application policy registration");
       ApplicationPolicyRegistration appPolicyRegistration = (ApplicationPolicyRegistration) config;
+      return getResult(policyName, appPolicyRegistration.getApplicationPolicy(policyName));
+   }
+
+   private int getResult(String policyName, ApplicationPolicy policy) throws Exception
+   {
+      int result = AuthorizationContext.DENY;
 
       JBossAuthorizationContext aContext = new JBossAuthorizationContext(policyName, 
             new Subject(), 
             new TestCallbackHandler()); 
-      aContext.setApplicationPolicy(appPolicyRegistration.getApplicationPolicy(policyName)); 
+      aContext.setApplicationPolicy(policy); 
       try
       {
          result =  aContext.authorize(new Resource()
@@ -193,6 +193,31 @@ public class EJBXACMLUnitTestCase extends TestCase
       assertEquals(AuthorizationContext.DENY, res); 
    }
    
+   public void testDecisionCache() throws Exception
+   {
+      EJBXACMLPolicyModuleDelegate pc = new EJBXACMLPolicyModuleDelegate();
+
+      JBossPolicyRegistration policyRegistration = new JBossPolicyRegistration();
+      policyRegistration.setDecisionCacheSize(10);
+      registerPolicy(policyRegistration); 
+      EJBResource er = getEJBResource(policyRegistration);
+      er.setPolicyContextID(contextID);
+      
+      assertEquals(AuthorizationContext.PERMIT, pc.authorize(er, new Subject(), getRoleGroup()));
+      assertEquals(1, policyRegistration.getDecisionCache(contextID).size());
+      assertEquals(AuthorizationContext.PERMIT, pc.authorize(er, new Subject(), getRoleGroup()));
+      assertEquals(1, policyRegistration.getDecisionCache(contextID).size());
+      
+      //The caller is part of the key
+      er.setPrincipal(new SimplePrincipal("baduser"));
+      assertEquals(AuthorizationContext.DENY, pc.authorize(er, new Subject(), getRoleGroup()));
+      assertEquals(2, policyRegistration.getDecisionCache(contextID).size());
+      
+      //Registering a policy drops the decisions
+      registerPolicy(policyRegistration);
+      assertEquals(0, policyRegistration.getDecisionCache(contextID).size());
+   }
+   
    private EJBResource getEJBResource(PolicyRegistration policyRegistration) throws Exception
    {
       HashMap<String,Object> map = new HashMap<String,Object>(); 
@@ -0,0 +1,178 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.security.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.jboss.security.cache.BoundedConcurrentCache;
+import org.jboss.security.cache.BoundedConcurrentCache.RemovalCause;
+import org.jboss.security.cache.BoundedConcurrentCache.RemovalListener;
+import org.jboss.security.cache.BoundedConcurrentCache.TimeSource;
+
+/**
+ * Unit tests for the {@link BoundedConcurrentCache}.
+ */
+public class BoundedConcurrentCacheUnitTestCase extends TestCase
+{
+   public void testMaxEntries() throws Exception
+   {
+      BoundedConcurrentCache<String, String> cache = new BoundedConcurrentCache<String, String>(10);
+      for (int i = 0; i < 100; i++)
+         cache.put("key" + i, "value" + i);
+      assertTrue(cache.size() <= 10);
+      assertEquals(90, cache.getEvictionCount());
+      assertTrue(cache.containsKey("key99"));
+   }
+
+   public void testFrequentlyUsedEntrySurvivesEviction() throws Exception
+   {
+      BoundedConcurrentCache<String, String> cache = new BoundedConcurrentCache<String, String>(5);
+      cache.put("hot", "value");
+      for (int i = 0; i < 50; i++)
+      {
+         assertEquals("value", cache.get("hot"));
+         cache.put("cold" + i, "value" + i);
+      }
+      assertTrue(cache.containsKey("hot"));
+      assertFalse(cache.containsKey("cold0"));
+   }
+
+   public void testStatistics() throws Exception
+   {
+      BoundedConcurrentCache<String, String> cache = new BoundedConcurrentCache<String, String>();
+      cache.put("jduke", "theduke");
+      assertEquals("theduke", cache.get("jduke"));
+      assertNull(cache.get("scott"));
+      assertEquals(1, cache.getHitCount());
+      assertEquals(1, cache.getMissCount());
+      cache.resetStatistics();
+      assertEquals(0, cache.getHitCount());
+   }
+
+   public void testExpireAfterWrite() throws Exception
+   {
+      ManualTime time = new ManualTime();
+      BoundedConcurrentCache<String, String> cache = new BoundedConcurrentCache<String, String>(10, 500, 0,
+            TimeUnit.MILLISECONDS, time);
+      cache.put("jduke", "theduke");
+      time.advance(499);
+      assertEquals("theduke", cache.get("jduke"));
+      time.advance(1);
+      assertNull(cache.get("jduke"));
+      assertFalse(cache.containsKey("jduke"));
+      assertEquals(1, cache.getExpirationCount());
+      assertEquals(0, cache.size());
+   }
+
+   public void testExpireAfterAccess() throws Exception
+   {
+      ManualTime time = new ManualTime();
+      BoundedConcurrentCache<String, String> cache = new BoundedConcurrentCache<String, String>(10, 0, 1000,
+            TimeUnit.MILLISECONDS, time);
+      cache.put("jduke", "theduke");
+      for (int i = 0; i < 4; i++)
+      {
+         time.advance(500);
+         assertEquals("theduke", cache.get("jduke"));
+      }
+      time.advance(1000);
+      assertFalse(cache.containsKey("jduke"));
+   }
+
+   public void testRemovalListener() throws Exception
+   {
+      ManualTime time = new ManualTime();
+      BoundedConcurrentCache<String, String> cache = new BoundedConcurrentCache<String, String>(2, 1000, 0,
+            TimeUnit.MILLISECONDS, time);
+      final List<String> removals = new ArrayList<String>();
+      cache.setRemovalListener(new RemovalListener<String, String>()
+      {
+         public void entryRemoved(String key, String value, RemovalCause cause)
+         {
+            removals.add(key + "=" + value + ":" + cause);
+         }
+      });
+      cache.put("jduke", "theduke");
+      cache.put("jduke", "newduke");
+      cache.put("jduke", "newduke");
+      assertEquals("newduke", cache.replace("jduke", "theduke"));
+      assertTrue(cache.remove("jduke", "theduke"));
+      cache.put("scott", "echoman");
+      cache.put("stark", "javaman");
+      cache.put("other", "other");
+      time.advance(1000);
+      cache.purgeExpired();
+      assertEquals(0, cache.size());
+      assertEquals(6, removals.size());
+      assertEquals("jduke=theduke:REPLACED", removals.get(0));
+      assertEquals("jduke=newduke:REPLACED", removals.get(1));
+      assertEquals("jduke=theduke:EXPLICIT", removals.get(2));
+      assertEquals("scott=echoman:EVICTED", removals.get(3));
+      assertTrue(removals.contains("stark=javaman:EXPIRED"));
+      assertTrue(removals.contains("other=other:EXPIRED"));
+
+      removals.clear();
+      cache.put("jduke", "theduke");
+      cache.clear();
+      assertEquals(1, removals.size());
+      assertEquals("jduke=theduke:EXPLICIT", removals.get(0));
+   }
+
+   public void testConcurrentMapOperations() throws Exception
+   {
+      BoundedConcurrentCache<String, String> cache = new BoundedConcurrentCache<String, String>(10);
+      assertNull(cache.putIfAbsent("jduke", "theduke"));
+      assertEquals("theduke", cache.putIfAbsent("jduke", "other"));
+      assertFalse(cache.replace("jduke", "other", "newduke"));
+      assertTrue(cache.replace("jduke", "theduke", "newduke"));
+      assertEquals("newduke", cache.replace("jduke", "theduke"));
+      assertFalse(cache.remove("jduke", "newduke"));
+      assertTrue(cache.remove("jduke", "theduke"));
+      assertTrue(cache.isEmpty());
+      cache.put("scott", "echoman");
+      assertEquals(1, cache.keySet().size());
+      cache.clear();
+      assertEquals(0, cache.size());
+   }
+
+   /**
+    * A time source only moving when told to.
+    */
+   private static class ManualTime implements TimeSource
+   {
+      private long nanos;
+
+      public long nanoTime()
+      {
+         return nanos;
+      }
+
+      void advance(long millis)
+      {
+         nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+      }
+   }
+}
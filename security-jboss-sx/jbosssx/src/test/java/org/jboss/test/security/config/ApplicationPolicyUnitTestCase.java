@@ -0,0 +1,134 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.test.security.config;
+
+import java.util.HashMap;
+
+import javax.security.auth.login.AppConfigurationEntry;
+import javax.security.auth.login.AppConfigurationEntry.LoginModuleControlFlag;
+
+import junit.framework.TestCase;
+
+import org.jboss.security.SecurityConstants;
+import org.jboss.security.auth.login.AuthenticationInfo;
+import org.jboss.security.auth.login.BaseAuthenticationInfo;
+import org.jboss.security.config.ApplicationPolicy;
+import org.jboss.security.config.MappingInfo;
+import org.jboss.security.config.SecurityConfiguration;
+import org.jboss.security.config.StandaloneConfiguration;
+import org.jboss.security.mapping.config.MappingModuleEntry;
+
+/**
+ * Unit test the resolution of the policy inheritance and the policy versions
+ * @version $Revision$
+ */
+public class ApplicationPolicyUnitTestCase extends TestCase
+{
+   public void testInheritanceAndVersions() throws Exception
+   {
+      AuthenticationInfo baseInfo = new AuthenticationInfo("base-policy");
+      baseInfo.add(getEntry("BaseModule"));
+      ApplicationPolicy base = new ApplicationPolicy("base-policy", baseInfo);
+      MappingInfo baseMapping = new MappingInfo("base-policy");
+      baseMapping.add(new MappingModuleEntry("BaseMappingModule"));
+      base.setMappingInfo("role", baseMapping);
+
+      ApplicationPolicy child = new ApplicationPolicy("child-policy");
+      child.setBaseApplicationPolicyName("base-policy");
+      SecurityConfiguration.addApplicationPolicy(child);
+      long version = SecurityConfiguration.getApplicationPolicyVersion("child-policy");
+      assertTrue(version > 0);
+      assertNull(child.getAuthenticationInfo());
+
+      // registering the base policy changes the effective child policy
+      SecurityConfiguration.addApplicationPolicy(base);
+      assertTrue(SecurityConfiguration.getApplicationPolicyVersion("child-policy") > version);
+      version = SecurityConfiguration.getApplicationPolicyVersion("child-policy");
+      SecurityConfiguration.addApplicationPolicy(base);
+      assertEquals(version, SecurityConfiguration.getApplicationPolicyVersion("child-policy"));
+      assertSame(baseInfo, child.getAuthenticationInfo());
+      assertSame(baseMapping, child.getMappingInfo("ROLE"));
+
+      // the merge is done once
+      AuthenticationInfo childInfo = new AuthenticationInfo("child-policy");
+      childInfo.add(getEntry("ChildModule"));
+      child.setAuthenticationInfo(childInfo);
+      BaseAuthenticationInfo merged = child.getAuthenticationInfo();
+      assertEquals(2, merged.getModuleEntries().size());
+      assertSame(merged, child.getAuthenticationInfo());
+
+      // a modification of the base policy is seen by the child policy
+      base.setAuthenticationInfo(new AuthenticationInfo("base-policy"));
+      assertNotSame(merged, child.getAuthenticationInfo());
+      assertEquals(1, child.getAuthenticationInfo().getModuleEntries().size());
+
+      SecurityConfiguration.removeApplicationPolicy("base-policy");
+      assertTrue(SecurityConfiguration.getApplicationPolicyVersion("child-policy") > version);
+      assertSame(childInfo, child.getAuthenticationInfo());
+      SecurityConfiguration.removeApplicationPolicy("child-policy");
+      assertTrue(SecurityConfiguration.getApplicationPolicyVersion("child-policy") > 0);
+   }
+
+   public void testAppConfigurationEntriesShared() throws Exception
+   {
+      StandaloneConfiguration config = StandaloneConfiguration.getInstance();
+      AuthenticationInfo info = new AuthenticationInfo("shared-entries");
+      info.add(getEntry("SharedModule"));
+      config.addApplicationPolicy("shared-entries", new ApplicationPolicy("shared-entries", info));
+
+      AppConfigurationEntry[] entries = config.getAppConfigurationEntry("shared-entries");
+      assertEquals(1, entries.length);
+      assertEquals("shared-entries", entries[0].getOptions().get(SecurityConstants.SECURITY_DOMAIN_OPTION));
+      assertSame(entries[0], config.getAppConfigurationEntry("shared-entries")[0]);
+      try
+      {
+         entries[0].getOptions().clear();
+         fail("The options must be unmodifiable");
+      }
+      catch (UnsupportedOperationException expected)
+      {
+      }
+
+      // a new version of the policy gets new entries
+      AuthenticationInfo newInfo = new AuthenticationInfo("shared-entries");
+      newInfo.add(getEntry("OtherModule"));
+      config.addApplicationPolicy("shared-entries", new ApplicationPolicy("shared-entries", newInfo));
+      assertEquals("OtherModule", config.getAppConfigurationEntry("shared-entries")[0].getLoginModuleName());
+
+      config.setCopyAppConfigurationEntries(true);
+      try
+      {
+         entries = config.getAppConfigurationEntry("shared-entries");
+         assertNotSame(entries[0], config.getAppConfigurationEntry("shared-entries")[0]);
+      }
+      finally
+      {
+         config.setCopyAppConfigurationEntries(false);
+         config.removeApplicationPolicy("shared-entries");
+      }
+   }
+
+   private AppConfigurationEntry getEntry(String name)
+   {
+      return new AppConfigurationEntry(name, LoginModuleControlFlag.REQUIRED, new HashMap<String, Object>());
+   }
+}
@@ -25,16 +25,21 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 
 import org.jboss.security.SecurityConstants;
 import org.jboss.security.SecurityContext;
+import org.jboss.security.config.RoleMappingInfo;
 import org.jboss.security.config.SecurityConfiguration;
 import org.jboss.security.identity.Attribute;
 import org.jboss.security.identity.RoleGroup;
 import org.jboss.security.identity.plugins.SimpleRole;
 import org.jboss.security.identity.plugins.SimpleRoleGroup;
 import org.jboss.security.mapping.MappingContext;
+import org.jboss.security.mapping.MappingProvider;
+import org.jboss.security.mapping.MappingResult;
 import org.jboss.security.mapping.MappingType;
+import org.jboss.security.mapping.config.MappingModuleEntry;
 
 
 /**
@@ -106,4 +111,77 @@ public class MappingContextTestCase extends SecurityContextBaseTest
             assertEquals("anil@test", att.getValue());
       }
    }
+   
+   public void testMappingContextPerCaller()
+   {
+      SecurityConfiguration.addApplicationPolicy(createApplicationPolicy(securityDomain));
+      SecurityContext sc= getSC(securityDomain);
+      HashMap<String,Object> map = new HashMap<String,Object>();
+      map.put(SecurityConstants.PRINCIPAL_IDENTIFIER, principal); 
+      
+      MappingContext<List<Attribute<String>>> mc = sc.getMappingManager().getMappingContext(MappingType.ATTRIBUTE.name());
+      MappingContext<List<Attribute<String>>> other = getSC(securityDomain).getMappingManager().getMappingContext(MappingType.ATTRIBUTE.name());
+      assertTrue("Every caller gets its own context", mc != other);
+      assertTrue("Modules are not shared", mc.getModules().get(0) != other.getModules().get(0));
+      
+      List<Attribute<String>> attrList = new ArrayList<Attribute<String>>(); 
+      MappingResult<List<Attribute<String>>> result = mc.map(map, attrList);
+      assertNotNull("Attribute List not null", result.getMappedObject()); 
+      assertNull("map does not change the result of the context", mc.getMappingResult());
+      
+      //The result of performMapping belongs to the context it was called on
+      mc.performMapping(map, new ArrayList<Attribute<String>>());
+      assertNotNull(mc.getMappingResult());
+      assertNull(other.getMappingResult());
+   }
+   
+   public void testMappingWithContextModules()
+   {
+      RoleMappingInfo rmi = new RoleMappingInfo(securityDomain);
+      rmi.add(new MappingModuleEntry(CountingMappingProvider.class.getName()));
+      SecurityConfiguration.addApplicationPolicy(createApplicationPolicy(securityDomain, rmi));
+      
+      MappingContext<RoleGroup> mc = getSC(securityDomain).getMappingManager().getMappingContext(RoleGroup.class);
+      List<MappingProvider<RoleGroup>> modules = mc.getModules();
+      assertSame("Modules are kept by the context", modules, mc.getModules());
+      
+      //The providers returned by getModules are the ones performing the mapping
+      mc.performMapping(new HashMap<String,Object>(), new SimpleRoleGroup(SecurityConstants.ROLES_IDENTIFIER));
+      mc.map(new HashMap<String,Object>(), new SimpleRoleGroup(SecurityConstants.ROLES_IDENTIFIER));
+      assertEquals(2, ((CountingMappingProvider) modules.get(0)).calls);
+   }
+   
+   public void testMappingProviderNotFound()
+   {
+      List<String> modules = new ArrayList<String>();
+      modules.add("org.jboss.test.DoesNotExist");
+      SecurityConfiguration.addApplicationPolicy(createApplicationPolicy(securityDomain, createRoleMappingInfo(securityDomain, modules)));
+      
+      MappingContext<RoleGroup> mc = getSC(securityDomain).getMappingManager().getMappingContext(RoleGroup.class);
+      assertFalse("The provider is ignored", mc.hasModules());
+      assertTrue(mc != getSC(securityDomain).getMappingManager().getMappingContext(RoleGroup.class));
+   }
+   
+   public static class CountingMappingProvider implements MappingProvider<RoleGroup>
+   {
+      int calls;
+      
+      public void init(Map<String, Object> options)
+      {
+      }
+
+      public void performMapping(Map<String, Object> map, RoleGroup mappedObject)
+      {
+         calls++;
+      }
+
+      public void setMappingResult(MappingResult<RoleGroup> result)
+      {
+      }
+
+      public boolean supports(Class<?> p)
+      {
+         return RoleGroup.class.isAssignableFrom(p);
+      }
+   }
 }
\ No newline at end of file
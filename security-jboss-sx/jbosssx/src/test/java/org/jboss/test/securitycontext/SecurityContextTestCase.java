@@ -41,7 +41,9 @@ import org.jboss.security.identity.plugins.SimpleRole;
 import org.jboss.security.identity.plugins.SimpleRoleGroup;
 import org.jboss.security.identitytrust.IdentityTrustManager;
 import org.jboss.security.mapping.MappingContext;
+import org.jboss.security.mapping.MappingManager;
 import org.jboss.security.mapping.providers.DeploymentRolesMappingProvider;
+import org.jboss.security.plugins.DefaultSecurityManagement;
 import org.jboss.security.plugins.JBossSecurityContext;
 import org.jboss.security.plugins.JBossSecurityContextUtil;
 
@@ -119,6 +121,28 @@ public class SecurityContextTestCase extends SecurityContextBaseTest
       assertNotNull("IdentityTrustManager is not null", itm);
    }
    
+   public void testManagersShared() throws Exception
+   {
+      MappingManager mappingMgr = getSC(securityDomain).getMappingManager();
+      assertSame("MappingManager is shared", mappingMgr, getSC(securityDomain).getMappingManager());
+      AuditManager auditMgr = getSC(securityDomain).getAuditManager();
+      assertSame("AuditManager is shared", auditMgr, getSC(securityDomain).getAuditManager());
+      
+      //Managers whose callers configure them are not shared
+      AuthorizationManager authorizationMgr = getSC(securityDomain).getAuthorizationManager();
+      assertTrue("AuthorizationManager not shared", authorizationMgr != getSC(securityDomain).getAuthorizationManager());
+      AuthenticationManager authManager = getSC(securityDomain).getAuthenticationManager();
+      assertTrue("AuthenticationManager not shared", authManager != getSC(securityDomain).getAuthenticationManager());
+      
+      //Replacing the policy of the domain replaces its managers
+      SecurityConfiguration.addApplicationPolicy(createApplicationPolicy(securityDomain));
+      assertTrue("New MappingManager", mappingMgr != getSC(securityDomain).getMappingManager());
+      
+      mappingMgr = getSC(securityDomain).getMappingManager();
+      DefaultSecurityManagement.invalidate(securityDomain);
+      assertTrue("New MappingManager", mappingMgr != getSC(securityDomain).getMappingManager());
+   }
+   
    public void testRoles()
    {
       JBossSecurityContext sc = this.getSC("other");
@@ -0,0 +1,51 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.security.acl;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.jboss.security.authorization.Resource;
+
+/**
+ * <p>
+ * An {@code ACLPersistenceStrategy} that can retrieve the {@code ACL}s of many resources at once. It allows
+ * the {@code ACLProvider} to fetch the {@code ACL}s needed by a series of checks in a single round trip to
+ * the underlying store.
+ * </p>
+ */
+public interface BatchACLPersistenceStrategy extends ACLPersistenceStrategy
+{
+
+   /**
+    * <p>
+    * Obtains the {@code ACL}s associated to the given resources. Strategies that cache the {@code ACL}s also
+    * remember the resources that have no {@code ACL}, so this method can be used to warm the cache before a
+    * series of {@link #getACL(Resource)} calls.
+    * </p>
+    * 
+    * @param resources  the {@code Resource}s for which the associated ACLs are wanted.
+    * @return   a {@code Map} containing the {@code ACL} of each resource that has one. Resources that are
+    * not associated with any ACL are not present in the map.
+    */
+   public Map<Resource, ACL> getACLs(Collection<? extends Resource> resources);
+}
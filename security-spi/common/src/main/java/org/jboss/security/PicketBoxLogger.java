@@ -5,6 +5,7 @@ import org.jboss.logging.*;
 import javax.security.auth.Subject;
 import java.net.URL;
 import java.security.*;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -688,4 +689,72 @@ public interface PicketBoxLogger extends BasicLogger {
     @Message(id = 366, value = "Error parsing time out number.")
     void errorParsingTimeoutNumber();
 
+    @LogMessage(level = Logger.Level.TRACE)
+    @Message(id = 367, value = "Shared the result of a concurrent login for principal %s, authenticated: %s")
+    void traceCoalescedLogin(Principal principal, boolean authenticated);
+
+    @LogMessage(level = Logger.Level.DEBUG)
+    @Message(id = 368, value = "Properties file %s has changed, reloading it")
+    void debugReloadingPropertiesFile(String fileName);
+
+    @LogMessage(level = Logger.Level.TRACE)
+    @Message(id = 369, value = "Discarding pooled LDAP connection %s")
+    void traceDiscardingPooledLDAPConnection(String context);
+
+    @LogMessage(level = Logger.Level.DEBUG)
+    @Message(id = 370, value = "Failed to open an idle pooled LDAP connection")
+    void debugFailureToOpenPooledLDAPConnection(@Cause Throwable throwable);
+
+    @LogMessage(level = Logger.Level.WARN)
+    @Message(id = 371, value = "Audit provider %s failed to process an audit event")
+    void warnAuditProviderFailure(String provider, @Cause Throwable throwable);
+
+    @LogMessage(level = Logger.Level.TRACE)
+    @Message(id = 372, value = "Dropped audit event for security domain %s, the audit queue is full")
+    void traceDroppedAuditEvent(String securityDomain);
+
+    @LogMessage(level = Logger.Level.ERROR)
+    @Message(id = 373, value = "Failed to create X509RevocationChecker")
+    void errorCreatingRevocationChecker(@Cause Throwable throwable);
+
+    @LogMessage(level = Logger.Level.WARN)
+    @Message(id = 374, value = "Failed to load the certificate revocation lists from %s")
+    void warnFailureToLoadCRL(String location, @Cause Throwable throwable);
+
+    @LogMessage(level = Logger.Level.TRACE)
+    @Message(id = 375, value = "Certificate with serial number %s issued by %s has been revoked")
+    void traceCertificateRevoked(String serialNumber, String issuer);
+
+    @LogMessage(level = Logger.Level.TRACE)
+    @Message(id = 376, value = "Using the cached verification of the certificate with serial number %s")
+    void traceCachedCertificateVerification(String serialNumber);
+
+    @LogMessage(level = Logger.Level.DEBUG)
+    @Message(id = 377, value = "Failed to bind the pooled LDAP connection back as the search identity, discarding it")
+    void debugFailureToRebindPooledLDAPConnection(@Cause Throwable throwable);
+
+    @LogMessage(level = Logger.Level.WARN)
+    @Message(id = 378, value = "Invalid value %s for %s, using the default value %s")
+    void warnInvalidPropertyValue(String value, String property, String defaultValue);
+
+    @LogMessage(level = Logger.Level.WARN)
+    @Message(id = 379, value = "Cannot verify the certificate revocation list of %s with a trusted certificate, the certificates of this issuer are rejected")
+    void warnFailureToVerifyCRL(String issuer, @Cause Throwable throwable);
+
+    @LogMessage(level = Logger.Level.WARN)
+    @Message(id = 380, value = "The certificate revocation list of %s expired on %s, the certificates of this issuer are rejected")
+    void warnExpiredCRL(String issuer, Date nextUpdate);
+
+    @LogMessage(level = Logger.Level.WARN)
+    @Message(id = 381, value = "Failure while flushing the cached resources of security domain %s")
+    void warnFailureToFlushSecurityDomain(String securityDomain, @Cause Throwable throwable);
+
+    @LogMessage(level = Logger.Level.INFO)
+    @Message(id = 382, value = "The %s cache reached its limit of %s entries, the least used entries are now evicted")
+    void infoCacheLimitReached(String cacheName, int maxEntries);
+
+    @LogMessage(level = Logger.Level.ERROR)
+    @Message(id = 383, value = "The certificate revocation list %s could not be read, all the certificates are rejected until it is read")
+    void errorFailureToLoadCRL(String location);
+
 }
\ No newline at end of file
@@ -435,4 +435,19 @@ public interface PicketBoxMessages {
 
     @Message(id = 133, value = "Failed to match %s and %s")
     RuntimeException failedToMatchStrings(String one, String two);
+
+    @Message(id = 134, value = "No login modules configured for %s")
+    LoginException noLoginModulesConfigured(String name);
+
+    @Message(id = 135, value = "Failed to instantiate login module %s")
+    LoginException failedToInstantiateLoginModule(String loginModule);
+
+    @Message(id = 136, value = "Login failure: all modules ignored")
+    LoginException allLoginModulesIgnored();
+
+    @Message(id = 137, value = "Login module %s failed")
+    LoginException loginModuleFailed(String loginModule);
+
+    @Message(id = 138, value = "No pooled LDAP connection available after %s ms")
+    NamingException pooledLDAPConnectionUnavailable(long maxWait);
 }
\ No newline at end of file
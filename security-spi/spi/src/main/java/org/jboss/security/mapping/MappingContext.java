@@ -42,18 +42,31 @@ public class MappingContext<T>
     * @param mappedObject an object on which mapping will be applied 
     */
    public void performMapping(Map<String,Object> contextMap, T mappedObject)
+   {
+      result = map(contextMap, mappedObject);
+   } 
+   
+   /**
+    * Apply mapping semantics on the passed object and return the result of
+    * this call, without changing the result of {@link #getMappingResult()}
+    * @param contextMap Read-only Contextual Map
+    * @param mappedObject an object on which mapping will be applied 
+    * @return the result of the mapping
+    */
+   public MappingResult<T> map(Map<String,Object> contextMap, T mappedObject)
    {
       int len = modules.size(); 
       
-      result = new MappingResult<T>();
+      MappingResult<T> mappingResult = new MappingResult<T>();
       
       for(int i = 0 ; i < len; i++)
       {
          MappingProvider<T> mp = (MappingProvider<T>)modules.get(i);
-         mp.setMappingResult(result);
+         mp.setMappingResult(mappingResult);
          mp.performMapping(contextMap, mappedObject);
       } 
-   } 
+      return mappingResult;
+   }
    
    /**
     * 
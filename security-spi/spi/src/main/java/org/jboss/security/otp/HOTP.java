@@ -177,11 +177,11 @@ public class HOTP
       Mac hmacSha1;
       try 
       {
-         hmacSha1 = Mac.getInstance("HmacSHA1");
+         hmacSha1 = TimeBasedOTP.getMac("HmacSHA1");
       } 
       catch (NoSuchAlgorithmException nsae) 
       {
-         hmacSha1 = Mac.getInstance("HMAC-SHA-1");
+         hmacSha1 = TimeBasedOTP.getMac("HMAC-SHA-1");
       }
       
       SecretKeySpec macKey =  new SecretKeySpec(keyBytes, "RAW");
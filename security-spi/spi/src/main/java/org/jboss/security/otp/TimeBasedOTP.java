@@ -24,8 +24,11 @@ package org.jboss.security.otp;
 import java.math.BigInteger;
 import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
+import java.security.Key;
 import java.security.NoSuchAlgorithmException;
 import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.TimeZone;
 
 import javax.crypto.Mac;
@@ -52,6 +55,109 @@ public class TimeBasedOTP
    private static int TIME_SLICE_X = 30000;
    private static int TIME_ZERO = 0;
    
+   /** The Mac instances of the current thread by algorithm, they are reinitialized with the key of each call */
+   private static final ThreadLocal<Map<String, Mac>> MACS = new ThreadLocal<Map<String, Mac>>()
+   {
+      @Override
+      protected Map<String, Mac> initialValue()
+      {
+         return new HashMap<String, Mac>();
+      }
+   };
+   
+   /** Buffers of the current thread for the counter and the hash */
+   private static final ThreadLocal<byte[][]> BUFFERS = new ThreadLocal<byte[][]>()
+   {
+      @Override
+      protected byte[][] initialValue()
+      {
+         return new byte[][] { new byte[8], new byte[64] };
+      }
+   };
+   
+   /**
+    * Get the time step of a time, that is the counter of the TOTP for this time
+    * @param timeInMillis the time in milliseconds since the epoch
+    * @return the time step
+    */
+   public static long getTimeStep( long timeInMillis )
+   {
+      return ( timeInMillis - TIME_ZERO ) / TIME_SLICE_X;
+   }
+   
+   /**
+    * Create the key of a shared secret
+    * @param key the shared secret, HEX encoded
+    * @return the key to pass to {@link #generateOTP(Key, long, int, String)}
+    */
+   public static Key createKey( String key )
+   {
+      return new SecretKeySpec( hexStr2Bytes( key ), "RAW" );
+   }
+   
+   /**
+    * Generate the OTP of a counter, without the allocations of the String based methods:
+    * the Mac instance and the buffers are reused by the calling thread.
+    * 
+    * @param key the shared secret, see {@link #createKey(String)}
+    * @param counter the time step or HOTP counter
+    * @param returnDigits number of digits of the OTP
+    * @param crypto the crypto function to use
+    * @return the OTP, which has leading zeros when written with {@code returnDigits} digits
+    * @throws GeneralSecurityException
+    */
+   public static int generateOTP( Key key, long counter, int returnDigits, String crypto ) throws GeneralSecurityException
+   {
+      byte[][] buffers = BUFFERS.get();
+      byte[] msg = buffers[0];
+      for (int i = msg.length - 1; i >= 0; i--) 
+      {
+         msg[i] = (byte) (counter & 0xff);
+         counter >>= 8;
+      }
+      
+      Mac hmac = getMac( crypto );
+      hmac.init( key );
+      hmac.update( msg );
+      byte[] hash = buffers[1];
+      int length = hmac.getMacLength();
+      if( length > hash.length )
+      {
+         hash = new byte[length];
+         buffers[1] = hash;
+      }
+      hmac.doFinal( hash, 0 );
+      
+      // put selected bytes into result int
+      int offset = hash[length - 1] & 0xf;
+
+      int binary =
+         ((hash[offset] & 0x7f) << 24) |
+         ((hash[offset + 1] & 0xff) << 16) |
+         ((hash[offset + 2] & 0xff) << 8) |
+         (hash[offset + 3] & 0xff);
+
+      return binary % DIGITS_POWER[ returnDigits ];
+   }
+   
+   /**
+    * Get the Mac instance of the current thread for an algorithm
+    * @param crypto the algorithm
+    * @return the Mac, to be initialized by the caller
+    * @throws NoSuchAlgorithmException
+    */
+   static Mac getMac( String crypto ) throws NoSuchAlgorithmException
+   {
+      Map<String, Mac> macs = MACS.get();
+      Mac hmac = macs.get( crypto );
+      if( hmac == null )
+      {
+         hmac = Mac.getInstance( crypto );
+         macs.put( crypto, hmac );
+      }
+      return hmac;
+   }
+   
    
    /**
     * Generate a TOTP value using HMAC_SHA1
@@ -240,8 +346,7 @@ public class TimeBasedOTP
     */
    private static byte[] hmac_sha1(String crypto, byte[] keyBytes, byte[] text) throws GeneralSecurityException
    {
-      Mac hmac;
-      hmac = Mac.getInstance(crypto);
+      Mac hmac = getMac(crypto);
       SecretKeySpec macKey =
          new SecretKeySpec(keyBytes, "RAW");
       hmac.init(macKey);
@@ -22,8 +22,6 @@
 package org.jboss.security.otp;
 
 import java.security.GeneralSecurityException;
-import java.util.Calendar;
-import java.util.TimeZone;
 
 /**
  * Utility class associated with the {@code TimeBasedOTP} class
@@ -32,8 +30,6 @@ import java.util.TimeZone;
  */
 public class TimeBasedOTPUtil
 {   
-   private static long TIME_INTERVAL = 30 * 1000; //30 secs
-   
    /**
    * Validate a submitted OTP string
    * @param submittedOTP OTP string to validate
@@ -43,30 +39,7 @@ public class TimeBasedOTPUtil
    */
   public static boolean validate( String submittedOTP, byte[] secret, int numDigits ) throws GeneralSecurityException
   {
-     TimeZone utc = TimeZone.getTimeZone( "UTC" );
-     Calendar currentDateTime = Calendar.getInstance( utc );
-     
-     String generatedTOTP = TimeBasedOTP.generateTOTP( new String( secret ) , numDigits );
-     boolean result =  generatedTOTP.equals( submittedOTP );
-
-     long timeInMilis = currentDateTime.getTimeInMillis();
-     
-     if( !result )
-     {   
-        timeInMilis -= TIME_INTERVAL;
-        
-        generatedTOTP = TimeBasedOTP.generateTOTP( new String( secret ) , "" + timeInMilis, numDigits );
-        result =  generatedTOTP.equals( submittedOTP );
-     }
-     
-     if( !result )
-     {
-        timeInMilis += TIME_INTERVAL;
-        generatedTOTP = TimeBasedOTP.generateTOTP( new String( secret ) , "" + timeInMilis, numDigits );
-        result =  generatedTOTP.equals( submittedOTP );
-     }
-     
-     return result;
+     return validate( submittedOTP, secret, numDigits, TimeBasedOTP.HMAC_SHA1, 1 );
   }
   
   /**
@@ -78,33 +51,7 @@ public class TimeBasedOTPUtil
    */
   public static boolean validate256( String submittedOTP, byte[] secret, int numDigits ) throws GeneralSecurityException
   {
-     TimeZone utc = TimeZone.getTimeZone( "UTC" );
-     Calendar currentDateTime = Calendar.getInstance( utc );
-     
-     String generatedTOTP = TimeBasedOTP.generateTOTP256( new String( secret ) , numDigits );
-     boolean result =  generatedTOTP.equals( submittedOTP );
-     
-     if( !result )
-     {
-        //Step back time interval
-        long timeInMilis = currentDateTime.getTimeInMillis();
-        timeInMilis -= TIME_INTERVAL;
-        
-        generatedTOTP = TimeBasedOTP.generateTOTP256( new String( secret ) , "" + timeInMilis, numDigits );
-        result =  generatedTOTP.equals( submittedOTP );
-     }
-     
-     if( !result )
-     {
-        //Step ahead time interval
-        long timeInMilis = currentDateTime.getTimeInMillis();
-        timeInMilis += TIME_INTERVAL;
-        
-        generatedTOTP = TimeBasedOTP.generateTOTP256( new String( secret ) , "" + timeInMilis, numDigits );
-        result =  generatedTOTP.equals( submittedOTP );
-     }
-     
-     return result;
+     return validate( submittedOTP, secret, numDigits, TimeBasedOTP.HMAC_SHA256, 1 );
   }
   
   /**
@@ -116,32 +63,22 @@ public class TimeBasedOTPUtil
    */
   public static boolean validate512( String submittedOTP, byte[] secret, int numDigits ) throws GeneralSecurityException
   {
-     TimeZone utc = TimeZone.getTimeZone( "UTC" );
-     Calendar currentDateTime = Calendar.getInstance( utc );
-     
-     String generatedTOTP = TimeBasedOTP.generateTOTP512( new String( secret ) , numDigits );
-     boolean result =  generatedTOTP.equals( submittedOTP );
-     
-     if( !result )
-     {
-        //Step back time interval
-        long timeInMilis = currentDateTime.getTimeInMillis();
-        timeInMilis -= TIME_INTERVAL;
-        
-        generatedTOTP = TimeBasedOTP.generateTOTP512( new String( secret ) , "" + timeInMilis, numDigits );
-        result =  generatedTOTP.equals( submittedOTP );
-     }
-     
-     if( !result )
-     {
-        //Step ahead time interval
-        long timeInMilis = currentDateTime.getTimeInMillis();
-        timeInMilis += TIME_INTERVAL;
-        
-        generatedTOTP = TimeBasedOTP.generateTOTP512( new String( secret ) , "" + timeInMilis, numDigits );
-        result =  generatedTOTP.equals( submittedOTP );
-     }
-     
-     return result;
+     return validate( submittedOTP, secret, numDigits, TimeBasedOTP.HMAC_SHA512, 1 );
+  }
+  
+  /**
+   * Validate a submitted OTP string against the current time step and the
+   * {@code skew} steps before and after it
+   * @param submittedOTP OTP string to validate
+   * @param secret Shared secret 
+   * @param algorithm one of the {@code TimeBasedOTP} HMAC algorithms
+   * @param skew number of time steps accepted around the current one
+   * @return 
+   * @throws GeneralSecurityException
+   */
+  public static boolean validate( String submittedOTP, byte[] secret, int numDigits, String algorithm, int skew ) throws GeneralSecurityException
+  {
+     TimeBasedOTPValidator validator = new TimeBasedOTPValidator( algorithm, numDigits, skew, 0 );
+     return validator.validate( null, submittedOTP, TimeBasedOTP.createKey( new String( secret ) ) );
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,204 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.security.otp;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Validates TOTPs against the time steps around the current one, working on
+ * long counters and on the reusable {@code Mac} instances of {@link TimeBasedOTP}.
+ * <p>
+ * The skew is the number of time steps accepted before and after the current
+ * one, to make up for clock drift and for the time the user took to enter the
+ * code. When replay protection is enabled, the last time step accepted for each
+ * user is kept and an OTP for that step or an earlier one is rejected, so a code
+ * cannot be used twice within the window. At most {@code maxUsedCodes} users are
+ * kept: once the limit is exceeded the entries that have left the window are
+ * purged, then the oldest ones are evicted until the limit is met again. The
+ * replay of a code whose entry was evicted is not detected, so the limit should
+ * exceed the number of users logging in within one window.
+ * </p>
+ * Instances are thread safe.
+ * 
+ * @since Oct 15, 2026
+ */
+public class TimeBasedOTPValidator
+{
+   private final String algorithm;
+
+   private final int numDigits;
+
+   private final int skew;
+
+   private final int maxUsedCodes;
+
+   /** The last time step accepted for each user, null when replays are not rejected */
+   private final ConcurrentMap<String, Long> usedCodes;
+
+   /** Orders the used codes by time step */
+   private static final Comparator<Map.Entry<String, Long>> OLDEST_FIRST = new Comparator<Map.Entry<String, Long>>()
+   {
+      public int compare( Map.Entry<String, Long> e1, Map.Entry<String, Long> e2 )
+      {
+         return e1.getValue().compareTo( e2.getValue() );
+      }
+   };
+
+   /**
+    * Create a new TimeBasedOTPValidator.
+    * 
+    * @param algorithm one of {@link TimeBasedOTP#HMAC_SHA1}, {@link TimeBasedOTP#HMAC_SHA256} or {@link TimeBasedOTP#HMAC_SHA512}
+    * @param numDigits number of digits of the TOTPs
+    * @param skew number of time steps accepted before and after the current one
+    * @param maxUsedCodes number of users whose last code is kept to reject replays, 0 accepts replays
+    */
+   public TimeBasedOTPValidator( String algorithm, int numDigits, int skew, int maxUsedCodes )
+   {
+      this.algorithm = algorithm;
+      this.numDigits = numDigits;
+      this.skew = skew;
+      this.maxUsedCodes = maxUsedCodes;
+      this.usedCodes = maxUsedCodes > 0 ? new ConcurrentHashMap<String, Long>() : null;
+   }
+
+   /**
+    * Validate a submitted TOTP against the current time.
+    * 
+    * @param user the user the TOTP is submitted for, used to reject replays
+    * @param submittedOTP the TOTP
+    * @param key the shared secret of the user, see {@link TimeBasedOTP#createKey(String)}
+    * @return whether the TOTP is valid
+    * @throws GeneralSecurityException
+    */
+   public boolean validate( String user, String submittedOTP, Key key ) throws GeneralSecurityException
+   {
+      return validate( user, submittedOTP, key, System.currentTimeMillis() );
+   }
+
+   /**
+    * Validate a submitted TOTP against a time.
+    * 
+    * @param user the user the TOTP is submitted for, used to reject replays
+    * @param submittedOTP the TOTP
+    * @param key the shared secret of the user, see {@link TimeBasedOTP#createKey(String)}
+    * @param timeInMillis the time in milliseconds since the epoch
+    * @return whether the TOTP is valid
+    * @throws GeneralSecurityException
+    */
+   public boolean validate( String user, String submittedOTP, Key key, long timeInMillis ) throws GeneralSecurityException
+   {
+      int otp = parse( submittedOTP );
+      if( otp < 0 )
+         return false;
+      long current = TimeBasedOTP.getTimeStep( timeInMillis );
+      // the current step first, then the closest ones
+      for( int i = 0; i <= 2 * skew; i++ )
+      {
+         long step = ( i & 1 ) == 0 ? current - i / 2 : current + ( i + 1 ) / 2;
+         if( TimeBasedOTP.generateOTP( key, step, numDigits, algorithm ) == otp )
+            return user == null || usedCodes == null || markUsed( user, step, current );
+      }
+      return false;
+   }
+
+   /**
+    * Record the time step of an accepted TOTP.
+    * @return false if a TOTP for this step or a later one was already accepted
+    */
+   private boolean markUsed( String user, long step, long current )
+   {
+      Long accepted = Long.valueOf( step );
+      while( true )
+      {
+         Long last = usedCodes.get( user );
+         if( last == null )
+         {
+            if( usedCodes.putIfAbsent( user, accepted ) == null )
+               break;
+         }
+         else if( last.longValue() >= step )
+         {
+            return false;
+         }
+         else if( usedCodes.replace( user, last, accepted ) )
+         {
+            return true;
+         }
+      }
+      if( usedCodes.size() > maxUsedCodes )
+         purge( current );
+      return true;
+   }
+
+   /**
+    * Remove the used codes that are out of the window, they cannot be submitted again anyway,
+    * then evict the oldest ones until at most maxUsedCodes are left.
+    */
+   private void purge( long current )
+   {
+      Iterator<Map.Entry<String, Long>> entries = usedCodes.entrySet().iterator();
+      while( entries.hasNext() )
+      {
+         if( entries.next().getValue().longValue() < current - skew )
+            entries.remove();
+      }
+      int excess = usedCodes.size() - maxUsedCodes;
+      if( excess <= 0 )
+         return;
+      List<Map.Entry<String, Long>> oldest = new ArrayList<Map.Entry<String, Long>>( usedCodes.entrySet() );
+      Collections.sort( oldest, OLDEST_FIRST );
+      for( int i = 0; i < oldest.size() && usedCodes.size() > maxUsedCodes; i++ )
+      {
+         Map.Entry<String, Long> entry = oldest.get( i );
+         // leave the entry if the user got a newer code in the meantime
+         usedCodes.remove( entry.getKey(), entry.getValue() );
+      }
+   }
+
+   /**
+    * Parse a submitted TOTP.
+    * @return the value, or -1 if it is not made of the expected number of digits
+    */
+   private int parse( String submittedOTP )
+   {
+      if( submittedOTP == null || submittedOTP.length() != numDigits )
+         return -1;
+      int value = 0;
+      for( int i = 0; i < numDigits; i++ )
+      {
+         char c = submittedOTP.charAt( i );
+         if( c < '0' || c > '9' )
+            return -1;
+         value = value * 10 + ( c - '0' );
+      }
+      return value;
+   }
+}
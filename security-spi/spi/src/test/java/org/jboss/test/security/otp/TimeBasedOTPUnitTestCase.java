@@ -22,10 +22,14 @@
 package org.jboss.test.security.otp;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.security.Key;
+
 import org.jboss.security.otp.TimeBasedOTP;
 import org.jboss.security.otp.TimeBasedOTPUtil;
+import org.jboss.security.otp.TimeBasedOTPValidator;
 import org.junit.Test;
 
 /**
@@ -120,4 +124,65 @@ public class TimeBasedOTPUnitTestCase
       
       assertTrue( "TOTP validated", TimeBasedOTPUtil.validate( totp, seed.getBytes() , 8 ));
    }
+   
+   @Test
+   public void testTOTPCounter() throws Exception
+   {
+      Key key = TimeBasedOTP.createKey( seed );
+      String[] algorithms = { "HmacSHA1", "HmacSHA256", "HmacSHA512" };
+      int totpIndex = -1;
+      
+      for(int i=0; i< testTime.length; i++) 
+      {
+         long T = TimeBasedOTP.getTimeStep( testTime[i] * 1000 );
+         for(int j=0; j< algorithms.length; j++) 
+         {
+            int otp = TimeBasedOTP.generateOTP( key, T, NUMBER_OF_DIGITS, algorithms[j] );
+            assertEquals( Integer.parseInt( totp[ ++totpIndex ] ), otp );
+         }
+     } 
+   } 
+   
+   @Test
+   public void testTOTPSkewAndReplay() throws Exception
+   {
+      Key key = TimeBasedOTP.createKey( seed );
+      long time = 1111111109 * 1000L;
+      long step = 30 * 1000L;
+      
+      TimeBasedOTPValidator validator = new TimeBasedOTPValidator( "HmacSHA1", NUMBER_OF_DIGITS, 1, 0 );
+      assertTrue( validator.validate( "anil", "07081804", key, time ) );
+      assertTrue( validator.validate( "anil", "07081804", key, time + step ) );
+      assertTrue( validator.validate( "anil", "07081804", key, time - step ) );
+      assertFalse( validator.validate( "anil", "07081804", key, time + 2 * step ) );
+      assertFalse( validator.validate( "anil", "7081804", key, time ) );
+      assertFalse( validator.validate( "anil", "0708180x", key, time ) );
+      
+      TimeBasedOTPValidator wide = new TimeBasedOTPValidator( "HmacSHA1", NUMBER_OF_DIGITS, 2, 0 );
+      assertTrue( wide.validate( "anil", "07081804", key, time + 2 * step ) );
+      
+      TimeBasedOTPValidator replay = new TimeBasedOTPValidator( "HmacSHA1", NUMBER_OF_DIGITS, 1, 10 );
+      assertTrue( replay.validate( "anil", "07081804", key, time ) );
+      assertFalse( "Replay rejected", replay.validate( "anil", "07081804", key, time ) );
+      assertTrue( "Other user", replay.validate( "bob", "07081804", key, time ) );
+      // the next code is accepted, then the previous one cannot be used any more
+      assertTrue( replay.validate( "anil", "14050471", key, time + step ) );
+      assertFalse( replay.validate( "bob", "07081804", key, time + step ) );
+   }
+   
+   @Test
+   public void testTOTPUsedCodesBounded() throws Exception
+   {
+      Key key = TimeBasedOTP.createKey( seed );
+      long time = 1111111109 * 1000L;
+      long step = 30 * 1000L;
+      
+      TimeBasedOTPValidator replay = new TimeBasedOTPValidator( "HmacSHA1", NUMBER_OF_DIGITS, 1, 2 );
+      assertTrue( replay.validate( "anil", "07081804", key, time ) );
+      assertTrue( replay.validate( "bob", "14050471", key, time + step ) );
+      // all the codes are still in the window, the oldest one is evicted for the third user
+      assertTrue( replay.validate( "carol", "14050471", key, time + step ) );
+      assertTrue( "Oldest code evicted", replay.validate( "anil", "07081804", key, time + step ) );
+      assertFalse( "Replay rejected", replay.validate( "carol", "14050471", key, time + step ) );
+   }
 }
\ No newline at end of file